@@ -16,6 +16,7 @@ import me.benthomas.tttworld.Crypto;
 
 public class KnownHosts {
     private static HashMap<String, byte[]> hosts;
+    private static HashMap<String, HostKey> keys;
     
     public static boolean doPrompt(Component parent, String host, byte[] fingerprint) {
         try {
@@ -68,6 +69,7 @@ public class KnownHosts {
     }
     public static void load() throws IOException {
         KnownHosts.hosts = new HashMap<String, byte[]>();
+        KnownHosts.keys = new HashMap<String, HostKey>();
         
         if (new File("hosts.txt").exists()) {
             Properties p = new Properties();
@@ -84,6 +86,25 @@ public class KnownHosts {
                 }
             }
         }
+        
+        if (new File("hostkeys.txt").exists()) {
+            Properties p = new Properties();
+            
+            try (FileInputStream in = new FileInputStream("hostkeys.txt")) {
+                p.load(in);
+            }
+            
+            for (Entry<Object, Object> host : p.entrySet()) {
+                String[] parts = host.getValue().toString().split(",");
+                
+                try {
+                    KnownHosts.keys.put(host.getKey().toString(), new HostKey(Integer.parseInt(parts[0]),
+                            Boolean.parseBoolean(parts[1]), Crypto.decodeFromBase64(parts[2])));
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    // Ignore invalid entries
+                }
+            }
+        }
     }
     
     public static boolean isKnown(String host) throws IOException {
@@ -111,6 +132,60 @@ public class KnownHosts {
         KnownHosts.save();
     }
     
+    public static HostKey getHostKey(String host) throws IOException {
+        if (KnownHosts.keys == null) {
+            KnownHosts.load();
+        }
+        
+        HostKey key = KnownHosts.keys.get(host);
+        
+        // A remembered key is only used while it still matches the pinned
+        // fingerprint, so changing the pin always brings back the prompt
+        if (key == null || !Arrays.equals(Crypto.calculateSHA1(key.getPublicKey()), KnownHosts.getHostFingerprint(host))) {
+            return null;
+        }
+        
+        return key;
+    }
+    
+    public static void addHostKey(String host, int minorVersion, boolean registrationAllowed, byte[] publicKey)
+            throws IOException {
+        if (KnownHosts.keys == null) {
+            KnownHosts.load();
+        }
+        
+        HostKey old = KnownHosts.keys.get(host);
+        
+        if (old == null || old.minorVersion != minorVersion || old.registrationAllowed != registrationAllowed
+                || !Arrays.equals(old.publicKey, publicKey)) {
+            KnownHosts.keys.put(host, new HostKey(minorVersion, registrationAllowed, publicKey));
+            KnownHosts.saveKeys();
+        }
+    }
+    
+    public static void removeHostKey(String host) throws IOException {
+        if (KnownHosts.keys == null) {
+            KnownHosts.load();
+        }
+        
+        if (KnownHosts.keys.remove(host) != null) {
+            KnownHosts.saveKeys();
+        }
+    }
+    
+    private static void saveKeys() throws IOException {
+        Properties p = new Properties();
+        
+        for (Entry<String, HostKey> e : KnownHosts.keys.entrySet()) {
+            p.put(e.getKey(), e.getValue().getMinorVersion() + "," + e.getValue().isRegistrationAllowed() + ","
+                    + Crypto.encodeToBase64(e.getValue().getPublicKey()));
+        }
+        
+        try (FileOutputStream out = new FileOutputStream("hostkeys.txt")) {
+            p.store(out, "Tic-Tac-Toe World Known Host Keys");
+        }
+    }
+    
     private static void save() throws IOException {
         Properties p = new Properties();
         
@@ -122,4 +197,28 @@ public class KnownHosts {
             p.store(out, "Tic-Tac-Toe World Known Hosts");
         }
     }
+    
+    public static class HostKey {
+        private final int minorVersion;
+        private final boolean registrationAllowed;
+        private final byte[] publicKey;
+        
+        private HostKey(int minorVersion, boolean registrationAllowed, byte[] publicKey) {
+            this.minorVersion = minorVersion;
+            this.registrationAllowed = registrationAllowed;
+            this.publicKey = publicKey;
+        }
+        
+        public int getMinorVersion() {
+            return this.minorVersion;
+        }
+        
+        public boolean isRegistrationAllowed() {
+            return this.registrationAllowed;
+        }
+        
+        public byte[] getPublicKey() {
+            return this.publicKey;
+        }
+    }
 }
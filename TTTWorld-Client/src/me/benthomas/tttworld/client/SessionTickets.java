@@ -0,0 +1,52 @@
+package me.benthomas.tttworld.client;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+import me.benthomas.tttworld.net.PacketSessionTicket;
+
+public class SessionTickets {
+    private static final HashMap<String, SessionTickets> tickets = new HashMap<String, SessionTickets>();
+    private static final SecureRandom random = new SecureRandom();
+    
+    private final byte[] ticket;
+    private final byte[] resumptionSecret;
+    private final long expires;
+    
+    private SessionTickets(byte[] ticket, byte[] resumptionSecret, long expires) {
+        this.ticket = ticket;
+        this.resumptionSecret = resumptionSecret;
+        this.expires = expires;
+    }
+    
+    public byte[] getTicket() {
+        return this.ticket;
+    }
+    
+    public byte[] getResumptionSecret() {
+        return this.resumptionSecret;
+    }
+    
+    public static synchronized void put(String host, byte[] ticket, byte[] resumptionSecret, int lifetime) {
+        SessionTickets.tickets.put(host.toLowerCase(), new SessionTickets(ticket, resumptionSecret,
+                System.currentTimeMillis() + lifetime * 1000L));
+    }
+    
+    public static synchronized SessionTickets take(String host) {
+        SessionTickets t = SessionTickets.tickets.remove(host.toLowerCase());
+        
+        // Tickets are only kept in memory, and each one is only used once
+        if (t == null || t.expires <= System.currentTimeMillis()) {
+            return null;
+        }
+        
+        return t;
+    }
+    
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[PacketSessionTicket.NONCE_LENGTH];
+        SessionTickets.random.nextBytes(nonce);
+        
+        return nonce;
+    }
+}
@@ -11,6 +11,8 @@ import me.benthomas.tttworld.net.PacketChallenge;
 import me.benthomas.tttworld.net.PacketGameUpdate;
 import me.benthomas.tttworld.net.PacketGlobalChat;
 import me.benthomas.tttworld.net.PacketGlobalPlayerList;
+import me.benthomas.tttworld.net.PacketPlayerListUpdate;
+import me.benthomas.tttworld.net.PacketPlayerPage;
 import me.benthomas.tttworld.net.TTTWConnection.PacketFilter;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
 
@@ -74,6 +76,8 @@ public class AuthResultHandler implements PacketHandler<PacketAuthResult> {
             
             this.server.setDefaultHandler(PacketGlobalChat.class, new GlobalChatHandler(this.server));
             this.server.setDefaultHandler(PacketGlobalPlayerList.class, new GlobalPlayerListHandler(this.server));
+            this.server.setDefaultHandler(PacketPlayerListUpdate.class, new PlayerListUpdateHandler(this.server));
+            this.server.setDefaultHandler(PacketPlayerPage.class, new PlayerPageHandler(this.server));
             this.server.setDefaultHandler(PacketChallenge.class, new ChallengeHandler(this.server));
             this.server.setDefaultHandler(PacketGameUpdate.class, new GameUpdateHandler(this.server));
             
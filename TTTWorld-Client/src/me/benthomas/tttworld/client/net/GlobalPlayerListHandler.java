@@ -2,10 +2,10 @@ package me.benthomas.tttworld.client.net;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.Iterator;
 
 import javax.swing.SwingUtilities;
 
-import me.benthomas.tttworld.client.ui.MainFrame;
 import me.benthomas.tttworld.net.PacketGlobalPlayerList;
 import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
@@ -19,18 +19,21 @@ public class GlobalPlayerListHandler implements PacketHandler<PacketGlobalPlayer
     
     @Override
     public void handlePacket(final PacketGlobalPlayerList packet) throws IOException {
+        String username = this.server.getFrame().getUsername();
+        
+        // Newer servers send everyone the same list, including ourselves
+        for (Iterator<PlayerInfo> it = packet.getPlayers().iterator(); it.hasNext();) {
+            if (it.next().username.equalsIgnoreCase(username)) {
+                it.remove();
+            }
+        }
+        
         Collections.sort(packet.getPlayers());
         
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                MainFrame f = GlobalPlayerListHandler.this.server.getFrame();
-                
-                f.getPlayerListModel().clear();
-                
-                for (PlayerInfo player : packet.getPlayers()) {
-                    f.getPlayerListModel().addElement(player);
-                }
+                GlobalPlayerListHandler.this.server.getFrame().getPlayerListModel().setPlayers(packet.getPlayers());
             }
         });
     }
@@ -1,21 +1,28 @@
 package me.benthomas.tttworld.client.net;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
+import me.benthomas.tttworld.CipherSession;
 import me.benthomas.tttworld.Crypto;
 import me.benthomas.tttworld.Crypto.CryptoException;
+import me.benthomas.tttworld.KeyShare;
 import me.benthomas.tttworld.client.KnownHosts;
 import me.benthomas.tttworld.net.PacketAuthResult;
 import me.benthomas.tttworld.net.PacketServerHandshake;
+import me.benthomas.tttworld.net.PacketSessionTicket;
 import me.benthomas.tttworld.net.PacketStartEncrypt;
+import me.benthomas.tttworld.net.PacketStartEncrypt.CipherMode;
 import me.benthomas.tttworld.net.TTTWConnection;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
 
@@ -29,24 +36,46 @@ public class HandshakeHandler implements PacketHandler<PacketServerHandshake> {
     @Override
     public void handlePacket(final PacketServerHandshake packet) throws IOException {
         this.server.setDefaultHandler(PacketServerHandshake.class, null);
+        this.server.setRemoteMinorVersion(packet.getMinorProtocolVersion());
         this.server.getFrame().setRegistrationAllowed(packet.isRegistrationAllowed());
         
+        if (this.server.getPipelinedKey() != null) {
+            this.finishPipelinedHandshake(packet);
+            return;
+        }
+        
+        if (packet.getServerNonce() != null && this.server.getResumptionSecret() != null) {
+            // The server accepted our ticket, and anything it sends from now
+            // on is encrypted with the resumed key
+            byte[] key = PacketSessionTicket.deriveResumedKey(this.server.getResumptionSecret(),
+                    this.server.getClientNonce(), packet.getServerNonce());
+            
+            this.server.setResumption(null, null);
+            this.server.setCipherSession(new CipherSession(key, true));
+            this.server.setDefaultHandler(PacketSessionTicket.class, new SessionTicketHandler(this.server, key));
+            this.server.setDefaultHandler(PacketAuthResult.class, new AuthResultHandler(this.server));
+            
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    HandshakeHandler.this.server.getFrame().displayLoginDialog();
+                }
+            });
+            return;
+        }
+        
+        this.server.setResumption(null, null);
+        
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
                 if (KnownHosts.doPrompt(null, HandshakeHandler.this.server.getHostName(),
                         Crypto.calculateSHA1(packet.getPublicKey()))) {
-                    byte[] key = HandshakeHandler.this.server.generateEncryptionKey();
-                    
-                    try {
-                        HandshakeHandler.this.server.sendPacket(new PacketStartEncrypt(Crypto.encryptAsymmetric(key,
-                                HandshakeHandler.this.decodePublicKey(packet.getPublicKey()))));
-                    } catch (CryptoException | InvalidKeySpecException | NoSuchAlgorithmException e) {
-                        HandshakeHandler.this.server.disconnect("Error securing encryption key");
+                    if (!HandshakeHandler.this.startEncryption(packet)) {
                         return;
                     }
                     
-                    HandshakeHandler.this.server.setEncryptionKey(key);
+                    HandshakeHandler.this.rememberHostKey(packet);
                     
                     if (TTTWConnection.DEBUG_NO_ENCRYPTION) {
                         JOptionPane.showMessageDialog(null, "Encryption is disabled for debugging. Be careful!", "Warning",
@@ -63,6 +92,95 @@ public class HandshakeHandler implements PacketHandler<PacketServerHandshake> {
         });
     }
     
+    private void finishPipelinedHandshake(PacketServerHandshake packet) {
+        byte[] key = this.server.getPipelinedKey();
+        
+        if (!Arrays.equals(packet.getPublicKey(), this.server.getPipelinedPublicKey())) {
+            // Our key was encrypted for the remembered public key, so this
+            // server cannot read anything we have sent; the next connection
+            // goes through the usual prompt instead
+            try {
+                KnownHosts.removeHostKey(this.server.getHostName());
+            } catch (IOException e) {
+                // The key no longer matches the pinned fingerprint anyway
+            }
+            
+            this.server.disconnect("The server's public key has changed");
+            return;
+        }
+        
+        this.server.setPipelined(null, null);
+        this.server.setDefaultHandler(PacketSessionTicket.class, new SessionTicketHandler(this.server, key));
+        
+        this.rememberHostKey(packet);
+    }
+    
+    private void rememberHostKey(PacketServerHandshake packet) {
+        // Pipelined handshakes always use GCM, so there is no point in
+        // remembering servers which cannot
+        if (!this.server.isGcmSupported()) {
+            return;
+        }
+        
+        try {
+            KnownHosts.addHostKey(this.server.getHostName(), packet.getMinorProtocolVersion(),
+                    packet.isRegistrationAllowed(), packet.getPublicKey());
+        } catch (IOException e) {
+            // This only costs a round trip the next time we connect
+        }
+    }
+    
+    private boolean startEncryption(PacketServerHandshake packet) {
+        boolean gcm = this.server.isGcmSupported() && CipherSession.isAvailable();
+        boolean ecdh = gcm && packet.getKeyShare() != null && this.server.isEcdhSupported() && KeyShare.isAvailable();
+        
+        byte[] key;
+        PacketStartEncrypt start;
+        
+        try {
+            PublicKey serverKey = this.decodePublicKey(packet.getPublicKey());
+            
+            if (ecdh) {
+                KeyShare serverShare = packet.getKeyShare();
+                
+                // The share is only as trustworthy as the fingerprint checked
+                // against the key that signed it
+                if (!serverShare.verify(serverKey)) {
+                    this.server.disconnect("Invalid key share");
+                    return false;
+                }
+                
+                KeyPair ownShare = KeyShare.generateKeyPair();
+                byte[] ownPublicKey = ownShare.getPublic().getEncoded();
+                
+                key = KeyShare.deriveSessionKey(KeyShare.agree(ownShare.getPrivate(), serverShare.getPublicKey()),
+                        ownPublicKey, serverShare.getPublicKey());
+                start = new PacketStartEncrypt(null, CipherMode.GCM, ownPublicKey);
+            } else {
+                key = this.server.generateEncryptionKey();
+                start = new PacketStartEncrypt(Crypto.encryptAsymmetric(key, serverKey), (gcm) ? CipherMode.GCM
+                        : CipherMode.CBC);
+            }
+        } catch (CryptoException | GeneralSecurityException e) {
+            this.server.disconnect("Error securing encryption key");
+            return false;
+        }
+        
+        if (gcm) {
+            this.server.setDefaultHandler(PacketSessionTicket.class, new SessionTicketHandler(this.server, key));
+        }
+        
+        this.server.sendPacket(start);
+        
+        if (gcm) {
+            this.server.setCipherSession(new CipherSession(key, true));
+        } else {
+            this.server.setEncryptionKey(key);
+        }
+        
+        return true;
+    }
+    
     private PublicKey decodePublicKey(byte[] encoded) throws InvalidKeySpecException, NoSuchAlgorithmException {
         return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
     }
@@ -1,11 +1,10 @@
 package me.benthomas.tttworld.client.net;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 
 public class PacketHandleThread extends Thread {
-    private static final long PACKET_PERIOD = 50;
-    private static final long PACKET_TIMEOUT = 30000;
-    
     private TTTWServerConnection server;
     
     public PacketHandleThread(TTTWServerConnection server) {
@@ -16,23 +15,20 @@ public class PacketHandleThread extends Thread {
     
     @Override
     public void run() {
-        try {
-            while (this.server.isAlive()) {
-                Thread.sleep(PacketHandleThread.PACKET_PERIOD);
-                
-                try {
-                    if (this.server.isAlive() && this.server.isPacketWaiting()) {
-                        this.server.handleNextPacket();
-                    } else if (this.server.getTimeSinceLastPacket() > PacketHandleThread.PACKET_TIMEOUT) {
-                        this.server.disconnect("Connection timed out!");
-                    }
-                } catch (IOException e) {
+        while (this.server.isAlive() && !this.isInterrupted()) {
+            try {
+                // Blocks until the next packet arrives, rather than polling
+                this.server.handleNextPacket();
+            } catch (SocketTimeoutException e) {
+                this.server.disconnect("Connection timed out!");
+            } catch (EOFException e) {
+                this.server.disconnect("Connection closed by server!");
+            } catch (IOException e) {
+                if (this.server.isAlive()) {
                     e.printStackTrace();
                     this.server.disconnect("Error reading packet!");
                 }
             }
-        } catch (InterruptedException e) {
-            // Shut down the thread
         }
     }
     
@@ -0,0 +1,76 @@
+package me.benthomas.tttworld.client.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+
+import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
+import me.benthomas.tttworld.net.PacketPlayerListRequest;
+import me.benthomas.tttworld.net.PacketPlayerListUpdate;
+import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+
+public class PlayerListUpdateHandler implements PacketHandler<PacketPlayerListUpdate> {
+    private TTTWServerConnection server;
+    
+    private Map<String, PlayerInfo> players = new HashMap<String, PlayerInfo>();
+    private int version = -1;
+    private boolean requested = false;
+    
+    public PlayerListUpdateHandler(TTTWServerConnection server) {
+        this.server = server;
+    }
+    
+    @Override
+    public void handlePacket(PacketPlayerListUpdate packet) throws IOException {
+        if (packet.isFull()) {
+            this.players.clear();
+            this.requested = false;
+        } else if (packet.getBaseVersion() != this.version) {
+            // An update was missed, so only the whole list will do now
+            if (!this.requested) {
+                this.server.sendPacket(new PacketPlayerListRequest());
+                this.requested = true;
+            }
+            
+            return;
+        }
+        
+        for (String username : packet.getLeft()) {
+            this.players.remove(username);
+        }
+        
+        for (PlayerInfo player : packet.getJoined()) {
+            this.players.put(player.username, player);
+        }
+        
+        for (PlayerInfo player : packet.getUpdated()) {
+            this.players.put(player.username, player);
+        }
+        
+        this.version = packet.getVersion();
+        
+        String username = this.server.getFrame().getUsername();
+        final List<PlayerInfo> shown = new ArrayList<PlayerInfo>();
+        
+        for (PlayerInfo player : this.players.values()) {
+            if (!player.username.equalsIgnoreCase(username)) {
+                shown.add(player);
+            }
+        }
+        
+        Collections.sort(shown);
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                PlayerListUpdateHandler.this.server.getFrame().getPlayerListModel().setPlayers(shown);
+            }
+        });
+    }
+    
+}
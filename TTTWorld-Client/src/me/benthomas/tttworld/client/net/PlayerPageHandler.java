@@ -0,0 +1,34 @@
+package me.benthomas.tttworld.client.net;
+
+import java.io.IOException;
+
+import javax.swing.SwingUtilities;
+
+import me.benthomas.tttworld.client.ui.PlayerListModel;
+import me.benthomas.tttworld.net.PacketPlayerPage;
+import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+
+public class PlayerPageHandler implements PacketHandler<PacketPlayerPage> {
+    private TTTWServerConnection server;
+    
+    public PlayerPageHandler(TTTWServerConnection server) {
+        this.server = server;
+    }
+    
+    @Override
+    public void handlePacket(final PacketPlayerPage packet) throws IOException {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                PlayerListModel model = PlayerPageHandler.this.server.getFrame().getPlayerListModel();
+                
+                if (packet.isNotice()) {
+                    model.setVersion(PlayerPageHandler.this.server, packet.getVersion());
+                } else {
+                    model.addPage(packet);
+                }
+            }
+        });
+    }
+    
+}
@@ -0,0 +1,23 @@
+package me.benthomas.tttworld.client.net;
+
+import java.io.IOException;
+
+import me.benthomas.tttworld.client.SessionTickets;
+import me.benthomas.tttworld.net.PacketSessionTicket;
+import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+
+public class SessionTicketHandler implements PacketHandler<PacketSessionTicket> {
+    private TTTWServerConnection server;
+    private byte[] resumptionSecret;
+    
+    public SessionTicketHandler(TTTWServerConnection server, byte[] sessionKey) {
+        this.server = server;
+        this.resumptionSecret = PacketSessionTicket.deriveResumptionSecret(sessionKey);
+    }
+    
+    @Override
+    public void handlePacket(PacketSessionTicket packet) throws IOException {
+        SessionTickets.put(this.server.getHostName(), packet.getTicket(), this.resumptionSecret, packet.getLifetime());
+    }
+    
+}
@@ -10,13 +10,26 @@ import me.benthomas.tttworld.net.PacketServerHandshake;
 import me.benthomas.tttworld.net.TTTWConnection;
 
 public class TTTWServerConnection extends TTTWConnection {
+    public static final int READ_TIMEOUT = 30000;
+    
     private MainFrame frame;
     
     private String hostname;
     
+    private byte[] resumptionSecret;
+    private byte[] clientNonce;
+    
+    private byte[] pipelinedKey;
+    private byte[] pipelinedPublicKey;
+    
     public TTTWServerConnection(Socket socket, MainFrame frame, String hostname) throws IOException {
         super(socket);
         
+        // The packet thread blocks until something arrives, so a silent
+        // server is noticed by the read timing out
+        socket.setSoTimeout(TTTWServerConnection.READ_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        
         this.frame = frame;
         this.hostname = hostname;
         
@@ -32,6 +45,32 @@ public class TTTWServerConnection extends TTTWConnection {
         return this.hostname;
     }
     
+    public byte[] getResumptionSecret() {
+        return this.resumptionSecret;
+    }
+    
+    public byte[] getClientNonce() {
+        return this.clientNonce;
+    }
+    
+    public void setResumption(byte[] resumptionSecret, byte[] clientNonce) {
+        this.resumptionSecret = resumptionSecret;
+        this.clientNonce = clientNonce;
+    }
+    
+    public byte[] getPipelinedKey() {
+        return this.pipelinedKey;
+    }
+    
+    public byte[] getPipelinedPublicKey() {
+        return this.pipelinedPublicKey;
+    }
+    
+    public void setPipelined(byte[] key, byte[] publicKey) {
+        this.pipelinedKey = key;
+        this.pipelinedPublicKey = publicKey;
+    }
+    
     @Override
     public synchronized void sendPacket(Packet p) {
         try {
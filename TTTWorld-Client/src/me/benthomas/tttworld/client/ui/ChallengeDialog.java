@@ -19,7 +19,6 @@ import java.awt.Component;
 import me.benthomas.tttworld.net.PacketChallenge;
 import me.benthomas.tttworld.net.PacketChallengeCancel;
 import me.benthomas.tttworld.net.PacketChallengeResponse;
-import me.benthomas.tttworld.net.TTTWConnection.PacketFilter;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
 
 import java.awt.event.WindowAdapter;
@@ -66,7 +65,7 @@ public class ChallengeDialog extends JDialog {
         
         this.parent = parent;
         this.cancelHandler = new ChallengeCancelHandler();
-        parent.getServer().addFilteredHandler(PacketChallengeCancel.class, new ChallengeCancelFilter(), this.cancelHandler);
+        parent.getServer().addKeyedHandler(PacketChallengeCancel.class, packet.getChallengeId(), this.cancelHandler);
         
         this.packet = packet;
         this.start = System.currentTimeMillis();
@@ -171,13 +170,6 @@ public class ChallengeDialog extends JDialog {
         }
     }
     
-    public class ChallengeCancelFilter implements PacketFilter<PacketChallengeCancel> {
-        @Override
-        public boolean isFiltered(PacketChallengeCancel packet) {
-            return !packet.getChallengeId().equals(ChallengeDialog.this.packet.getChallengeId());
-        }
-    }
-    
     public class ChallengeCancelHandler implements PacketHandler<PacketChallengeCancel> {
         @Override
         public void handlePacket(PacketChallengeCancel packet) throws IOException {
@@ -13,7 +13,6 @@ import me.benthomas.tttworld.net.PacketGameMove;
 import me.benthomas.tttworld.net.PacketGameOver;
 import me.benthomas.tttworld.net.PacketGameOver.Result;
 import me.benthomas.tttworld.net.PacketGameUpdate;
-import me.benthomas.tttworld.net.TTTWConnection.PacketFilter;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
 
 import java.awt.Font;
@@ -58,8 +57,8 @@ public class GameFrame extends JFrame {
         this.updateHandler = new GameUpdateHandler();
         this.overHandler = new GameOverHandler();
         
-        parent.getServer().addFilteredHandler(PacketGameUpdate.class, new GameUpdateFilter(), this.updateHandler);
-        parent.getServer().addFilteredHandler(PacketGameOver.class, new GameOverFilter(), this.overHandler);
+        parent.getServer().addKeyedHandler(PacketGameUpdate.class, this.gameId, this.updateHandler);
+        parent.getServer().addKeyedHandler(PacketGameOver.class, this.gameId, this.overHandler);
         
         setResizable(false);
         setTitle("Tic-Tac-Toe");
@@ -103,13 +102,6 @@ public class GameFrame extends JFrame {
         this.updateHandler.handlePacket(p);
     }
     
-    public class GameUpdateFilter implements PacketFilter<PacketGameUpdate> {
-        @Override
-        public boolean isFiltered(PacketGameUpdate packet) {
-            return !packet.getGameId().equals(GameFrame.this.gameId);
-        }
-    }
-    
     public class GameUpdateHandler implements PacketHandler<PacketGameUpdate> {
         @Override
         public void handlePacket(PacketGameUpdate p) {
@@ -128,13 +120,6 @@ public class GameFrame extends JFrame {
         }
     }
     
-    public class GameOverFilter implements PacketFilter<PacketGameOver> {
-        @Override
-        public boolean isFiltered(PacketGameOver packet) {
-            return !packet.getGameId().equals(GameFrame.this.gameId);
-        }
-    }
-    
     public class GameOverHandler implements PacketHandler<PacketGameOver> {
         @Override
         public void handlePacket(PacketGameOver p) {
@@ -148,8 +133,10 @@ public class GameFrame extends JFrame {
                 GameFrame.this.textPane.setText(GameFrame.this.textPane.getText() + "Something happened?\n");
             }
             
-            GameFrame.this.parent.getServer().removeFilteredHandler(PacketGameUpdate.class, GameFrame.this.updateHandler);
-            GameFrame.this.parent.getServer().removeFilteredHandler(PacketGameOver.class, GameFrame.this.overHandler);
+            GameFrame.this.parent.getServer().removeKeyedHandler(PacketGameUpdate.class, GameFrame.this.gameId,
+                    GameFrame.this.updateHandler);
+            GameFrame.this.parent.getServer().removeKeyedHandler(PacketGameOver.class, GameFrame.this.gameId,
+                    GameFrame.this.overHandler);
             
             GameFrame.this.gameId = null;
         }
@@ -15,13 +15,15 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.UUID;
 
-import javax.swing.DefaultListModel;
 import javax.swing.JDialog;
 import javax.swing.JMenuBar;
 import javax.swing.JMenu;
@@ -29,10 +31,19 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JSeparator;
 import javax.swing.SwingUtilities;
+import javax.swing.text.Position.Bias;
 
+import me.benthomas.tttworld.CipherSession;
+import me.benthomas.tttworld.Crypto;
+import me.benthomas.tttworld.Crypto.CryptoException;
+import me.benthomas.tttworld.client.KnownHosts;
+import me.benthomas.tttworld.client.SessionTickets;
+import me.benthomas.tttworld.client.net.AuthResultHandler;
 import me.benthomas.tttworld.client.net.PacketHandleThread;
 import me.benthomas.tttworld.client.net.PasswordChangeHandler;
 import me.benthomas.tttworld.client.net.TTTWServerConnection;
+import me.benthomas.tttworld.net.Packet;
+import me.benthomas.tttworld.net.PacketAuthResult;
 import me.benthomas.tttworld.net.PacketAuthenticate;
 import me.benthomas.tttworld.net.PacketChallenge;
 import me.benthomas.tttworld.net.PacketClientHandshake;
@@ -42,6 +53,8 @@ import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
 import me.benthomas.tttworld.net.PacketPasswordChange;
 import me.benthomas.tttworld.net.PacketPasswordChangeResult;
 import me.benthomas.tttworld.net.PacketRegister;
+import me.benthomas.tttworld.net.PacketStartEncrypt;
+import me.benthomas.tttworld.net.PacketStartEncrypt.CipherMode;
 import me.benthomas.tttworld.net.TTTWConnection;
 import me.benthomas.tttworld.net.TTTWConnection.DisconnectListener;
 
@@ -82,6 +95,10 @@ public class MainFrame extends JFrame {
     private TTTWServerConnection server;
     private PacketHandleThread packetThread;
     
+    private String pipelinedHost;
+    private int pipelinedPort;
+    private KnownHosts.HostKey pipelinedHostKey;
+    
     private boolean registerAllowed;
     private String username;
     private boolean admin;
@@ -94,7 +111,8 @@ public class MainFrame extends JFrame {
     private JButton btnSend;
     
     private JList<PlayerInfo> playerList;
-    private DefaultListModel<PlayerInfo> playerListModel;
+    private PlayerListModel playerListModel;
+    private JTextField searchField;
     private JMenu mnAdmin_1;
     private JPopupMenu popupMenu;
     private JMenuItem mntmPromote;
@@ -279,13 +297,54 @@ public class MainFrame extends JFrame {
         btnSend.setEnabled(false);
         panel_2.add(btnSend, BorderLayout.EAST);
         
+        JPanel panel_1 = new JPanel();
+        splitPane.setLeftComponent(panel_1);
+        panel_1.setLayout(new BorderLayout(0, 0));
+        
+        searchField = new JTextField();
+        searchField.setToolTipText("Search players");
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            private void changed() {
+                MainFrame.this.playerListModel.setPrefix(MainFrame.this.searchField.getText().trim());
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                this.changed();
+            }
+            
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                this.changed();
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                this.changed();
+            }
+        });
+        panel_1.add(searchField, BorderLayout.NORTH);
+        
         JScrollPane scrollPane_1 = new JScrollPane();
         scrollPane_1.setPreferredSize(new Dimension(0, 0));
-        splitPane.setLeftComponent(scrollPane_1);
+        panel_1.add(scrollPane_1, BorderLayout.CENTER);
         
-        playerList = new JList<PlayerInfo>(playerListModel = new DefaultListModel<PlayerInfo>());
+        playerList = new JList<PlayerInfo>(playerListModel = new PlayerListModel()) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            public int getNextMatch(String prefix, int startIndex, Bias bias) {
+                // Matching typed keys would fetch every page from the server
+                if (MainFrame.this.playerListModel.isPaged()) {
+                    return -1;
+                } else {
+                    return super.getNextMatch(prefix, startIndex, bias);
+                }
+            }
+        };
         scrollPane_1.setViewportView(playerList);
         playerList.setFont(new Font("Courier New", Font.PLAIN, 12));
+        playerList.setPrototypeCellValue(new PlayerInfo("* XXXXXXXXXXXXXXXX", false));
         
         popupMenu = new JPopupMenu();
         popupMenu.addPopupMenuListener(new PopupMenuListener() {
@@ -296,7 +355,7 @@ public class MainFrame extends JFrame {
             }
             
             public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
-                if (playerList.getSelectedIndex() == -1) {
+                if (playerList.getSelectedValue() == null) {
                     popupMenu.setEnabled(false);
                 } else {
                     popupMenu.setEnabled(true);
@@ -437,6 +496,8 @@ public class MainFrame extends JFrame {
     }
     
     public void disconnect() {
+        this.pipelinedHost = null;
+        
         if (this.server != null) {
             this.server.removeDisconnectListener(new DisconnectNotifier());
             this.server.disconnect("User Disconnected");
@@ -449,32 +510,123 @@ public class MainFrame extends JFrame {
     }
     
     public void connectToServer(String host, int port) {
+        SessionTickets ticket = SessionTickets.take(host);
+        KnownHosts.HostKey hostKey = (ticket == null) ? this.getPipelinedHostKey(host) : null;
+        
+        if (hostKey != null) {
+            // The credentials are sent along with the handshake, so they are
+            // asked for before connecting
+            this.pipelinedHost = host;
+            this.pipelinedPort = port;
+            this.pipelinedHostKey = hostKey;
+            
+            this.registerAllowed = hostKey.isRegistrationAllowed();
+            this.displayLoginDialog();
+            return;
+        }
+        
         try {
             Socket s = new Socket(host, port);
             
             this.server = new TTTWServerConnection(s, this, host);
             this.server.addDisconnectListener(new DisconnectNotifier());
+            
+            if (ticket != null) {
+                byte[] nonce = SessionTickets.generateNonce();
+                
+                this.server.setResumption(ticket.getResumptionSecret(), nonce);
+                this.server.sendPacket(new PacketClientHandshake(TTTWConnection.PROTOCOL_MAJOR_VERSION,
+                        TTTWConnection.PROTOCOL_MINOR_VERSION, ticket.getTicket(), nonce));
+            } else {
+                this.server.sendPacket(new PacketClientHandshake(TTTWConnection.PROTOCOL_MAJOR_VERSION,
+                        TTTWConnection.PROTOCOL_MINOR_VERSION));
+            }
+            
+            this.packetThread = new PacketHandleThread(this.server);
+            this.packetThread.start();
+        } catch (IOException e) {
+            if (this.server != null) {
+                this.server.close();
+            }
+            
+            JOptionPane.showMessageDialog(this, "Failed to connect to the server!", "Error", JOptionPane.ERROR_MESSAGE);
+            this.displayServerSelectDialog();
+        }
+    }
+    
+    private KnownHosts.HostKey getPipelinedHostKey(String host) {
+        try {
+            KnownHosts.HostKey hostKey = KnownHosts.getHostKey(host);
+            
+            if (hostKey != null && hostKey.getMinorVersion() >= TTTWConnection.PROTOCOL_MINOR_GCM
+                    && CipherSession.isAvailable()) {
+                return hostKey;
+            }
+        } catch (IOException e) {
+            // Fall back to asking the server for its key
+        }
+        
+        return null;
+    }
+    
+    private void connectPipelined(Packet login) {
+        String host = this.pipelinedHost;
+        KnownHosts.HostKey hostKey = this.pipelinedHostKey;
+        
+        this.pipelinedHost = null;
+        this.pipelinedHostKey = null;
+        
+        try {
+            Socket s = new Socket(host, this.pipelinedPort);
+            
+            this.server = new TTTWServerConnection(s, this, host);
+            this.server.addDisconnectListener(new DisconnectNotifier());
+            
+            byte[] key = this.server.generateEncryptionKey();
+            byte[] cryptKey = Crypto.encryptAsymmetric(key,
+                    KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(hostKey.getPublicKey())));
+            
+            this.server.setRemoteMinorVersion(hostKey.getMinorVersion());
+            this.server.setPipelined(key, hostKey.getPublicKey());
+            this.server.setDefaultHandler(PacketAuthResult.class, new AuthResultHandler(this.server));
+            
+            // The whole first flight goes out without waiting for the server,
+            // which handles it in order once its handshake has been sent
             this.server.sendPacket(new PacketClientHandshake(TTTWConnection.PROTOCOL_MAJOR_VERSION,
                     TTTWConnection.PROTOCOL_MINOR_VERSION));
+            this.server.sendPacket(new PacketStartEncrypt(cryptKey, CipherMode.GCM));
+            this.server.setCipherSession(new CipherSession(key, true));
+            this.server.sendPacket(login);
             
             this.packetThread = new PacketHandleThread(this.server);
             this.packetThread.start();
-        } catch (IOException e) {
+        } catch (IOException | CryptoException | GeneralSecurityException e) {
             if (this.server != null) {
                 this.server.close();
+                this.server = null;
             }
             
+            this.login.close();
+            
             JOptionPane.showMessageDialog(this, "Failed to connect to the server!", "Error", JOptionPane.ERROR_MESSAGE);
             this.displayServerSelectDialog();
         }
     }
     
+    private void sendLogin(Packet p) {
+        if (this.server == null && this.pipelinedHost != null) {
+            this.connectPipelined(p);
+        } else {
+            this.server.sendPacket(p);
+        }
+    }
+    
     public void sendCredentials(String username, String password) {
-        this.server.sendPacket(new PacketAuthenticate(username, password));
+        this.sendLogin(new PacketAuthenticate(username, password));
     }
     
     public void sendRegistration(String username, String password) {
-        this.server.sendPacket(new PacketRegister(username, password));
+        this.sendLogin(new PacketRegister(username, password));
     }
     
     public void displayServerSelectDialog() {
@@ -569,7 +721,7 @@ public class MainFrame extends JFrame {
         return chatPane;
     }
     
-    public DefaultListModel<PlayerInfo> getPlayerListModel() {
+    public PlayerListModel getPlayerListModel() {
         return playerListModel;
     }
     
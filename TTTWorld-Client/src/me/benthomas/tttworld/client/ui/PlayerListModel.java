@@ -0,0 +1,197 @@
+package me.benthomas.tttworld.client.ui;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.AbstractListModel;
+
+import me.benthomas.tttworld.client.net.TTTWServerConnection;
+import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
+import me.benthomas.tttworld.net.PacketPlayerPage;
+import me.benthomas.tttworld.net.PacketPlayerPageRequest;
+
+public class PlayerListModel extends AbstractListModel<PlayerInfo> {
+    private static final long serialVersionUID = 1L;
+    
+    public static final int PAGE_SIZE = 50;
+    public static final int MAX_CACHED_PAGES = 16;
+    
+    private TTTWServerConnection server;
+    private String prefix = "";
+    private int size = 0;
+    
+    private List<PlayerInfo> players = new ArrayList<PlayerInfo>();
+    private List<PlayerInfo> shown = new ArrayList<PlayerInfo>();
+    
+    private int version;
+    private Set<Integer> pending = new HashSet<Integer>();
+    private Map<Integer, Page> pages = new LinkedHashMap<Integer, Page>(PlayerListModel.MAX_CACHED_PAGES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return this.size() > PlayerListModel.MAX_CACHED_PAGES;
+        }
+    };
+    
+    public boolean isPaged() {
+        return this.server != null;
+    }
+    
+    public String getPrefix() {
+        return this.prefix;
+    }
+    
+    public void setPrefix(String prefix) {
+        if (prefix.equals(this.prefix)) {
+            return;
+        }
+        
+        this.prefix = prefix;
+        
+        if (this.server == null) {
+            this.filter();
+        } else {
+            this.pages.clear();
+            this.pending.clear();
+            this.request(0);
+            
+            if (this.size > 0) {
+                this.fireContentsChanged(this, 0, this.size - 1);
+            }
+        }
+    }
+    
+    public void setPlayers(List<PlayerInfo> players) {
+        this.server = null;
+        this.pages.clear();
+        this.pending.clear();
+        
+        this.players = players;
+        this.filter();
+    }
+    
+    public void setVersion(TTTWServerConnection server, int version) {
+        if (this.server != server) {
+            // A new connection starts with an empty list at its own version
+            this.server = server;
+            this.version = version;
+            this.players = new ArrayList<PlayerInfo>();
+            this.shown = new ArrayList<PlayerInfo>();
+            this.pages.clear();
+            this.pending.clear();
+            this.resize(0);
+        } else if (version > this.version) {
+            this.version = version;
+        }
+        
+        if (this.size == 0) {
+            this.request(0);
+        } else {
+            // Rows which are being shown will ask for their pages again
+            this.fireContentsChanged(this, 0, this.size - 1);
+        }
+    }
+    
+    public void addPage(PacketPlayerPage packet) {
+        if (this.server == null || !packet.getPrefix().equals(this.prefix)
+                || packet.getOffset() % PlayerListModel.PAGE_SIZE != 0) {
+            return;
+        }
+        
+        int index = packet.getOffset() / PlayerListModel.PAGE_SIZE;
+        
+        this.pending.remove(index);
+        this.pages.put(index, new Page(packet.getVersion(), packet.getPlayers()));
+        
+        if (packet.getVersion() > this.version) {
+            this.version = packet.getVersion();
+        } else if (packet.getVersion() < this.version) {
+            // Asked for before the latest notice arrived
+            this.request(index);
+        }
+        
+        this.resize(packet.getTotal());
+        
+        int last = Math.min(packet.getOffset() + PlayerListModel.PAGE_SIZE, this.size) - 1;
+        
+        if (packet.getOffset() <= last) {
+            this.fireContentsChanged(this, packet.getOffset(), last);
+        }
+    }
+    
+    @Override
+    public int getSize() {
+        return this.size;
+    }
+    
+    @Override
+    public PlayerInfo getElementAt(int index) {
+        if (this.server == null) {
+            return this.shown.get(index);
+        }
+        
+        Page page = this.pages.get(index / PlayerListModel.PAGE_SIZE);
+        
+        if (page == null || page.version < this.version) {
+            this.request(index / PlayerListModel.PAGE_SIZE);
+        }
+        
+        if (page == null || index % PlayerListModel.PAGE_SIZE >= page.players.size()) {
+            return null;
+        } else {
+            return page.players.get(index % PlayerListModel.PAGE_SIZE);
+        }
+    }
+    
+    private void request(int index) {
+        if (this.pending.add(index)) {
+            this.server.sendPacket(new PacketPlayerPageRequest(this.prefix, index * PlayerListModel.PAGE_SIZE,
+                    PlayerListModel.PAGE_SIZE));
+        }
+    }
+    
+    private void filter() {
+        String prefix = this.prefix.toLowerCase();
+        
+        this.shown = new ArrayList<PlayerInfo>();
+        
+        for (PlayerInfo player : this.players) {
+            if (player.username.toLowerCase().startsWith(prefix)) {
+                this.shown.add(player);
+            }
+        }
+        
+        this.resize(this.shown.size());
+        
+        if (this.size > 0) {
+            this.fireContentsChanged(this, 0, this.size - 1);
+        }
+    }
+    
+    private void resize(int size) {
+        int old = this.size;
+        
+        this.size = size;
+        
+        if (size > old) {
+            this.fireIntervalAdded(this, old, size - 1);
+        } else if (size < old) {
+            this.fireIntervalRemoved(this, size, old - 1);
+        }
+    }
+    
+    private static class Page {
+        private final int version;
+        private final List<PlayerInfo> players;
+        
+        public Page(int version, List<PlayerInfo> players) {
+            this.version = version;
+            this.players = players;
+        }
+    }
+}
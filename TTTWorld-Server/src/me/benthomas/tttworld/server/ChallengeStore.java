@@ -0,0 +1,244 @@
+package me.benthomas.tttworld.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.benthomas.tttworld.server.GameManager.Challenge;
+import me.benthomas.tttworld.server.net.TTTWClientConnection;
+
+/**
+ * Keeps track of the challenges pending on a server, indexed by ID, by the
+ * pair of players involved and by the player they were sent to, so that
+ * duplicate challenges can be spotted without searching through every pending
+ * challenge. Each player may only have so many challenges outstanding, both
+ * sent and received, so that a player sending challenges over and over cannot
+ * fill up the server.
+ * <p>
+ * Challenges are looked up by ID without locking. The indexes for each player
+ * are split between a fixed number of stripes by connection ID, each with its
+ * own lock, so adding or removing a challenge only locks the stripes of its
+ * sender and receiver.
+ *
+ * @author Ben Thomas
+ */
+public class ChallengeStore {
+    private static final int STRIPES = 64;
+    
+    /**
+     * The result of trying to add a challenge to a {@link ChallengeStore}.
+     *
+     * @author Ben Thomas
+     */
+    public enum Result {
+        /**
+         * The challenge was added.
+         */
+        ADDED,
+        
+        /**
+         * The sender already has a challenge pending with the receiver.
+         */
+        DUPLICATE,
+        
+        /**
+         * The sender already has as many challenges pending as they are
+         * allowed.
+         */
+        SENDER_LIMIT,
+        
+        /**
+         * The receiver already has as many challenges waiting on them as they
+         * are allowed.
+         */
+        RECEIVER_LIMIT
+    }
+    
+    private final int maxSent;
+    private final int maxReceived;
+    
+    private final ConcurrentMap<UUID, Challenge> byId = new ConcurrentHashMap<UUID, Challenge>();
+    private final Stripe[] stripes = new Stripe[ChallengeStore.STRIPES];
+    
+    private final AtomicLong refusedCount = new AtomicLong();
+    
+    /**
+     * Creates a new, empty challenge store.
+     * 
+     * @param maxSent The greatest number of challenges which a player may
+     *            have sent and still be waiting on.
+     * @param maxReceived The greatest number of challenges which may be
+     *            waiting on a player to respond.
+     */
+    public ChallengeStore(int maxSent, int maxReceived) {
+        this.maxSent = maxSent;
+        this.maxReceived = maxReceived;
+        
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+    
+    /**
+     * Adds a new challenge to this store, unless its sender already has a
+     * challenge pending with its receiver, or either of them already has too
+     * many challenges pending.
+     * 
+     * @param c The challenge which should be added.
+     * @return Whether the challenge was added, or why it was not.
+     */
+    public Result add(Challenge c) {
+        int senderId = c.sender.getConnectionId();
+        int receiverId = c.receiver.getConnectionId();
+        Result result;
+        
+        synchronized (this.firstLock(senderId, receiverId)) {
+            synchronized (this.secondLock(senderId, receiverId)) {
+                PlayerChallenges sender = this.getStripe(senderId).get(senderId, true);
+                PlayerChallenges receiver = this.getStripe(receiverId).get(receiverId, true);
+                
+                if (sender.sent.containsKey(receiverId)) {
+                    result = Result.DUPLICATE;
+                } else if (sender.sent.size() >= this.maxSent) {
+                    result = Result.SENDER_LIMIT;
+                } else if (receiver.received.size() >= this.maxReceived) {
+                    result = Result.RECEIVER_LIMIT;
+                } else {
+                    sender.sent.put(receiverId, c);
+                    receiver.received.put(c.id, c);
+                    this.byId.put(c.id, c);
+                    
+                    return Result.ADDED;
+                }
+                
+                this.getStripe(senderId).release(senderId, sender);
+                this.getStripe(receiverId).release(receiverId, receiver);
+            }
+        }
+        
+        this.refusedCount.incrementAndGet();
+        return result;
+    }
+    
+    /**
+     * Removes a challenge from this store. If the same challenge is removed
+     * by more than one thread at once, only one of them is given the
+     * challenge.
+     * 
+     * @param challengeId The ID of the challenge to remove.
+     * @return The challenge which was removed, or {@code null} if there was no
+     *         such challenge pending.
+     */
+    public Challenge remove(UUID challengeId) {
+        Challenge c = this.byId.remove(challengeId);
+        
+        if (c == null) {
+            return null;
+        }
+        
+        int senderId = c.sender.getConnectionId();
+        int receiverId = c.receiver.getConnectionId();
+        
+        synchronized (this.firstLock(senderId, receiverId)) {
+            synchronized (this.secondLock(senderId, receiverId)) {
+                PlayerChallenges sender = this.getStripe(senderId).get(senderId, false);
+                PlayerChallenges receiver = this.getStripe(receiverId).get(receiverId, false);
+                
+                sender.sent.remove(receiverId);
+                receiver.received.remove(challengeId);
+                
+                this.getStripe(senderId).release(senderId, sender);
+                this.getStripe(receiverId).release(receiverId, receiver);
+            }
+        }
+        
+        return c;
+    }
+    
+    /**
+     * Gets the pending challenge with the given ID.
+     * 
+     * @param challengeId The ID of the challenge to find.
+     * @return The challenge with the given ID, or {@code null} if there is no
+     *         such challenge pending.
+     */
+    public Challenge get(UUID challengeId) {
+        return this.byId.get(challengeId);
+    }
+    
+    /**
+     * Checks whether a client already has a challenge pending with another.
+     * 
+     * @param sender The client which would have sent the challenge.
+     * @param receiver The client which the challenge would have been sent to.
+     * @return {@code true} if such a challenge is pending; otherwise,
+     *         {@code false}.
+     */
+    public boolean contains(TTTWClientConnection sender, TTTWClientConnection receiver) {
+        int senderId = sender.getConnectionId();
+        Stripe stripe = this.getStripe(senderId);
+        
+        synchronized (stripe) {
+            PlayerChallenges p = stripe.get(senderId, false);
+            return p != null && p.sent.containsKey(receiver.getConnectionId());
+        }
+    }
+    
+    /**
+     * Gets the number of challenges pending.
+     * 
+     * @return The number of pending challenges.
+     */
+    public int size() {
+        return this.byId.size();
+    }
+    
+    @Override
+    public String toString() {
+        return this.size() + " pending, " + this.refusedCount.get() + " refused (limits " + this.maxSent + " sent, "
+                + this.maxReceived + " received)";
+    }
+    
+    private Stripe getStripe(int connectionId) {
+        return this.stripes[connectionId & (ChallengeStore.STRIPES - 1)];
+    }
+    
+    // Stripes are always locked in index order, so that two threads locking
+    // the same pair of stripes cannot deadlock
+    private Stripe firstLock(int a, int b) {
+        return this.getStripe(Math.min(a & (ChallengeStore.STRIPES - 1), b & (ChallengeStore.STRIPES - 1)));
+    }
+    
+    private Stripe secondLock(int a, int b) {
+        return this.getStripe(Math.max(a & (ChallengeStore.STRIPES - 1), b & (ChallengeStore.STRIPES - 1)));
+    }
+    
+    private static class Stripe {
+        private final Map<Integer, PlayerChallenges> players = new HashMap<Integer, PlayerChallenges>();
+        
+        private PlayerChallenges get(int connectionId, boolean create) {
+            PlayerChallenges p = this.players.get(connectionId);
+            
+            if (p == null && create) {
+                p = new PlayerChallenges();
+                this.players.put(connectionId, p);
+            }
+            
+            return p;
+        }
+        
+        private void release(int connectionId, PlayerChallenges p) {
+            if (p.sent.isEmpty() && p.received.isEmpty()) {
+                this.players.remove(connectionId);
+            }
+        }
+    }
+    
+    private static class PlayerChallenges {
+        private final Map<Integer, Challenge> sent = new HashMap<Integer, Challenge>();
+        private final Map<UUID, Challenge> received = new HashMap<UUID, Challenge>();
+    }
+}
@@ -0,0 +1,185 @@
+package me.benthomas.tttworld.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool which runs expensive cryptographic operations, such as
+ * decrypting handshake keys with the server's private key, away from the
+ * threads which handle packets. A burst of handshakes therefore only delays
+ * other handshakes, rather than every connected client.
+ * <p>
+ * Tasks wait in a queue of limited length. Once the queue is full, further
+ * tasks are refused rather than queued, so that a flood of connections cannot
+ * build up an unbounded backlog.
+ *
+ * @author Ben Thomas
+ */
+public class CryptoExecutor {
+    private static final int RATE_WINDOW = 10;
+    
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    
+    private final long[] rateSeconds = new long[CryptoExecutor.RATE_WINDOW];
+    private final long[] rateCounts = new long[CryptoExecutor.RATE_WINDOW];
+    
+    /**
+     * Creates and starts a new executor with the given number of worker
+     * threads.
+     * 
+     * @param name The name used as a prefix for the names of worker threads.
+     * @param threads The number of worker threads. Must be at least 1.
+     * @param queueLimit The maximum number of tasks which may wait for a
+     *            worker thread. Must be at least 1.
+     */
+    public CryptoExecutor(final String name, int threads, int queueLimit) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is required!");
+        } else if (queueLimit < 1) {
+            throw new IllegalArgumentException("The queue limit must be at least 1!");
+        }
+        
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger();
+                    
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread t = new Thread(task, name + " #" + this.n.incrementAndGet());
+                        t.setDaemon(true);
+                        
+                        return t;
+                    }
+                });
+    }
+    
+    /**
+     * Queues a task to be run on one of this executor's worker threads.
+     * 
+     * @param task The task to be run.
+     * @return {@code true} if the task was queued; {@code false} if the queue
+     *         is full or this executor has been shut down.
+     */
+    public boolean submit(Runnable task) {
+        try {
+            this.executor.execute(new CryptoTask(task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            return false;
+        }
+    }
+    
+    /**
+     * Gets the number of worker threads used by this executor.
+     * 
+     * @return The number of worker threads.
+     */
+    public int getThreadCount() {
+        return this.threads;
+    }
+    
+    /**
+     * Gets the number of tasks which are waiting for a worker thread.
+     * 
+     * @return The number of waiting tasks.
+     */
+    public int getQueueLength() {
+        return this.executor.getQueue().size();
+    }
+    
+    /**
+     * Gets the total number of tasks which have finished running.
+     * 
+     * @return The number of completed tasks.
+     */
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+    
+    /**
+     * Gets the total number of tasks which were refused because the queue was
+     * full.
+     * 
+     * @return The number of rejected tasks.
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+    
+    /**
+     * Gets the average number of tasks completed each second over the last
+     * few seconds.
+     * 
+     * @return The recent rate of completed tasks, per second.
+     */
+    public synchronized double getRate() {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        
+        // The current second is still in progress, so only whole seconds count
+        for (int i = 0; i < CryptoExecutor.RATE_WINDOW; i++) {
+            if (this.rateSeconds[i] < now && this.rateSeconds[i] >= now - CryptoExecutor.RATE_WINDOW) {
+                total += this.rateCounts[i];
+            }
+        }
+        
+        return (double) total / CryptoExecutor.RATE_WINDOW;
+    }
+    
+    /**
+     * Stops all worker threads. Tasks which are still waiting to run are
+     * discarded, and any of them which are {@link Future}s are cancelled, so
+     * that nothing waits forever on a task which will never run.
+     */
+    public void shutdown() {
+        for (Runnable r : this.executor.shutdownNow()) {
+            Runnable task = ((CryptoTask) r).task;
+            
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+    
+    private synchronized void recordCompletion() {
+        long now = System.currentTimeMillis() / 1000;
+        int i = (int) (now % CryptoExecutor.RATE_WINDOW);
+        
+        if (this.rateSeconds[i] != now) {
+            this.rateSeconds[i] = now;
+            this.rateCounts[i] = 0;
+        }
+        
+        this.rateCounts[i]++;
+        this.completed.incrementAndGet();
+    }
+    
+    private class CryptoTask implements Runnable {
+        private final Runnable task;
+        
+        private CryptoTask(Runnable task) {
+            this.task = task;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                this.task.run();
+            } finally {
+                CryptoExecutor.this.recordCompletion();
+            }
+        }
+    }
+}
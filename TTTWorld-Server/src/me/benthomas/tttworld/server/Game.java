@@ -1,42 +1,67 @@
 package me.benthomas.tttworld.server;
 
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import me.benthomas.tttworld.Board;
 import me.benthomas.tttworld.Mark;
+import me.benthomas.tttworld.net.TTTWConnection;
+import me.benthomas.tttworld.server.TimerWheel.Timeout;
 
 /**
  * Represents a game of tic-tac-toe.
+ * <p>
+ * Everything which changes a game, whether a move, a player forfeiting or the
+ * turn clock running out, is queued on the game's mailbox and carried out in
+ * order, one task at a time. The game is never locked, so a thread submitting
+ * a move never waits on another game, or on the players of this one being
+ * sent their updates. Players are only ever notified from the game's own
+ * tasks, so a player which moves as soon as it is told it is its turn (such
+ * as an AI player) may change the board through {@link #setMark(int, int,
+ * Mark)} before calling {@link #tick()}.
+ * <p>
+ * The board, whose turn it is and whether the game is over are not kept here,
+ * but in the game's slot of a {@link GameTable}. Once the game is over its
+ * slot is freed, after which the game ignores anything else submitted to it.
  * 
  * @author Ben Thomas
  */
 public class Game {
-    private UUID id;
-    private Board board;
-    
-    private boolean turn = true;
-    private boolean done = false;
+    private final GameTable table;
+    private final int slot;
+    private final int generation;
+    private final UUID id;
+    private final Executor mailbox;
     
     private Player xPlayer;
     private Player oPlayer;
     
+    private GameManager manager;
+    private TimerWheel timers;
+    private long turnTimeout;
+    private Timeout turnClock;
+    
     /**
-     * Creates a new game of tic-tac-toe, with a blank board.
+     * Creates a new game of tic-tac-toe in a slot which has just been
+     * allocated for it, with a blank board.
      * 
-     * @param id The unique ID of this game.
+     * @param table The table holding the state of this game.
+     * @param slot The slot of this game in the table.
+     * @param mailbox The executor on which this game's tasks are run. It must
+     *            run tasks one at a time, in the order they were submitted.
      * @param xPlayer The player who is playing with X's.
      * @param oPlayer The player who is playing with O's.
      */
-    public Game(UUID id, Player xPlayer, Player oPlayer) {
-        this.id = id;
-        this.board = new Board();
+    Game(GameTable table, int slot, Executor mailbox, Player xPlayer, Player oPlayer) {
+        this.table = table;
+        this.slot = slot;
+        this.generation = table.getGeneration(slot);
+        this.id = new UUID(table.getIdHigh(slot), table.getIdLow(slot));
+        this.mailbox = mailbox;
         
         xPlayer.setGame(this);
         oPlayer.setGame(this);
         
-        xPlayer.notifyStart();
-        oPlayer.notifyStart();
-        
         this.xPlayer = xPlayer;
         this.oPlayer = oPlayer;
     }
@@ -51,12 +76,37 @@ public class Game {
     }
     
     /**
-     * Gets the tic-tac-toe board that this game will be played on.
+     * Gets a copy of the board that this game is being played on. Changes made
+     * to the copy do not affect the game.
      * 
-     * @return The tic-tac-toe board that this game will be played on.
+     * @return A copy of this game's board.
      */
     public Board getBoard() {
-        return this.board;
+        return this.table.getBoard(this.slot);
+    }
+    
+    /**
+     * Gets the mark in a square of this game's board.
+     * 
+     * @param x The column of the square.
+     * @param y The row of the square.
+     * @return The mark in the square.
+     */
+    public Mark getMark(int x, int y) {
+        return this.table.getMark(this.slot, x, y);
+    }
+    
+    /**
+     * Places a mark in a square of this game's board. This must only be
+     * called from one of this game's own tasks, such as by an AI player which
+     * has been told it is its turn.
+     * 
+     * @param x The column of the square.
+     * @param y The row of the square.
+     * @param m The mark to place.
+     */
+    public void setMark(int x, int y, Mark m) {
+        this.table.setMark(this.slot, x, y, m);
     }
     
     /**
@@ -83,7 +133,7 @@ public class Game {
      * @return The active player of this game.
      */
     public Player getActivePlayer() {
-        return (this.turn) ? this.oPlayer : this.xPlayer;
+        return (this.table.isTurnO(this.slot)) ? this.oPlayer : this.xPlayer;
     }
     
     /**
@@ -92,7 +142,7 @@ public class Game {
      * @return The inactive player of this game.
      */
     public Player getInactivePlayer() {
-        return (this.turn) ? this.xPlayer : this.oPlayer;
+        return (this.table.isTurnO(this.slot)) ? this.xPlayer : this.oPlayer;
     }
     
     /**
@@ -101,44 +151,167 @@ public class Game {
      * @return Whether this game is over.
      */
     public boolean isDone() {
-        return this.done;
+        return !this.isLive() || this.table.isDone(this.slot);
+    }
+    
+    int getSlot() {
+        return this.slot;
+    }
+    
+    GameTable getTable() {
+        return this.table;
     }
     
     /**
-     * Causes the game to move onto the next turn. If a player has won or the
-     * board is full, the game is terminated; otherwise, the next player is
-     * notified that it's their turn.
+     * Starts this game on behalf of the manager which created it, by telling
+     * both players that the game has started and calling {@link #tick()}
+     * once. If either player has already left, they forfeit the game instead.
+     * The manager is told once the game is over, and if a turn timeout is
+     * given, a player who takes longer than it to move forfeits the game.
+     * 
+     * @param manager The manager which created this game.
+     * @param timers The timing wheel on which to run the turn clock.
+     * @param turnTimeout The time (in milliseconds) which each player has to
+     *            make their move, or {@code 0} if there is no limit.
+     */
+    void start(final GameManager manager, final TimerWheel timers, final long turnTimeout) {
+        this.submit(new Runnable() {
+            @Override
+            public void run() {
+                Game.this.manager = manager;
+                Game.this.timers = timers;
+                Game.this.turnTimeout = turnTimeout;
+                
+                Game.this.xPlayer.notifyStart();
+                Game.this.oPlayer.notifyStart();
+                
+                // A player who left before now was never listened to for
+                // leaving, so nothing else would end the game
+                if (!Game.this.xPlayer.isConnected()) {
+                    Game.this.forfeit(Game.this.xPlayer);
+                } else if (!Game.this.oPlayer.isConnected()) {
+                    Game.this.forfeit(Game.this.oPlayer);
+                } else {
+                    Game.this.nextTurn();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Queues a move by the given player. Once the tasks queued before it have
+     * run, the move is made and the game moves onto the next turn, unless the
+     * game is over, it is not that player's turn or the square is taken.
+     * 
+     * @param player The player making the move.
+     * @param x The column in which the player is placing their mark.
+     * @param y The row in which the player is placing their mark.
+     */
+    public void makeMove(final Player player, final int x, final int y) {
+        this.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (Game.this.isDone() || Game.this.table.getMoves(Game.this.slot) == 0
+                        || Game.this.getActivePlayer() != player) {
+                    return;
+                } else if (Game.this.getMark(x, y).isPlayer) {
+                    return;
+                }
+                
+                Game.this.setMark(x, y, player.getMark());
+                Game.this.nextTurn();
+            }
+        });
+    }
+    
+    /**
+     * Queues the game to move onto the next turn once the current task has
+     * finished. If a player has won or the board is full, the game is
+     * terminated; otherwise, the next player is notified that it's their turn.
+     * <p>
+     * This should only be called by a player which has changed the board
+     * while being notified that it is their turn; other players should use
+     * {@link #makeMove(Player, int, int)}.
+     */
+    public void tick() {
+        this.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!Game.this.isDone()) {
+                    Game.this.nextTurn();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Queues the game to be cancelled with the opposing player to the
+     * provided loser being the winner. Does nothing if the game is over by the
+     * time the cancellation is carried out.
+     * 
+     * @param loser The player who has caused the game to be cancelled, and is
+     *            thus the loser of the game.
      */
-    public synchronized void tick() {
-        if (this.board.hasWon(Mark.X)) {
-            this.done = true;
+    public void cancel(final Player loser) {
+        this.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!Game.this.isDone()) {
+                    Game.this.forfeit(loser);
+                }
+            }
+        });
+    }
+    
+    private void submit(final Runnable task) {
+        this.mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Both players' updates are sent once the task is done
+                TTTWConnection.beginBatch();
+                
+                try {
+                    task.run();
+                } finally {
+                    TTTWConnection.endBatch();
+                }
+            }
+        });
+    }
+    
+    private boolean isLive() {
+        return this.table.getGeneration(this.slot) == this.generation;
+    }
+    
+    private void nextTurn() {
+        if (this.table.hasWon(this.slot, Mark.X)) {
+            this.table.setDone(this.slot);
             this.xPlayer.notifyWon();
             this.oPlayer.notifyLost();
-        } else if (this.board.hasWon(Mark.O)) {
-            this.done = true;
+        } else if (this.table.hasWon(this.slot, Mark.O)) {
+            this.table.setDone(this.slot);
             this.xPlayer.notifyLost();
             this.oPlayer.notifyWon();
-        } else if (this.board.isFull()) {
-            this.done = true;
+        } else if (this.table.isFull(this.slot)) {
+            this.table.setDone(this.slot);
             this.xPlayer.notifyDrawn();
             this.oPlayer.notifyDrawn();
         } else {
-            this.turn = !this.turn;
+            this.table.nextTurn(this.slot);
+            
+            this.startTurnClock();
             
             this.getInactivePlayer().notifyUpdate(false);
             this.getActivePlayer().notifyUpdate(true);
         }
+        
+        if (this.table.isDone(this.slot)) {
+            this.finish();
+        }
     }
     
-    /**
-     * Causes the game to be cancelled with the opposing player to the provided
-     * loser being the winner.
-     * 
-     * @param loser The player who has caused the game to be cancelled, and is
-     *            thus the loser of the game.
-     */
-    public synchronized void cancel(Player loser) {
-        this.done = true;
+    private void forfeit(Player loser) {
+        this.table.setDone(this.slot);
         
         if (this.xPlayer == loser) {
             this.xPlayer.notifyLost();
@@ -147,5 +320,52 @@ public class Game {
             this.xPlayer.notifyWon();
             this.oPlayer.notifyLost();
         }
+        
+        this.finish();
+    }
+    
+    private void forfeitIfIdle(int move) {
+        if (!this.isDone() && this.table.getMoves(this.slot) == move) {
+            this.forfeit(this.getActivePlayer());
+        }
+    }
+    
+    private void startTurnClock() {
+        if (this.turnClock != null) {
+            this.turnClock.cancel();
+        }
+        
+        if (this.timers != null && this.turnTimeout > 0) {
+            this.turnClock = this.timers.schedule(this.turnTimeout, new TurnClock(this.table.getMoves(this.slot)));
+        }
+    }
+    
+    private void finish() {
+        if (this.turnClock != null) {
+            this.turnClock.cancel();
+            this.turnClock = null;
+        }
+        
+        if (this.manager != null) {
+            this.manager.removeGame(this);
+        }
+    }
+    
+    private class TurnClock implements Runnable {
+        private final int move;
+        
+        private TurnClock(int move) {
+            this.move = move;
+        }
+        
+        @Override
+        public void run() {
+            Game.this.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Game.this.forfeitIfIdle(TurnClock.this.move);
+                }
+            });
+        }
     }
 }
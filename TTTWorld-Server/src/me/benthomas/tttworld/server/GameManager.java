@@ -1,10 +1,10 @@
 package me.benthomas.tttworld.server;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 import me.benthomas.tttworld.Mark;
 import me.benthomas.tttworld.net.PacketChallenge;
@@ -12,46 +12,117 @@ import me.benthomas.tttworld.net.PacketChallengeCancel;
 import me.benthomas.tttworld.net.PacketChallengeResponse;
 import me.benthomas.tttworld.net.PacketChallengeResponse.Response;
 import me.benthomas.tttworld.net.TTTWConnection.DisconnectListener;
-import me.benthomas.tttworld.net.TTTWConnection.PacketFilter;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+import me.benthomas.tttworld.server.ChallengeStore.Result;
+import me.benthomas.tttworld.server.TimerWheel.Timeout;
 import me.benthomas.tttworld.server.net.TTTWClientConnection;
 
 /**
  * A class which manages games and challenges currently active on this server.
+ * <p>
+ * Challenges expire, and players who take too long over their turn forfeit,
+ * by way of tasks scheduled on the server's {@link TimerWheel}, so nothing
+ * needs to walk through every challenge or game to find those which have run
+ * out of time. Games are forgotten as soon as they are over. Pending
+ * challenges are kept in a {@link ChallengeStore}, which limits how many each
+ * player may have outstanding.
+ * <p>
+ * Games are split between a number of shards by ID, each with its own lock, so
+ * games being created, looked up or finished only contend with others in the
+ * same shard. Each shard keeps the state of its games in a {@link GameTable} of
+ * fixed size, so a server can only hold so many games at once, however much
+ * memory is free. No shard lock is held while players are told about a game, so
+ * a slow client never holds up any other game. Each game runs its moves on its
+ * own strand of a shared executor; see {@link Game}.
  *
  * @author Ben Thomas
  */
 public class GameManager {
+    private TimerWheel timers;
+    private PacketExecutor executor;
     private long challengeTimeout;
+    private long turnTimeout;
     
-    private HashMap<UUID, Challenge> challenges = new HashMap<UUID, Challenge>();
-    private HashMap<UUID, Game> games = new HashMap<UUID, Game>();
+    private ChallengeStore challenges;
+    private Shard[] shards;
     
-    GameManager(long challengeTimeout) {
+    GameManager(TimerWheel timers, PacketExecutor executor, ChallengeStore challenges, int shards, int maxGames,
+            long challengeTimeout, long turnTimeout) {
+        this.timers = timers;
+        this.executor = executor;
+        this.challenges = challenges;
         this.challengeTimeout = challengeTimeout;
+        this.turnTimeout = turnTimeout;
+        
+        this.shards = new Shard[Math.max(1, shards)];
+        
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(Math.max(1, (maxGames + this.shards.length - 1) / this.shards.length));
+        }
+    }
+    
+    /**
+     * Gets the store of challenges pending on this server.
+     * 
+     * @return The pending challenges.
+     */
+    public ChallengeStore getChallenges() {
+        return this.challenges;
+    }
+    
+    /**
+     * Gets a snapshot of the statistics of each shard of games.
+     * 
+     * @return The statistics of each shard, in order.
+     */
+    public List<ShardStats> getShardStats() {
+        List<ShardStats> stats = new ArrayList<ShardStats>(this.shards.length);
+        
+        for (int i = 0; i < this.shards.length; i++) {
+            Shard s = this.shards[i];
+            
+            s.lock();
+            
+            try {
+                stats.add(new ShardStats(i, s.table.size(), s.table.getCapacity(), s.created, s.refused,
+                        s.acquisitions, s.contended, s.totalWaitNanos, s.maxWaitNanos));
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        
+        return stats;
     }
     
     /**
      * Creates a new challenge and notifies the receiver that they have been
-     * sent a challenge.
+     * sent a challenge, unless the sender has already challenged the receiver
+     * or either has too many challenges pending.
      * 
      * @param sender The client that has sent the challenge.
      * @param receiver The client who is being challenged.
-     * @return The challenge which was created.
+     * @return Whether the challenge was sent, or why it was not.
      */
-    public synchronized Challenge sendChallenge(TTTWClientConnection sender, TTTWClientConnection receiver) {
+    public Result sendChallenge(TTTWClientConnection sender, TTTWClientConnection receiver) {
+        Challenge c = new Challenge(UUID.randomUUID(), System.currentTimeMillis() + this.challengeTimeout + 1000, sender,
+                receiver);
+        Result result = this.challenges.add(c);
+        
+        if (result != Result.ADDED) {
+            return result;
+        }
+        
+        c.start();
+        
         try {
-            Challenge c = new Challenge(UUID.randomUUID(), System.currentTimeMillis() + this.challengeTimeout + 1000, sender,
-                    receiver);
-            
             receiver.sendPacket(new PacketChallenge(c.id, sender.getAccount().toPlayerInfo(), this.challengeTimeout));
-            this.challenges.put(c.id, c);
-            
-            return c;
         } catch (IOException e) {
             receiver.disconnect("Failed to send packet!");
-            return null;
         }
+        
+        c.expiry = this.timers.schedule(this.challengeTimeout + 1000, new ChallengeExpiry(c.id));
+        
+        return result;
     }
     
     /**
@@ -63,14 +134,8 @@ public class GameManager {
      * @return {@code true} if a challenge exists between the two provided
      *         players; otherwise, {@code false}.
      */
-    public synchronized boolean doesChallengeExist(TTTWClientConnection sender, TTTWClientConnection receiver) {
-        for (Entry<UUID, Challenge> c : this.challenges.entrySet()) {
-            if (c.getValue().sender == sender && c.getValue().receiver == receiver) {
-                return true;
-            }
-        }
-        
-        return false;
+    public boolean doesChallengeExist(TTTWClientConnection sender, TTTWClientConnection receiver) {
+        return this.challenges.contains(sender, receiver);
     }
     
     /**
@@ -78,11 +143,19 @@ public class GameManager {
      * 
      * @param challengeId The ID of the challenge to be rejected.
      */
-    public synchronized void rejectChallenge(UUID challengeId) {
-        Challenge c = this.challenges.get(challengeId);
+    public void rejectChallenge(UUID challengeId) {
+        Challenge c = this.challenges.remove(challengeId);
         
         if (c != null) {
-            this.challenges.remove(challengeId);
+            c.stop(false);
+        }
+    }
+    
+    private void expireChallenge(UUID challengeId) {
+        Challenge c = this.challenges.remove(challengeId);
+        
+        if (c != null) {
+            c.stop(true);
         }
     }
     
@@ -94,14 +167,20 @@ public class GameManager {
      * @return The game which was created, or {@code null} if the given
      *         challenge was not found.
      */
-    public synchronized Game acceptChallenge(UUID challengeId) {
-        Challenge c = this.challenges.get(challengeId);
+    public Game acceptChallenge(UUID challengeId) {
+        Challenge c = this.challenges.remove(challengeId);
         
         if (c != null) {
             c.stop(false);
-            this.challenges.remove(challengeId);
             
-            return this.createGame(challengeId, new NetPlayer(c.receiver, Mark.X), new NetPlayer(c.sender, Mark.O));
+            Game g = this.createGame(challengeId, new NetPlayer(c.receiver, Mark.X), new NetPlayer(c.sender, Mark.O));
+            
+            if (g == null) {
+                c.sender.sendMessage("The server is too busy to start your game. Try again later!");
+                c.receiver.sendMessage("The server is too busy to start your game. Try again later!");
+            }
+            
+            return g;
         } else {
             return null;
         }
@@ -111,27 +190,50 @@ public class GameManager {
      * Creates a new game between the two players. One of the players must be
      * configured to play with X's and the other must be configured to player
      * with O's. The game is automatically started by calling
-     * {@link Game#tick()} once.
+     * {@link Game#tick()} once, and is removed from this manager once it is
+     * over.
      * 
      * @param gameId The ID of the game which should be created.
      * @param player1 One of the players of this game.
      * @param player2 The other player of this game.
-     * @return The newly created games.
+     * @return The newly created game, or {@code null} if there is no room
+     *         left for it.
      */
-    public synchronized Game createGame(UUID gameId, Player player1, Player player2) {
-        Game g;
+    public Game createGame(UUID gameId, Player player1, Player player2) {
+        Player xPlayer, oPlayer;
         
         if (player1.getMark() == Mark.X && player2.getMark() == Mark.O) {
-            g = new Game(gameId, player1, player2);
+            xPlayer = player1;
+            oPlayer = player2;
         } else if (player1.getMark() == Mark.O && player2.getMark() == Mark.X) {
-            g = new Game(gameId, player2, player1);
+            xPlayer = player2;
+            oPlayer = player1;
         } else {
             throw new IllegalArgumentException("Two players playing with the same mark?");
         }
         
-        this.games.put(gameId, g);
+        Shard s = this.getShard(gameId.getMostSignificantBits(), gameId.getLeastSignificantBits());
+        Game g;
+        
+        s.lock();
         
-        g.tick();
+        try {
+            int slot = s.table.allocate(gameId.getMostSignificantBits(), gameId.getLeastSignificantBits());
+            
+            if (slot < 0) {
+                s.refused++;
+                return null;
+            }
+            
+            g = new Game(s.table, slot, this.executor.createStrand(), xPlayer, oPlayer);
+            s.games[slot] = g;
+            s.created++;
+        } finally {
+            s.lock.unlock();
+        }
+        
+        // The players are only told about the game once the shard is unlocked
+        g.start(this, this.timers, this.turnTimeout);
         
         return g;
     }
@@ -143,34 +245,164 @@ public class GameManager {
      * @return The game with the given ID or {@code null} if no game exists with
      *         the given game ID.
      */
-    public synchronized Game getGame(UUID gameId) {
-        return this.games.get(gameId);
+    public Game getGame(UUID gameId) {
+        return this.getGame(gameId.getMostSignificantBits(), gameId.getLeastSignificantBits());
     }
     
     /**
-     * Causes all existing challenges to be ticked and removed if they have
-     * expired.
+     * Gets the existing game with the given game ID, given as its two halves.
+     * 
+     * @param idHigh The most significant bits of the ID of the game.
+     * @param idLow The least significant bits of the ID of the game.
+     * @return The game with the given ID or {@code null} if no game exists with
+     *         the given game ID.
      */
-    public synchronized void tick() {
-        Iterator<Entry<UUID, Challenge>> challengeIterator = this.challenges.entrySet().iterator();
+    public Game getGame(long idHigh, long idLow) {
+        Shard s = this.getShard(idHigh, idLow);
         
-        while (challengeIterator.hasNext()) {
-            Challenge c = challengeIterator.next().getValue();
+        s.lock();
+        
+        try {
+            int slot = s.table.find(idHigh, idLow);
             
-            if (System.currentTimeMillis() > c.expires || !c.sender.isAlive() || !c.receiver.isAlive()) {
-                c.stop(true);
-                challengeIterator.remove();
-            }
+            return (slot >= 0) ? s.games[slot] : null;
+        } finally {
+            s.lock.unlock();
         }
+    }
+    
+    /**
+     * Removes a game which is over, freeing its slot. This is called from the
+     * game's own tasks, which is safe as nothing else is locked while a shard
+     * is.
+     * 
+     * @param g The game which is over.
+     */
+    void removeGame(Game g) {
+        int slot = g.getSlot();
+        Shard s = this.getShard(g.getTable().getIdHigh(slot), g.getTable().getIdLow(slot));
         
-        Iterator<Entry<UUID, Game>> gameIterator = this.games.entrySet().iterator();
+        s.lock();
         
-        while (gameIterator.hasNext()) {
-            Game g = gameIterator.next().getValue();
-            
-            if (g.isDone()) {
-                gameIterator.remove();
+        try {
+            s.games[slot] = null;
+            s.table.free(slot);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+    
+    private Shard getShard(long idHigh, long idLow) {
+        return this.shards[(int) (((idHigh ^ idLow) & Long.MAX_VALUE) % this.shards.length)];
+    }
+    
+    /**
+     * A snapshot of the games in one shard of a {@link GameManager}, and how
+     * much its lock has been fought over.
+     *
+     * @author Ben Thomas
+     */
+    public static class ShardStats {
+        /**
+         * The index of the shard.
+         */
+        public final int index;
+        
+        /**
+         * The number of games in progress in the shard.
+         */
+        public final int games;
+        
+        /**
+         * The greatest number of games the shard can hold at once.
+         */
+        public final int capacity;
+        
+        /**
+         * The total number of games which have been created in the shard.
+         */
+        public final long created;
+        
+        /**
+         * The number of games which could not be created because the shard
+         * was full.
+         */
+        public final long refused;
+        
+        /**
+         * The number of times the shard's lock has been taken.
+         */
+        public final long acquisitions;
+        
+        /**
+         * The number of times the shard's lock had to be waited for.
+         */
+        public final long contended;
+        
+        /**
+         * The total time (in nanoseconds) spent waiting for the shard's lock.
+         */
+        public final long totalWaitNanos;
+        
+        /**
+         * The longest time (in nanoseconds) spent waiting for the shard's
+         * lock.
+         */
+        public final long maxWaitNanos;
+        
+        private ShardStats(int index, int games, int capacity, long created, long refused, long acquisitions,
+                long contended, long totalWaitNanos, long maxWaitNanos) {
+            this.index = index;
+            this.games = games;
+            this.capacity = capacity;
+            this.created = created;
+            this.refused = refused;
+            this.acquisitions = acquisitions;
+            this.contended = contended;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return "Shard #" + this.index + ": " + this.games + "/" + this.capacity + " games, " + this.created
+                    + " created, " + this.refused + " refused, " + this.contended + "/" + this.acquisitions
+                    + " locks contended, wait " + (this.totalWaitNanos / 1000) + "us total, "
+                    + (this.maxWaitNanos / 1000) + "us max";
+        }
+    }
+    
+    private static class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final GameTable table;
+        private final Game[] games;
+        
+        private long created;
+        private long refused;
+        private long acquisitions;
+        private long contended;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        
+        private Shard(int capacity) {
+            this.table = new GameTable(capacity);
+            this.games = new Game[capacity];
+        }
+        
+        private void lock() {
+            if (!this.lock.tryLock()) {
+                long start = System.nanoTime();
+                
+                this.lock.lock();
+                
+                long wait = System.nanoTime() - start;
+                
+                this.contended++;
+                this.totalWaitNanos += wait;
+                this.maxWaitNanos = Math.max(this.maxWaitNanos, wait);
             }
+            
+            this.acquisitions++;
         }
     }
     
@@ -203,6 +435,7 @@ public class GameManager {
         public final TTTWClientConnection receiver;
         
         private boolean stopped = false;
+        private Timeout expiry;
         private ChallengeDisconnectListener disconnectListener;
         private ChallengeResponseHandler responseHandler;
         
@@ -212,24 +445,30 @@ public class GameManager {
             
             this.sender = sender;
             this.receiver = receiver;
-            
+        }
+        
+        private synchronized void start() {
             this.disconnectListener = new ChallengeDisconnectListener();
             this.responseHandler = new ChallengeResponseHandler();
             
             this.sender.addDisconnectListener(this.disconnectListener);
             this.receiver.addDisconnectListener(this.disconnectListener);
             
-            this.receiver.addFilteredHandler(PacketChallengeResponse.class, new ChallengeResponseFilter(), this.responseHandler);
+            this.receiver.addKeyedHandler(PacketChallengeResponse.class, this.id, this.responseHandler);
         }
         
         private synchronized void stop(boolean cancel) {
             if (!this.stopped) {
                 this.stopped = true;
                 
+                if (this.expiry != null) {
+                    this.expiry.cancel();
+                }
+                
                 this.sender.removeDisconnectListener(this.disconnectListener);
                 this.receiver.removeDisconnectListener(this.disconnectListener);
                 
-                this.receiver.removeFilteredHandler(PacketChallengeResponse.class, this.responseHandler);
+                this.receiver.removeKeyedHandler(PacketChallengeResponse.class, this.id, this.responseHandler);
                 
                 if (cancel) {
                     try {
@@ -249,13 +488,6 @@ public class GameManager {
             }
         }
         
-        private class ChallengeResponseFilter implements PacketFilter<PacketChallengeResponse> {
-            @Override
-            public boolean isFiltered(PacketChallengeResponse packet) {
-                return !packet.getChallengeId().equals(Challenge.this.id);
-            }
-        }
-        
         private class ChallengeResponseHandler implements PacketHandler<PacketChallengeResponse> {
             @Override
             public void handlePacket(PacketChallengeResponse packet) {
@@ -268,4 +500,17 @@ public class GameManager {
         }
     }
     
+    private class ChallengeExpiry implements Runnable {
+        private final UUID challengeId;
+        
+        private ChallengeExpiry(UUID challengeId) {
+            this.challengeId = challengeId;
+        }
+        
+        @Override
+        public void run() {
+            GameManager.this.expireChallenge(this.challengeId);
+        }
+    }
+    
 }
@@ -0,0 +1,387 @@
+package me.benthomas.tttworld.server;
+
+import me.benthomas.tttworld.Board;
+import me.benthomas.tttworld.Mark;
+
+/**
+ * A fixed-size table holding the state of many games in parallel arrays of
+ * primitives, rather than in an object graph for each game. Each game is
+ * addressed by the slot it was given when it was allocated, and can also be
+ * found by its ID through an open-addressed index. Once the table has been
+ * created, nothing in it allocates memory, so the heap needed for a given
+ * number of games is known up front.
+ * <p>
+ * The state of each game is packed into a single {@code long}:
+ * <ul>
+ * <li>bits 0 to 8 hold the squares marked by X, and bits 9 to 17 those
+ * marked by O, in row-major order;</li>
+ * <li>bit 18 is set while it is O's turn, and bit 19 once the game is
+ * over;</li>
+ * <li>bits 20 to 23 count the turns which have been started;</li>
+ * <li>bits 32 to 63 hold the generation of the slot, which is bumped each
+ * time the slot is freed so that stale references to it can be spotted.</li>
+ * </ul>
+ * The players themselves are not kept here, but by each game's {@link Game}.
+ * <p>
+ * Allocating, freeing and finding games must be done under an external lock.
+ * The state of a game may be read and changed without that lock, but only by
+ * one thread at a time, such as the game's own strand.
+ *
+ * @author Ben Thomas
+ */
+public class GameTable {
+    private static final int SQUARES = 9;
+    private static final int O_SHIFT = 9;
+    private static final long BOARD_MASK = (1L << 18) - 1;
+    private static final long TURN_BIT = 1L << 18;
+    private static final long DONE_BIT = 1L << 19;
+    private static final int MOVES_SHIFT = 20;
+    private static final long MOVES_MASK = 0xFL << GameTable.MOVES_SHIFT;
+    private static final int GENERATION_SHIFT = 32;
+    
+    private static final int[] LINES = { 0x007, 0x038, 0x1c0, 0x049, 0x092, 0x124, 0x111, 0x054 };
+    
+    private final long[] state;
+    private final long[] idHigh;
+    private final long[] idLow;
+    
+    private final int[] freeSlots;
+    private int freeCount;
+    
+    private final int[] index;
+    private final int indexMask;
+    
+    /**
+     * Creates a new, empty table with room for the given number of games.
+     * 
+     * @param capacity The greatest number of games the table can hold at
+     *            once.
+     */
+    public GameTable(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive!");
+        }
+        
+        this.state = new long[capacity];
+        this.idHigh = new long[capacity];
+        this.idLow = new long[capacity];
+        
+        this.freeSlots = new int[capacity];
+        this.freeCount = capacity;
+        
+        for (int i = 0; i < capacity; i++) {
+            this.freeSlots[i] = capacity - 1 - i;
+        }
+        
+        // Kept at most half full, so that probe sequences stay short
+        this.index = new int[Integer.highestOneBit(capacity) << 2];
+        this.indexMask = this.index.length - 1;
+    }
+    
+    /**
+     * Gets the greatest number of games this table can hold at once.
+     * 
+     * @return The capacity of this table.
+     */
+    public int getCapacity() {
+        return this.state.length;
+    }
+    
+    /**
+     * Gets the number of games in this table.
+     * 
+     * @return The number of allocated slots.
+     */
+    public int size() {
+        return this.state.length - this.freeCount;
+    }
+    
+    /**
+     * Allocates a slot for a new game, with a blank board and X to move
+     * first.
+     * 
+     * @param idHigh The most significant bits of the game's ID.
+     * @param idLow The least significant bits of the game's ID.
+     * @return The slot of the new game, or {@code -1} if the table is full or
+     *         already holds a game with the given ID.
+     */
+    public int allocate(long idHigh, long idLow) {
+        if (this.freeCount == 0 || this.find(idHigh, idLow) >= 0) {
+            return -1;
+        }
+        
+        int slot = this.freeSlots[--this.freeCount];
+        
+        // The first turn flips this over to X
+        this.state[slot] = (this.state[slot] & ~((1L << GameTable.GENERATION_SHIFT) - 1)) | GameTable.TURN_BIT;
+        this.idHigh[slot] = idHigh;
+        this.idLow[slot] = idLow;
+        
+        int i = this.hash(idHigh, idLow);
+        
+        while (this.index[i] != 0) {
+            i = (i + 1) & this.indexMask;
+        }
+        
+        this.index[i] = slot + 1;
+        return slot;
+    }
+    
+    /**
+     * Frees the slot of a game, so that it may be given to another game. The
+     * slot's generation is bumped, so that the freed game can tell it no
+     * longer owns the slot.
+     * 
+     * @param slot The slot of the game to free.
+     */
+    public void free(int slot) {
+        int i = this.hash(this.idHigh[slot], this.idLow[slot]);
+        
+        while (this.index[i] != slot + 1) {
+            i = (i + 1) & this.indexMask;
+        }
+        
+        // Entries further along the probe sequence are shifted back into the
+        // gap, so that lookups never need to step over removed entries
+        int gap = i;
+        
+        for (i = (gap + 1) & this.indexMask; this.index[i] != 0; i = (i + 1) & this.indexMask) {
+            int other = this.index[i] - 1;
+            int home = this.hash(this.idHigh[other], this.idLow[other]);
+            
+            if (((i - home) & this.indexMask) >= ((i - gap) & this.indexMask)) {
+                this.index[gap] = this.index[i];
+                gap = i;
+            }
+        }
+        
+        this.index[gap] = 0;
+        
+        this.state[slot] = ((long) (this.getGeneration(slot) + 1)) << GameTable.GENERATION_SHIFT;
+        this.idHigh[slot] = 0;
+        this.idLow[slot] = 0;
+        
+        this.freeSlots[this.freeCount++] = slot;
+    }
+    
+    /**
+     * Finds the slot of the game with the given ID.
+     * 
+     * @param idHigh The most significant bits of the game's ID.
+     * @param idLow The least significant bits of the game's ID.
+     * @return The slot of the game, or {@code -1} if there is no such game in
+     *         this table.
+     */
+    public int find(long idHigh, long idLow) {
+        for (int i = this.hash(idHigh, idLow); this.index[i] != 0; i = (i + 1) & this.indexMask) {
+            int slot = this.index[i] - 1;
+            
+            if (this.idHigh[slot] == idHigh && this.idLow[slot] == idLow) {
+                return slot;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Gets the generation of a slot, which changes each time it is freed.
+     * 
+     * @param slot The slot to check.
+     * @return The current generation of the slot.
+     */
+    public int getGeneration(int slot) {
+        return (int) (this.state[slot] >>> GameTable.GENERATION_SHIFT);
+    }
+    
+    /**
+     * Gets the most significant bits of the ID of the game in a slot.
+     * 
+     * @param slot The slot of the game.
+     * @return The most significant bits of the game's ID.
+     */
+    public long getIdHigh(int slot) {
+        return this.idHigh[slot];
+    }
+    
+    /**
+     * Gets the least significant bits of the ID of the game in a slot.
+     * 
+     * @param slot The slot of the game.
+     * @return The least significant bits of the game's ID.
+     */
+    public long getIdLow(int slot) {
+        return this.idLow[slot];
+    }
+    
+    /**
+     * Gets the mark in a square of a game's board.
+     * 
+     * @param slot The slot of the game.
+     * @param x The column of the square.
+     * @param y The row of the square.
+     * @return The mark in the square.
+     */
+    public Mark getMark(int slot, int x, int y) {
+        int square = GameTable.getSquare(x, y);
+        long s = this.state[slot];
+        
+        if ((s & (1L << square)) != 0) {
+            return Mark.X;
+        } else if ((s & (1L << (square + GameTable.O_SHIFT))) != 0) {
+            return Mark.O;
+        } else {
+            return Mark.NONE;
+        }
+    }
+    
+    /**
+     * Sets the mark in a square of a game's board.
+     * 
+     * @param slot The slot of the game.
+     * @param x The column of the square.
+     * @param y The row of the square.
+     * @param m The mark to put in the square.
+     */
+    public void setMark(int slot, int x, int y, Mark m) {
+        int square = GameTable.getSquare(x, y);
+        long s = this.state[slot] & ~((1L << square) | (1L << (square + GameTable.O_SHIFT)));
+        
+        if (m == Mark.X) {
+            s |= 1L << square;
+        } else if (m == Mark.O) {
+            s |= 1L << (square + GameTable.O_SHIFT);
+        }
+        
+        this.state[slot] = s;
+    }
+    
+    /**
+     * Checks whether a player has completed a line on a game's board.
+     * 
+     * @param slot The slot of the game.
+     * @param playerMark The mark of the player to check.
+     * @return {@code true} if the player has three in a row; otherwise,
+     *         {@code false}.
+     */
+    public boolean hasWon(int slot, Mark playerMark) {
+        if (!playerMark.isPlayer) {
+            throw new IllegalArgumentException("Mark is not a player mark!");
+        }
+        
+        int marks = (int) (this.state[slot] >>> ((playerMark == Mark.X) ? 0 : GameTable.O_SHIFT)) & 0x1ff;
+        
+        for (int line : GameTable.LINES) {
+            if ((marks & line) == line) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Checks whether every square of a game's board has been marked.
+     * 
+     * @param slot The slot of the game.
+     * @return {@code true} if the board is full; otherwise, {@code false}.
+     */
+    public boolean isFull(int slot) {
+        long s = this.state[slot];
+        
+        return ((s | (s >>> GameTable.O_SHIFT)) & 0x1ff) == 0x1ff;
+    }
+    
+    /**
+     * Copies a game's board into a new {@link Board}, such as to be sent to a
+     * player. Later changes to the game are not reflected in the copy.
+     * 
+     * @param slot The slot of the game.
+     * @return A copy of the game's board.
+     */
+    public Board getBoard(int slot) {
+        long s = this.state[slot];
+        int packed = 0;
+        
+        for (int i = GameTable.SQUARES - 1; i >= 0; i--) {
+            packed *= 3;
+            
+            if ((s & (1L << i)) != 0) {
+                packed += 1;
+            } else if ((s & (1L << (i + GameTable.O_SHIFT))) != 0) {
+                packed += 2;
+            }
+        }
+        
+        return new Board(packed);
+    }
+    
+    /**
+     * Checks whose turn it is in a game.
+     * 
+     * @param slot The slot of the game.
+     * @return {@code true} if it is O's turn; {@code false} if it is X's.
+     */
+    public boolean isTurnO(int slot) {
+        return (this.state[slot] & GameTable.TURN_BIT) != 0;
+    }
+    
+    /**
+     * Starts the next turn of a game, handing the move over to the other
+     * player and counting the turn.
+     * 
+     * @param slot The slot of the game.
+     */
+    public void nextTurn(int slot) {
+        long s = this.state[slot] ^ GameTable.TURN_BIT;
+        long moves = Math.min(((s & GameTable.MOVES_MASK) >>> GameTable.MOVES_SHIFT) + 1, 0xF);
+        
+        this.state[slot] = (s & ~GameTable.MOVES_MASK) | (moves << GameTable.MOVES_SHIFT);
+    }
+    
+    /**
+     * Gets the number of turns which have been started in a game.
+     * 
+     * @param slot The slot of the game.
+     * @return The number of turns started, which is {@code 0} until the game
+     *         has begun.
+     */
+    public int getMoves(int slot) {
+        return (int) ((this.state[slot] & GameTable.MOVES_MASK) >>> GameTable.MOVES_SHIFT);
+    }
+    
+    /**
+     * Checks whether a game is over.
+     * 
+     * @param slot The slot of the game.
+     * @return {@code true} if the game is over; otherwise, {@code false}.
+     */
+    public boolean isDone(int slot) {
+        return (this.state[slot] & GameTable.DONE_BIT) != 0;
+    }
+    
+    /**
+     * Marks a game as being over.
+     * 
+     * @param slot The slot of the game.
+     */
+    public void setDone(int slot) {
+        this.state[slot] |= GameTable.DONE_BIT;
+    }
+    
+    private int hash(long idHigh, long idLow) {
+        long h = (idHigh ^ idLow) * 0x9e3779b97f4a7c15L;
+        
+        return (int) (h >>> 32) & this.indexMask;
+    }
+    
+    private static int getSquare(int x, int y) {
+        if (x < 0 || x >= 3) {
+            throw new IllegalArgumentException("x coordinate out of bounds!");
+        } else if (y < 0 || y >= 3) {
+            throw new IllegalArgumentException("y coordinate out of bounds!");
+        }
+        
+        return (y * 3) + x;
+    }
+}
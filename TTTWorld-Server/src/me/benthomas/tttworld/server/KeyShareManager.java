@@ -0,0 +1,182 @@
+package me.benthomas.tttworld.server;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.benthomas.tttworld.Crypto.CryptoException;
+import me.benthomas.tttworld.KeyShare;
+
+/**
+ * Keeps the signed ECDH key share which this server offers to clients in
+ * place of RSA key transport; see {@link KeyShare}.
+ * <p>
+ * Signing a share with the server's RSA key costs as much as the RSA
+ * decryption that ECDH avoids, so a single share is offered to every client
+ * until it is halfway through its lifetime. A replacement is then signed on
+ * the server's {@link CryptoExecutor}, while the current share carries on
+ * being offered. Clients always use a fresh share of their own, so each
+ * connection still gets a different session key.
+ *
+ * @author Ben Thomas
+ */
+public class KeyShareManager {
+    private final PrivateKey signingKey;
+    private final long lifetime;
+    private final CryptoExecutor executor;
+    
+    private volatile Share current;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    
+    private final AtomicLong agreements = new AtomicLong();
+    private final AtomicLong agreementNanos = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    
+    /**
+     * Creates a new key share manager, signing its first share immediately.
+     * 
+     * @param signingKey The long-term RSA private key of the server.
+     * @param lifetime The time (in milliseconds) for which each share is
+     *            valid.
+     * @param executor The executor on which replacement shares are signed.
+     * 
+     * @throws GeneralSecurityException P-256 is not supported by this JVM, or
+     *             the share could not be signed.
+     */
+    public KeyShareManager(PrivateKey signingKey, long lifetime, CryptoExecutor executor)
+            throws GeneralSecurityException {
+        if (lifetime <= 0) {
+            throw new IllegalArgumentException("Key share lifetime must be positive!");
+        }
+        
+        this.signingKey = signingKey;
+        this.lifetime = lifetime;
+        this.executor = executor;
+        
+        try {
+            this.current = this.createShare();
+        } catch (CryptoException e) {
+            throw new GeneralSecurityException(e.getCause());
+        }
+    }
+    
+    /**
+     * Gets the share which should be offered to a client that is connecting
+     * now. Starts signing a replacement if the current share is halfway
+     * through its lifetime.
+     * 
+     * @return The current share, or {@code null} if it has expired and no
+     *         replacement is ready yet, in which case RSA should be used.
+     */
+    public Share getShare() {
+        Share s = this.current;
+        long now = System.currentTimeMillis();
+        
+        if (now > s.created + this.lifetime / 2 && this.refreshing.compareAndSet(false, true)) {
+            if (!this.executor.submit(new Refresh())) {
+                this.refreshing.set(false);
+            }
+        }
+        
+        return (now < s.keyShare.getExpiry()) ? s : null;
+    }
+    
+    /**
+     * Gets the number of session keys which have been agreed with ECDH.
+     * 
+     * @return The number of key agreements.
+     */
+    public long getAgreementCount() {
+        return this.agreements.get();
+    }
+    
+    /**
+     * Gets the number of times the offered share has been replaced.
+     * 
+     * @return The number of share rotations.
+     */
+    public long getRotationCount() {
+        return this.rotations.get();
+    }
+    
+    @Override
+    public String toString() {
+        long agreements = this.agreements.get();
+        
+        return agreements + " ECDH handshakes (avg "
+                + ((agreements == 0) ? 0 : this.agreementNanos.get() / agreements / 1000) + "us), "
+                + this.rotations.get() + " share rotations, current share expires in "
+                + Math.max(0, (this.current.keyShare.getExpiry() - System.currentTimeMillis()) / 1000) + "s";
+    }
+    
+    private Share createShare() throws GeneralSecurityException, CryptoException {
+        long now = System.currentTimeMillis();
+        KeyPair keyPair = KeyShare.generateKeyPair();
+        
+        return new Share(keyPair, KeyShare.sign(keyPair, now + this.lifetime, this.signingKey), now);
+    }
+    
+    /**
+     * A key share offered by this server, along with its private key.
+     *
+     * @author Ben Thomas
+     */
+    public class Share {
+        private final KeyPair keyPair;
+        private final KeyShare keyShare;
+        private final long created;
+        
+        private Share(KeyPair keyPair, KeyShare keyShare, long created) {
+            this.keyPair = keyPair;
+            this.keyShare = keyShare;
+            this.created = created;
+        }
+        
+        /**
+         * Gets the signed share which should be sent to the client.
+         * 
+         * @return The signed key share.
+         */
+        public KeyShare getKeyShare() {
+            return this.keyShare;
+        }
+        
+        /**
+         * Agrees on a session key with a client which was offered this share.
+         * 
+         * @param clientPublicKey The encoded public key of the client's share.
+         * @return The session key.
+         * 
+         * @throws CryptoException The client's public key is not valid.
+         */
+        public byte[] agree(byte[] clientPublicKey) throws CryptoException {
+            long start = System.nanoTime();
+            byte[] secret = KeyShare.agree(this.keyPair.getPrivate(), clientPublicKey);
+            byte[] key = KeyShare.deriveSessionKey(secret, clientPublicKey, this.keyShare.getPublicKey());
+            
+            KeyShareManager.this.agreements.incrementAndGet();
+            KeyShareManager.this.agreementNanos.addAndGet(System.nanoTime() - start);
+            
+            return key;
+        }
+    }
+    
+    private class Refresh implements Runnable {
+        @Override
+        public void run() {
+            try {
+                KeyShareManager.this.current = KeyShareManager.this.createShare();
+                KeyShareManager.this.rotations.incrementAndGet();
+            } catch (GeneralSecurityException | CryptoException e) {
+                synchronized (System.out) {
+                    System.err.println("Failed to sign a new key share:");
+                    e.printStackTrace();
+                }
+            } finally {
+                KeyShareManager.this.refreshing.set(false);
+            }
+        }
+    }
+}
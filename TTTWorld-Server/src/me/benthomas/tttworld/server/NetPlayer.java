@@ -8,7 +8,6 @@ import me.benthomas.tttworld.net.PacketGameOver;
 import me.benthomas.tttworld.net.PacketGameOver.Result;
 import me.benthomas.tttworld.net.PacketGameUpdate;
 import me.benthomas.tttworld.net.TTTWConnection.DisconnectListener;
-import me.benthomas.tttworld.net.TTTWConnection.PacketFilter;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
 import me.benthomas.tttworld.server.net.TTTWClientConnection;
 
@@ -52,7 +51,12 @@ public final class NetPlayer extends Player {
     @Override
     public void notifyStart() {
         this.client.addDisconnectListener(this.forfeit);
-        this.client.addFilteredHandler(PacketGameMove.class, new GameMoveFilter(), this.moveHandler);
+        this.client.addKeyedHandler(PacketGameMove.class, this.game.getId(), this.moveHandler);
+    }
+    
+    @Override
+    public boolean isConnected() {
+        return this.client.isAlive();
     }
     
     @Override
@@ -104,32 +108,24 @@ public final class NetPlayer extends Player {
     private void notifyOver() {
         this.sendUpdate(false, true);
         
-        this.client.removeFilteredHandler(PacketGameMove.class, this.moveHandler);
+        this.client.removeKeyedHandler(PacketGameMove.class, this.game.getId(), this.moveHandler);
         this.client.removeDisconnectListener(this.forfeit);
     }
     
-    private void handlePacket(PacketGameMove p, boolean active) {
+    private void handlePacket(PacketGameMove p) {
         if (p.getX() == -1 && p.getY() == -1) {
             this.game.cancel(this);
-        } else if (active && p.getX() >= 0 && p.getX() < 3 && p.getY() >= 0 && p.getY() < 3) {
-            if (!this.game.getBoard().getMark(p.getX(), p.getY()).isPlayer) {
-                this.game.getBoard().setMark(p.getX(), p.getY(), this.mark);
-                this.game.tick();
-            }
-        }
-    }
-    
-    private class GameMoveFilter implements PacketFilter<PacketGameMove> {
-        @Override
-        public boolean isFiltered(PacketGameMove packet) {
-            return !packet.getGameId().equals(NetPlayer.this.game.getId());
+        } else if (p.getX() >= 0 && p.getX() < 3 && p.getY() >= 0 && p.getY() < 3) {
+            // Whose turn it is, and whether the square is free, is checked by
+            // the game once the move's turn comes
+            this.game.makeMove(this, p.getX(), p.getY());
         }
     }
     
     private class GameMoveHandler implements PacketHandler<PacketGameMove> {
         @Override
         public void handlePacket(PacketGameMove packet) throws IOException {
-            NetPlayer.this.handlePacket(packet, NetPlayer.this.game.getActivePlayer() == NetPlayer.this);
+            NetPlayer.this.handlePacket(packet);
         }
     }
     
@@ -0,0 +1,333 @@
+package me.benthomas.tttworld.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A work-stealing thread pool which runs tasks on behalf of many independent
+ * keys, such as client connections. Tasks are submitted through a
+ * {@link Strand}, which guarantees that tasks submitted to it run one at a time
+ * and in the order in which they were submitted, while tasks on different
+ * strands run in parallel on any available worker.
+ * <p>
+ * Each worker has its own queue of strands waiting to run. A strand scheduled
+ * from a worker thread is queued on that worker; otherwise, strands are spread
+ * across the workers in turn. Idle workers steal waiting strands from the back
+ * of other workers' queues.
+ *
+ * @author Ben Thomas
+ */
+public class PacketExecutor {
+    private static final int STRAND_BATCH = 16;
+    
+    private final String name;
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+    
+    private volatile boolean shutdown = false;
+    
+    /**
+     * Creates and starts a new executor with the given number of worker
+     * threads.
+     * 
+     * @param name The name used as a prefix for the names of worker threads.
+     * @param threads The number of worker threads. Must be at least 1.
+     */
+    public PacketExecutor(String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is required!");
+        }
+        
+        this.name = name;
+        this.workers = new Worker[threads];
+        
+        for (int i = 0; i < threads; i++) {
+            this.workers[i] = new Worker(i + 1);
+        }
+        
+        for (Worker w : this.workers) {
+            w.start();
+        }
+    }
+    
+    /**
+     * Creates a new strand on this executor. Strands are cheap and should
+     * generally be created once for each key that needs ordered execution.
+     * 
+     * @return A new strand which runs its tasks on this executor.
+     */
+    public Strand createStrand() {
+        return new Strand();
+    }
+    
+    /**
+     * Gets the number of worker threads used by this executor.
+     * 
+     * @return The number of worker threads.
+     */
+    public int getWorkerCount() {
+        return this.workers.length;
+    }
+    
+    /**
+     * Gets a snapshot of the statistics of every worker thread in this
+     * executor.
+     * 
+     * @return A list containing the current statistics of each worker.
+     */
+    public List<WorkerStats> getWorkerStats() {
+        List<WorkerStats> stats = new ArrayList<WorkerStats>(this.workers.length);
+        
+        for (Worker w : this.workers) {
+            stats.add(new WorkerStats(w.getName(), w.depth.get(), w.strandsRun.get(), w.stolen.get(),
+                    w.totalWaitNanos.get(), w.maxWaitNanos.get()));
+        }
+        
+        return stats;
+    }
+    
+    /**
+     * Stops all worker threads. Strands which are still waiting to run are
+     * discarded.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        
+        for (Worker w : this.workers) {
+            w.interrupt();
+        }
+    }
+    
+    private void schedule(Strand s) {
+        Worker target = null;
+        Thread current = Thread.currentThread();
+        
+        if (current instanceof Worker && ((Worker) current).getExecutor() == this) {
+            target = (Worker) current;
+        } else {
+            target = this.workers[(this.nextWorker.getAndIncrement() & Integer.MAX_VALUE) % this.workers.length];
+        }
+        
+        s.scheduledAt = System.nanoTime();
+        target.depth.incrementAndGet();
+        target.queue.addLast(s);
+        
+        Worker idle = this.idleWorkers.poll();
+        
+        if (idle != null) {
+            LockSupport.unpark(idle);
+        } else if (target != current) {
+            LockSupport.unpark(target);
+        }
+    }
+    
+    /**
+     * Runs submitted tasks in order, one at a time, on the workers of the
+     * executor that created it.
+     *
+     * @author Ben Thomas
+     */
+    public class Strand implements Executor {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile long scheduledAt;
+        
+        private Strand() {
+        }
+        
+        @Override
+        public void execute(Runnable task) {
+            this.tasks.add(task);
+            
+            if (this.scheduled.compareAndSet(false, true)) {
+                PacketExecutor.this.schedule(this);
+            }
+        }
+        
+        /**
+         * Gets the number of tasks which have been submitted to this strand
+         * and have not yet started running.
+         * 
+         * @return The number of waiting tasks.
+         */
+        public int getPendingCount() {
+            return this.tasks.size();
+        }
+        
+        private void run() {
+            Runnable task;
+            int n = 0;
+            
+            try {
+                while (n++ < PacketExecutor.STRAND_BATCH && (task = this.tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        // Errors are caught too, or one bad task would take
+                        // its worker down with it
+                        synchronized (System.out) {
+                            System.err.println("Uncaught exception in packet executor task:");
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } finally {
+                this.scheduled.set(false);
+                
+                // Tasks may have been added after the last poll, or the batch
+                // limit may have been reached; either way, go to the back of
+                // the line
+                if (!this.tasks.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+                    PacketExecutor.this.schedule(this);
+                }
+            }
+        }
+    }
+    
+    /**
+     * A snapshot of the statistics of a single worker thread.
+     *
+     * @author Ben Thomas
+     */
+    public static class WorkerStats {
+        /**
+         * The name of the worker thread.
+         */
+        public final String name;
+        
+        /**
+         * The number of strands waiting in this worker's queue.
+         */
+        public final int queueDepth;
+        
+        /**
+         * The total number of strands run by this worker.
+         */
+        public final long strandsRun;
+        
+        /**
+         * The number of strands this worker has stolen from other workers.
+         */
+        public final long stolen;
+        
+        /**
+         * The total time (in nanoseconds) that strands run by this worker
+         * spent waiting to be run after being scheduled.
+         */
+        public final long totalWaitNanos;
+        
+        /**
+         * The longest time (in nanoseconds) that a strand run by this worker
+         * spent waiting to be run after being scheduled.
+         */
+        public final long maxWaitNanos;
+        
+        private WorkerStats(String name, int queueDepth, long strandsRun, long stolen, long totalWaitNanos,
+                long maxWaitNanos) {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.strandsRun = strandsRun;
+            this.stolen = stolen;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+        
+        /**
+         * Gets the average time (in microseconds) that strands run by this
+         * worker spent waiting to be run.
+         * 
+         * @return The average wait time in microseconds.
+         */
+        public long getAverageWaitMicros() {
+            return (this.strandsRun == 0) ? 0 : this.totalWaitNanos / this.strandsRun / 1000;
+        }
+        
+        @Override
+        public String toString() {
+            return this.name + ": depth " + this.queueDepth + ", run " + this.strandsRun + ", stolen " + this.stolen
+                    + ", avg wait " + this.getAverageWaitMicros() + "us, max wait " + (this.maxWaitNanos / 1000) + "us";
+        }
+    }
+    
+    private class Worker extends Thread {
+        private final ConcurrentLinkedDeque<Strand> queue = new ConcurrentLinkedDeque<Strand>();
+        private final AtomicInteger depth = new AtomicInteger();
+        
+        private final AtomicLong strandsRun = new AtomicLong();
+        private final AtomicLong stolen = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        
+        private Worker(int n) {
+            super(PacketExecutor.this.name + " #" + n);
+            
+            this.setDaemon(true);
+        }
+        
+        private PacketExecutor getExecutor() {
+            return PacketExecutor.this;
+        }
+        
+        private Strand poll() {
+            Strand s = this.queue.pollFirst();
+            
+            if (s != null) {
+                this.depth.decrementAndGet();
+                return s;
+            }
+            
+            for (Worker victim : PacketExecutor.this.workers) {
+                if (victim != this && (s = victim.queue.pollLast()) != null) {
+                    victim.depth.decrementAndGet();
+                    this.stolen.incrementAndGet();
+                    return s;
+                }
+            }
+            
+            return null;
+        }
+        
+        @Override
+        public void run() {
+            while (!PacketExecutor.this.shutdown) {
+                Strand s = this.poll();
+                
+                if (s == null) {
+                    PacketExecutor.this.idleWorkers.add(this);
+                    
+                    // Check again in case work arrived before this worker was
+                    // seen as idle
+                    if ((s = this.poll()) == null) {
+                        LockSupport.park(this);
+                        PacketExecutor.this.idleWorkers.remove(this);
+                        continue;
+                    }
+                    
+                    PacketExecutor.this.idleWorkers.remove(this);
+                }
+                
+                long wait = System.nanoTime() - s.scheduledAt;
+                
+                this.strandsRun.incrementAndGet();
+                this.totalWaitNanos.addAndGet(wait);
+                
+                long max;
+                
+                while (wait > (max = this.maxWaitNanos.get()) && !this.maxWaitNanos.compareAndSet(max, wait)) {
+                    // Retry until the maximum is updated or surpassed
+                }
+                
+                s.run();
+            }
+        }
+    }
+}
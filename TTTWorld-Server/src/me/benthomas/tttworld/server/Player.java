@@ -54,6 +54,18 @@ public abstract class Player {
      */
     public abstract void notifyDrawn();
     
+    /**
+     * Checks whether this player is still around to play their game. A game
+     * which starts after one of its players has already left is forfeited by
+     * that player.
+     * 
+     * @return {@code true} if this player can still play; otherwise,
+     *         {@code false}.
+     */
+    public boolean isConnected() {
+        return true;
+    }
+    
     final void setGame(Game game) {
         this.game = game;
     }
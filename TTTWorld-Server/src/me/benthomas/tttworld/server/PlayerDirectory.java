@@ -0,0 +1,175 @@
+package me.benthomas.tttworld.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
+import me.benthomas.tttworld.net.PacketPlayerPage;
+
+/**
+ * An index of the connected players at one version of the player list, sorted
+ * by username ignoring case, from which clients can be sent a page at a time.
+ * Finding a page, or the players whose names begin with a prefix, takes a
+ * binary search rather than a walk through every player.
+ * <p>
+ * A directory is never modified once it has been built, so pages may be taken
+ * from it by any number of threads while the next version is being built by
+ * {@link #update(int, List, List, List)}.
+ *
+ * @author Ben Thomas
+ */
+public class PlayerDirectory {
+    /**
+     * The greatest number of players which will be sent in a single page,
+     * however many a client asks for.
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+    
+    private final int version;
+    
+    private final String[] keys;
+    private final PlayerInfo[] players;
+    
+    /**
+     * Creates a new directory with no players in it, at the first version of
+     * the player list.
+     */
+    public PlayerDirectory() {
+        this(0, new String[0], new PlayerInfo[0]);
+    }
+    
+    private PlayerDirectory(int version, String[] keys, PlayerInfo[] players) {
+        this.version = version;
+        this.keys = keys;
+        this.players = players;
+    }
+    
+    /**
+     * Gets the version of the player list which this directory holds.
+     * 
+     * @return The version number of the player list.
+     */
+    public int getVersion() {
+        return this.version;
+    }
+    
+    /**
+     * Gets the number of players in this directory.
+     * 
+     * @return The number of connected players.
+     */
+    public int size() {
+        return this.players.length;
+    }
+    
+    /**
+     * Builds the directory for a later version of the player list from the
+     * changes since this version. Only the players who have joined are
+     * sorted; the rest are merged in order with them.
+     * 
+     * @param version The version of the player list once the changes have
+     *            been applied.
+     * @param joined The players who have joined since this version.
+     * @param left The usernames of the players who have left since this
+     *            version.
+     * @param updated The players whose information has changed since this
+     *            version.
+     * @return The new directory. This directory is left unchanged.
+     */
+    public PlayerDirectory update(int version, List<PlayerInfo> joined, List<String> left, List<PlayerInfo> updated) {
+        Set<String> removed = new HashSet<String>();
+        Map<String, PlayerInfo> replaced = new HashMap<String, PlayerInfo>();
+        List<PlayerInfo> added = new ArrayList<PlayerInfo>(joined);
+        
+        for (String username : left) {
+            removed.add(username.toLowerCase());
+        }
+        
+        for (PlayerInfo p : updated) {
+            replaced.put(p.username.toLowerCase(), p);
+        }
+        
+        Collections.sort(added);
+        
+        List<String> keys = new ArrayList<String>(this.keys.length + added.size());
+        List<PlayerInfo> players = new ArrayList<PlayerInfo>(this.keys.length + added.size());
+        int next = 0;
+        
+        for (int i = 0; i < this.keys.length; i++) {
+            if (removed.contains(this.keys[i])) {
+                continue;
+            }
+            
+            while (next < added.size() && added.get(next).username.toLowerCase().compareTo(this.keys[i]) < 0) {
+                keys.add(added.get(next).username.toLowerCase());
+                players.add(added.get(next++));
+            }
+            
+            PlayerInfo p = replaced.get(this.keys[i]);
+            
+            keys.add(this.keys[i]);
+            players.add((p != null) ? p : this.players[i]);
+        }
+        
+        while (next < added.size()) {
+            keys.add(added.get(next).username.toLowerCase());
+            players.add(added.get(next++));
+        }
+        
+        return new PlayerDirectory(version, keys.toArray(new String[keys.size()]),
+                players.toArray(new PlayerInfo[players.size()]));
+    }
+    
+    /**
+     * Takes a page of the players whose usernames begin with a prefix,
+     * ignoring case.
+     * 
+     * @param prefix The prefix with which the usernames must begin. An empty
+     *            prefix matches every player.
+     * @param offset The position of the first player in the page among the
+     *            players matching the prefix.
+     * @param limit The greatest number of players to put in the page, which
+     *            is no more than {@link #MAX_PAGE_SIZE}.
+     * @param except The username of the player to whom the page will be sent,
+     *            who is left out of both the page and its total.
+     * @return The page of players, ready to be sent.
+     */
+    public PacketPlayerPage getPage(String prefix, int offset, int limit, String except) {
+        String key = prefix.toLowerCase();
+        int start = this.find(key);
+        int end = this.find(key + Character.MAX_VALUE);
+        int excluded = Arrays.binarySearch(this.keys, start, end, except.toLowerCase());
+        int total = (excluded >= 0) ? end - start - 1 : end - start;
+        
+        List<PlayerInfo> page = new ArrayList<PlayerInfo>();
+        
+        if (offset < total) {
+            int size = Math.min(limit, PlayerDirectory.MAX_PAGE_SIZE);
+            int i = start + offset;
+            
+            if (excluded >= 0 && i >= excluded) {
+                i++;
+            }
+            
+            for (; i < end && page.size() < size; i++) {
+                if (i != excluded) {
+                    page.add(this.players[i]);
+                }
+            }
+        }
+        
+        return new PacketPlayerPage(this.version, prefix, offset, total, page);
+    }
+    
+    private int find(String key) {
+        int i = Arrays.binarySearch(this.keys, key);
+        
+        return (i >= 0) ? i : -i - 1;
+    }
+}
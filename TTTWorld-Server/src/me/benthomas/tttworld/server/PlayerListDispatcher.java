@@ -0,0 +1,222 @@
+package me.benthomas.tttworld.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.benthomas.tttworld.net.PacketGlobalPlayerList;
+import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
+import me.benthomas.tttworld.net.PacketPlayerListUpdate;
+import me.benthomas.tttworld.net.PacketPlayerPage;
+import me.benthomas.tttworld.net.SharedPacket;
+import me.benthomas.tttworld.server.net.TTTWClientConnection;
+
+/**
+ * Keeps every authenticated client's list of connected players up to date.
+ * Rather than sending everyone the whole list whenever a player joins, leaves
+ * or is promoted, changes are only noted when they happen, and are sent out
+ * together once per dispatch period by {@link #dispatch(PlayerRegistry)}.
+ * <p>
+ * Each time the list changes, its version number is increased, and clients
+ * which support {@link PacketPlayerListUpdate}s are sent a single shared
+ * update with just the players who joined, left or changed. Clients which
+ * have not been sent the previous version, such as those which have just
+ * logged in or have asked for the whole list again, are sent a full update
+ * instead. Older clients are sent the whole list as they always were.
+ * <p>
+ * Clients which fetch the list a page at a time are only sent a shared
+ * {@link PacketPlayerPage} notice of the new version, and then ask for the
+ * pages they are showing from the {@link PlayerDirectory} built for it.
+ *
+ * @author Ben Thomas
+ */
+public class PlayerListDispatcher {
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+    
+    private Map<String, PlayerInfo> players = new HashMap<String, PlayerInfo>();
+    private volatile int version = 0;
+    private volatile PlayerDirectory directory = new PlayerDirectory();
+    
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong fullUpdates = new AtomicLong();
+    private final AtomicLong legacyLists = new AtomicLong();
+    private final AtomicLong notices = new AtomicLong();
+    
+    /**
+     * Notes that the list of connected players may have changed, so that it
+     * is checked at the end of the current dispatch period.
+     */
+    public void markChanged() {
+        this.changed.set(true);
+    }
+    
+    /**
+     * Arranges for a client to be sent the whole player list at the end of
+     * the current dispatch period, because it has missed an update.
+     * 
+     * @param client The client which has asked for the whole list.
+     */
+    public void requestFullUpdate(TTTWClientConnection client) {
+        client.resetPlayerListVersion();
+        this.changed.set(true);
+    }
+    
+    /**
+     * Gets the current version of the player list.
+     * 
+     * @return The version number of the player list.
+     */
+    public int getVersion() {
+        return this.version;
+    }
+    
+    /**
+     * Gets the directory of players at the current version of the player
+     * list, from which pages can be sent to clients.
+     * 
+     * @return The current player directory.
+     */
+    public PlayerDirectory getDirectory() {
+        return this.directory;
+    }
+    
+    /**
+     * Sends any changes to the player list which have been noted since the
+     * last call. This should be called once per dispatch period, and only
+     * ever from one thread at a time.
+     * 
+     * @param connectedPlayers The clients connected to the server.
+     */
+    public void dispatch(PlayerRegistry connectedPlayers) {
+        if (!this.changed.getAndSet(false)) {
+            return;
+        }
+        
+        List<TTTWClientConnection> recipients = new ArrayList<TTTWClientConnection>();
+        Map<String, PlayerInfo> current = new LinkedHashMap<String, PlayerInfo>();
+        
+        for (TTTWClientConnection player : connectedPlayers) {
+            if (!player.isDisconnecting() && player.isAlive() && player.getAccount() != null) {
+                recipients.add(player);
+                current.put(player.getAccount().getName(), player.getAccount().toPlayerInfo());
+            }
+        }
+        
+        List<PlayerInfo> joined = new ArrayList<PlayerInfo>();
+        List<String> left = new ArrayList<String>();
+        List<PlayerInfo> updated = new ArrayList<PlayerInfo>();
+        
+        for (PlayerInfo p : current.values()) {
+            PlayerInfo previous = this.players.get(p.username);
+            
+            if (previous == null) {
+                joined.add(p);
+            } else if (previous.admin != p.admin) {
+                updated.add(p);
+            }
+        }
+        
+        for (String username : this.players.keySet()) {
+            if (!current.containsKey(username)) {
+                left.add(username);
+            }
+        }
+        
+        int baseVersion = this.version;
+        SharedPacket update = null;
+        
+        if (!joined.isEmpty() || !left.isEmpty() || !updated.isEmpty()) {
+            this.players = current;
+            this.version++;
+            this.directory = this.directory.update(this.version, joined, left, updated);
+            
+            update = new SharedPacket(new PacketPlayerListUpdate(baseVersion, this.version, joined, left, updated));
+        }
+        
+        this.send(recipients, baseVersion, update);
+    }
+    
+    private void send(List<TTTWClientConnection> recipients, int baseVersion, SharedPacket update) {
+        List<PlayerInfo> all = null;
+        SharedPacket fullUpdate = null;
+        SharedPacket sharedList = null;
+        SharedPacket notice = null;
+        
+        for (TTTWClientConnection client : recipients) {
+            int clientVersion = client.getPlayerListVersion();
+            
+            if (clientVersion == this.version) {
+                continue;
+            }
+            
+            if (all == null && !client.isPlayerDirectorySupported()) {
+                all = new ArrayList<PlayerInfo>(this.players.values());
+            }
+            
+            try {
+                if (client.isPlayerDirectorySupported()) {
+                    if (notice == null) {
+                        notice = new SharedPacket(new PacketPlayerPage(this.version));
+                    }
+                    
+                    client.sendSharedPacket(notice);
+                    this.notices.incrementAndGet();
+                } else if (!client.isPlayerListUpdateSupported()) {
+                    if (!client.isSharedPlayerListSupported()) {
+                        client.sendPacket(new PacketGlobalPlayerList(this.getPlayersExcept(client)));
+                    } else {
+                        if (sharedList == null) {
+                            sharedList = new SharedPacket(new PacketGlobalPlayerList(all));
+                        }
+                        
+                        client.sendSharedPacket(sharedList);
+                    }
+                    
+                    this.legacyLists.incrementAndGet();
+                } else if (update != null && clientVersion == baseVersion) {
+                    client.sendSharedPacket(update);
+                    this.updates.incrementAndGet();
+                } else {
+                    if (fullUpdate == null) {
+                        fullUpdate = new SharedPacket(new PacketPlayerListUpdate(this.version, all));
+                    }
+                    
+                    client.sendSharedPacket(fullUpdate);
+                    this.fullUpdates.incrementAndGet();
+                }
+                
+                if (!client.setPlayerListVersion(clientVersion, this.version)) {
+                    // Asked for the whole list while this update was being sent
+                    this.changed.set(true);
+                }
+            } catch (IOException e) {
+                client.disconnect("Error sending packet!");
+            }
+        }
+    }
+    
+    private List<PlayerInfo> getPlayersExcept(TTTWClientConnection client) {
+        List<PlayerInfo> playerList = new ArrayList<PlayerInfo>();
+        
+        // Clients older than shared player lists must not be sent themselves
+        for (Entry<String, PlayerInfo> p : this.players.entrySet()) {
+            if (!p.getKey().equals(client.getAccount().getName())) {
+                playerList.add(p.getValue());
+            }
+        }
+        
+        return playerList;
+    }
+    
+    @Override
+    public String toString() {
+        return "version " + this.version + ", " + this.updates.get() + " updates, " + this.fullUpdates.get()
+                + " full updates, " + this.notices.get() + " notices, " + this.legacyLists.get() + " legacy lists";
+    }
+}
@@ -0,0 +1,163 @@
+package me.benthomas.tttworld.server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.benthomas.tttworld.net.TTTWConnection.DisconnectListener;
+import me.benthomas.tttworld.server.net.TTTWClientConnection;
+
+/**
+ * Keeps track of the clients connected to a server, indexed both by connection
+ * id and by the lower-cased name of the account they are authenticated as, so
+ * that players can be found without searching every connection.
+ * <p>
+ * No locks are held while clients are looked up or iterated over. Iterating
+ * over the registry walks a snapshot of the connected clients, which is only
+ * copied again after a client has connected or disconnected, so broadcasts to
+ * every player do not hold up connections being accepted or removed. Clients
+ * which connect or disconnect during an iteration may or may not be included.
+ *
+ * @author Ben Thomas
+ */
+public class PlayerRegistry implements Iterable<TTTWClientConnection> {
+    private final ConcurrentMap<Integer, TTTWClientConnection> byId =
+            new ConcurrentHashMap<Integer, TTTWClientConnection>();
+    private final ConcurrentMap<String, TTTWClientConnection> byName =
+            new ConcurrentHashMap<String, TTTWClientConnection>();
+    
+    private final AtomicLong modifications = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, new TTTWClientConnection[0]);
+    
+    /**
+     * Adds a newly connected client to this registry. The client is removed
+     * again as soon as it is disconnected.
+     * 
+     * @param client The client which has connected.
+     */
+    public void add(final TTTWClientConnection client) {
+        this.byId.put(client.getConnectionId(), client);
+        this.modifications.incrementAndGet();
+        
+        client.addDisconnectListener(new DisconnectListener() {
+            @Override
+            public void onDisconnect(boolean fromRemote, String reason) {
+                PlayerRegistry.this.remove(client);
+            }
+        });
+    }
+    
+    /**
+     * Indexes a client by the name of the account it has just been
+     * authenticated as. If another client was already authenticated as the
+     * same account, it is replaced in the index and returned, so that it can
+     * be disconnected.
+     * 
+     * @param client The client which has been authenticated.
+     * @return The client which was previously authenticated as the same
+     *         account, or {@code null} if there was none.
+     */
+    public TTTWClientConnection register(TTTWClientConnection client) {
+        String name = client.getAccount().getName().toLowerCase();
+        TTTWClientConnection previous = this.byName.put(name, client);
+        
+        if (!client.isAlive()) {
+            // Disconnected before it could be indexed
+            this.byName.remove(name, client);
+        }
+        
+        return (previous != client) ? previous : null;
+    }
+    
+    /**
+     * Removes a client from this registry. Does nothing if the client has
+     * already been removed.
+     * 
+     * @param client The client which should be removed.
+     */
+    public void remove(TTTWClientConnection client) {
+        boolean removed = this.byId.remove(client.getConnectionId(), client);
+        
+        if (client.getAccount() != null) {
+            this.byName.remove(client.getAccount().getName().toLowerCase(), client);
+        }
+        
+        if (removed) {
+            this.modifications.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Gets the connected client with the given connection id.
+     * 
+     * @param connectionId The connection id of the client to find.
+     * @return The client with the given connection id, or {@code null} if it
+     *         is not connected.
+     */
+    public TTTWClientConnection get(int connectionId) {
+        return this.byId.get(connectionId);
+    }
+    
+    /**
+     * Gets the client authenticated as the user account with the given name,
+     * ignoring case.
+     * 
+     * @param name The name of the user account to find the client of.
+     * @return The client authenticated as the given account, or {@code null}
+     *         if that user is not connected.
+     */
+    public TTTWClientConnection get(String name) {
+        return this.byName.get(name.toLowerCase());
+    }
+    
+    /**
+     * Gets the number of clients connected to the server, including those
+     * which have not yet authenticated.
+     * 
+     * @return The number of connected clients.
+     */
+    public int size() {
+        return this.byId.size();
+    }
+    
+    /**
+     * Gets the number of clients which have authenticated.
+     * 
+     * @return The number of connected players.
+     */
+    public int getAuthenticatedCount() {
+        return this.byName.size();
+    }
+    
+    @Override
+    public Iterator<TTTWClientConnection> iterator() {
+        Snapshot s = this.snapshot;
+        long count = this.modifications.get();
+        
+        if (s.count != count) {
+            // Anything counted has already been put in the map, so a snapshot
+            // taken now includes it
+            s = new Snapshot(count, this.byId.values().toArray(new TTTWClientConnection[0]));
+            this.snapshot = s;
+        }
+        
+        return Arrays.asList(s.clients).iterator();
+    }
+    
+    @Override
+    public String toString() {
+        return this.size() + " connections, " + this.getAuthenticatedCount() + " players";
+    }
+    
+    private static class Snapshot {
+        private final long count;
+        private final TTTWClientConnection[] clients;
+        
+        private Snapshot(long count, TTTWClientConnection[] clients) {
+            this.count = count;
+            this.clients = clients;
+        }
+    }
+}
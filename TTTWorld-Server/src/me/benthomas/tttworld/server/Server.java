@@ -1,11 +1,21 @@
 package me.benthomas.tttworld.server;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -15,18 +25,24 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import me.benthomas.tttworld.Crypto;
-import me.benthomas.tttworld.net.PacketGlobalPlayerList;
-import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
+import me.benthomas.tttworld.KeyShare;
+import me.benthomas.tttworld.net.CompressionPolicy;
+import me.benthomas.tttworld.net.Packet;
+import me.benthomas.tttworld.net.PacketGlobalChat;
 import me.benthomas.tttworld.net.PacketKeepAlive;
+import me.benthomas.tttworld.net.SharedPacket;
 import me.benthomas.tttworld.net.TTTWConnection;
+import me.benthomas.tttworld.net.TTTWConnection.ReadResumeListener;
+import me.benthomas.tttworld.net.TTTWConnection.WritePendingListener;
 import me.benthomas.tttworld.server.net.TTTWClientConnection;
 
 /**
@@ -35,12 +51,55 @@ import me.benthomas.tttworld.server.net.TTTWClientConnection;
  * @author Ben Thomas
  */
 public class Server {
-    private static final int PACKET_HANDLE_THREADS = 3;
     private static final long DISPATCH_PERIOD = 50;
     
     private static final long KEEP_ALIVE_SEND_TIME = 20000;
     private static final long KEEP_ALIVE_DISCONNECT_TIME = 30000;
     
+    private static final long SWEEP_PERIOD = 1000;
+    private static final int SELECTOR_READ_BUFFER = 16 * 1024;
+    
+    private static Method threadOfVirtual;
+    private static Method threadBuilderName;
+    private static Method threadBuilderUnstarted;
+    
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            
+            Server.threadOfVirtual = Thread.class.getMethod("ofVirtual");
+            Server.threadBuilderName = builder.getMethod("name", String.class);
+            Server.threadBuilderUnstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // Virtual threads are not supported by this JVM
+            Server.threadOfVirtual = null;
+        }
+    }
+    
+    /**
+     * Creates a new, unstarted thread for running the given task. A virtual
+     * thread is created if the running JVM supports them; otherwise, a regular
+     * platform thread is created instead.
+     * 
+     * @param name The name of the thread to be created.
+     * @param task The task that the thread should run.
+     * @return The newly created thread. The thread has not yet been started.
+     */
+    private static Thread createLightweightThread(String name, Runnable task) {
+        if (Server.threadOfVirtual != null) {
+            try {
+                Object builder = Server.threadOfVirtual.invoke(null);
+                builder = Server.threadBuilderName.invoke(builder, name);
+                
+                return (Thread) Server.threadBuilderUnstarted.invoke(builder, task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            return new Thread(task, name);
+        }
+    }
+    
     /**
      * Starts a server using the given command-line arguments.
      * 
@@ -55,22 +114,49 @@ public class Server {
             p.load(new FileInputStream(new File("server.properties")));
         }
         
-        new Server(new Properties()).start(15060);
+        new Server(p).start(15060);
     }
     
     private ClientAcceptThread clientAccepter;
     private ServerSocket acceptSocket;
     
     private DispatchThread dispatchThread;
-    private List<PacketHandleThread> packetThreads = new ArrayList<PacketHandleThread>();
+    private SelectorThread selectorThread;
+    
+    private PacketExecutor packetExecutor;
+    private int packetThreads;
+    
+    private PacketExecutor gameExecutor;
+    
+    private CryptoExecutor cryptoExecutor;
+    private int cryptoThreads;
+    private int cryptoQueueLimit;
+    
+    private SessionTicketManager sessionTickets;
     
-    private List<TTTWClientConnection> connectedPlayers = new ArrayList<TTTWClientConnection>();
+    private KeyShareManager keyShares;
+    private long keyShareLifetime;
+    
+    private Executor writeExecutor;
+    private int sendQueueLimit;
+    private long sendStallTimeout;
+    private int maxFrameSize;
+    
+    private HousekeepingThread housekeepingThread;
+    
+    private PlayerRegistry connectedPlayers = new PlayerRegistry();
+    private PlayerListDispatcher playerLists = new PlayerListDispatcher();
+    private TimerWheel timers = new TimerWheel(Server.DISPATCH_PERIOD);
     
     private AccountManager accountManager;
     private GameManager gameManager;
     
+    private ServerMode mode;
+    
     private String serverName;
     private int compressThreshold;
+    private CompressionPolicy compressionPolicy;
+    private int receiveQueueLimit;
     private boolean allowRegister;
     
     private KeyPair keyPair;
@@ -82,12 +168,56 @@ public class Server {
             throw new RuntimeException("Failed to read account database!");
         }
         
-        this.gameManager = new GameManager(Long.parseLong(p.getProperty("challenge_timeout", "60")) * 1000);
+        ChallengeStore challenges = new ChallengeStore(Integer.parseInt(p.getProperty("challenge_limit", "10")),
+                Integer.parseInt(p.getProperty("challenge_receive_limit", "50")));
+        
+        int gameShards = Integer.parseInt(p.getProperty("game_shards",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        
+        this.gameExecutor = new PacketExecutor("Game Worker", Integer.parseInt(p.getProperty("game_threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors()))));
+        
+        this.gameManager = new GameManager(this.timers, this.gameExecutor, challenges, gameShards,
+                Integer.parseInt(p.getProperty("max_games", "65536")), Long.parseLong(p.getProperty("challenge_timeout",
+                        "60")) * 1000, Long.parseLong(p.getProperty("turn_timeout", "0")) * 1000);
         
         this.serverName = p.getProperty("server_name", "Aviansie Ben's Tic-Tac-Toe World");
         this.compressThreshold = Integer.parseInt(p.getProperty("compress_threshold", "256"));
+        
+        if (Boolean.parseBoolean(p.getProperty("adaptive_compression", "true"))) {
+            this.compressionPolicy = new CompressionPolicy();
+        }
+        
+        this.receiveQueueLimit = Integer.parseInt(p.getProperty("receive_queue_limit", "262144"));
         this.allowRegister = Boolean.parseBoolean(p.getProperty("allow_register", "true"));
         
+        this.mode = ServerMode.getByIdentifier(p.getProperty("server_mode", "classic"));
+        
+        if (this.mode == null) {
+            throw new RuntimeException("Unknown server mode " + p.getProperty("server_mode") + "!");
+        }
+        
+        this.packetThreads = Integer.parseInt(p.getProperty("packet_threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        
+        this.cryptoThreads = Integer.parseInt(p.getProperty("crypto_threads",
+                Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        this.cryptoQueueLimit = Integer.parseInt(p.getProperty("crypto_queue_limit", "256"));
+        
+        this.keyShareLifetime = Long.parseLong(p.getProperty("key_share_lifetime", "300")) * 1000;
+        
+        long ticketLifetime = Long.parseLong(p.getProperty("ticket_lifetime", "3600")) * 1000;
+        
+        if (ticketLifetime > 0) {
+            this.sessionTickets = new SessionTicketManager(ticketLifetime, Long.parseLong(p.getProperty(
+                    "ticket_key_rotation", "3600")) * 1000);
+        }
+        
+        this.sendQueueLimit = Integer.parseInt(p.getProperty("send_queue_limit", "262144"));
+        this.sendStallTimeout = Long.parseLong(p.getProperty("send_stall_timeout", "15")) * 1000;
+        this.maxFrameSize = Integer.parseInt(p.getProperty("max_frame_size",
+                Integer.toString(TTTWConnection.DEFAULT_MAX_FRAME_SIZE)));
+        
         try {
             this.loadKeyPair(p.getProperty("key_file", "server.pk8"), p.getProperty("public_key_file", "server.crt"));
             System.out.println("Public key fingerprint is " + this.getPublicKeyFingerprint());
@@ -192,6 +322,95 @@ public class Server {
         return this.gameManager;
     }
     
+    /**
+     * Gets the timing wheel on which this server runs keep-alives, challenge
+     * expiries and turn clocks. Tasks scheduled on it are run on the thread
+     * which dispatches game updates.
+     * 
+     * @return This server's timing wheel.
+     */
+    public TimerWheel getTimers() {
+        return this.timers;
+    }
+    
+    /**
+     * Gets the executor used to handle incoming packets on this server. When
+     * running in virtual mode, each client has its own thread and this returns
+     * {@code null}.
+     * 
+     * @return This server's packet executor, or {@code null} if none is used.
+     */
+    public PacketExecutor getPacketExecutor() {
+        return this.packetExecutor;
+    }
+    
+    /**
+     * Gets the executor on which games carry out their moves, each game on a
+     * strand of its own.
+     * 
+     * @return This server's game executor.
+     */
+    public PacketExecutor getGameExecutor() {
+        return this.gameExecutor;
+    }
+    
+    /**
+     * Gets the executor used to run expensive cryptographic operations, such
+     * as decrypting the keys sent by clients during their handshakes.
+     * 
+     * @return This server's cryptography executor.
+     */
+    public CryptoExecutor getCryptoExecutor() {
+        return this.cryptoExecutor;
+    }
+    
+    /**
+     * Gets the manager which keeps the signed ECDH key share offered to
+     * clients in place of RSA key transport.
+     * 
+     * @return This server's key share manager, or {@code null} if ECDH is
+     *         disabled or not supported by this JVM.
+     */
+    public KeyShareManager getKeyShareManager() {
+        return this.keyShares;
+    }
+    
+    /**
+     * Gets the manager which issues and redeems the session tickets used by
+     * clients to resume encrypted sessions.
+     * 
+     * @return This server's session ticket manager, or {@code null} if
+     *         session resumption is disabled.
+     */
+    public SessionTicketManager getSessionTicketManager() {
+        return this.sessionTickets;
+    }
+    
+    /**
+     * Gets the dispatcher which keeps the player lists of connected clients up
+     * to date.
+     * 
+     * @return This server's player list dispatcher.
+     */
+    public PlayerListDispatcher getPlayerListDispatcher() {
+        return this.playerLists;
+    }
+    
+    /**
+     * Resumes handling packets from a client whose packet handling was
+     * suspended with {@link TTTWClientConnection#setHandlingSuspended(boolean)}.
+     * Must be called on the client's packet strand.
+     * 
+     * @param client The client whose packet handling should be resumed.
+     */
+    public void resumeHandling(TTTWClientConnection client) {
+        client.setHandlingSuspended(false);
+        
+        // The client was left marked as handling while suspended, so handling
+        // can carry on right away without racing the dispatcher
+        new PacketHandleTask(client).run();
+    }
+    
     /**
      * Gets the name of this server as it should be sent to clients.
      * 
@@ -210,6 +429,17 @@ public class Server {
         return this.compressThreshold;
     }
     
+    /**
+     * Gets the policy used to decide how each type of packet sent by this
+     * server is compressed.
+     * 
+     * @return This server's compression policy, or {@code null} if adaptive
+     *         compression is disabled.
+     */
+    public CompressionPolicy getCompressionPolicy() {
+        return this.compressionPolicy;
+    }
+    
     /**
      * Checks whether self-registration is allowed on this server.
      * 
@@ -220,11 +450,12 @@ public class Server {
     }
     
     /**
-     * Gets a list of clients that are currently connected to this server.
+     * Gets the registry of clients that are currently connected to this
+     * server.
      * 
-     * @return A list of connected clients.
+     * @return The connected clients.
      */
-    public List<TTTWClientConnection> getConnectedPlayers() {
+    public PlayerRegistry getConnectedPlayers() {
         return this.connectedPlayers;
     }
     
@@ -236,15 +467,9 @@ public class Server {
      *         {@code null} if that user is not connected.
      */
     public TTTWClientConnection getPlayer(Account a) {
-        synchronized (this.connectedPlayers) {
-            for (TTTWClientConnection player : this.connectedPlayers) {
-                if (player.getAccount() == a) {
-                    return player;
-                }
-            }
-        }
+        TTTWClientConnection player = this.connectedPlayers.get(a.getName());
         
-        return null;
+        return (player != null && player.getAccount() == a) ? player : null;
     }
     
     /**
@@ -256,15 +481,30 @@ public class Server {
      *         or {@code null} if that user is not connected.
      */
     public TTTWClientConnection getPlayer(String name) {
-        synchronized (this.connectedPlayers) {
-            for (TTTWClientConnection player : this.connectedPlayers) {
-                if (player.getAccount() != null && player.getAccount().getName().equalsIgnoreCase(name)) {
-                    return player;
+        return this.connectedPlayers.get(name);
+    }
+    
+    /**
+     * Sends a packet to all players who are currently connected to this server
+     * and have been authenticated. The packet is only encoded and compressed
+     * once, however many players it is sent to; see {@link SharedPacket}. If an
+     * error occurs while sending the packet to a player, that player will be
+     * automatically disconnected.
+     * 
+     * @param p The packet to be sent to all authenticated clients.
+     */
+    public void broadcastPacket(Packet p) {
+        SharedPacket shared = new SharedPacket(p);
+        
+        for (TTTWClientConnection player : this.connectedPlayers) {
+            if (player.getAccount() != null) {
+                try {
+                    player.sendSharedPacket(shared);
+                } catch (IOException e) {
+                    player.disconnect("Error sending packet!");
                 }
             }
         }
-        
-        return null;
     }
     
     /**
@@ -274,13 +514,7 @@ public class Server {
      * @param message The message to be broadcast to all connected clients.
      */
     public void sendGlobalBroadcast(String message) {
-        synchronized (this.connectedPlayers) {
-            for (TTTWClientConnection player : this.connectedPlayers) {
-                if (player.getAccount() != null) {
-                    player.sendMessage(message);
-                }
-            }
-        }
+        this.broadcastPacket(new PacketGlobalChat(message));
         
         synchronized (System.out) {
             System.out.println(message);
@@ -288,65 +522,93 @@ public class Server {
     }
     
     /**
-     * Broadcasts the current list of connected players to all connected
-     * clients.
+     * Notes that the list of connected players has changed, so that every
+     * connected client's player list is brought up to date at the end of the
+     * current dispatch period. Changes made within the same period are sent
+     * together; see {@link PlayerListDispatcher}.
      */
     public void sendPlayerList() {
-        HashMap<TTTWClientConnection, Account> players = new HashMap<TTTWClientConnection, Account>();
+        this.playerLists.markChanged();
+    }
+    
+    private void start(int port) throws IOException {
+        this.cryptoExecutor = new CryptoExecutor("Handshake Crypto", this.cryptoThreads, this.cryptoQueueLimit);
         
-        synchronized (this.connectedPlayers) {
-            for (TTTWClientConnection player : this.connectedPlayers) {
-                synchronized (player) {
-                    if (!player.isDisconnecting() && player.isAlive() && player.getAccount() != null) {
-                        players.put(player, player.getAccount());
-                    }
-                }
+        if (this.keyShareLifetime > 0 && KeyShare.isAvailable()) {
+            try {
+                this.keyShares = new KeyShareManager(this.keyPair.getPrivate(), this.keyShareLifetime,
+                        this.cryptoExecutor);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("Failed to sign key share!", e);
             }
         }
         
-        for (Entry<TTTWClientConnection, Account> sendPlayer : players.entrySet()) {
-            List<PlayerInfo> playerList = new ArrayList<PlayerInfo>();
+        if (this.mode != ServerMode.VIRTUAL) {
+            this.packetExecutor = new PacketExecutor("Packet Handler", this.packetThreads);
+        }
+        
+        if (this.mode == ServerMode.SELECTOR) {
+            this.selectorThread = new SelectorThread(port);
+            this.selectorThread.start();
+        } else if (this.mode == ServerMode.VIRTUAL) {
+            if (Server.threadOfVirtual == null) {
+                System.out.println("## WARNING: Virtual threads are not supported by this JVM! Using platform threads instead! ##");
+            }
             
-            for (Entry<TTTWClientConnection, Account> listPlayer : players.entrySet()) {
-                if (sendPlayer.getKey() != listPlayer.getKey()) {
-                    playerList.add(listPlayer.getValue().toPlayerInfo());
+            this.writeExecutor = new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    Server.createLightweightThread("Packet Writer", task).start();
                 }
-            }
+            };
             
-            try {
-                sendPlayer.getKey().sendPacket(new PacketGlobalPlayerList(playerList));
-            } catch (IOException e) {
-                // Ignore it. We can't disconnect users while we're updating
-                // player lists...
-            }
-        }
-    }
-    
-    private void start(int port) throws IOException {
-        this.acceptSocket = new ServerSocket(port);
-        
-        this.clientAccepter = new ClientAcceptThread();
-        this.clientAccepter.start();
-        
-        for (int i = 0; i < Server.PACKET_HANDLE_THREADS; i++) {
-            PacketHandleThread t = new PacketHandleThread(i + 1);
-            packetThreads.add(t);
-            t.start();
+            this.acceptSocket = new ServerSocket(port);
+            
+            this.clientAccepter = new ClientAcceptThread();
+            this.clientAccepter.start();
+            
+            this.housekeepingThread = new HousekeepingThread();
+            this.housekeepingThread.start();
+        } else {
+            this.writeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread t = new Thread(task, "Packet Writer");
+                    t.setDaemon(true);
+                    
+                    return t;
+                }
+            });
+            
+            this.acceptSocket = new ServerSocket(port);
+            
+            this.clientAccepter = new ClientAcceptThread();
+            this.clientAccepter.start();
+            
+            this.dispatchThread = new DispatchThread();
+            this.dispatchThread.start();
         }
         
-        this.dispatchThread = new DispatchThread();
-        this.dispatchThread.start();
-        
         synchronized (System.out) {
-            System.out.println("Server is now accepting clients...");
+            System.out.println("Server is now accepting clients in " + this.mode.identifier + " mode...");
         }
     }
     
     /**
-     * Stops the server, causing all packet handler threads, the dispatch
-     * thread, and the client accepter thread to be stopped.
+     * Stops the server, causing all packet handler threads, game threads,
+     * handshake crypto threads, the dispatch thread, and the client accepter
+     * thread to be stopped.
      */
     public void stop() {
+        this.cryptoExecutor.shutdown();
+        this.gameExecutor.shutdown();
+        
+        if (this.mode == ServerMode.SELECTOR) {
+            this.selectorThread.interrupt();
+            this.packetExecutor.shutdown();
+            return;
+        }
+        
         this.clientAccepter.interrupt();
         
         try {
@@ -355,10 +617,88 @@ public class Server {
             // Ignore problems closing the server socket
         }
         
+        if (this.mode == ServerMode.VIRTUAL) {
+            this.housekeepingThread.interrupt();
+            return;
+        }
+        
         this.dispatchThread.interrupt();
+        this.packetExecutor.shutdown();
+    }
+    
+    private void runTimers() {
+        // Keep-alives and challenge cancellations are sent out in one go
+        TTTWConnection.beginBatch();
+        
+        try {
+            this.timers.advance(System.currentTimeMillis());
+        } finally {
+            TTTWConnection.endBatch();
+        }
+    }
+    
+    private boolean isTooSlow(TTTWClientConnection c) {
+        return c.isSlowConsumer() || (this.sendStallTimeout >= 0 && c.getSendStallTime() > this.sendStallTimeout);
+    }
+    
+    private void sweepConnections() {
+        for (TTTWClientConnection c : this.connectedPlayers) {
+            if (!c.isAlive()) {
+                this.connectedPlayers.remove(c);
+            } else if (this.isTooSlow(c)) {
+                c.disconnect("Connection too slow");
+                this.connectedPlayers.remove(c);
+            }
+        }
+    }
+    
+    private void addClient(TTTWClientConnection client) {
+        this.connectedPlayers.add(client);
+        this.timers.schedule(Server.KEEP_ALIVE_SEND_TIME, new KeepAliveTask(client));
+    }
+    
+    /**
+     * Represents the ways in which this server can be configured to wait for
+     * and dispatch packets from connected clients, selected by the
+     * {@code server_mode} property.
+     *
+     * @author Ben Thomas
+     */
+    private enum ServerMode {
+        /**
+         * Blocking sockets, polled by a dispatch thread and handled by a
+         * small pool of packet handling threads.
+         */
+        CLASSIC("classic"),
         
-        for (PacketHandleThread t : packetThreads) {
-            t.interrupt();
+        /**
+         * Non-blocking socket channels, multiplexed by a single selector
+         * thread which hands complete packets to the packet handling threads
+         * as soon as they arrive.
+         */
+        SELECTOR("selector"),
+        
+        /**
+         * Blocking sockets, each read and handled by its own thread which
+         * blocks until the next packet arrives. Virtual threads are used if
+         * the JVM supports them.
+         */
+        VIRTUAL("virtual");
+        
+        public final String identifier;
+        
+        private ServerMode(String identifier) {
+            this.identifier = identifier;
+        }
+        
+        public static ServerMode getByIdentifier(String identifier) {
+            for (ServerMode m : ServerMode.values()) {
+                if (m.identifier.equalsIgnoreCase(identifier)) {
+                    return m;
+                }
+            }
+            
+            return null;
         }
     }
     
@@ -373,15 +713,26 @@ public class Server {
                 try {
                     Socket s = Server.this.acceptSocket.accept();
                     
-                    synchronized (Server.this.connectedPlayers) {
-                        TTTWClientConnection client = new TTTWClientConnection(s, Server.this);
-                        client.setCompressionThreshold(Server.this.compressThreshold);
-                        
-                        Server.this.connectedPlayers.add(client);
-                        
-                        synchronized (System.out) {
-                            System.out.println(client.getAddress() + " has connected");
-                        }
+                    TTTWClientConnection client = new TTTWClientConnection(s, Server.this);
+                    client.setCompressionThreshold(Server.this.compressThreshold);
+                    client.setCompressionPolicy(Server.this.compressionPolicy);
+                    client.setSendQueueLimit(Server.this.sendQueueLimit);
+                    client.setMaxFrameSize(Server.this.maxFrameSize);
+                    client.setWriteExecutor(Server.this.writeExecutor);
+                    
+                    if (Server.this.packetExecutor != null) {
+                        client.setPacketStrand(Server.this.packetExecutor.createStrand());
+                    }
+                    
+                    Server.this.addClient(client);
+                    
+                    synchronized (System.out) {
+                        System.out.println(client.getAddress() + " has connected");
+                    }
+                    
+                    if (Server.this.mode == ServerMode.VIRTUAL) {
+                        Server.createLightweightThread("Connection " + client.getAddress(), new ConnectionReader(client))
+                                .start();
                     }
                 } catch (IOException e) {
                     if (Thread.interrupted()) {
@@ -409,95 +760,393 @@ public class Server {
                 while (true) {
                     Thread.sleep(Server.DISPATCH_PERIOD);
                     
-                    synchronized (Server.this.connectedPlayers) {
-                        Iterator<TTTWClientConnection> i = Server.this.connectedPlayers.iterator();
-                        
-                        while (i.hasNext()) {
-                            TTTWClientConnection c = i.next();
-                            
-                            try {
-                                if (!c.isAlive()) {
-                                    i.remove();
-                                } else if (!c.isHandling() && c.isPacketWaiting()) {
-                                    // Find an idle packet handler to handle the
-                                    // packet
-                                    for (PacketHandleThread t : Server.this.packetThreads) {
-                                        if (t.handling == null) {
-                                            c.setHandling(true);
-                                            t.handling = c;
-                                            
-                                            synchronized (t.wakeUp) {
-                                                t.wakeUp.notifyAll();
-                                            }
-                                            
-                                            break;
-                                        }
-                                    }
-                                } else if (c.getTimeSinceLastPacket() > Server.KEEP_ALIVE_DISCONNECT_TIME) {
-                                    c.disconnect("Connection timed out");
-                                    i.remove();
-                                } else if (c.getTimeSinceLastPacket() > Server.KEEP_ALIVE_SEND_TIME
-                                        && !c.getKeepAliveSentSinceLastPacket()) {
-                                    c.sendPacket(new PacketKeepAlive());
+                    for (TTTWClientConnection c : Server.this.connectedPlayers) {
+                        try {
+                            if (!c.isAlive()) {
+                                Server.this.connectedPlayers.remove(c);
+                            } else if (Server.this.isTooSlow(c)) {
+                                c.disconnect("Connection too slow");
+                                Server.this.connectedPlayers.remove(c);
+                            } else if (!c.isHandling() && c.isPacketWaiting()) {
+                                if (c.startHandling()) {
+                                    c.getPacketStrand().execute(new PacketHandleTask(c));
                                 }
-                            } catch (IOException e) {
-                                c.disconnect("Error while checking for new packets!");
-                                i.remove();
                             }
+                        } catch (IOException e) {
+                            c.disconnect("Error while checking for new packets!");
+                            Server.this.connectedPlayers.remove(c);
                         }
                     }
                     
-                    Server.this.gameManager.tick();
+                    Server.this.runTimers();
+                    Server.this.playerLists.dispatch(Server.this.connectedPlayers);
                 }
             } catch (InterruptedException e) {
                 // Server is shutting down. Terminate the thread.
             }
             
-            synchronized (Server.this.connectedPlayers) {
-                for (TTTWClientConnection client : Server.this.connectedPlayers) {
-                    client.disconnect("Server is shutting down!");
+            for (TTTWClientConnection client : Server.this.connectedPlayers) {
+                client.disconnect("Server is shutting down!");
+            }
+        }
+    }
+    
+    private class SelectorThread extends Thread {
+        private int port;
+        
+        private Selector selector;
+        private ServerSocketChannel acceptChannel;
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(Server.SELECTOR_READ_BUFFER);
+        
+        private Queue<SelectionKey> pendingWrites = new ConcurrentLinkedQueue<SelectionKey>();
+        private Queue<SelectionKey> pendingReads = new ConcurrentLinkedQueue<SelectionKey>();
+        
+        private SelectorThread(int port) {
+            super("Selector Thread");
+            
+            this.port = port;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                this.selector = Selector.open();
+                
+                this.acceptChannel = ServerSocketChannel.open();
+                this.acceptChannel.socket().bind(new InetSocketAddress(this.port));
+                this.acceptChannel.configureBlocking(false);
+                this.acceptChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                synchronized (System.out) {
+                    System.err.println("Failed to open server socket:");
+                    e.printStackTrace();
+                }
+                
+                return;
+            }
+            
+            long lastTick = System.currentTimeMillis();
+            long lastSweep = lastTick;
+            
+            while (!Thread.interrupted()) {
+                try {
+                    this.selector.select(Server.DISPATCH_PERIOD);
+                } catch (IOException e) {
+                    synchronized (System.out) {
+                        System.err.println("Error while waiting on selector:");
+                        e.printStackTrace();
+                    }
+                    
+                    break;
+                }
+                
+                SelectionKey pending;
+                
+                while ((pending = this.pendingWrites.poll()) != null) {
+                    if (pending.isValid()) {
+                        pending.interestOps(pending.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                
+                while ((pending = this.pendingReads.poll()) != null) {
+                    if (pending.isValid()) {
+                        pending.interestOps(pending.interestOps() | SelectionKey.OP_READ);
+                    }
+                }
+                
+                Iterator<SelectionKey> i = this.selector.selectedKeys().iterator();
+                
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        this.accept();
+                    } else {
+                        this.service(key);
+                    }
+                }
+                
+                long now = System.currentTimeMillis();
+                
+                if (now - lastTick >= Server.DISPATCH_PERIOD) {
+                    Server.this.runTimers();
+                    Server.this.playerLists.dispatch(Server.this.connectedPlayers);
+                    lastTick = now;
+                }
+                
+                if (now - lastSweep >= Server.SWEEP_PERIOD) {
+                    Server.this.sweepConnections();
+                    lastSweep = now;
+                }
+            }
+            
+            for (TTTWClientConnection client : Server.this.connectedPlayers) {
+                client.disconnect("Server is shutting down!");
+            }
+            
+            try {
+                this.acceptChannel.close();
+                this.selector.close();
+            } catch (IOException e) {
+                // Ignore problems closing the selector
+            }
+        }
+        
+        private void accept() {
+            try {
+                SocketChannel s;
+                
+                while ((s = this.acceptChannel.accept()) != null) {
+                    s.socket().setTcpNoDelay(true);
+                    
+                    TTTWClientConnection client = new TTTWClientConnection(s, Server.this);
+                    client.setCompressionThreshold(Server.this.compressThreshold);
+                    client.setCompressionPolicy(Server.this.compressionPolicy);
+                    client.setSendQueueLimit(Server.this.sendQueueLimit);
+                    client.setMaxFrameSize(Server.this.maxFrameSize);
+                    client.setReceiveQueueLimit(Server.this.receiveQueueLimit);
+                    client.setPacketStrand(Server.this.packetExecutor.createStrand());
+                    
+                    SelectionKey key = s.register(this.selector, SelectionKey.OP_READ, client);
+                    client.setWritePendingListener(new WriteInterest(key));
+                    client.setReadResumeListener(new ReadInterest(key));
+                    
+                    Server.this.addClient(client);
+                    
+                    synchronized (System.out) {
+                        System.out.println(client.getAddress() + " has connected");
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (System.out) {
+                    System.err.println("Failed to accept client:");
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        private void service(SelectionKey key) {
+            TTTWClientConnection c = (TTTWClientConnection) key.attachment();
+            
+            try {
+                if (key.isWritable() && c.flushSendQueue()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                
+                if (key.isReadable()) {
+                    c.readFrames(this.readBuffer);
+                    
+                    if (c.isEndOfStream()) {
+                        // Let the packet handlers finish off anything that was
+                        // sent before the connection was closed
+                        key.cancel();
+                    } else if (c.isReadPaused()) {
+                        // Nothing more is read until the packet handlers have
+                        // caught up, so a client can't fill up the heap
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    
+                    if (c.isPacketWaiting() && c.startHandling()) {
+                        c.getPacketStrand().execute(new PacketHandleTask(c));
+                    }
+                }
+            } catch (IOException e) {
+                key.cancel();
+                
+                if (c.isAlive()) {
+                    c.disconnect("Error while checking for new packets!");
+                }
+                
+                Server.this.connectedPlayers.remove(c);
+            }
+        }
+        
+        private class WriteInterest implements WritePendingListener {
+            private SelectionKey key;
+            
+            private WriteInterest(SelectionKey key) {
+                this.key = key;
+            }
+            
+            @Override
+            public void onWritePending(TTTWConnection connection) {
+                SelectorThread.this.pendingWrites.add(this.key);
+                SelectorThread.this.selector.wakeup();
+            }
+        }
+        
+        private class ReadInterest implements ReadResumeListener {
+            private SelectionKey key;
+            
+            private ReadInterest(SelectionKey key) {
+                this.key = key;
+            }
+            
+            @Override
+            public void onReadResumed(TTTWConnection connection) {
+                SelectorThread.this.pendingReads.add(this.key);
+                SelectorThread.this.selector.wakeup();
+            }
+        }
+    }
+    
+    private class PacketHandleTask implements Runnable {
+        private TTTWClientConnection client;
+        
+        private PacketHandleTask(TTTWClientConnection client) {
+            this.client = client;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (this.client.isAlive() && !this.client.isHandlingSuspended() && this.client.isPacketWaiting()) {
+                    this.client.handleNextPacket();
+                }
+            } catch (EOFException e) {
+                // Every packet sent before the client went away has been
+                // handled, unless the server closed the connection itself
+                if (this.client.isAlive()) {
+                    this.client.disconnect("Connection closed");
+                }
+            } catch (IOException e) {
+                synchronized (System.out) {
+                    System.err.println("Error receiving packet from client:");
+                    e.printStackTrace();
+                }
+                
+                this.client.disconnect("Error reading packet");
+            } finally {
+                if (!this.client.isHandlingSuspended()) {
+                    this.client.setHandling(false);
+                }
+            }
+            
+            if (this.client.isHandlingSuspended()) {
+                return;
+            }
+            
+            try {
+                // A packet may have arrived after the loop finished but before
+                // the handling flag was cleared
+                if (this.client.isAlive() && this.client.isPacketWaiting() && this.client.startHandling()) {
+                    this.client.getPacketStrand().execute(this);
                 }
+            } catch (IOException e) {
+                this.client.disconnect("Error reading packet");
             }
         }
     }
     
-    private class PacketHandleThread extends Thread {
-        private volatile TTTWClientConnection handling;
-        private Object wakeUp = new Object();
+    /**
+     * Checks whether a client has gone quiet, sending it a keep-alive or
+     * disconnecting it as needed. Rather than being rescheduled whenever a
+     * packet arrives, the task is only run when the client could first have
+     * been quiet for long enough, and reschedules itself from the time the
+     * last packet actually arrived.
+     *
+     * @author Ben Thomas
+     */
+    private class KeepAliveTask implements Runnable {
+        private final TTTWClientConnection client;
         
-        private PacketHandleThread(int n) {
-            super("Packet Handler #" + n);
+        private KeepAliveTask(TTTWClientConnection client) {
+            this.client = client;
         }
         
         @Override
         public void run() {
+            if (!this.client.isAlive()) {
+                return;
+            }
+            
+            long idle = this.client.getTimeSinceLastPacket();
+            
+            try {
+                if (idle > Server.KEEP_ALIVE_DISCONNECT_TIME) {
+                    this.client.disconnect("Connection timed out");
+                    Server.this.connectedPlayers.remove(this.client);
+                    return;
+                } else if (idle > Server.KEEP_ALIVE_SEND_TIME && !this.client.getKeepAliveSentSinceLastPacket()) {
+                    this.client.sendPacket(new PacketKeepAlive());
+                }
+            } catch (IOException e) {
+                this.client.disconnect("Error while sending keep-alive!");
+                Server.this.connectedPlayers.remove(this.client);
+                return;
+            }
+            
+            long wait = (idle > Server.KEEP_ALIVE_SEND_TIME) ? Server.KEEP_ALIVE_DISCONNECT_TIME - idle
+                    : Server.KEEP_ALIVE_SEND_TIME - idle;
+            
+            Server.this.timers.schedule(wait + 1, this);
+        }
+    }
+    
+    private class HousekeepingThread extends Thread {
+        private HousekeepingThread() {
+            super("Housekeeping Thread");
+        }
+        
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            
             try {
                 while (true) {
-                    synchronized (this.wakeUp) {
-                        this.wakeUp.wait();
-                    }
+                    Thread.sleep(Server.DISPATCH_PERIOD);
                     
-                    if (this.handling != null) {
-                        synchronized (this.handling) {
-                            try {
-                                this.handling.handleNextPacket();
-                            } catch (IOException e) {
-                                synchronized (System.out) {
-                                    System.err.println("Error receiving packet from client:");
-                                    e.printStackTrace();
-                                }
-                                
-                                this.handling.disconnect("Error reading packet");
-                            }
-                        }
-                        
-                        this.handling.setHandling(false);
-                        this.handling = null;
+                    Server.this.runTimers();
+                    Server.this.playerLists.dispatch(Server.this.connectedPlayers);
+                    
+                    if (System.currentTimeMillis() - lastSweep >= Server.SWEEP_PERIOD) {
+                        Server.this.sweepConnections();
+                        lastSweep = System.currentTimeMillis();
                     }
                 }
             } catch (InterruptedException e) {
                 // Server is shutting down. Terminate the thread.
             }
+            
+            for (TTTWClientConnection client : Server.this.connectedPlayers) {
+                client.disconnect("Server is shutting down!");
+            }
+        }
+    }
+    
+    private class ConnectionReader implements Runnable {
+        private TTTWClientConnection client;
+        
+        private ConnectionReader(TTTWClientConnection client) {
+            this.client = client;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (this.client.isAlive()) {
+                    this.client.handleNextPacket();
+                }
+            } catch (EOFException e) {
+                // The server may already have closed the connection itself
+                if (this.client.isAlive()) {
+                    this.client.disconnect("Connection closed");
+                }
+            } catch (IOException e) {
+                if (this.client.isAlive()) {
+                    synchronized (System.out) {
+                        System.err.println("Error receiving packet from client:");
+                        e.printStackTrace();
+                    }
+                    
+                    this.client.disconnect("Error reading packet");
+                }
+            }
+            
+            Server.this.connectedPlayers.remove(this.client);
         }
     }
 }
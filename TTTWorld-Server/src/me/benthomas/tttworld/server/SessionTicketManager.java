@@ -0,0 +1,320 @@
+package me.benthomas.tttworld.server;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import me.benthomas.tttworld.net.PacketSessionTicket;
+
+/**
+ * Issues and redeems the session tickets which allow clients to resume an
+ * encrypted session without another RSA key exchange; see
+ * {@link PacketSessionTicket}.
+ * <p>
+ * A ticket holds the resumption secret of the session during which it was
+ * issued and the time at which it was issued, sealed with AES-GCM under a
+ * ticket key known only to this server. Ticket keys are generated randomly,
+ * are never written to disk, and are replaced periodically. Older keys are
+ * kept only until every ticket sealed with them has expired, so the secrets
+ * in old tickets cannot be recovered once their keys are gone.
+ *
+ * @author Ben Thomas
+ */
+public class SessionTicketManager {
+    private static final int KEY_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    
+    private static final int HEADER_LENGTH = 4 + SessionTicketManager.NONCE_LENGTH;
+    private static final int CONTENT_LENGTH = 8 + SessionTicketManager.KEY_LENGTH;
+    
+    private final long lifetime;
+    private final long rotationInterval;
+    
+    private final SecureRandom random = new SecureRandom();
+    private final ArrayDeque<TicketKey> keys = new ArrayDeque<TicketKey>();
+    private int nextKeyId;
+    
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakeNanos = new AtomicLong();
+    private final AtomicLong resumeNanos = new AtomicLong();
+    
+    /**
+     * Creates a new ticket manager.
+     * 
+     * @param lifetime The time (in milliseconds) for which each ticket is
+     *            accepted after being issued.
+     * @param rotationInterval The time (in milliseconds) after which a new
+     *            ticket key is generated.
+     */
+    public SessionTicketManager(long lifetime, long rotationInterval) {
+        if (lifetime <= 0 || rotationInterval <= 0) {
+            throw new IllegalArgumentException("Ticket lifetime and key rotation interval must be positive!");
+        }
+        
+        this.lifetime = lifetime;
+        this.rotationInterval = rotationInterval;
+    }
+    
+    /**
+     * Gets the time for which each ticket is accepted after being issued.
+     * 
+     * @return The lifetime of a ticket in milliseconds.
+     */
+    public long getLifetime() {
+        return this.lifetime;
+    }
+    
+    /**
+     * Generates a random nonce for a resumed session.
+     * 
+     * @return A new nonce of {@link PacketSessionTicket#NONCE_LENGTH} bytes.
+     */
+    public byte[] generateNonce() {
+        byte[] nonce = new byte[PacketSessionTicket.NONCE_LENGTH];
+        this.random.nextBytes(nonce);
+        
+        return nonce;
+    }
+    
+    /**
+     * Issues a new ticket holding the given resumption secret.
+     * 
+     * @param resumptionSecret The resumption secret of the current session.
+     * @return The sealed ticket which should be sent to the client.
+     */
+    public byte[] issue(byte[] resumptionSecret) {
+        TicketKey key = this.getCurrentKey();
+        byte[] ticket = new byte[SessionTicketManager.HEADER_LENGTH + SessionTicketManager.CONTENT_LENGTH
+                + SessionTicketManager.TAG_LENGTH];
+        byte[] nonce = new byte[SessionTicketManager.NONCE_LENGTH];
+        
+        this.random.nextBytes(nonce);
+        
+        ByteBuffer b = ByteBuffer.wrap(ticket);
+        b.putInt(key.id);
+        b.put(nonce);
+        b.putLong(System.currentTimeMillis());
+        b.put(resumptionSecret, 0, SessionTicketManager.KEY_LENGTH);
+        
+        try {
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            
+            c.init(Cipher.ENCRYPT_MODE, key.key, new GCMParameterSpec(SessionTicketManager.TAG_LENGTH * 8, nonce));
+            c.updateAAD(ticket, 0, 4);
+            c.doFinal(ticket, SessionTicketManager.HEADER_LENGTH, SessionTicketManager.CONTENT_LENGTH, ticket,
+                    SessionTicketManager.HEADER_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        
+        this.issued.incrementAndGet();
+        return ticket;
+    }
+    
+    /**
+     * Checks a ticket presented by a client and recovers the resumption secret
+     * it holds.
+     * 
+     * @param ticket The ticket presented by the client.
+     * @return The resumption secret held by the ticket, or {@code null} if the
+     *         ticket is malformed, has expired, or was sealed with a key which
+     *         is no longer kept.
+     */
+    public byte[] redeem(byte[] ticket) {
+        long start = System.nanoTime();
+        byte[] secret = this.open(ticket);
+        
+        if (secret == null) {
+            this.rejected.incrementAndGet();
+        } else {
+            this.resumed.incrementAndGet();
+            this.resumeNanos.addAndGet(System.nanoTime() - start);
+        }
+        
+        return secret;
+    }
+    
+    /**
+     * Records the time spent on the private key operation of a full handshake,
+     * so that the time saved by resumed sessions can be estimated.
+     * 
+     * @param nanos The time (in nanoseconds) spent decrypting the client's key.
+     */
+    public void recordFullHandshake(long nanos) {
+        this.fullHandshakes.incrementAndGet();
+        this.fullHandshakeNanos.addAndGet(nanos);
+    }
+    
+    /**
+     * Gets the number of tickets which have been issued.
+     * 
+     * @return The number of issued tickets.
+     */
+    public long getIssuedCount() {
+        return this.issued.get();
+    }
+    
+    /**
+     * Gets the number of sessions which have been resumed using a ticket.
+     * 
+     * @return The number of resumed sessions.
+     */
+    public long getResumedCount() {
+        return this.resumed.get();
+    }
+    
+    /**
+     * Gets the number of tickets which were presented but not accepted.
+     * 
+     * @return The number of rejected tickets.
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+    
+    /**
+     * Gets the number of times a new ticket key has been generated.
+     * 
+     * @return The number of ticket key rotations.
+     */
+    public long getRotationCount() {
+        return this.rotations.get();
+    }
+    
+    /**
+     * Estimates the total processing time saved by resuming sessions rather
+     * than performing full handshakes, based on the average time taken by the
+     * private key operations of full handshakes.
+     * 
+     * @return The estimated time saved in nanoseconds, or 0 if no full
+     *         handshake has been timed yet.
+     */
+    public long getSavedNanos() {
+        long full = this.fullHandshakes.get();
+        
+        if (full == 0) {
+            return 0;
+        }
+        
+        return Math.max(0, this.resumed.get() * (this.fullHandshakeNanos.get() / full) - this.resumeNanos.get());
+    }
+    
+    @Override
+    public String toString() {
+        long full = this.fullHandshakes.get();
+        long resumed = this.resumed.get();
+        
+        return this.issued.get() + " issued, " + resumed + " resumed, " + this.rejected.get() + " rejected, "
+                + this.rotations.get() + " key rotations; full handshake avg "
+                + ((full == 0) ? 0 : this.fullHandshakeNanos.get() / full / 1000) + "us, resume avg "
+                + ((resumed == 0) ? 0 : this.resumeNanos.get() / resumed / 1000) + "us, "
+                + (this.getSavedNanos() / 1000000) + "ms saved";
+    }
+    
+    private byte[] open(byte[] ticket) {
+        if (ticket.length != SessionTicketManager.HEADER_LENGTH + SessionTicketManager.CONTENT_LENGTH
+                + SessionTicketManager.TAG_LENGTH) {
+            return null;
+        }
+        
+        ByteBuffer b = ByteBuffer.wrap(ticket);
+        TicketKey key = this.getKey(b.getInt());
+        
+        if (key == null) {
+            return null;
+        }
+        
+        byte[] content;
+        
+        try {
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            
+            c.init(Cipher.DECRYPT_MODE, key.key, new GCMParameterSpec(SessionTicketManager.TAG_LENGTH * 8, ticket, 4,
+                    SessionTicketManager.NONCE_LENGTH));
+            c.updateAAD(ticket, 0, 4);
+            content = c.doFinal(ticket, SessionTicketManager.HEADER_LENGTH, ticket.length
+                    - SessionTicketManager.HEADER_LENGTH);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        
+        long age = System.currentTimeMillis() - ByteBuffer.wrap(content).getLong();
+        
+        if (age < 0 || age > this.lifetime) {
+            return null;
+        }
+        
+        return Arrays.copyOfRange(content, 8, content.length);
+    }
+    
+    private synchronized TicketKey getCurrentKey() {
+        long now = System.currentTimeMillis();
+        TicketKey current = this.keys.peekLast();
+        
+        if (current == null || now - current.created >= this.rotationInterval) {
+            byte[] k = new byte[SessionTicketManager.KEY_LENGTH];
+            this.random.nextBytes(k);
+            
+            this.keys.addLast(current = new TicketKey(this.nextKeyId++, new SecretKeySpec(k, "AES"), now));
+            
+            if (this.keys.size() > 1) {
+                this.rotations.incrementAndGet();
+            }
+        }
+        
+        this.removeExpiredKeys(now);
+        return current;
+    }
+    
+    private synchronized TicketKey getKey(int id) {
+        this.removeExpiredKeys(System.currentTimeMillis());
+        
+        for (TicketKey k : this.keys) {
+            if (k.id == id) {
+                return k;
+            }
+        }
+        
+        return null;
+    }
+    
+    private void removeExpiredKeys(long now) {
+        Iterator<TicketKey> i = this.keys.iterator();
+        
+        while (i.hasNext()) {
+            TicketKey k = i.next();
+            
+            // A key stops sealing new tickets once it is replaced, and its
+            // last tickets expire one lifetime later
+            if (k != this.keys.peekLast() && now - k.created > this.rotationInterval + this.lifetime) {
+                i.remove();
+            }
+        }
+    }
+    
+    private static class TicketKey {
+        private final int id;
+        private final SecretKeySpec key;
+        private final long created;
+        
+        private TicketKey(int id, SecretKeySpec key, long created) {
+            this.id = id;
+            this.key = key;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package me.benthomas.tttworld.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hierarchical timing wheel, which runs tasks once their delay has passed
+ * without checking every scheduled task on every tick. Time is divided into
+ * ticks of a fixed length, and each task is kept in the slot of the tick in
+ * which it is due. Tasks which are not due for a while are kept in coarser
+ * wheels, whose slots each cover a whole turn of the wheel below, and are only
+ * moved down a wheel when their slot is reached. Advancing by one tick
+ * therefore only touches the tasks which are due, along with those being moved
+ * down, however many tasks are waiting.
+ * <p>
+ * Tasks may be scheduled and cancelled from any thread without locking, but
+ * the wheel must only be advanced by one thread, on which every task is run.
+ * Tasks are run no earlier than their delay, and no later than one tick after
+ * it, so long as the wheel is advanced at least once per tick.
+ *
+ * @author Ben Thomas
+ */
+public class TimerWheel {
+    private static final int FIRST_WHEEL_BITS = 8;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEELS = 4;
+    
+    private static final int PENDING = 0;
+    private static final int SCHEDULED = 1;
+    private static final int CANCELLED = 2;
+    private static final int EXPIRED = 3;
+    
+    private final long tickLength;
+    private final long startTime;
+    
+    private final Timeout[][] wheels = new Timeout[TimerWheel.WHEELS][];
+    private final int[] shifts = new int[TimerWheel.WHEELS];
+    private final long maxDelayTicks;
+    private long currentTick = 0;
+    
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong cascadedCount = new AtomicLong();
+    private volatile int size = 0;
+    
+    /**
+     * Creates a new timing wheel, whose first tick begins now.
+     * 
+     * @param tickLength The length of each tick (in milliseconds), which is
+     *            the precision to which tasks are run.
+     */
+    public TimerWheel(long tickLength) {
+        if (tickLength <= 0) {
+            throw new IllegalArgumentException("Tick length must be positive!");
+        }
+        
+        this.tickLength = tickLength;
+        this.startTime = System.currentTimeMillis();
+        
+        int shift = 0;
+        
+        for (int i = 0; i < TimerWheel.WHEELS; i++) {
+            this.shifts[i] = shift;
+            this.wheels[i] = new Timeout[1 << ((i == 0) ? TimerWheel.FIRST_WHEEL_BITS : TimerWheel.WHEEL_BITS)];
+            
+            shift += (i == 0) ? TimerWheel.FIRST_WHEEL_BITS : TimerWheel.WHEEL_BITS;
+        }
+        
+        this.maxDelayTicks = (1L << shift) - 1;
+    }
+    
+    /**
+     * Gets the length of each tick of this wheel.
+     * 
+     * @return The length of a tick (in milliseconds).
+     */
+    public long getTickLength() {
+        return this.tickLength;
+    }
+    
+    /**
+     * Schedules a task to be run once a delay has passed. The task will be
+     * run on the thread which advances this wheel.
+     * 
+     * @param delay The time (in milliseconds) after which the task should be
+     *            run.
+     * @param task The task which should be run.
+     * @return The scheduled timeout, which may be used to cancel the task.
+     */
+    public Timeout schedule(long delay, Runnable task) {
+        long due = System.currentTimeMillis() + Math.max(delay, 0) - this.startTime;
+        Timeout t = new Timeout((due + this.tickLength - 1) / this.tickLength, task);
+        
+        this.scheduledCount.incrementAndGet();
+        this.added.add(t);
+        
+        return t;
+    }
+    
+    /**
+     * Advances this wheel up to the given time, running every task which has
+     * become due. This should be called at least once per tick, and only ever
+     * from one thread at a time.
+     * 
+     * @param now The current time, as returned by
+     *            {@link System#currentTimeMillis()}.
+     */
+    public void advance(long now) {
+        long target = (now - this.startTime) / this.tickLength;
+        List<Timeout> due = new ArrayList<Timeout>();
+        
+        this.processCancelled();
+        
+        Timeout t;
+        
+        while ((t = this.added.poll()) != null) {
+            if (t.state.compareAndSet(TimerWheel.PENDING, TimerWheel.SCHEDULED)) {
+                this.insert(t, due);
+            }
+        }
+        
+        while (this.currentTick < target) {
+            this.currentTick++;
+            this.cascade(due);
+            
+            int slot = (int) (this.currentTick & (this.wheels[0].length - 1));
+            
+            while ((t = this.wheels[0][slot]) != null) {
+                this.unlink(t);
+                this.insert(t, due);
+            }
+        }
+        
+        for (Timeout expired : due) {
+            if (expired.state.compareAndSet(TimerWheel.SCHEDULED, TimerWheel.EXPIRED)) {
+                this.expiredCount.incrementAndGet();
+                
+                try {
+                    expired.task.run();
+                } catch (RuntimeException e) {
+                    synchronized (System.out) {
+                        System.err.println("Error while running timed task:");
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+    
+    private void cascade(List<Timeout> due) {
+        int highest = 0;
+        
+        // Slots must be emptied from the coarsest wheel down, as each one
+        // may move tasks into the slot of the wheel below which is next
+        for (int i = 1; i < TimerWheel.WHEELS; i++) {
+            if ((this.currentTick & ((1L << this.shifts[i]) - 1)) != 0) {
+                break;
+            }
+            
+            highest = i;
+        }
+        
+        for (int i = highest; i > 0; i--) {
+            Timeout[] wheel = this.wheels[i];
+            int slot = (int) ((this.currentTick >> this.shifts[i]) & (wheel.length - 1));
+            Timeout t;
+            
+            while ((t = wheel[slot]) != null) {
+                this.unlink(t);
+                this.insert(t, due);
+                this.cascadedCount.incrementAndGet();
+            }
+        }
+    }
+    
+    private void insert(Timeout t, List<Timeout> due) {
+        long delay = t.deadline - this.currentTick;
+        
+        if (delay <= 0) {
+            due.add(t);
+            return;
+        }
+        
+        // Tasks due beyond the last wheel are moved down early, and put back
+        long deadline = (delay > this.maxDelayTicks) ? this.currentTick + this.maxDelayTicks : t.deadline;
+        int level = 0;
+        
+        while (level < TimerWheel.WHEELS - 1 && (deadline - this.currentTick) >= (1L << this.shifts[level + 1])) {
+            level++;
+        }
+        
+        Timeout[] wheel = this.wheels[level];
+        int slot = (int) ((deadline >> this.shifts[level]) & (wheel.length - 1));
+        
+        t.wheel = wheel;
+        t.slot = slot;
+        t.prev = null;
+        t.next = wheel[slot];
+        
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        
+        wheel[slot] = t;
+        this.size++;
+    }
+    
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            t.wheel[t.slot] = t.next;
+        }
+        
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        
+        t.wheel = null;
+        t.prev = null;
+        t.next = null;
+        this.size--;
+    }
+    
+    private void processCancelled() {
+        Timeout t;
+        
+        while ((t = this.cancelled.poll()) != null) {
+            if (t.wheel != null) {
+                this.unlink(t);
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return this.size + " waiting, " + this.scheduledCount.get() + " scheduled, " + this.expiredCount.get()
+                + " expired, " + this.cancelledCount.get() + " cancelled, " + this.cascadedCount.get() + " cascaded";
+    }
+    
+    /**
+     * A task which has been scheduled on a {@link TimerWheel}.
+     *
+     * @author Ben Thomas
+     */
+    public class Timeout {
+        private final long deadline;
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(TimerWheel.PENDING);
+        
+        private Timeout[] wheel;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+        
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+        
+        /**
+         * Cancels this task, if it has not already been run.
+         * 
+         * @return {@code true} if the task was cancelled; {@code false} if it
+         *         has already been run or cancelled.
+         */
+        public boolean cancel() {
+            if (this.state.compareAndSet(TimerWheel.PENDING, TimerWheel.CANCELLED)) {
+                // Never put in the wheel, so there is nothing to remove
+            } else if (this.state.compareAndSet(TimerWheel.SCHEDULED, TimerWheel.CANCELLED)) {
+                TimerWheel.this.cancelled.add(this);
+            } else {
+                return false;
+            }
+            
+            TimerWheel.this.cancelledCount.incrementAndGet();
+            return true;
+        }
+        
+        /**
+         * Checks whether this task has been cancelled.
+         * 
+         * @return {@code true} if this task was cancelled before it was run.
+         */
+        public boolean isCancelled() {
+            return this.state.get() == TimerWheel.CANCELLED;
+        }
+    }
+}
@@ -10,10 +10,10 @@ public class AIBehaviourBlock extends AIBehaviourComplete {
 
     @Override
     public boolean tryMakeMove(AIPlayer p) {
-        Point selectedPoint = this.findPoint(p.getGame().getBoard(), p.getGame().getInactivePlayer().getMark());
+        Point selectedPoint = this.findPoint(p.getGame(), p.getGame().getInactivePlayer().getMark());
 
         if (selectedPoint != null) {
-            p.getGame().getBoard().setMark(selectedPoint.x, selectedPoint.y, p.getMark());
+            p.getGame().setMark(selectedPoint.x, selectedPoint.y, p.getMark());
             return true;
         } else {
             return false;
@@ -18,7 +18,7 @@ public class AIBehaviourRandom implements AIBehaviour {
 
         for (int y = 0; y < 3; y++) {
             for (int x = 0; x < 3; x++) {
-                if (!p.getGame().getBoard().getMark(x, y).isPlayer) {
+                if (!p.getGame().getMark(x, y).isPlayer) {
                     openSpots.add(new Point(x, y));
                 }
             }
@@ -26,7 +26,7 @@ public class AIBehaviourRandom implements AIBehaviour {
 
         if (openSpots.size() > 0) {
             Point selectedPoint = openSpots.get(this.random.nextInt(openSpots.size()));
-            p.getGame().getBoard().setMark(selectedPoint.x, selectedPoint.y, p.getMark());
+            p.getGame().setMark(selectedPoint.x, selectedPoint.y, p.getMark());
 
             return true;
         } else {
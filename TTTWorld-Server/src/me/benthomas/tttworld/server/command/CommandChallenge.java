@@ -2,6 +2,7 @@ package me.benthomas.tttworld.server.command;
 
 import java.io.IOException;
 
+import me.benthomas.tttworld.server.ChallengeStore.Result;
 import me.benthomas.tttworld.server.net.TTTWClientConnection;
 
 /**
@@ -29,15 +30,22 @@ public class CommandChallenge implements Command {
         TTTWClientConnection toChallenge = client.getServer().getPlayer(args[1]);
         
         if (toChallenge != null) {
-            if (!client.getServer().getGameManager().doesChallengeExist(client, toChallenge)) {
-                if (toChallenge != client) {
-                    client.getServer().getGameManager().sendChallenge(client, toChallenge);
-                    client.sendMessage("Your challenge has been sent...");
-                } else {
-                    client.sendMessage("You can't duel yourself, crazy person!");
-                }
-            } else {
+            if (toChallenge == client) {
+                client.sendMessage("You can't duel yourself, crazy person!");
+                return;
+            }
+            
+            Result result = client.getServer().getGameManager().sendChallenge(client, toChallenge);
+            
+            if (result == Result.ADDED) {
+                client.sendMessage("Your challenge has been sent...");
+            } else if (result == Result.DUPLICATE) {
                 client.sendMessage("You already challenged this player. Give them some time to accept!");
+            } else if (result == Result.SENDER_LIMIT) {
+                client.sendMessage("You have too many challenges waiting. Give them some time to accept!");
+            } else {
+                client.sendMessage(toChallenge.getAccount().getName()
+                        + " has too many challenges waiting. Try again later!");
             }
         } else {
             client.sendMessage("Could not find player " + args[1]);
@@ -27,6 +27,7 @@ public class CommandExecutor {
         CommandExecutor.registerCommand(new CommandStop());
         CommandExecutor.registerCommand(new CommandChallenge());
         CommandExecutor.registerCommand(new CommandPlayAI());
+        CommandExecutor.registerCommand(new CommandStats());
     }
     
     /**
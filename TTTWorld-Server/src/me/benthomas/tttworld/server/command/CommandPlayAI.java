@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.UUID;
 
 import me.benthomas.tttworld.Mark;
+import me.benthomas.tttworld.server.Game;
 import me.benthomas.tttworld.server.NetPlayer;
 import me.benthomas.tttworld.server.ai.AIPlayerBlocking;
 import me.benthomas.tttworld.server.ai.AIPlayerRandom;
@@ -51,19 +52,25 @@ public class CommandPlayAI implements Command {
             return;
         }
         
+        Game g;
+        
         if (args[1].equalsIgnoreCase("random")) {
-            client.getServer().getGameManager()
+            g = client.getServer().getGameManager()
                     .createGame(UUID.randomUUID(), new NetPlayer(client, playerMark), new AIPlayerRandom("AI", aiMark));
         } else if (args[1].equalsIgnoreCase("blocking")) {
-            client.getServer().getGameManager()
+            g = client.getServer().getGameManager()
                     .createGame(UUID.randomUUID(), new NetPlayer(client, playerMark), new AIPlayerBlocking("AI", aiMark));
         } else if (args[1].equalsIgnoreCase("smart")) {
-            client.getServer().getGameManager()
+            g = client.getServer().getGameManager()
                     .createGame(UUID.randomUUID(), new NetPlayer(client, playerMark), new AIPlayerSmart("AI", aiMark));
         } else {
             this.sendSyntax(client);
             return;
         }
+        
+        if (g == null) {
+            client.sendMessage("The server is too busy to start your game. Try again later!");
+        }
     }
     
 }
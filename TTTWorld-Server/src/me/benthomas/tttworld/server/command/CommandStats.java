@@ -0,0 +1,111 @@
+package me.benthomas.tttworld.server.command;
+
+import java.io.IOException;
+import java.util.List;
+
+import me.benthomas.tttworld.net.BufferPool;
+import me.benthomas.tttworld.net.CompressionPolicy;
+import me.benthomas.tttworld.net.CompressionPolicy.PacketTypeStats;
+import me.benthomas.tttworld.server.CryptoExecutor;
+import me.benthomas.tttworld.server.GameManager.ShardStats;
+import me.benthomas.tttworld.server.KeyShareManager;
+import me.benthomas.tttworld.server.PacketExecutor;
+import me.benthomas.tttworld.server.PacketExecutor.WorkerStats;
+import me.benthomas.tttworld.server.SessionTicketManager;
+import me.benthomas.tttworld.server.net.TTTWClientConnection;
+
+/**
+ * A command which reports internal performance statistics of the server. Has a
+ * syntax of <code>:stats</code>.
+ * <p>
+ * Can only be executed by a user who is an administrator on this server.
+ *
+ * @author Ben Thomas
+ */
+public class CommandStats implements Command {
+    
+    @Override
+    public String getCommandName() {
+        return ":stats";
+    }
+    
+    @Override
+    public void execute(TTTWClientConnection client, String[] args) throws CommandException, IOException {
+        if (!client.getAccount().isAdmin()) {
+            client.getServer().sendGlobalBroadcast("<" + client.getAccount().getName() + "> I just did something silly!");
+            return;
+        } else if (args.length != 1) {
+            client.sendMessage("Correct syntax is :stats");
+            return;
+        }
+        
+        PacketExecutor executor = client.getServer().getPacketExecutor();
+        
+        if (executor != null) {
+            client.sendMessage("Packet handlers (" + executor.getWorkerCount() + " workers):");
+            
+            for (WorkerStats s : executor.getWorkerStats()) {
+                client.sendMessage("  " + s);
+            }
+        } else {
+            client.sendMessage("Packets are handled on a thread per client");
+        }
+        
+        PacketExecutor games = client.getServer().getGameExecutor();
+        
+        client.sendMessage("Game workers (" + games.getWorkerCount() + " workers):");
+        
+        for (WorkerStats s : games.getWorkerStats()) {
+            client.sendMessage("  " + s);
+        }
+        
+        CryptoExecutor crypto = client.getServer().getCryptoExecutor();
+        
+        client.sendMessage("Handshake crypto (" + crypto.getThreadCount() + " workers): queue "
+                + crypto.getQueueLength() + ", " + String.format("%.1f", crypto.getRate()) + " handshakes/s, "
+                + crypto.getCompletedCount() + " completed, " + crypto.getRejectedCount() + " rejected");
+        
+        KeyShareManager keyShares = client.getServer().getKeyShareManager();
+        
+        if (keyShares != null) {
+            client.sendMessage("Key shares: " + keyShares);
+        } else {
+            client.sendMessage("ECDH key agreement is disabled");
+        }
+        
+        SessionTicketManager tickets = client.getServer().getSessionTicketManager();
+        
+        if (tickets != null) {
+            client.sendMessage("Session tickets: " + tickets);
+        } else {
+            client.sendMessage("Session resumption is disabled");
+        }
+        
+        CompressionPolicy policy = client.getServer().getCompressionPolicy();
+        
+        if (policy != null) {
+            client.sendMessage("Compression (threshold " + client.getServer().getCompressionThreshold() + " bytes):");
+            
+            for (PacketTypeStats s : policy.getStats()) {
+                client.sendMessage("  " + s);
+            }
+        } else {
+            client.sendMessage("Adaptive compression is disabled");
+        }
+        
+        client.sendMessage("Buffer pool: " + BufferPool.getShared());
+        client.sendMessage("Connections: " + client.getServer().getConnectedPlayers());
+        client.sendMessage("Player list: " + client.getServer().getPlayerListDispatcher());
+        client.sendMessage("Timers: " + client.getServer().getTimers());
+        client.sendMessage("Challenges: " + client.getServer().getGameManager().getChallenges());
+        
+        List<ShardStats> shards = client.getServer().getGameManager().getShardStats();
+        
+        client.sendMessage("Games (" + shards.size() + " shards):");
+        
+        for (ShardStats s : shards) {
+            client.sendMessage("  " + s);
+        }
+    }
+    
+}
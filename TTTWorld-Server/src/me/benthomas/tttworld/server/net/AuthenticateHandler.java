@@ -6,6 +6,8 @@ import me.benthomas.tttworld.net.PacketAuthResult;
 import me.benthomas.tttworld.net.PacketAuthenticate;
 import me.benthomas.tttworld.net.PacketGlobalChat;
 import me.benthomas.tttworld.net.PacketPasswordChange;
+import me.benthomas.tttworld.net.PacketPlayerListRequest;
+import me.benthomas.tttworld.net.PacketPlayerPageRequest;
 import me.benthomas.tttworld.net.PacketRegister;
 import me.benthomas.tttworld.net.TTTWConnection.DisconnectListener;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
@@ -40,6 +42,8 @@ public class AuthenticateHandler implements PacketHandler<PacketAuthenticate> {
         
         client.setDefaultHandler(PacketPasswordChange.class, new PasswordChangeHandler(client));
         client.setDefaultHandler(PacketGlobalChat.class, new GlobalChatHandler(client));
+        client.setDefaultHandler(PacketPlayerListRequest.class, new PlayerListRequestHandler(client));
+        client.setDefaultHandler(PacketPlayerPageRequest.class, new PlayerPageRequestHandler(client));
         
         client.sendMessage("Welcome to Tic-Tac-Toe World!");
         client.getServer().sendGlobalBroadcast(client.getAccount().getName() + " has connected!");
@@ -66,15 +70,14 @@ public class AuthenticateHandler implements PacketHandler<PacketAuthenticate> {
         } else if (a.isBanned()) {
             this.client.sendPacket(new PacketAuthResult(PacketAuthResult.Result.BANNED, null, false));
         } else {
-            synchronized (this.client.getServer().getConnectedPlayers()) {
-                for (TTTWClientConnection otherClient : this.client.getServer().getConnectedPlayers()) {
-                    if (otherClient.getAccount() == a) {
-                        otherClient.disconnect("Logged in elsewhere!");
-                    }
-                }
+            this.client.setAccount(a);
+            
+            TTTWClientConnection otherClient = this.client.getServer().getConnectedPlayers().register(this.client);
+            
+            if (otherClient != null) {
+                otherClient.disconnect("Logged in elsewhere!");
             }
             
-            this.client.setAccount(a);
             this.client.getServer().getAccountManager().setAccountSticky(a.getName(), true);
             this.client.sendPacket(new PacketAuthResult(PacketAuthResult.Result.OK, a.getName(), a.isAdmin()));
             
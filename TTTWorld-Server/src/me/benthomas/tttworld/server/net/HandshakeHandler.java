@@ -2,19 +2,28 @@ package me.benthomas.tttworld.server.net;
 
 import java.io.IOException;
 
+import me.benthomas.tttworld.CipherSession;
 import me.benthomas.tttworld.net.PacketAuthenticate;
 import me.benthomas.tttworld.net.PacketClientHandshake;
 import me.benthomas.tttworld.net.PacketRegister;
 import me.benthomas.tttworld.net.PacketServerHandshake;
+import me.benthomas.tttworld.net.PacketSessionTicket;
+import me.benthomas.tttworld.net.PacketStartEncrypt;
 import me.benthomas.tttworld.net.TTTWConnection;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+import me.benthomas.tttworld.server.KeyShareManager;
 import me.benthomas.tttworld.server.Server;
+import me.benthomas.tttworld.server.SessionTicketManager;
 
 /**
  * A class which is capable of handling the beginning
  * {@link PacketClientHandshake} of the handshake process. Automatically replies
  * to the client with a {@link PacketServerHandshake} and enters the
  * authentication phase of the handshake.
+ * <p>
+ * If the client presents a valid session ticket, its encrypted session is
+ * resumed straight away, skipping the RSA key exchange. Otherwise, clients
+ * which support it are offered the server's ECDH key share.
  *
  * @author Ben Thomas
  */
@@ -36,8 +45,36 @@ public final class HandshakeHandler implements PacketHandler<PacketClientHandsha
         if (packet.getMajorProtocolVersion() == TTTWConnection.PROTOCOL_MAJOR_VERSION) {
             Server s = this.client.getServer();
             
+            this.client.setRemoteMinorVersion(packet.getMinorProtocolVersion());
+            
+            byte[] serverNonce = null;
+            byte[] key = null;
+            KeyShareManager.Share keyShare = null;
+            
+            if (packet.getSessionTicket() != null) {
+                byte[] secret = this.redeemTicket(packet);
+                
+                if (secret != null) {
+                    serverNonce = s.getSessionTicketManager().generateNonce();
+                    key = PacketSessionTicket.deriveResumedKey(secret, packet.getClientNonce(), serverNonce);
+                }
+            }
+            
+            if (key == null && s.getKeyShareManager() != null && this.client.isEcdhSupported()
+                    && CipherSession.isAvailable()) {
+                keyShare = s.getKeyShareManager().getShare();
+                this.client.setOfferedKeyShare(keyShare);
+            }
+            
             this.client.sendPacket(new PacketServerHandshake(s.getCompressionThreshold(), s.getName(), this.client.getServer()
-                    .isRegistrationAllowed(), s.getEncodedPublicKey()));
+                    .isRegistrationAllowed(), s.getEncodedPublicKey(), serverNonce, (keyShare == null) ? null : keyShare
+                    .getKeyShare()));
+            
+            if (key != null) {
+                this.client.setCipherSession(new CipherSession(key, false));
+                this.client.setDefaultHandler(PacketStartEncrypt.class, null);
+                this.client.sendSessionTicket(key);
+            }
             
             this.client.setDefaultHandler(PacketClientHandshake.class, null);
             this.client.setDefaultHandler(PacketAuthenticate.class, new AuthenticateHandler(this.client));
@@ -50,4 +87,15 @@ public final class HandshakeHandler implements PacketHandler<PacketClientHandsha
         }
     }
     
+    private byte[] redeemTicket(PacketClientHandshake packet) {
+        SessionTicketManager tickets = this.client.getServer().getSessionTicketManager();
+        
+        if (tickets == null || !this.client.isResumptionSupported() || !CipherSession.isAvailable()
+                || packet.getClientNonce() == null || packet.getClientNonce().length != PacketSessionTicket.NONCE_LENGTH) {
+            return null;
+        }
+        
+        return tickets.redeem(packet.getSessionTicket());
+    }
+    
 }
@@ -0,0 +1,33 @@
+package me.benthomas.tttworld.server.net;
+
+import java.io.IOException;
+
+import me.benthomas.tttworld.net.PacketPlayerListRequest;
+import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+
+/**
+ * A class which is capable of handling requests for the whole player list
+ * received from a client through a {@link PacketPlayerListRequest}, which are
+ * sent when the client has missed an update to its list.
+ *
+ * @author Ben Thomas
+ */
+public class PlayerListRequestHandler implements PacketHandler<PacketPlayerListRequest> {
+    private TTTWClientConnection client;
+    
+    /**
+     * Creates a new player list request handler for the given client.
+     * 
+     * @param client The client for which this handler should handle player
+     *            list requests.
+     */
+    public PlayerListRequestHandler(TTTWClientConnection client) {
+        this.client = client;
+    }
+    
+    @Override
+    public void handlePacket(PacketPlayerListRequest packet) throws IOException {
+        this.client.getServer().getPlayerListDispatcher().requestFullUpdate(this.client);
+    }
+    
+}
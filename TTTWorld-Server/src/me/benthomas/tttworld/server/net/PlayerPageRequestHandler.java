@@ -0,0 +1,38 @@
+package me.benthomas.tttworld.server.net;
+
+import java.io.IOException;
+
+import me.benthomas.tttworld.net.PacketPlayerPageRequest;
+import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+import me.benthomas.tttworld.server.PlayerDirectory;
+
+/**
+ * A class which is capable of handling requests for a page of the player list
+ * received from a client through a {@link PacketPlayerPageRequest}. Pages are
+ * taken from the latest {@link PlayerDirectory}, and leave out the client's
+ * own user.
+ *
+ * @author Ben Thomas
+ */
+public class PlayerPageRequestHandler implements PacketHandler<PacketPlayerPageRequest> {
+    private TTTWClientConnection client;
+    
+    /**
+     * Creates a new player page request handler for the given client.
+     * 
+     * @param client The client for which this handler should handle player
+     *            page requests.
+     */
+    public PlayerPageRequestHandler(TTTWClientConnection client) {
+        this.client = client;
+    }
+    
+    @Override
+    public void handlePacket(PacketPlayerPageRequest packet) throws IOException {
+        PlayerDirectory directory = this.client.getServer().getPlayerListDispatcher().getDirectory();
+        
+        this.client.sendPacket(directory.getPage(packet.getPrefix(), packet.getOffset(), packet.getLimit(),
+                this.client.getAccount().getName()));
+    }
+    
+}
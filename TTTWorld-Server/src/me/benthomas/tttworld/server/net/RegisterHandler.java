@@ -41,6 +41,7 @@ public class RegisterHandler implements PacketHandler<PacketRegister> {
                     .createAccount(packet.getUsername(), packet.getPassword(), false);
             
             this.client.setAccount(a);
+            this.client.getServer().getConnectedPlayers().register(this.client);
             this.client.getServer().getAccountManager().setAccountSticky(a.getName(), true);
             this.client.sendPacket(new PacketAuthResult(PacketAuthResult.Result.OK, a.getName(), false));
             
@@ -1,15 +1,33 @@
 package me.benthomas.tttworld.server.net;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import me.benthomas.tttworld.CipherSession;
 import me.benthomas.tttworld.Crypto;
 import me.benthomas.tttworld.Crypto.CryptoException;
 import me.benthomas.tttworld.net.PacketStartEncrypt;
+import me.benthomas.tttworld.net.PacketStartEncrypt.CipherMode;
 import me.benthomas.tttworld.net.TTTWConnection.PacketHandler;
+import me.benthomas.tttworld.server.KeyShareManager;
+import me.benthomas.tttworld.server.Server;
 
 /**
  * A class capable of handling client attempts to begin encrypting
  * communications sent as a {@link PacketStartEncrypt}. Begins encrypting
- * communications to the given client and automatically unregisters itself.
+ * communications to the given client in the mode it requested and
+ * automatically unregisters itself.
+ * <p>
+ * The key sent by the client is decrypted, or agreed with ECDH if the client
+ * sent a key share, on the server's
+ * {@link me.benthomas.tttworld.server.CryptoExecutor}, since private key
+ * operations are too slow to run on a packet handler thread. Handling of any
+ * further packets from the client is suspended until the key has been set up,
+ * as they will have been encrypted with it.
  *
  * @author Ben Thomas
  */
@@ -28,12 +46,106 @@ public class StartEncryptHandler implements PacketHandler<PacketStartEncrypt> {
     
     @Override
     public void handlePacket(PacketStartEncrypt packet) throws IOException {
+        Executor strand = this.client.getPacketStrand();
+        KeySetupTask task = new KeySetupTask(packet, strand);
+        
+        if (strand != null) {
+            this.client.setHandlingSuspended(true);
+        }
+        
+        if (!this.client.getServer().getCryptoExecutor().submit(task)) {
+            this.client.setHandlingSuspended(false);
+            this.client.disconnect("Server is too busy!");
+            return;
+        }
+        
+        if (strand == null) {
+            // Each client has its own lightweight thread in virtual mode, so
+            // it can simply wait for the key
+            this.finishKeySetup(packet, task);
+        }
+    }
+    
+    private void finishKeySetup(PacketStartEncrypt packet, FutureTask<byte[]> task) {
+        byte[] key;
+        
         try {
-            this.client.setEncryptionKey(Crypto.decryptAsymmetric(packet.getCryptKey(), this.client.getServer().getKeyPair()
-                    .getPrivate()));
-            this.client.setDefaultHandler(PacketStartEncrypt.class, null);
-        } catch (CryptoException e) {
+            key = task.get();
+        } catch (CancellationException e) {
+            this.client.disconnect("Server is shutting down!");
+            return;
+        } catch (InterruptedException | ExecutionException e) {
             this.client.disconnect("Unable to read encryption key!");
+            return;
+        }
+        
+        if (key == null) {
+            this.client.disconnect("No key share was offered!");
+            return;
+        } else if (packet.getKeyShare() != null && packet.getCipherMode() != CipherMode.GCM) {
+            this.client.disconnect("Unsupported cipher mode!");
+            return;
+        }
+        
+        if (packet.getCipherMode() == CipherMode.GCM && this.client.isGcmSupported() && CipherSession.isAvailable()) {
+            this.client.setCipherSession(new CipherSession(key, false));
+            this.client.sendSessionTicket(key);
+        } else if (packet.getCipherMode() == CipherMode.CBC) {
+            this.client.setEncryptionKey(key);
+        } else {
+            this.client.disconnect("Unsupported cipher mode!");
+            return;
+        }
+        
+        this.client.setDefaultHandler(PacketStartEncrypt.class, null);
+    }
+    
+    private class KeySetupTask extends FutureTask<byte[]> {
+        private final PacketStartEncrypt packet;
+        private final Executor strand;
+        
+        private KeySetupTask(final PacketStartEncrypt packet, Executor strand) {
+            super(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws CryptoException {
+                    Server server = StartEncryptHandler.this.client.getServer();
+                    
+                    if (packet.getKeyShare() != null) {
+                        KeyShareManager.Share share = StartEncryptHandler.this.client.getOfferedKeyShare();
+                        
+                        return (share == null) ? null : share.agree(packet.getKeyShare());
+                    }
+                    
+                    long start = System.nanoTime();
+                    byte[] key = Crypto.decryptAsymmetric(packet.getCryptKey(), server.getKeyPair().getPrivate());
+                    
+                    if (server.getSessionTicketManager() != null) {
+                        server.getSessionTicketManager().recordFullHandshake(System.nanoTime() - start);
+                    }
+                    
+                    return key;
+                }
+            });
+            
+            this.packet = packet;
+            this.strand = strand;
+        }
+        
+        @Override
+        protected void done() {
+            if (this.strand == null) {
+                return;
+            }
+            
+            this.strand.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TTTWClientConnection client = StartEncryptHandler.this.client;
+                    
+                    StartEncryptHandler.this.finishKeySetup(KeySetupTask.this.packet, KeySetupTask.this);
+                    client.getServer().resumeHandling(client);
+                }
+            });
         }
     }
     
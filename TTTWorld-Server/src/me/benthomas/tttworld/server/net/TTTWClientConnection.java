@@ -2,13 +2,20 @@ package me.benthomas.tttworld.server.net;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import me.benthomas.tttworld.net.PacketClientHandshake;
 import me.benthomas.tttworld.net.PacketGlobalChat;
+import me.benthomas.tttworld.net.PacketSessionTicket;
 import me.benthomas.tttworld.net.PacketStartEncrypt;
 import me.benthomas.tttworld.net.TTTWConnection;
 import me.benthomas.tttworld.server.Account;
+import me.benthomas.tttworld.server.KeyShareManager;
 import me.benthomas.tttworld.server.Server;
+import me.benthomas.tttworld.server.SessionTicketManager;
 
 /**
  * Represents a TTTW-compliant connection to a client connected to this server.
@@ -21,13 +28,24 @@ import me.benthomas.tttworld.server.Server;
  * @author Ben Thomas
  */
 public class TTTWClientConnection extends TTTWConnection {
-    private boolean handling = false;
+    private static final AtomicInteger nextConnectionId = new AtomicInteger();
+    
+    private final int connectionId = TTTWClientConnection.nextConnectionId.incrementAndGet();
+    
+    private AtomicBoolean handling = new AtomicBoolean(false);
+    private volatile boolean handlingSuspended = false;
     private boolean disconnecting = false;
     
+    private Executor packetStrand;
+    
     private Server server;
     
     private Account account = null;
     
+    private KeyShareManager.Share offeredKeyShare = null;
+    
+    private AtomicInteger playerListVersion = new AtomicInteger(-1);
+    
     /**
      * Creates a new TTTW-compliant connection to a client on the given socket.
      * 
@@ -40,7 +58,26 @@ public class TTTWClientConnection extends TTTWConnection {
         super(socket);
         
         this.server = server;
+        this.init();
+    }
+    
+    /**
+     * Creates a new TTTW-compliant connection to a client on the given
+     * non-blocking socket channel.
+     * 
+     * @param channel The socket channel on which the client is connected.
+     * @param server The server that this client is connected to.
+     * @throws IOException An unrecoverable error occurred while attempting to
+     *             open up communications to the client.
+     */
+    public TTTWClientConnection(SocketChannel channel, Server server) throws IOException {
+        super(channel);
         
+        this.server = server;
+        this.init();
+    }
+    
+    private void init() {
         this.setDefaultHandler(PacketClientHandshake.class, new HandshakeHandler(this));
         this.setDefaultHandler(PacketStartEncrypt.class, new StartEncryptHandler(this));
         
@@ -56,6 +93,16 @@ public class TTTWClientConnection extends TTTWConnection {
         }
     }
     
+    /**
+     * Gets the id of this connection, which is different for every client
+     * which has connected since the server was started.
+     * 
+     * @return The connection id of this client.
+     */
+    public int getConnectionId() {
+        return this.connectionId;
+    }
+    
     /**
      * Gets a value indicating whether or not this TTTW client is in the process
      * of having a packet handled on a packet handling thread. When this returns
@@ -66,7 +113,19 @@ public class TTTWClientConnection extends TTTWConnection {
      *         client.
      */
     public boolean isHandling() {
-        return this.handling;
+        return this.handling.get();
+    }
+    
+    /**
+     * Atomically marks this client as having a packet handled for them if no
+     * packet is currently being handled. Used by dispatchers which may race
+     * with a packet handling thread that is just finishing up.
+     * 
+     * @return {@code true} if this client was marked as handling by this call;
+     *         {@code false} if a packet was already being handled.
+     */
+    public boolean startHandling() {
+        return this.handling.compareAndSet(false, true);
     }
     
     /**
@@ -77,7 +136,52 @@ public class TTTWClientConnection extends TTTWConnection {
      *            behalf of this client.
      */
     public void setHandling(boolean handling) {
-        this.handling = handling;
+        this.handling.set(handling);
+    }
+    
+    /**
+     * Gets a value indicating whether handling of packets from this client has
+     * been suspended until some asynchronous task completes. While suspended,
+     * this client stays marked as handling so that it is not queued for packet
+     * handling again.
+     * 
+     * @return Whether packet handling for this client is suspended.
+     */
+    public boolean isHandlingSuspended() {
+        return this.handlingSuspended;
+    }
+    
+    /**
+     * Suspends or resumes handling of packets from this client. Only takes
+     * effect for clients whose packets are handled on a packet strand; see
+     * {@link Server#resumeHandling(TTTWClientConnection)}.
+     * 
+     * @param handlingSuspended Whether packet handling for this client should
+     *            be suspended.
+     */
+    public void setHandlingSuspended(boolean handlingSuspended) {
+        this.handlingSuspended = handlingSuspended;
+    }
+    
+    /**
+     * Gets the executor on which packets from this client are handled. Tasks
+     * submitted to it are run one at a time, in the order they were submitted.
+     * 
+     * @return The executor used to handle packets from this client.
+     */
+    public Executor getPacketStrand() {
+        return this.packetStrand;
+    }
+    
+    /**
+     * Sets the executor on which packets from this client are handled. The
+     * executor must run tasks one at a time, in the order they were submitted.
+     * 
+     * @param packetStrand The executor used to handle packets from this
+     *            client.
+     */
+    public void setPacketStrand(Executor packetStrand) {
+        this.packetStrand = packetStrand;
     }
     
     /**
@@ -122,6 +226,62 @@ public class TTTWClientConnection extends TTTWConnection {
         this.account = account;
     }
     
+    /**
+     * Gets the ECDH key share which was offered to this client during its
+     * handshake.
+     * 
+     * @return The key share offered to this client, or {@code null} if none
+     *         was offered.
+     */
+    public KeyShareManager.Share getOfferedKeyShare() {
+        return this.offeredKeyShare;
+    }
+    
+    /**
+     * Records the ECDH key share which was offered to this client, so that the
+     * same share is used to agree on a session key even if a new one is
+     * offered to later clients in the meantime.
+     * 
+     * @param offeredKeyShare The key share offered to this client.
+     */
+    public void setOfferedKeyShare(KeyShareManager.Share offeredKeyShare) {
+        this.offeredKeyShare = offeredKeyShare;
+    }
+    
+    /**
+     * Gets the version of the player list which this client was last sent.
+     * 
+     * @return The version of this client's player list, or -1 if it has not
+     *         been sent one or has asked for the whole list again.
+     */
+    public int getPlayerListVersion() {
+        return this.playerListVersion.get();
+    }
+    
+    /**
+     * Records that this client has been sent a version of the player list,
+     * unless its version has changed since it was read. This prevents a
+     * request for the whole list from being forgotten if it arrives while an
+     * update is being sent.
+     * 
+     * @param expected The version of this client's player list when the
+     *            update was decided on.
+     * @param version The version of the player list which was sent.
+     * @return {@code true} if the version was recorded; {@code false} if it had
+     *         changed in the meantime.
+     */
+    public boolean setPlayerListVersion(int expected, int version) {
+        return this.playerListVersion.compareAndSet(expected, version);
+    }
+    
+    /**
+     * Forgets which version of the player list this client was last sent, so
+     * that it is sent the whole list next time.
+     */
+    public void resetPlayerListVersion() {
+        this.playerListVersion.set(-1);
+    }
+    
     /**
      * Sends a global chat message to this client. If an error occurs while
      * sending the message, the client will be automatically disconnected.
@@ -136,6 +296,32 @@ public class TTTWClientConnection extends TTTWConnection {
         }
     }
     
+    /**
+     * Sends this client a new session ticket with which it may resume its
+     * current encrypted session on a later connection. Does nothing if the
+     * client does not support session resumption or if it is disabled on this
+     * server. If an error occurs while sending the ticket, the client will be
+     * automatically disconnected.
+     * 
+     * @param sessionKey The key of the client's current session, which must
+     *            be encrypted in GCM mode.
+     */
+    public void sendSessionTicket(byte[] sessionKey) {
+        SessionTicketManager tickets = this.server.getSessionTicketManager();
+        
+        if (tickets == null || !this.isResumptionSupported()) {
+            return;
+        }
+        
+        byte[] ticket = tickets.issue(PacketSessionTicket.deriveResumptionSecret(sessionKey));
+        
+        try {
+            this.sendPacket(new PacketSessionTicket(ticket, (int) (tickets.getLifetime() / 1000)));
+        } catch (IOException e) {
+            this.disconnect("Error sending packet!");
+        }
+    }
+    
     @Override
     public void disconnect(String message) {
         if (!this.disconnecting) {
@@ -38,6 +38,38 @@ public class Board {
         }
     }
     
+    /**
+     * Unpacks a board from a value included in a binary-encoded packet. See
+     * {@link #toPackedValue()}.
+     * 
+     * @param packed The packed value of the board that should be decoded.
+     */
+    public Board(int packed) {
+        this.marks = new Mark[3 * 3];
+        
+        if (packed < 0)
+            throw new IllegalArgumentException("Packed board is out of range!");
+        
+        for (int i = 0; i < this.marks.length; i++) {
+            int digit = packed % 3;
+            
+            if (digit == 1)
+                this.marks[i] = Mark.X;
+            else if (digit == 2)
+                this.marks[i] = Mark.O;
+            else
+                this.marks[i] = Mark.NONE;
+            
+            if (!this.marks[i].isPlayer)
+                this.numFreeSpaces++;
+            
+            packed /= 3;
+        }
+        
+        if (packed != 0)
+            throw new IllegalArgumentException("Packed board is out of range!");
+    }
+    
     private void checkCoordinates(int x, int y) {
         if (x < 0 || x >= 3)
             throw new IllegalArgumentException("x coordinate out of bounds!");
@@ -181,4 +213,26 @@ public class Board {
         
         return b.toString();
     }
+    
+    /**
+     * Packs this board into a single value, with each cell as a base-3 digit,
+     * that can be sent in a binary-encoded packet. The packed value always
+     * fits in 16 bits.
+     * 
+     * @return The packed value of this board.
+     */
+    public int toPackedValue() {
+        int packed = 0;
+        
+        for (int i = this.marks.length - 1; i >= 0; i--) {
+            packed *= 3;
+            
+            if (this.marks[i] == Mark.X)
+                packed += 1;
+            else if (this.marks[i] == Mark.O)
+                packed += 2;
+        }
+        
+        return packed;
+    }
 }
@@ -0,0 +1,160 @@
+package me.benthomas.tttworld;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import me.benthomas.tttworld.Crypto.CryptoException;
+
+/**
+ * Encrypts and authenticates a sequence of messages using AES-128 in GCM mode.
+ * The ciphers and key are set up once and reused for every message, rather
+ * than for each message as by
+ * {@link Crypto#encryptSymmetric(byte[], byte[], byte[])}.
+ * <p>
+ * The nonce for each message is not random, but is built from a counter which
+ * both ends of the session advance with every message. Nonces therefore never
+ * repeat under the same key and never need to be sent, but messages
+ * <strong>must</strong> be decrypted in exactly the order in which they were
+ * encrypted. Because both ends of a session share a single key, messages sent
+ * in each direction use a different nonce prefix, and so exactly one end of a
+ * session must be created as its initiator.
+ *
+ * @author Ben Thomas
+ */
+public class CipherSession {
+    /**
+     * The length (in bytes) of the authentication tag added to each encrypted
+     * message.
+     */
+    public static final int TAG_LENGTH = 16;
+    
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    
+    private final Key key;
+    
+    private final Cipher encryptCipher;
+    private final byte[] sendNonce = new byte[CipherSession.NONCE_LENGTH];
+    private long sendCounter;
+    
+    private final Cipher decryptCipher;
+    private final byte[] receiveNonce = new byte[CipherSession.NONCE_LENGTH];
+    private long receiveCounter;
+    
+    /**
+     * Checks whether AES-GCM is supported by the cryptography providers
+     * available to this JVM.
+     * 
+     * @return {@code true} if a cipher session can be created; {@code false}
+     *         otherwise.
+     */
+    public static boolean isAvailable() {
+        try {
+            Cipher.getInstance(CipherSession.TRANSFORMATION);
+            return true;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Creates a new cipher session using the given key.
+     * 
+     * @param key The AES-128 key with which messages should be encrypted and
+     *            decrypted.
+     * @param initiator {@code true} if this is the end of the session which
+     *            chose the key; {@code false} otherwise.
+     */
+    public CipherSession(byte[] key, boolean initiator) {
+        this.key = new SecretKeySpec(key, "AES");
+        
+        try {
+            this.encryptCipher = Cipher.getInstance(CipherSession.TRANSFORMATION);
+            this.decryptCipher = Cipher.getInstance(CipherSession.TRANSFORMATION);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        }
+        
+        this.sendNonce[0] = (byte) ((initiator) ? 1 : 2);
+        this.receiveNonce[0] = (byte) ((initiator) ? 2 : 1);
+    }
+    
+    /**
+     * Encrypts the next message of this session. The encrypted message is
+     * {@link #TAG_LENGTH} bytes longer than the original message.
+     * 
+     * @param original The array containing the message to be encrypted.
+     * @param start The index at which the message starts.
+     * @param length The length of the message.
+     * @param out The array into which the encrypted message should be written.
+     * @param outStart The index at which the encrypted message should start.
+     * @return The length of the encrypted message.
+     * 
+     * @throws CryptoException An error occurred during a cryptographic
+     *             operation.
+     */
+    public int encrypt(byte[] original, int start, int length, byte[] out, int outStart) throws CryptoException {
+        synchronized (this.encryptCipher) {
+            CipherSession.setCounter(this.sendNonce, this.sendCounter++);
+            
+            try {
+                this.encryptCipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(
+                        CipherSession.TAG_LENGTH * 8, this.sendNonce));
+                
+                return this.encryptCipher.doFinal(original, start, length, out, outStart);
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException
+                    | IllegalBlockSizeException | BadPaddingException e) {
+                throw new CryptoException(e);
+            }
+        }
+    }
+    
+    /**
+     * Decrypts and authenticates the next message of this session. The output
+     * may overlap the encrypted message, so that it is decrypted in place.
+     * 
+     * @param encrypted The array containing the message to be decrypted.
+     * @param start The index at which the encrypted message starts.
+     * @param length The length of the encrypted message, including its
+     *            authentication tag.
+     * @param out The array into which the decrypted message should be written.
+     * @param outStart The index at which the decrypted message should start.
+     * @return The length of the decrypted message.
+     * 
+     * @throws CryptoException The message was not authentic, was not the next
+     *             message in this session, or another error occurred during a
+     *             cryptographic operation.
+     */
+    public int decrypt(byte[] encrypted, int start, int length, byte[] out, int outStart) throws CryptoException {
+        synchronized (this.decryptCipher) {
+            CipherSession.setCounter(this.receiveNonce, this.receiveCounter++);
+            
+            try {
+                this.decryptCipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(
+                        CipherSession.TAG_LENGTH * 8, this.receiveNonce));
+                
+                return this.decryptCipher.doFinal(encrypted, start, length, out, outStart);
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException
+                    | IllegalBlockSizeException | BadPaddingException e) {
+                throw new CryptoException(e);
+            }
+        }
+    }
+    
+    private static void setCounter(byte[] nonce, long counter) {
+        for (int i = CipherSession.NONCE_LENGTH - 1; i >= CipherSession.NONCE_LENGTH - 8; i--) {
+            nonce[i] = (byte) counter;
+            counter >>>= 8;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package me.benthomas.tttworld;
 
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -7,11 +8,13 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.Formatter;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -60,6 +63,35 @@ public class Crypto {
         }
     }
     
+    /**
+     * Derives a new AES-128 key from a secret shared by both ends of a
+     * connection, using HMAC-SHA256. Keys derived from the same secret with a
+     * different label or context are unrelated to each other, and reveal
+     * nothing about the secret itself.
+     * 
+     * @param secret The shared secret from which the key should be derived.
+     * @param label A string describing what the derived key will be used for.
+     * @param context Any further values, such as nonces, which the derived key
+     *            should depend on.
+     * @return The derived 16-byte key.
+     */
+    public static byte[] deriveKey(byte[] secret, String label, byte[]... context) {
+        try {
+            Mac m = Mac.getInstance("HmacSHA256");
+            m.init(new SecretKeySpec(secret, "HmacSHA256"));
+            
+            m.update(label.getBytes(StandardCharsets.UTF_8));
+            
+            for (byte[] c : context) {
+                m.update(c);
+            }
+            
+            return Arrays.copyOf(m.doFinal(), 16);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
     /**
      * Decrypts the given encrypted data using AES-128 with the given key and
      * IV.
@@ -200,7 +232,7 @@ public class Crypto {
     public static class CryptoException extends Exception {
         private static final long serialVersionUID = 1L;
         
-        private CryptoException(Throwable cause) {
+        CryptoException(Throwable cause) {
             super(cause);
         }
     }
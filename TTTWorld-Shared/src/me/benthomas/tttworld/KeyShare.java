@@ -0,0 +1,225 @@
+package me.benthomas.tttworld;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+import me.benthomas.tttworld.Crypto.CryptoException;
+import me.benthomas.tttworld.net.TTTWConnection;
+
+/**
+ * An ephemeral elliptic curve (P-256) public key offered by one end of a
+ * connection for agreeing on a session key with ECDH, rather than sending a
+ * key encrypted with the server's RSA key.
+ * <p>
+ * The server's key share is signed with its long-term RSA key, so a client
+ * which has verified the fingerprint of that key can be sure that the share
+ * really came from the server. Signing is as expensive as the RSA decryption
+ * it replaces, so a server may offer the same share to every client until it
+ * expires; each client still uses a fresh share of its own, so every
+ * connection gets a different session key.
+ *
+ * @author Ben Thomas
+ */
+public class KeyShare {
+    private static final String CURVE = "secp256r1";
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    
+    private final byte[] publicKey;
+    private final long expiry;
+    private final byte[] signature;
+    
+    /**
+     * Checks whether P-256 key agreement is supported by the cryptography
+     * providers available to this JVM.
+     * 
+     * @return {@code true} if key shares can be generated and used;
+     *         {@code false} otherwise.
+     */
+    public static boolean isAvailable() {
+        try {
+            KeyShare.generateKeyPair();
+            KeyAgreement.getInstance("ECDH");
+            return true;
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Generates a new ephemeral key pair from which a key share can be made.
+     * 
+     * @return A new P-256 key pair.
+     * @throws NoSuchAlgorithmException P-256 is not supported by this JVM.
+     * @throws InvalidAlgorithmParameterException P-256 is not supported by
+     *             this JVM.
+     */
+    public static KeyPair generateKeyPair() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+        gen.initialize(new ECGenParameterSpec(KeyShare.CURVE));
+        
+        return gen.generateKeyPair();
+    }
+    
+    /**
+     * Creates a key share signed with the given long-term key.
+     * 
+     * @param keyPair The ephemeral key pair whose public key is being shared.
+     * @param expiry The time (in milliseconds since the epoch) after which the
+     *            share should no longer be accepted.
+     * @param signingKey The long-term RSA private key of the server.
+     * @return The signed key share.
+     * 
+     * @throws CryptoException An error occurred while signing the share.
+     */
+    public static KeyShare sign(KeyPair keyPair, long expiry, PrivateKey signingKey) throws CryptoException {
+        byte[] publicKey = keyPair.getPublic().getEncoded();
+        
+        try {
+            Signature s = Signature.getInstance(KeyShare.SIGNATURE_ALGORITHM);
+            
+            s.initSign(signingKey);
+            s.update(KeyShare.getSignedData(publicKey, expiry));
+            
+            return new KeyShare(publicKey, expiry, s.sign());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException | SignatureException e) {
+            throw new CryptoException(e);
+        }
+    }
+    
+    /**
+     * Computes the shared secret between a private key and the public key of
+     * the other end's share.
+     * 
+     * @param privateKey The private key of this end's ephemeral key pair.
+     * @param peerPublicKey The encoded public key shared by the other end.
+     * @return The raw shared secret, which should not be used as a key
+     *         directly; see {@link #deriveSessionKey(byte[], byte[], byte[])}.
+     * 
+     * @throws CryptoException The other end's public key is not a valid P-256
+     *             key.
+     */
+    public static byte[] agree(PrivateKey privateKey, byte[] peerPublicKey) throws CryptoException {
+        try {
+            PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublicKey));
+            KeyAgreement a = KeyAgreement.getInstance("ECDH");
+            
+            a.init(privateKey);
+            a.doPhase(peer, true);
+            
+            return a.generateSecret();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeySpecException | InvalidKeyException | IllegalStateException e) {
+            throw new CryptoException(e);
+        }
+    }
+    
+    /**
+     * Derives the AES-128 session key from the shared secret of a key
+     * agreement. Both public keys are mixed in, so that the key depends on the
+     * exact shares that were exchanged.
+     * 
+     * @param sharedSecret The shared secret returned by
+     *            {@link #agree(PrivateKey, byte[])}.
+     * @param clientPublicKey The encoded public key shared by the client.
+     * @param serverPublicKey The encoded public key shared by the server.
+     * @return The session key.
+     */
+    public static byte[] deriveSessionKey(byte[] sharedSecret, byte[] clientPublicKey, byte[] serverPublicKey) {
+        return Crypto.deriveKey(sharedSecret, "tttw ecdh key", clientPublicKey, serverPublicKey);
+    }
+    
+    /**
+     * Creates a key share from values received in a packet.
+     * 
+     * @param publicKey The encoded ephemeral public key.
+     * @param expiry The time (in milliseconds since the epoch) after which the
+     *            share should no longer be accepted.
+     * @param signature The signature over the public key and expiry.
+     */
+    public KeyShare(byte[] publicKey, long expiry, byte[] signature) {
+        this.publicKey = publicKey;
+        this.expiry = expiry;
+        this.signature = signature;
+    }
+    
+    /**
+     * Gets the encoded ephemeral public key of this share.
+     * 
+     * @return The X.509 encoding of the public key.
+     */
+    public byte[] getPublicKey() {
+        return this.publicKey;
+    }
+    
+    /**
+     * Gets the time after which this share should no longer be accepted.
+     * 
+     * @return The expiry time in milliseconds since the epoch.
+     */
+    public long getExpiry() {
+        return this.expiry;
+    }
+    
+    /**
+     * Gets the signature made by the server over this share.
+     * 
+     * @return The RSA signature of this share.
+     */
+    public byte[] getSignature() {
+        return this.signature;
+    }
+    
+    /**
+     * Checks that this share was signed by the given long-term key and has not
+     * expired. Clocks may differ by up to
+     * {@link TTTWConnection#MAX_CLOCK_DEVIATION}.
+     * 
+     * @param signingKey The long-term RSA public key of the server, whose
+     *            fingerprint has already been verified.
+     * @return {@code true} if the share is authentic and current;
+     *         {@code false} otherwise.
+     */
+    public boolean verify(PublicKey signingKey) {
+        if (System.currentTimeMillis() > this.expiry + TTTWConnection.MAX_CLOCK_DEVIATION) {
+            return false;
+        }
+        
+        try {
+            Signature s = Signature.getInstance(KeyShare.SIGNATURE_ALGORITHM);
+            
+            s.initVerify(signingKey);
+            s.update(KeyShare.getSignedData(this.publicKey, this.expiry));
+            
+            return s.verify(this.signature);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException | SignatureException e) {
+            return false;
+        }
+    }
+    
+    private static byte[] getSignedData(byte[] publicKey, long expiry) {
+        byte[] label = "tttw key share".getBytes(StandardCharsets.UTF_8);
+        
+        return ByteBuffer.allocate(label.length + 8 + publicKey.length).put(label).putLong(expiry).put(publicKey)
+                .array();
+    }
+}
@@ -0,0 +1,160 @@
+package me.benthomas.tttworld.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays sorted into power-of-two size classes, from which
+ * {@link TTTWConnection} takes the arrays into which frames are received,
+ * decoded, encoded and sent, rather than allocating new arrays for every
+ * frame.
+ * <p>
+ * An array taken with {@link #acquire(int)} may be longer than was asked for,
+ * and should be given back with {@link #release(byte[])} once nothing refers
+ * to it any more. Arrays which are never given back are simply collected.
+ * Requests larger than the largest size class are not pooled at all, and each
+ * size class only keeps a limited number of spare arrays.
+ *
+ * @author Ben Thomas
+ */
+public class BufferPool {
+    private static final BufferPool shared = new BufferPool(256, 64 * 1024, 1024 * 1024);
+    
+    private final int minClassSize;
+    private final int maxClassSize;
+    private final List<ArrayBlockingQueue<byte[]>> classes;
+    
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    
+    /**
+     * Creates a new, empty buffer pool.
+     * 
+     * @param minClassSize The length of the arrays in the smallest size class,
+     *            which must be a power of two.
+     * @param maxClassSize The length of the arrays in the largest size class,
+     *            which must be a power of two.
+     * @param maxClassBytes The total length of the spare arrays which each
+     *            size class may keep. Every class keeps at least four.
+     */
+    public BufferPool(int minClassSize, int maxClassSize, int maxClassBytes) {
+        if (Integer.bitCount(minClassSize) != 1 || Integer.bitCount(maxClassSize) != 1 || minClassSize > maxClassSize) {
+            throw new IllegalArgumentException("Size classes must be powers of two!");
+        }
+        
+        this.minClassSize = minClassSize;
+        this.maxClassSize = maxClassSize;
+        
+        int count = Integer.numberOfTrailingZeros(maxClassSize) - Integer.numberOfTrailingZeros(minClassSize) + 1;
+        this.classes = new ArrayList<ArrayBlockingQueue<byte[]>>(count);
+        
+        for (int i = 0; i < count; i++) {
+            this.classes.add(new ArrayBlockingQueue<byte[]>(Math.max(4, maxClassBytes / (minClassSize << i))));
+        }
+    }
+    
+    /**
+     * Gets the buffer pool shared by all connections in this JVM.
+     * 
+     * @return The shared buffer pool.
+     */
+    public static BufferPool getShared() {
+        return BufferPool.shared;
+    }
+    
+    /**
+     * Takes an array of at least the given length from this pool, allocating
+     * a new one if no spare array of the right size class is available.
+     * 
+     * @param length The smallest length of array which may be returned.
+     * @return An array of at least the given length, whose contents are
+     *         undefined.
+     */
+    public byte[] acquire(int length) {
+        this.acquired.incrementAndGet();
+        
+        if (length > this.maxClassSize) {
+            this.oversized.incrementAndGet();
+            return new byte[length];
+        }
+        
+        int sizeClass = this.getSizeClass(length);
+        byte[] b = this.classes.get(sizeClass).poll();
+        
+        if (b == null) {
+            this.allocated.incrementAndGet();
+            b = new byte[this.minClassSize << sizeClass];
+        }
+        
+        return b;
+    }
+    
+    /**
+     * Gives an array back to this pool, so that it can be handed out again.
+     * The array <strong>must not</strong> be used by the caller afterwards.
+     * Arrays which do not belong to any size class, or whose size class
+     * already has enough spare arrays, are left to be collected.
+     * 
+     * @param b The array which is no longer needed, or {@code null}.
+     */
+    public void release(byte[] b) {
+        if (b == null || b.length > this.maxClassSize || b.length < this.minClassSize || Integer.bitCount(b.length) != 1) {
+            return;
+        }
+        
+        this.classes.get(this.getSizeClass(b.length)).offer(b);
+    }
+    
+    /**
+     * Gets the number of arrays which have been taken from this pool.
+     * 
+     * @return The number of arrays acquired.
+     */
+    public long getAcquiredCount() {
+        return this.acquired.get();
+    }
+    
+    /**
+     * Gets the number of arrays which had to be allocated because no spare
+     * array was available, including those too large to be pooled.
+     * 
+     * @return The number of arrays allocated.
+     */
+    public long getAllocatedCount() {
+        return this.allocated.get() + this.oversized.get();
+    }
+    
+    /**
+     * Gets the total length of the spare arrays currently kept by this pool.
+     * 
+     * @return The number of bytes held by spare arrays.
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        
+        for (int i = 0; i < this.classes.size(); i++) {
+            bytes += (long) this.classes.get(i).size() * (this.minClassSize << i);
+        }
+        
+        return bytes;
+    }
+    
+    @Override
+    public String toString() {
+        long acquired = this.acquired.get();
+        
+        return acquired + " acquired, " + ((acquired == 0) ? 100 : 100 * (acquired - this.getAllocatedCount()) / acquired)
+                + "% reused, " + this.oversized.get() + " oversized, " + (this.getPooledBytes() / 1024) + "KiB pooled";
+    }
+    
+    private int getSizeClass(int length) {
+        if (length <= this.minClassSize) {
+            return 0;
+        }
+        
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(this.minClassSize);
+    }
+}
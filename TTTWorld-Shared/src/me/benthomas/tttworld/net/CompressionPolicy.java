@@ -0,0 +1,272 @@
+package me.benthomas.tttworld.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether and how strongly frames containing each type of packet
+ * should be compressed, based on how well frames of that type have compressed
+ * so far. A single policy may be shared by many connections, so that what is
+ * learned on one connection applies to all of them.
+ * <p>
+ * Frames of each type are always compressed until a few samples have been
+ * taken. After that, compression is skipped for any type whose frames do not
+ * shrink to less than {@link #MAX_RATIO} of their original size, except for an
+ * occasional frame which is still compressed so that the decision can be
+ * revisited. The compression level for a type depends on the average size of
+ * its frames: small frames use the fastest level, and large frames use the
+ * strongest.
+ *
+ * @author Ben Thomas
+ */
+public class CompressionPolicy {
+    /**
+     * The packet identifier under which frames containing several batched
+     * packets are tracked.
+     */
+    public static final int BATCHED_FRAME = Integer.MIN_VALUE;
+    
+    /**
+     * The level returned by {@link #getLevel(int, int)} when a frame should
+     * not be compressed at all.
+     */
+    public static final int SKIP = -1;
+    
+    /**
+     * The compression ratio (compressed size divided by original size) above
+     * which compression is skipped for a type of packet.
+     */
+    public static final double MAX_RATIO = 0.9;
+    
+    private static final int WARMUP_SAMPLES = 8;
+    private static final int PROBE_INTERVAL = 32;
+    
+    // Deflater.DEFAULT_COMPRESSION is -1, which would be mistaken for SKIP
+    private static final int DEFAULT_LEVEL = 6;
+    
+    private static final int SMALL_FRAME = 128;
+    private static final int LARGE_FRAME = 1024;
+    
+    private final ConcurrentHashMap<Integer, TypeState> types = new ConcurrentHashMap<Integer, TypeState>();
+    
+    /**
+     * Decides how a frame should be compressed.
+     * 
+     * @param packetId The identifier of the packet contained in the frame, or
+     *            {@link #BATCHED_FRAME} if it contains several packets.
+     * @param length The size of the frame (in bytes) before compression.
+     * @return The deflate level which should be used to compress the frame, or
+     *         {@link #SKIP} if it should be sent uncompressed.
+     */
+    public int getLevel(int packetId, int length) {
+        TypeState t = this.getState(packetId);
+        
+        synchronized (t) {
+            t.frames++;
+            t.frameBytes += length;
+            
+            if (t.samples >= CompressionPolicy.WARMUP_SAMPLES && t.ratio > CompressionPolicy.MAX_RATIO
+                    && ++t.sinceProbe < CompressionPolicy.PROBE_INTERVAL) {
+                t.skipped++;
+                return CompressionPolicy.SKIP;
+            }
+            
+            t.sinceProbe = 0;
+            
+            long average = t.frameBytes / t.frames;
+            
+            if (average < CompressionPolicy.SMALL_FRAME) {
+                t.level = Deflater.BEST_SPEED;
+            } else if (average >= CompressionPolicy.LARGE_FRAME) {
+                t.level = Deflater.BEST_COMPRESSION;
+            } else {
+                t.level = CompressionPolicy.DEFAULT_LEVEL;
+            }
+            
+            return t.level;
+        }
+    }
+    
+    /**
+     * Records the result of compressing a frame as decided by
+     * {@link #getLevel(int, int)}.
+     * 
+     * @param packetId The identifier of the packet contained in the frame, or
+     *            {@link #BATCHED_FRAME} if it contains several packets.
+     * @param length The size of the frame (in bytes) before compression.
+     * @param compressedLength The size of the frame (in bytes) after
+     *            compression.
+     * @param nanos The time (in nanoseconds) that was spent compressing the
+     *            frame.
+     */
+    public void record(int packetId, int length, int compressedLength, long nanos) {
+        TypeState t = this.getState(packetId);
+        double ratio = (length == 0) ? 1.0 : (double) compressedLength / length;
+        
+        synchronized (t) {
+            // Recent frames count for more, so that a change in what is being
+            // sent is noticed
+            t.ratio = (t.samples == 0) ? ratio : t.ratio + (ratio - t.ratio) / CompressionPolicy.WARMUP_SAMPLES;
+            
+            t.samples++;
+            t.bytesIn += length;
+            t.bytesOut += compressedLength;
+            t.nanos += nanos;
+        }
+    }
+    
+    /**
+     * Gets a snapshot of the statistics and current decision for every type
+     * of packet which this policy has seen, ordered by packet identifier.
+     * 
+     * @return A list containing the statistics of each type of packet.
+     */
+    public List<PacketTypeStats> getStats() {
+        TreeMap<Integer, TypeState> types = new TreeMap<Integer, TypeState>(this.types);
+        List<PacketTypeStats> stats = new ArrayList<PacketTypeStats>(types.size());
+        
+        for (Entry<Integer, TypeState> e : types.entrySet()) {
+            TypeState t = e.getValue();
+            
+            synchronized (t) {
+                stats.add(new PacketTypeStats(e.getKey(), t.frames, t.samples, t.skipped, t.bytesIn, t.bytesOut,
+                        t.nanos, t.level, t.samples >= CompressionPolicy.WARMUP_SAMPLES
+                                && t.ratio > CompressionPolicy.MAX_RATIO));
+            }
+        }
+        
+        return stats;
+    }
+    
+    private TypeState getState(int packetId) {
+        TypeState t = this.types.get(packetId);
+        
+        if (t == null) {
+            TypeState existing = this.types.putIfAbsent(packetId, t = new TypeState());
+            
+            if (existing != null) {
+                t = existing;
+            }
+        }
+        
+        return t;
+    }
+    
+    /**
+     * A snapshot of the compression statistics of a single type of packet.
+     *
+     * @author Ben Thomas
+     */
+    public static class PacketTypeStats {
+        /**
+         * The identifier of the type of packet, or
+         * {@link CompressionPolicy#BATCHED_FRAME} for batched frames.
+         */
+        public final int packetId;
+        
+        /**
+         * The number of frames of this type which were large enough to be
+         * considered for compression.
+         */
+        public final long frames;
+        
+        /**
+         * The number of frames of this type which were compressed.
+         */
+        public final long compressedFrames;
+        
+        /**
+         * The number of frames of this type which were sent uncompressed
+         * because compression was not worthwhile.
+         */
+        public final long skippedFrames;
+        
+        /**
+         * The total size (in bytes) of compressed frames of this type before
+         * compression.
+         */
+        public final long bytesIn;
+        
+        /**
+         * The total size (in bytes) of compressed frames of this type after
+         * compression.
+         */
+        public final long bytesOut;
+        
+        /**
+         * The total time (in nanoseconds) spent compressing frames of this
+         * type.
+         */
+        public final long compressNanos;
+        
+        /**
+         * The deflate level most recently chosen for this type.
+         */
+        public final int level;
+        
+        /**
+         * Whether compression is currently being skipped for this type.
+         */
+        public final boolean skipping;
+        
+        private PacketTypeStats(int packetId, long frames, long compressedFrames, long skippedFrames, long bytesIn,
+                long bytesOut, long compressNanos, int level, boolean skipping) {
+            this.packetId = packetId;
+            this.frames = frames;
+            this.compressedFrames = compressedFrames;
+            this.skippedFrames = skippedFrames;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.compressNanos = compressNanos;
+            this.level = level;
+            this.skipping = skipping;
+        }
+        
+        /**
+         * Gets the overall compression ratio achieved for this type, as the
+         * compressed size divided by the original size.
+         * 
+         * @return The overall compression ratio, or 1 if nothing has been
+         *         compressed.
+         */
+        public double getRatio() {
+            return (this.bytesIn == 0) ? 1.0 : (double) this.bytesOut / this.bytesIn;
+        }
+        
+        /**
+         * Gets the average time (in microseconds) spent compressing a frame of
+         * this type.
+         * 
+         * @return The average compression time in microseconds.
+         */
+        public long getAverageMicros() {
+            return (this.compressedFrames == 0) ? 0 : this.compressNanos / this.compressedFrames / 1000;
+        }
+        
+        @Override
+        public String toString() {
+            String name = (this.packetId == CompressionPolicy.BATCHED_FRAME) ? "batch" : "packet " + this.packetId;
+            
+            return name + ": " + this.frames + " frames, " + this.compressedFrames + " compressed at level "
+                    + this.level + String.format(" (ratio %.2f, avg %dus), ", this.getRatio(), this.getAverageMicros())
+                    + this.skippedFrames + " skipped" + ((this.skipping) ? " [skipping]" : "");
+        }
+    }
+    
+    private static class TypeState {
+        private long frames;
+        private long frameBytes;
+        private long samples;
+        private long skipped;
+        private long bytesIn;
+        private long bytesOut;
+        private long nanos;
+        private int level = CompressionPolicy.DEFAULT_LEVEL;
+        private int sinceProbe;
+        private double ratio;
+    }
+}
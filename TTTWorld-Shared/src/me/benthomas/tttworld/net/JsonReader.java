@@ -0,0 +1,416 @@
+package me.benthomas.tttworld.net;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal pull parser which reads JSON values directly out of a range of a
+ * UTF-8 encoded byte array, without building a {@link org.json.JSONObject}
+ * tree. Used to decode JSON packets one field at a time; see
+ * {@link Packet#readField(String, JsonReader)}.
+ * <p>
+ * Values must be read in the order they appear. Objects and arrays are read by
+ * calling {@link #beginObject()} or {@link #beginArray()}, then
+ * {@link #hasNext()} before each member, and finally {@link #endObject()} or
+ * {@link #endArray()}.
+ *
+ * @author Ben Thomas
+ */
+public final class JsonReader {
+    private final byte[] b;
+    private final int start;
+    private final int end;
+    
+    private int pos;
+    private boolean first;
+    
+    /**
+     * Creates a new reader over the given range of a byte array.
+     * 
+     * @param b The array containing the UTF-8 encoded JSON text.
+     * @param start The index of the first byte of the JSON text.
+     * @param end The index just past the last byte of the JSON text.
+     */
+    public JsonReader(byte[] b, int start, int end) {
+        this.b = b;
+        this.start = start;
+        this.end = end;
+        this.pos = start;
+    }
+    
+    /**
+     * Moves this reader back to the start of its JSON text, so that it can be
+     * read again.
+     */
+    public void reset() {
+        this.pos = this.start;
+        this.first = false;
+    }
+    
+    /**
+     * Checks whether any non-whitespace data remains after the values read so
+     * far.
+     * 
+     * @return {@code true} if there is more data; {@code false} otherwise.
+     */
+    public boolean hasRemaining() {
+        this.skipWhitespace();
+        return this.pos < this.end;
+    }
+    
+    /**
+     * Consumes the start of an object.
+     * 
+     * @throws IOException The next value is not an object.
+     */
+    public void beginObject() throws IOException {
+        this.expect('{');
+        this.first = true;
+    }
+    
+    /**
+     * Consumes the end of an object. All of its members must have been read.
+     * 
+     * @throws IOException The object has not ended.
+     */
+    public void endObject() throws IOException {
+        this.expect('}');
+        this.first = false;
+    }
+    
+    /**
+     * Consumes the start of an array.
+     * 
+     * @throws IOException The next value is not an array.
+     */
+    public void beginArray() throws IOException {
+        this.expect('[');
+        this.first = true;
+    }
+    
+    /**
+     * Consumes the end of an array. All of its elements must have been read.
+     * 
+     * @throws IOException The array has not ended.
+     */
+    public void endArray() throws IOException {
+        this.expect(']');
+        this.first = false;
+    }
+    
+    /**
+     * Checks whether the current object or array has another member, and if
+     * so, moves on to it. Must be called exactly once before reading each
+     * member.
+     * 
+     * @return {@code true} if there is another member to be read;
+     *         {@code false} if the object or array is about to end.
+     * @throws IOException The JSON text is malformed.
+     */
+    public boolean hasNext() throws IOException {
+        int c = this.peek();
+        
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        
+        if (!this.first) {
+            this.expect(',');
+        }
+        
+        this.first = false;
+        return true;
+    }
+    
+    /**
+     * Reads the name of the next member of the current object.
+     * 
+     * @return The name of the member.
+     * @throws IOException The next value is not a member name.
+     */
+    public String nextName() throws IOException {
+        String name = this.nextString();
+        this.expect(':');
+        
+        return name;
+    }
+    
+    /**
+     * Reads a string value.
+     * 
+     * @return The string which was read.
+     * @throws IOException The next value is not a string.
+     */
+    public String nextString() throws IOException {
+        this.expect('"');
+        
+        int s = this.pos;
+        
+        // Fast path for strings which contain no escape sequences
+        while (this.pos < this.end && this.b[this.pos] != '"' && this.b[this.pos] != '\\') {
+            this.pos++;
+        }
+        
+        if (this.pos >= this.end) {
+            throw this.error();
+        } else if (this.b[this.pos] == '"') {
+            return new String(this.b, s, this.pos++ - s, StandardCharsets.UTF_8);
+        }
+        
+        StringBuilder sb = new StringBuilder(this.pos - s + 16);
+        sb.append(new String(this.b, s, this.pos - s, StandardCharsets.UTF_8));
+        
+        while (true) {
+            if (this.pos >= this.end) {
+                throw this.error();
+            }
+            
+            byte c = this.b[this.pos];
+            
+            if (c == '"') {
+                this.pos++;
+                return sb.toString();
+            } else if (c == '\\') {
+                sb.append(this.readEscape());
+            } else {
+                s = this.pos;
+                
+                while (this.pos < this.end && this.b[this.pos] != '"' && this.b[this.pos] != '\\') {
+                    this.pos++;
+                }
+                
+                sb.append(new String(this.b, s, this.pos - s, StandardCharsets.UTF_8));
+            }
+        }
+    }
+    
+    /**
+     * Reads a numeric value as a long. Values with a fractional part are
+     * truncated.
+     * 
+     * @return The number which was read.
+     * @throws IOException The next value is not a number.
+     */
+    public long nextLong() throws IOException {
+        this.skipWhitespace();
+        
+        int s = this.pos;
+        boolean negative = false;
+        long value = 0;
+        
+        if (this.pos < this.end && this.b[this.pos] == '-') {
+            negative = true;
+            this.pos++;
+        }
+        
+        int digits = this.pos;
+        
+        while (this.pos < this.end && this.b[this.pos] >= '0' && this.b[this.pos] <= '9') {
+            value = value * 10 + (this.b[this.pos++] - '0');
+        }
+        
+        if (this.pos == digits) {
+            throw this.error();
+        } else if (this.pos < this.end
+                && (this.b[this.pos] == '.' || this.b[this.pos] == 'e' || this.b[this.pos] == 'E')) {
+            // Rare enough that it isn't worth parsing by hand
+            while (this.pos < this.end && this.isNumberPart(this.b[this.pos])) {
+                this.pos++;
+            }
+            
+            try {
+                return (long) Double.parseDouble(new String(this.b, s, this.pos - s, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw this.error();
+            }
+        } else if (this.pos - digits > 18) {
+            try {
+                return Long.parseLong(new String(this.b, s, this.pos - s, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw this.error();
+            }
+        }
+        
+        return (negative) ? -value : value;
+    }
+    
+    /**
+     * Reads a numeric value as an int.
+     * 
+     * @return The number which was read.
+     * @throws IOException The next value is not a number, or is out of range.
+     */
+    public int nextInt() throws IOException {
+        long value = this.nextLong();
+        
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw this.error();
+        }
+        
+        return (int) value;
+    }
+    
+    /**
+     * Reads a boolean value.
+     * 
+     * @return The boolean which was read.
+     * @throws IOException The next value is not a boolean.
+     */
+    public boolean nextBoolean() throws IOException {
+        int c = this.peek();
+        
+        if (c == 't' && this.match("true")) {
+            return true;
+        } else if (c == 'f' && this.match("false")) {
+            return false;
+        } else {
+            throw this.error();
+        }
+    }
+    
+    /**
+     * Skips over the next value, including all of its members if it is an
+     * object or array.
+     * 
+     * @throws IOException The JSON text is malformed.
+     */
+    public void skipValue() throws IOException {
+        int c = this.peek();
+        
+        if (c == '{') {
+            this.beginObject();
+            
+            while (this.hasNext()) {
+                this.skipString();
+                this.expect(':');
+                this.skipValue();
+            }
+            
+            this.endObject();
+        } else if (c == '[') {
+            this.beginArray();
+            
+            while (this.hasNext()) {
+                this.skipValue();
+            }
+            
+            this.endArray();
+        } else if (c == '"') {
+            this.skipString();
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            while (this.pos < this.end && this.isNumberPart(this.b[this.pos])) {
+                this.pos++;
+            }
+        } else if (!(c == 't' && this.match("true")) && !(c == 'f' && this.match("false"))
+                && !(c == 'n' && this.match("null"))) {
+            throw this.error();
+        }
+    }
+    
+    private void skipString() throws IOException {
+        this.expect('"');
+        
+        while (this.pos < this.end && this.b[this.pos] != '"') {
+            if (this.b[this.pos] == '\\') {
+                this.pos++;
+            }
+            
+            this.pos++;
+        }
+        
+        if (this.pos >= this.end) {
+            throw this.error();
+        }
+        
+        this.pos++;
+    }
+    
+    private char readEscape() throws IOException {
+        if (this.pos + 1 >= this.end) {
+            throw this.error();
+        }
+        
+        byte c = this.b[this.pos + 1];
+        this.pos += 2;
+        
+        if (c == '"' || c == '\\' || c == '/') {
+            return (char) c;
+        } else if (c == 'b') {
+            return '\b';
+        } else if (c == 'f') {
+            return '\f';
+        } else if (c == 'n') {
+            return '\n';
+        } else if (c == 'r') {
+            return '\r';
+        } else if (c == 't') {
+            return '\t';
+        } else if (c == 'u' && this.pos + 4 <= this.end) {
+            int value = 0;
+            
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(this.b[this.pos++], 16);
+                
+                if (digit < 0) {
+                    throw this.error();
+                }
+                
+                value = (value << 4) | digit;
+            }
+            
+            return (char) value;
+        } else {
+            throw this.error();
+        }
+    }
+    
+    private boolean isNumberPart(byte c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+    
+    private boolean match(String literal) {
+        int length = literal.length();
+        
+        if (this.pos + length > this.end) {
+            return false;
+        }
+        
+        for (int i = 0; i < length; i++) {
+            if (this.b[this.pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        
+        this.pos += length;
+        return true;
+    }
+    
+    private void skipWhitespace() {
+        while (this.pos < this.end
+                && (this.b[this.pos] == ' ' || this.b[this.pos] == '\t' || this.b[this.pos] == '\n' || this.b[this.pos] == '\r')) {
+            this.pos++;
+        }
+    }
+    
+    private int peek() throws IOException {
+        this.skipWhitespace();
+        
+        if (this.pos >= this.end) {
+            throw this.error();
+        }
+        
+        return this.b[this.pos];
+    }
+    
+    private void expect(char c) throws IOException {
+        if (this.peek() != c) {
+            throw this.error();
+        }
+        
+        this.pos++;
+    }
+    
+    private IOException error() {
+        return new IOException("Malformed JSON at offset " + (this.pos - this.start) + "!");
+    }
+}
@@ -1,9 +1,12 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.UUID;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -23,32 +26,177 @@ import org.json.JSONObject;
  * @author Ben Thomas
  */
 public abstract class Packet {
-    private static HashMap<Integer, Class<? extends Packet>> packetTypes = new HashMap<Integer, Class<? extends Packet>>();
+    private static HashMap<Integer, PacketFactory> packetTypes = new HashMap<Integer, PacketFactory>();
+    private static HashMap<Class<? extends Packet>, Integer> packetIds = new HashMap<Class<? extends Packet>, Integer>();
+    
+    private static void registerPacket(int packetId, PacketFactory factory) {
+        Packet.packetTypes.put(packetId, factory);
+        Packet.packetIds.put(factory.create().getClass(), packetId);
+    }
     
     static {
-        packetTypes.put(PacketKeepAlive.PACKET_ID, PacketKeepAlive.class);
-        packetTypes.put(PacketDisconnect.PACKET_ID, PacketDisconnect.class);
+        Packet.registerPacket(PacketKeepAlive.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketKeepAlive();
+            }
+        });
+        Packet.registerPacket(PacketDisconnect.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketDisconnect();
+            }
+        });
         
-        packetTypes.put(PacketClientHandshake.PACKET_ID, PacketClientHandshake.class);
-        packetTypes.put(PacketServerHandshake.PACKET_ID, PacketServerHandshake.class);
-        packetTypes.put(PacketStartEncrypt.PACKET_ID, PacketStartEncrypt.class);
-        packetTypes.put(PacketAuthenticate.PACKET_ID, PacketAuthenticate.class);
-        packetTypes.put(PacketRegister.PACKET_ID, PacketRegister.class);
-        packetTypes.put(PacketAuthResult.PACKET_ID, PacketAuthResult.class);
+        Packet.registerPacket(PacketClientHandshake.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketClientHandshake();
+            }
+        });
+        Packet.registerPacket(PacketServerHandshake.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketServerHandshake();
+            }
+        });
+        Packet.registerPacket(PacketStartEncrypt.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketStartEncrypt();
+            }
+        });
+        Packet.registerPacket(PacketSessionTicket.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketSessionTicket();
+            }
+        });
+        Packet.registerPacket(PacketAuthenticate.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketAuthenticate();
+            }
+        });
+        Packet.registerPacket(PacketRegister.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketRegister();
+            }
+        });
+        Packet.registerPacket(PacketAuthResult.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketAuthResult();
+            }
+        });
         
-        packetTypes.put(PacketPasswordChange.PACKET_ID, PacketPasswordChange.class);
-        packetTypes.put(PacketPasswordChangeResult.PACKET_ID, PacketPasswordChangeResult.class);
+        Packet.registerPacket(PacketPasswordChange.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketPasswordChange();
+            }
+        });
+        Packet.registerPacket(PacketPasswordChangeResult.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketPasswordChangeResult();
+            }
+        });
         
-        packetTypes.put(PacketGlobalChat.PACKET_ID, PacketGlobalChat.class);
-        packetTypes.put(PacketGlobalPlayerList.PACKET_ID, PacketGlobalPlayerList.class);
+        Packet.registerPacket(PacketGlobalChat.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketGlobalChat();
+            }
+        });
+        Packet.registerPacket(PacketGlobalPlayerList.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketGlobalPlayerList();
+            }
+        });
+        Packet.registerPacket(PacketPlayerListUpdate.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketPlayerListUpdate();
+            }
+        });
+        Packet.registerPacket(PacketPlayerListRequest.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketPlayerListRequest();
+            }
+        });
+        Packet.registerPacket(PacketPlayerPageRequest.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketPlayerPageRequest();
+            }
+        });
+        Packet.registerPacket(PacketPlayerPage.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketPlayerPage();
+            }
+        });
         
-        packetTypes.put(PacketChallenge.PACKET_ID, PacketChallenge.class);
-        packetTypes.put(PacketChallengeResponse.PACKET_ID, PacketChallengeResponse.class);
-        packetTypes.put(PacketChallengeCancel.PACKET_ID, PacketChallengeCancel.class);
+        Packet.registerPacket(PacketChallenge.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketChallenge();
+            }
+        });
+        Packet.registerPacket(PacketChallengeResponse.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketChallengeResponse();
+            }
+        });
+        Packet.registerPacket(PacketChallengeCancel.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketChallengeCancel();
+            }
+        });
         
-        packetTypes.put(PacketGameUpdate.PACKET_ID, PacketGameUpdate.class);
-        packetTypes.put(PacketGameMove.PACKET_ID, PacketGameMove.class);
-        packetTypes.put(PacketGameOver.PACKET_ID, PacketGameOver.class);
+        Packet.registerPacket(PacketGameUpdate.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketGameUpdate();
+            }
+        });
+        Packet.registerPacket(PacketGameMove.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketGameMove();
+            }
+        });
+        Packet.registerPacket(PacketGameOver.PACKET_ID, new PacketFactory() {
+            @Override
+            public Packet create() {
+                return new PacketGameOver();
+            }
+        });
+    }
+    
+    /**
+     * Gets the identifier used for the given type of packet.
+     * 
+     * @param packetType The type of packet whose identifier should be found.
+     * @return The identifier of the given type of packet.
+     * 
+     * @throws IllegalArgumentException The given type of packet is not a known
+     *             TTTW packet.
+     */
+    public static int getPacketId(Class<? extends Packet> packetType) {
+        Integer packetId = Packet.packetIds.get(packetType);
+        
+        if (packetId == null) {
+            throw new IllegalArgumentException("Unknown packet type " + packetType.getName() + "!");
+        }
+        
+        return packetId;
     }
     
     /**
@@ -65,25 +213,160 @@ public abstract class Packet {
      *             decoded properly.
      */
     public static Packet readPacket(String payload) throws IOException {
+        byte[] b = payload.getBytes(StandardCharsets.UTF_8);
+        return Packet.readPacket(b, 0, b.length);
+    }
+    
+    /**
+     * Reads a TTTW packet directly from a range of bytes containing its UTF-8
+     * encoded JSON payload, without building a {@link JSONObject} tree. Note
+     * that the payload <strong>must</strong> be processed first to remove any
+     * encryption or compression that may have been applied.
+     * 
+     * @param payload The array containing the JSON-encoded packet.
+     * @param start The index of the first byte of the JSON-encoded packet.
+     * @param end The index just past the last byte of the JSON-encoded packet.
+     * @return The packet that has been decoded.
+     * 
+     * @throws IOException The packet was malformed or otherwise could not be
+     *             decoded properly.
+     */
+    public static Packet readPacket(byte[] payload, int start, int end) throws IOException {
+        JsonReader in = new JsonReader(payload, start, end);
+        PacketFactory factory = null;
+        
+        // The packet identifier may appear anywhere in the object, so find it
+        // first without decoding anything else
+        in.beginObject();
+        
+        while (in.hasNext()) {
+            if (in.nextName().equals("packet_id")) {
+                factory = packetTypes.get(in.nextInt());
+                break;
+            } else {
+                in.skipValue();
+            }
+        }
+        
+        if (factory == null) {
+            throw new IOException("Invalid packet");
+        }
+        
+        Packet p = factory.create();
+        boolean timestamp = false;
+        
+        in.reset();
+        in.beginObject();
+        
         try {
-            JSONObject json = new JSONObject(payload);
-            Class<? extends Packet> packetType = packetTypes.get(json.getInt("packet_id"));
-            
-            if (packetType == null) {
-                throw new IOException("Invalid packet");
+            while (in.hasNext()) {
+                String name = in.nextName();
+                
+                if (name.equals("timestamp")) {
+                    p.timestamp = in.nextLong();
+                    timestamp = true;
+                } else if (name.equals("packet_id") || !p.readField(name, in)) {
+                    in.skipValue();
+                }
             }
-            
-            Packet p = packetType.newInstance();
-            p.read(json);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid packet", e);
+        }
+        
+        in.endObject();
+        
+        if (!timestamp || in.hasRemaining()) {
+            throw new IOException("Invalid packet");
+        }
+        
+        p.validate();
+        return p;
+    }
+    
+    /**
+     * Reads a TTTW packet from the given binary payload. Note that the payload
+     * <strong>must</strong> be processed first to remove any encryption or
+     * compression that may have been applied.
+     * 
+     * @param in The input from which the binary-encoded packet should be read,
+     *            positioned at the start of the packet identifier.
+     * @return The packet that has been decoded.
+     * 
+     * @throws IOException The packet was malformed or otherwise could not be
+     *             decoded properly.
+     */
+    public static Packet readPacket(DataInput in) throws IOException {
+        PacketFactory factory = packetTypes.get((int) in.readByte());
+        
+        if (factory == null) {
+            throw new IOException("Invalid packet");
+        }
+        
+        try {
+            Packet p = factory.create();
+            p.read(in);
             
             return p;
-        } catch (JSONException | IllegalArgumentException e) {
+        } catch (IllegalArgumentException e) {
             throw new IOException("Invalid packet", e);
-        } catch (InstantiationException | IllegalAccessException e) {
-            throw new RuntimeException(e);
         }
     }
     
+    /**
+     * Writes the given TTTW packet, including its packet identifier, in its
+     * compact binary format. This is the counterpart of
+     * {@link #readPacket(DataInput)}.
+     * 
+     * @param p The packet to be written.
+     * @param out The output to which the packet should be written.
+     * @throws IOException An error occurred while writing to the output.
+     */
+    public static void writePacket(Packet p, DataOutput out) throws IOException {
+        out.writeByte(p.packetId);
+        p.write(out);
+    }
+    
+    /**
+     * Writes a UUID in binary form, as two longs.
+     * 
+     * @param out The output to which the UUID should be written.
+     * @param id The UUID to be written.
+     * @throws IOException An error occurred while writing to the output.
+     */
+    protected static void writeUUID(DataOutput out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+    
+    /**
+     * Reads a UUID which was written by {@link #writeUUID(DataOutput, UUID)}.
+     * 
+     * @param in The input from which the UUID should be read.
+     * @return The UUID which was read.
+     * @throws IOException An error occurred while reading from the input.
+     */
+    protected static UUID readUUID(DataInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+    
+    /**
+     * Reads an enumerated value which was written as a single byte holding its
+     * ordinal. Unknown values are read as the given default.
+     * 
+     * @param <E> The type of value to be read.
+     * 
+     * @param in The input from which the value should be read.
+     * @param values All possible values, in ordinal order.
+     * @param unknown The value to use if the ordinal read is out of range.
+     * @return The value which was read.
+     * @throws IOException An error occurred while reading from the input.
+     */
+    protected static <E extends Enum<E>> E readEnum(DataInput in, E[] values, E unknown) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        
+        return (ordinal < values.length) ? values[ordinal] : unknown;
+    }
+    
     /**
      * The identifier used to identify this specific type of packet. It is
      * unique to a given type of packet and is used to determine how a packet
@@ -120,6 +403,18 @@ public abstract class Packet {
         return this.timestamp;
     }
     
+    /**
+     * Gets the key used to route this packet to a keyed handler, such as the
+     * identifier of the game or challenge to which it refers. See
+     * {@link TTTWConnection#addKeyedHandler(Class, Object, TTTWConnection.PacketHandler)}.
+     * 
+     * @return The routing key of this packet, or {@code null} if this type of
+     *         packet is not routed by key.
+     */
+    public Object getRoutingKey() {
+        return null;
+    }
+    
     /**
      * Encodes this packet into a {@link JSONObject} which can be sent to
      * another TTTW-compliant endpoint.
@@ -136,12 +431,66 @@ public abstract class Packet {
     }
     
     /**
-     * Reads values into this packet instance based on an encoded
-     * {@link JSONObject} which has been received.
+     * Reads a single field of this packet from its JSON encoding without
+     * building a {@link JSONObject}. This is called once for each field of
+     * the packet other than {@code packet_id} and {@code timestamp}, in the
+     * order the fields appear.
+     * 
+     * @param name The name of the field to be read.
+     * @param in The reader from which the value of the field should be read.
+     * @return {@code true} if the value of the field was read; {@code false}
+     *         if the field is not recognized and should be skipped.
+     * @throws IOException The value of the field could not be read.
+     */
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        return false;
+    }
+    
+    /**
+     * Checks that all required fields of this packet were present after it
+     * has been read field by field.
+     * 
+     * @throws IOException A required field of this packet was missing.
+     */
+    protected void validate() throws IOException {
+    }
+    
+    /**
+     * Encodes this packet into a compact binary form which can be sent to
+     * another TTTW-compliant endpoint which supports it. The packet identifier
+     * is not included; see {@link #writePacket(Packet, DataOutput)}.
      * 
-     * @param o The encoded representation of the packet.
+     * @param out The output to which the binary representation of this packet
+     *            should be written.
+     * @throws IOException An error occurred while writing to the output.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(this.timestamp);
+    }
+    
+    /**
+     * Reads values into this packet instance based on its binary encoding.
+     * 
+     * @param in The input from which the binary representation of this packet
+     *            should be read, positioned just after the packet identifier.
+     * @throws IOException The packet could not be read from the input.
+     */
+    public void read(DataInput in) throws IOException {
+        this.timestamp = in.readLong();
+    }
+    
+    /**
+     * Creates blank instances of a specific type of packet, into which values
+     * can then be read.
+     *
+     * @author Ben Thomas
      */
-    public void read(JSONObject o) {
-        this.timestamp = o.getLong("timestamp");
+    public interface PacketFactory {
+        /**
+         * Creates a new blank packet.
+         * 
+         * @return A new packet into which values can be read.
+         */
+        public Packet create();
     }
 }
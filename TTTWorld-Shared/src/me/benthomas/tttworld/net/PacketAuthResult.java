@@ -1,5 +1,9 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import org.json.JSONObject;
 
 /**
@@ -113,12 +117,52 @@ public class PacketAuthResult extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("result")) {
+            this.result = Result.getByIdentifier(in.nextString());
+        } else if (name.equals("username")) {
+            this.username = in.nextString();
+        } else if (name.equals("admin")) {
+            this.admin = in.nextBoolean();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.result == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
         
-        this.result = Result.getByIdentifier(o.getString("result"));
-        this.username = (o.has("username")) ? o.getString("username") : null;
-        this.admin = (o.has("admin")) ? o.getBoolean("admin") : false;
+        out.writeByte(this.result.ordinal());
+        
+        if (this.result == Result.OK) {
+            out.writeUTF(this.username);
+            out.writeBoolean(this.admin);
+        }
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.result = Packet.readEnum(in, Result.values(), Result.UNKNOWN);
+        
+        if (this.result == Result.OK) {
+            this.username = in.readUTF();
+            this.admin = in.readBoolean();
+        } else {
+            this.username = null;
+            this.admin = false;
+        }
     }
     
     /**
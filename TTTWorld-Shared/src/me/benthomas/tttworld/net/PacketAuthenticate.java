@@ -1,5 +1,9 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import org.json.JSONObject;
 
 /**
@@ -81,10 +85,38 @@ public class PacketAuthenticate extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("username")) {
+            this.username = in.nextString();
+        } else if (name.equals("password")) {
+            this.password = in.nextString();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.username == null || this.password == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeUTF(this.username);
+        out.writeUTF(this.password);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
         
-        this.username = o.getString("username");
-        this.password = o.getString("password");
+        this.username = in.readUTF();
+        this.password = in.readUTF();
     }
 }
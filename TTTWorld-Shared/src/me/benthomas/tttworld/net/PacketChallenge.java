@@ -1,5 +1,8 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.UUID;
 
 import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
@@ -96,11 +99,42 @@ public class PacketChallenge extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("id")) {
+            this.challengeId = UUID.fromString(in.nextString());
+        } else if (name.equals("sender")) {
+            this.sender = new PlayerInfo(in);
+        } else if (name.equals("timeout")) {
+            this.timeout = in.nextLong();
+        } else {
+            return false;
+        }
         
-        this.challengeId = UUID.fromString(o.getString("id"));
-        this.sender = new PlayerInfo(o.getJSONObject("sender"));
-        this.timeout = o.getLong("timeout");
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.challengeId == null || this.sender == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        Packet.writeUUID(out, this.challengeId);
+        this.sender.write(out);
+        out.writeLong(this.timeout);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.challengeId = Packet.readUUID(in);
+        this.sender = new PlayerInfo(in);
+        this.timeout = in.readLong();
     }
 }
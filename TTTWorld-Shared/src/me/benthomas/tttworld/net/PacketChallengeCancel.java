@@ -1,5 +1,8 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.UUID;
 
 import org.json.JSONObject;
@@ -57,6 +60,11 @@ public class PacketChallengeCancel extends Packet {
         return this.challengeId;
     }
     
+    @Override
+    public Object getRoutingKey() {
+        return this.challengeId;
+    }
+    
     @Override
     public JSONObject write() {
         JSONObject o = super.write();
@@ -67,9 +75,34 @@ public class PacketChallengeCancel extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("id")) {
+            this.challengeId = UUID.fromString(in.nextString());
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.challengeId == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        Packet.writeUUID(out, this.challengeId);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
         
-        this.challengeId = UUID.fromString(o.getString("id"));
+        this.challengeId = Packet.readUUID(in);
     }
 }
@@ -1,5 +1,8 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.UUID;
 
 import org.json.JSONObject;
@@ -60,6 +63,11 @@ public class PacketChallengeResponse extends Packet {
         return this.challengeId;
     }
     
+    @Override
+    public Object getRoutingKey() {
+        return this.challengeId;
+    }
+    
     /**
      * The response to the challenge.
      * 
@@ -80,11 +88,39 @@ public class PacketChallengeResponse extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("id")) {
+            this.challengeId = UUID.fromString(in.nextString());
+        } else if (name.equals("response")) {
+            this.response = Response.getByIdentifier(in.nextString());
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.challengeId == null || this.response == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        Packet.writeUUID(out, this.challengeId);
+        out.writeByte(this.response.ordinal());
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
         
-        this.challengeId = UUID.fromString(o.getString("id"));
-        this.response = Response.getByIdentifier(o.getString("response"));
+        this.challengeId = Packet.readUUID(in);
+        this.response = Packet.readEnum(in, Response.values(), Response.REJECT);
     }
     
     /**
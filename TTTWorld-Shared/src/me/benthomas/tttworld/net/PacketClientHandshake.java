@@ -1,5 +1,12 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+
+import me.benthomas.tttworld.Crypto;
+
 import org.json.JSONObject;
 
 /**
@@ -12,6 +19,11 @@ import org.json.JSONObject;
  * should disconnect the client immediately. If the requested protocol version
  * is supported by the server, the server should reply with a
  * {@link PacketServerHandshake} to continue the handshake process.
+ * <p>
+ * A client which was given a {@link PacketSessionTicket} on an earlier
+ * connection may include it, along with a random nonce, to ask to resume its
+ * encrypted session. Servers which do not accept the ticket simply carry on
+ * with a full handshake.
  * 
  * @author Ben Thomas
  */
@@ -24,6 +36,9 @@ public class PacketClientHandshake extends Packet {
     private int protocolVersionMajor;
     private int protocolVersionMinor;
     
+    private byte[] sessionTicket;
+    private byte[] clientNonce;
+    
     /**
      * Creates a new packet into which values can be read from an encoded
      * format.
@@ -47,6 +62,28 @@ public class PacketClientHandshake extends Packet {
         this.protocolVersionMinor = protocolVersionMinor;
     }
     
+    /**
+     * Creates a new packet to be sent with the requested values, asking to
+     * resume an earlier encrypted session.
+     * 
+     * @param protocolVersionMajor The major version of the protocol that the
+     *            client is using.
+     * @param protocolVersionMinor The minor version of the protocol that the
+     *            client is using.
+     * @param sessionTicket The ticket given to the client by the server in an
+     *            earlier session.
+     * @param clientNonce A random nonce of
+     *            {@link PacketSessionTicket#NONCE_LENGTH} bytes chosen by the
+     *            client.
+     */
+    public PacketClientHandshake(int protocolVersionMajor, int protocolVersionMinor, byte[] sessionTicket,
+            byte[] clientNonce) {
+        this(protocolVersionMajor, protocolVersionMinor);
+        
+        this.sessionTicket = sessionTicket;
+        this.clientNonce = clientNonce;
+    }
+    
     /**
      * Gets the major version of the TTTW protocol being used by the client. In
      * general, major versions are not intercompatible and any discrepancies
@@ -69,6 +106,28 @@ public class PacketClientHandshake extends Packet {
         return this.protocolVersionMinor;
     }
     
+    /**
+     * Gets the session ticket which the client presented to resume an earlier
+     * encrypted session.
+     * 
+     * @return The client's session ticket, or {@code null} if the client is
+     *         not trying to resume a session.
+     */
+    public byte[] getSessionTicket() {
+        return this.sessionTicket;
+    }
+    
+    /**
+     * Gets the random nonce chosen by the client for deriving the key of a
+     * resumed session.
+     * 
+     * @return The client's nonce, or {@code null} if the client is not trying
+     *         to resume a session.
+     */
+    public byte[] getClientNonce() {
+        return this.clientNonce;
+    }
+    
     @Override
     public JSONObject write() {
         JSONObject o = super.write();
@@ -79,14 +138,77 @@ public class PacketClientHandshake extends Packet {
         
         o.put("protocol_version", v);
         
+        if (this.sessionTicket != null) {
+            o.put("session_ticket", Crypto.encodeToBase64(this.sessionTicket));
+            o.put("client_nonce", Crypto.encodeToBase64(this.clientNonce));
+        }
+        
         return o;
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("protocol_version")) {
+            in.beginObject();
+            
+            while (in.hasNext()) {
+                String version = in.nextName();
+                
+                if (version.equals("major")) {
+                    this.protocolVersionMajor = in.nextInt();
+                } else if (version.equals("minor")) {
+                    this.protocolVersionMinor = in.nextInt();
+                } else {
+                    in.skipValue();
+                }
+            }
+            
+            in.endObject();
+        } else if (name.equals("session_ticket")) {
+            this.sessionTicket = Crypto.decodeFromBase64(in.nextString());
+        } else if (name.equals("client_nonce")) {
+            this.clientNonce = Crypto.decodeFromBase64(in.nextString());
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeShort(this.protocolVersionMajor);
+        out.writeShort(this.protocolVersionMinor);
+        
+        // Older servers do not expect a ticket, and are never sent one
+        if (this.sessionTicket != null) {
+            out.writeShort(this.sessionTicket.length);
+            out.write(this.sessionTicket);
+            out.write(this.clientNonce);
+        }
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.protocolVersionMajor = in.readShort();
+        this.protocolVersionMinor = in.readShort();
+        
+        int ticketLength;
+        
+        try {
+            ticketLength = in.readUnsignedShort();
+        } catch (EOFException e) {
+            return;
+        }
+        
+        this.sessionTicket = new byte[ticketLength];
+        in.readFully(this.sessionTicket);
         
-        this.protocolVersionMajor = o.getJSONObject("protocol_version").getInt("major");
-        this.protocolVersionMinor = o.getJSONObject("protocol_version").getInt("minor");
+        this.clientNonce = new byte[PacketSessionTicket.NONCE_LENGTH];
+        in.readFully(this.clientNonce);
     }
 }
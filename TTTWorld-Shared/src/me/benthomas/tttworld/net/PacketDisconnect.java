@@ -1,5 +1,9 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import org.json.JSONObject;
 
 /**
@@ -63,9 +67,34 @@ public class PacketDisconnect extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("disconnect_reason")) {
+            this.reason = in.nextString();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.reason == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeUTF(this.reason);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
         
-        this.reason = o.getString("disconnect_reason");
+        this.reason = in.readUTF();
     }
 }
@@ -1,5 +1,8 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.UUID;
 
 import org.json.JSONObject;
@@ -71,6 +74,11 @@ public class PacketGameMove extends Packet {
         return this.gameId;
     }
     
+    @Override
+    public Object getRoutingKey() {
+        return this.gameId;
+    }
+    
     /**
      * Gets the x coordinate at which the move should be made. If the
      * coordinates of the move are {@code (-1, -1)}, this indicates that the
@@ -105,12 +113,43 @@ public class PacketGameMove extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("id")) {
+            this.gameId = UUID.fromString(in.nextString());
+        } else if (name.equals("x")) {
+            this.x = in.nextInt();
+        } else if (name.equals("y")) {
+            this.y = in.nextInt();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.gameId == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        Packet.writeUUID(out, this.gameId);
+        out.writeByte(this.x);
+        out.writeByte(this.y);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
         
-        this.gameId = UUID.fromString(o.getString("id"));
-        this.x = o.getInt("x");
-        this.y = o.getInt("y");
+        this.gameId = Packet.readUUID(in);
+        this.x = in.readByte();
+        this.y = in.readByte();
     }
     
 }
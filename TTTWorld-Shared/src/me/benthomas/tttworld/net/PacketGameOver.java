@@ -1,5 +1,8 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.UUID;
 
 import org.json.JSONObject;
@@ -58,6 +61,11 @@ public class PacketGameOver extends Packet {
         return this.gameId;
     }
     
+    @Override
+    public Object getRoutingKey() {
+        return this.gameId;
+    }
+    
     /**
      * Gets the final result of the game. This should be displayed to the end
      * user to notify them of the outcome of the game.
@@ -79,11 +87,39 @@ public class PacketGameOver extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("id")) {
+            this.gameId = UUID.fromString(in.nextString());
+        } else if (name.equals("result")) {
+            this.result = Result.getByIdentifier(in.nextString());
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.gameId == null || this.result == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        Packet.writeUUID(out, this.gameId);
+        out.writeByte(this.result.ordinal());
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
         
-        this.gameId = UUID.fromString(o.getString("id"));
-        this.result = Result.getByIdentifier(o.getString("result"));
+        this.gameId = Packet.readUUID(in);
+        this.result = Packet.readEnum(in, Result.values(), Result.UNKNOWN);
     }
     
     /**
@@ -1,5 +1,8 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.UUID;
 
 import me.benthomas.tttworld.Board;
@@ -69,6 +72,11 @@ public class PacketGameUpdate extends Packet {
         return this.gameId;
     }
     
+    @Override
+    public Object getRoutingKey() {
+        return this.gameId;
+    }
+    
     /**
      * Gets the board which should be displayed for this game.
      * 
@@ -114,13 +122,47 @@ public class PacketGameUpdate extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("id")) {
+            this.gameId = UUID.fromString(in.nextString());
+        } else if (name.equals("board")) {
+            this.board = new Board(in.nextString());
+        } else if (name.equals("your_turn")) {
+            this.yourTurn = in.nextBoolean();
+        } else if (name.equals("game_over")) {
+            this.gameOver = in.nextBoolean();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.gameId == null || this.board == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        Packet.writeUUID(out, this.gameId);
+        out.writeShort(this.board.toPackedValue());
+        out.writeBoolean(this.yourTurn);
+        out.writeBoolean(this.gameOver);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
         
-        this.gameId = UUID.fromString(o.getString("id"));
-        this.board = new Board(o.getString("board"));
-        this.yourTurn = o.getBoolean("your_turn");
-        this.gameOver = o.getBoolean("game_over");
+        this.gameId = Packet.readUUID(in);
+        this.board = new Board(in.readUnsignedShort());
+        this.yourTurn = in.readBoolean();
+        this.gameOver = in.readBoolean();
     }
     
 }
@@ -1,5 +1,8 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,7 +43,8 @@ public class PacketGlobalPlayerList extends Packet {
      * 
      * @param playerList The list of connected users that the client should
      *            display. <strong>Must not</strong> include the user
-     *            themselves.
+     *            themselves, unless the client supports
+     *            {@link TTTWConnection#PROTOCOL_MINOR_SHARED_PLAYER_LIST}.
      */
     public PacketGlobalPlayerList(List<PlayerInfo> playerList) {
         super(PACKET_ID);
@@ -50,8 +54,9 @@ public class PacketGlobalPlayerList extends Packet {
     
     /**
      * Gets the list of currently connected users that should be displayed to
-     * the end user. <strong>Must not</strong> contain the user associated with
-     * this client.
+     * the end user. From protocol minor version
+     * {@link TTTWConnection#PROTOCOL_MINOR_SHARED_PLAYER_LIST}, this may
+     * contain the user associated with this client, who should be left out.
      * 
      * @return The updated list of connected players.
      */
@@ -74,19 +79,63 @@ public class PacketGlobalPlayerList extends Packet {
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("players")) {
+            this.players = new ArrayList<PlayerInfo>();
+            
+            in.beginArray();
+            
+            while (in.hasNext()) {
+                this.players.add(new PlayerInfo(in));
+            }
+            
+            in.endArray();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.players == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeInt(this.players.size());
+        
+        for (PlayerInfo p : this.players) {
+            p.write(out);
+        }
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        int count = in.readInt();
+        
+        if (count < 0) {
+            throw new IOException("Invalid player count!");
+        }
         
         this.players = new ArrayList<PlayerInfo>();
         
-        for (int i = 0; i < o.getJSONArray("players").length(); i++) {
-            this.players.add(new PlayerInfo(o.getJSONArray("players").getJSONObject(i)));
+        for (int i = 0; i < count; i++) {
+            this.players.add(new PlayerInfo(in));
         }
     }
     
     /**
      * Provides basic information regarding a connected user that can be
-     * displayed to the end user.
+     * displayed to the end user. Users are ordered by username, ignoring
+     * case, as the server sorts pages of the player list.
      *
      * @author Ben Thomas
      */
@@ -127,6 +176,54 @@ public class PacketGlobalPlayerList extends Packet {
             this.admin = o.getBoolean("admin");
         }
         
+        /**
+         * Reads information from the given JSON representation without
+         * building a {@link JSONObject}.
+         * 
+         * @param in The reader positioned at the JSON representation of this
+         *            instance.
+         * @throws IOException The JSON representation was malformed.
+         */
+        public PlayerInfo(JsonReader in) throws IOException {
+            String username = null;
+            boolean admin = false;
+            
+            in.beginObject();
+            
+            while (in.hasNext()) {
+                String name = in.nextName();
+                
+                if (name.equals("username")) {
+                    username = in.nextString();
+                } else if (name.equals("admin")) {
+                    admin = in.nextBoolean();
+                } else {
+                    in.skipValue();
+                }
+            }
+            
+            in.endObject();
+            
+            if (username == null) {
+                throw new IOException("Invalid packet");
+            }
+            
+            this.username = username;
+            this.admin = admin;
+        }
+        
+        /**
+         * Reads information from the given binary representation.
+         * 
+         * @param in The input from which the binary representation of this
+         *            instance should be read.
+         * @throws IOException An error occurred while reading from the input.
+         */
+        public PlayerInfo(DataInput in) throws IOException {
+            this.username = in.readUTF();
+            this.admin = in.readBoolean();
+        }
+        
         /**
          * Creates a JSON representation encapsulating the data represented by
          * this instance.
@@ -142,9 +239,21 @@ public class PacketGlobalPlayerList extends Packet {
             return o;
         }
         
+        /**
+         * Writes a binary representation of the data represented by this
+         * instance.
+         * 
+         * @param out The output to which this instance should be written.
+         * @throws IOException An error occurred while writing to the output.
+         */
+        public void write(DataOutput out) throws IOException {
+            out.writeUTF(this.username);
+            out.writeBoolean(this.admin);
+        }
+        
         @Override
         public int compareTo(PlayerInfo other) {
-            return this.username.compareTo(other.username);
+            return this.username.toLowerCase().compareTo(other.username.toLowerCase());
         }
         
         @Override
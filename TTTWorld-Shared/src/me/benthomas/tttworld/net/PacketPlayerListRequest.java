@@ -0,0 +1,31 @@
+package me.benthomas.tttworld.net;
+
+/**
+ * A packet sent by a client to ask for the whole list of connected users,
+ * because it has received a {@link PacketPlayerListUpdate} which does not
+ * follow the version of the list that it has. This packet is only valid from
+ * client to server, and only from clients supporting protocol version 2.9 or
+ * later, after authentication.
+ * <p>
+ * When received by a server, the server should send the client a full
+ * {@link PacketPlayerListUpdate}, which may be delayed until the next batch of
+ * changes to the list is sent.
+ *
+ * @author Ben Thomas
+ */
+public class PacketPlayerListRequest extends Packet {
+    /**
+     * The unique packet identifier used to represent a player list request
+     * packet.
+     */
+    public static final int PACKET_ID = 19;
+    
+    /**
+     * Creates a new player list request which may be sent or received. Due to
+     * the fact that player list requests contain no additional information,
+     * this constructor is suitable for both cases.
+     */
+    public PacketPlayerListRequest() {
+        super(PACKET_ID);
+    }
+}
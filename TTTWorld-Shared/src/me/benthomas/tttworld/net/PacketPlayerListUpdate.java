@@ -0,0 +1,316 @@
+package me.benthomas.tttworld.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A packet sent by the server to update the list of connected users shown by
+ * a client, in place of {@link PacketGlobalPlayerList}. This packet is only
+ * valid from server to client, only to clients supporting protocol version
+ * 2.9 or later, and can be sent at any time after authentication.
+ * <p>
+ * Every version of the server's player list is numbered. A full update
+ * carries the whole list at its version, and replaces whatever list the client
+ * had. Any other update carries only the users who have joined, left or
+ * changed since the previous version, and can only be applied by a client
+ * whose list is at that version. The full list includes the user themselves,
+ * who should be left out when it is shown.
+ * <p>
+ * When received by a client whose list is not at the version which an update
+ * follows, the client should ignore the update and send a
+ * {@link PacketPlayerListRequest}, after which the server will send a full
+ * update.
+ *
+ * @author Ben Thomas
+ */
+public class PacketPlayerListUpdate extends Packet {
+    /**
+     * The unique packet identifier used to represent a player list update
+     * packet.
+     */
+    public static final int PACKET_ID = 18;
+    
+    private boolean full;
+    private int baseVersion;
+    private int version;
+    
+    private List<PlayerInfo> joined;
+    private List<String> left;
+    private List<PlayerInfo> updated;
+    
+    /**
+     * Creates a new packet into which values can be read from an encoded
+     * format.
+     */
+    public PacketPlayerListUpdate() {
+        super(PACKET_ID);
+    }
+    
+    /**
+     * Creates a new full update to be sent with the requested values.
+     * 
+     * @param version The version of the player list.
+     * @param players Every user in the player list, including the user to
+     *            whom the update is sent.
+     */
+    public PacketPlayerListUpdate(int version, List<PlayerInfo> players) {
+        super(PACKET_ID);
+        
+        this.full = true;
+        this.baseVersion = version;
+        this.version = version;
+        
+        this.joined = players;
+        this.left = new ArrayList<String>();
+        this.updated = new ArrayList<PlayerInfo>();
+    }
+    
+    /**
+     * Creates a new incremental update to be sent with the requested values.
+     * 
+     * @param baseVersion The version of the player list to which this update
+     *            should be applied.
+     * @param version The version of the player list once this update has been
+     *            applied.
+     * @param joined The users who have joined since the base version.
+     * @param left The usernames of the users who have left since the base
+     *            version.
+     * @param updated The users whose information has changed since the base
+     *            version.
+     */
+    public PacketPlayerListUpdate(int baseVersion, int version, List<PlayerInfo> joined, List<String> left,
+            List<PlayerInfo> updated) {
+        super(PACKET_ID);
+        
+        this.full = false;
+        this.baseVersion = baseVersion;
+        this.version = version;
+        
+        this.joined = joined;
+        this.left = left;
+        this.updated = updated;
+    }
+    
+    /**
+     * Checks whether this update carries the whole player list, rather than
+     * the changes since the base version.
+     * 
+     * @return {@code true} if this update replaces the player list;
+     *         {@code false} if it should be applied to the base version.
+     */
+    public boolean isFull() {
+        return this.full;
+    }
+    
+    /**
+     * Gets the version of the player list to which this update should be
+     * applied. Equal to {@link #getVersion()} for full updates.
+     * 
+     * @return The base version of this update.
+     */
+    public int getBaseVersion() {
+        return this.baseVersion;
+    }
+    
+    /**
+     * Gets the version of the player list once this update has been applied.
+     * 
+     * @return The new version of the player list.
+     */
+    public int getVersion() {
+        return this.version;
+    }
+    
+    /**
+     * Gets the users who have joined since the base version, or every user in
+     * the list for full updates.
+     * 
+     * @return The users who should be added to the player list.
+     */
+    public List<PlayerInfo> getJoined() {
+        return this.joined;
+    }
+    
+    /**
+     * Gets the usernames of the users who have left since the base version.
+     * 
+     * @return The usernames which should be removed from the player list.
+     */
+    public List<String> getLeft() {
+        return this.left;
+    }
+    
+    /**
+     * Gets the users whose information has changed since the base version.
+     * 
+     * @return The users whose entries in the player list should be replaced.
+     */
+    public List<PlayerInfo> getUpdated() {
+        return this.updated;
+    }
+    
+    @Override
+    public JSONObject write() {
+        JSONObject o = super.write();
+        JSONArray left = new JSONArray();
+        
+        for (String username : this.left) {
+            left.put(username);
+        }
+        
+        o.put("full", this.full);
+        o.put("base_version", this.baseVersion);
+        o.put("version", this.version);
+        o.put("joined", PacketPlayerListUpdate.writePlayers(this.joined));
+        o.put("left", left);
+        o.put("updated", PacketPlayerListUpdate.writePlayers(this.updated));
+        
+        return o;
+    }
+    
+    @Override
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("full")) {
+            this.full = in.nextBoolean();
+        } else if (name.equals("base_version")) {
+            this.baseVersion = in.nextInt();
+        } else if (name.equals("version")) {
+            this.version = in.nextInt();
+        } else if (name.equals("joined")) {
+            this.joined = PacketPlayerListUpdate.readPlayers(in);
+        } else if (name.equals("left")) {
+            this.left = new ArrayList<String>();
+            
+            in.beginArray();
+            
+            while (in.hasNext()) {
+                this.left.add(in.nextString());
+            }
+            
+            in.endArray();
+        } else if (name.equals("updated")) {
+            this.updated = PacketPlayerListUpdate.readPlayers(in);
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.joined == null || this.left == null || this.updated == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeBoolean(this.full);
+        out.writeInt(this.baseVersion);
+        out.writeInt(this.version);
+        
+        PacketPlayerListUpdate.writePlayers(out, this.joined);
+        
+        out.writeInt(this.left.size());
+        
+        for (String username : this.left) {
+            out.writeUTF(username);
+        }
+        
+        PacketPlayerListUpdate.writePlayers(out, this.updated);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.full = in.readBoolean();
+        this.baseVersion = in.readInt();
+        this.version = in.readInt();
+        
+        this.joined = PacketPlayerListUpdate.readPlayers(in);
+        
+        int count = in.readInt();
+        
+        if (count < 0) {
+            throw new IOException("Invalid player count!");
+        }
+        
+        this.left = new ArrayList<String>();
+        
+        for (int i = 0; i < count; i++) {
+            this.left.add(in.readUTF());
+        }
+        
+        this.updated = PacketPlayerListUpdate.readPlayers(in);
+    }
+    
+    private static JSONArray writePlayers(List<PlayerInfo> players) {
+        JSONArray a = new JSONArray();
+        
+        for (PlayerInfo p : players) {
+            a.put(p.write());
+        }
+        
+        return a;
+    }
+    
+    private static List<PlayerInfo> readPlayers(JSONArray a) {
+        List<PlayerInfo> players = new ArrayList<PlayerInfo>();
+        
+        for (int i = 0; i < a.length(); i++) {
+            players.add(new PlayerInfo(a.getJSONObject(i)));
+        }
+        
+        return players;
+    }
+    
+    private static List<PlayerInfo> readPlayers(JsonReader in) throws IOException {
+        List<PlayerInfo> players = new ArrayList<PlayerInfo>();
+        
+        in.beginArray();
+        
+        while (in.hasNext()) {
+            players.add(new PlayerInfo(in));
+        }
+        
+        in.endArray();
+        
+        return players;
+    }
+    
+    private static void writePlayers(DataOutput out, List<PlayerInfo> players) throws IOException {
+        out.writeInt(players.size());
+        
+        for (PlayerInfo p : players) {
+            p.write(out);
+        }
+    }
+    
+    private static List<PlayerInfo> readPlayers(DataInput in) throws IOException {
+        int count = in.readInt();
+        
+        if (count < 0) {
+            throw new IOException("Invalid player count!");
+        }
+        
+        List<PlayerInfo> players = new ArrayList<PlayerInfo>();
+        
+        for (int i = 0; i < count; i++) {
+            players.add(new PlayerInfo(in));
+        }
+        
+        return players;
+    }
+}
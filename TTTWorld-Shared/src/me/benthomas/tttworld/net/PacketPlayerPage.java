@@ -0,0 +1,233 @@
+package me.benthomas.tttworld.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.benthomas.tttworld.net.PacketGlobalPlayerList.PlayerInfo;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A packet sent by the server with one page of the list of connected users, in
+ * place of {@link PacketGlobalPlayerList} and {@link PacketPlayerListUpdate}.
+ * This packet is only valid from server to client, only to clients supporting
+ * protocol version 2.10 or later, and can be sent at any time after
+ * authentication.
+ * <p>
+ * A page is normally sent in reply to a {@link PacketPlayerPageRequest}, and
+ * carries the prefix and position which were asked for, along with the total
+ * number of users matching the prefix. Whenever the list changes, the server
+ * also sends every client a notice, which is a page carrying only the new
+ * version of the list.
+ * <p>
+ * When received by a client, the client should show the users in the page at
+ * the given position, unless it has since asked for a different prefix. Upon
+ * receiving a notice, the client should ask again for any pages which it is
+ * showing.
+ *
+ * @author Ben Thomas
+ */
+public class PacketPlayerPage extends Packet {
+    /**
+     * The unique packet identifier used to represent a player page packet.
+     */
+    public static final int PACKET_ID = 21;
+    
+    private int version;
+    private String prefix;
+    private int offset;
+    private int total;
+    
+    private List<PlayerInfo> players;
+    
+    /**
+     * Creates a new packet into which values can be read from an encoded
+     * format.
+     */
+    public PacketPlayerPage() {
+        super(PACKET_ID);
+    }
+    
+    /**
+     * Creates a new notice to be sent with the requested version.
+     * 
+     * @param version The new version of the player list.
+     */
+    public PacketPlayerPage(int version) {
+        this(version, "", -1, -1, new ArrayList<PlayerInfo>());
+    }
+    
+    /**
+     * Creates a new page to be sent with the requested values.
+     * 
+     * @param version The version of the player list from which the page was
+     *            taken.
+     * @param prefix The prefix which the client asked for.
+     * @param offset The position of the first user in the page among the users
+     *            matching the prefix.
+     * @param total The number of users matching the prefix, not including the
+     *            user to whom the page is sent.
+     * @param players The users in the page.
+     */
+    public PacketPlayerPage(int version, String prefix, int offset, int total, List<PlayerInfo> players) {
+        super(PACKET_ID);
+        
+        this.version = version;
+        this.prefix = prefix;
+        this.offset = offset;
+        this.total = total;
+        this.players = players;
+    }
+    
+    /**
+     * Checks whether this packet is a notice that the player list has
+     * changed, rather than a page of it.
+     * 
+     * @return {@code true} if this packet only carries a new version;
+     *         {@code false} if it is a page.
+     */
+    public boolean isNotice() {
+        return this.offset < 0;
+    }
+    
+    /**
+     * Gets the version of the player list from which this page was taken, or
+     * the new version of the list for notices.
+     * 
+     * @return The version of the player list.
+     */
+    public int getVersion() {
+        return this.version;
+    }
+    
+    /**
+     * Gets the prefix which the client asked for.
+     * 
+     * @return The prefix of the usernames in this page.
+     */
+    public String getPrefix() {
+        return this.prefix;
+    }
+    
+    /**
+     * Gets the position of the first user in this page among the users
+     * matching the prefix.
+     * 
+     * @return The position of this page, or -1 for notices.
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+    
+    /**
+     * Gets the number of users matching the prefix, not including the user to
+     * whom this page was sent.
+     * 
+     * @return The total number of matching users, or -1 for notices.
+     */
+    public int getTotal() {
+        return this.total;
+    }
+    
+    /**
+     * Gets the users in this page, sorted by username ignoring case.
+     * 
+     * @return The users in this page.
+     */
+    public List<PlayerInfo> getPlayers() {
+        return this.players;
+    }
+    
+    @Override
+    public JSONObject write() {
+        JSONObject o = super.write();
+        JSONArray players = new JSONArray();
+        
+        for (PlayerInfo p : this.players) {
+            players.put(p.write());
+        }
+        
+        o.put("version", this.version);
+        o.put("prefix", this.prefix);
+        o.put("offset", this.offset);
+        o.put("total", this.total);
+        o.put("players", players);
+        
+        return o;
+    }
+    
+    @Override
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("version")) {
+            this.version = in.nextInt();
+        } else if (name.equals("prefix")) {
+            this.prefix = in.nextString();
+        } else if (name.equals("offset")) {
+            this.offset = in.nextInt();
+        } else if (name.equals("total")) {
+            this.total = in.nextInt();
+        } else if (name.equals("players")) {
+            this.players = new ArrayList<PlayerInfo>();
+            
+            in.beginArray();
+            
+            while (in.hasNext()) {
+                this.players.add(new PlayerInfo(in));
+            }
+            
+            in.endArray();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.prefix == null || this.players == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeInt(this.version);
+        out.writeUTF(this.prefix);
+        out.writeInt(this.offset);
+        out.writeInt(this.total);
+        out.writeInt(this.players.size());
+        
+        for (PlayerInfo p : this.players) {
+            p.write(out);
+        }
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.version = in.readInt();
+        this.prefix = in.readUTF();
+        this.offset = in.readInt();
+        this.total = in.readInt();
+        
+        int count = in.readInt();
+        
+        if (count < 0) {
+            throw new IOException("Invalid player count!");
+        }
+        
+        this.players = new ArrayList<PlayerInfo>();
+        
+        for (int i = 0; i < count; i++) {
+            this.players.add(new PlayerInfo(in));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package me.benthomas.tttworld.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+/**
+ * A packet sent by a client to ask for one page of the list of connected
+ * users, optionally limited to the users whose names begin with a prefix. This
+ * packet is only valid from client to server, and only from clients supporting
+ * protocol version 2.10 or later, after authentication.
+ * <p>
+ * The list is sorted by username, ignoring case, and never includes the user
+ * themselves. When received by a server, the server should reply with a
+ * {@link PacketPlayerPage} carrying at most the requested number of users,
+ * starting at the requested position among the users matching the prefix.
+ *
+ * @author Ben Thomas
+ */
+public class PacketPlayerPageRequest extends Packet {
+    /**
+     * The unique packet identifier used to represent a player page request
+     * packet.
+     */
+    public static final int PACKET_ID = 20;
+    
+    private String prefix;
+    private int offset;
+    private int limit;
+    
+    /**
+     * Creates a new packet into which values can be read from an encoded
+     * format.
+     */
+    public PacketPlayerPageRequest() {
+        super(PACKET_ID);
+    }
+    
+    /**
+     * Creates a new packet to be sent with the requested values.
+     * 
+     * @param prefix The prefix, ignoring case, with which the usernames of the
+     *            users in the page must begin. An empty prefix matches every
+     *            user.
+     * @param offset The position of the first user in the page among the
+     *            users matching the prefix.
+     * @param limit The greatest number of users which should be sent. The
+     *            server may send fewer.
+     */
+    public PacketPlayerPageRequest(String prefix, int offset, int limit) {
+        super(PACKET_ID);
+        
+        this.prefix = prefix;
+        this.offset = offset;
+        this.limit = limit;
+    }
+    
+    /**
+     * Gets the prefix with which the usernames of the users in the page must
+     * begin, ignoring case.
+     * 
+     * @return The requested prefix, which may be empty.
+     */
+    public String getPrefix() {
+        return this.prefix;
+    }
+    
+    /**
+     * Gets the position of the first user in the page among the users matching
+     * the prefix.
+     * 
+     * @return The requested position of the page.
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+    
+    /**
+     * Gets the greatest number of users which the client has asked to be sent.
+     * 
+     * @return The requested size of the page.
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+    
+    @Override
+    public JSONObject write() {
+        JSONObject o = super.write();
+        
+        o.put("prefix", this.prefix);
+        o.put("offset", this.offset);
+        o.put("limit", this.limit);
+        
+        return o;
+    }
+    
+    @Override
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("prefix")) {
+            this.prefix = in.nextString();
+        } else if (name.equals("offset")) {
+            this.offset = in.nextInt();
+        } else if (name.equals("limit")) {
+            this.limit = in.nextInt();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.prefix == null || this.offset < 0 || this.limit < 0) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeUTF(this.prefix);
+        out.writeInt(this.offset);
+        out.writeInt(this.limit);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.prefix = in.readUTF();
+        this.offset = in.readInt();
+        this.limit = in.readInt();
+        
+        if (this.offset < 0 || this.limit < 0) {
+            throw new IOException("Invalid packet");
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+
 import me.benthomas.tttworld.Crypto;
+import me.benthomas.tttworld.KeyShare;
 
 import org.json.JSONObject;
 
@@ -14,6 +20,17 @@ import org.json.JSONObject;
  * provided to send a {@link PacketStartEncrypt} to initialize encryption.
  * Following this, the client should send a {@link PacketAuthenticate} or a
  * {@link PacketRegister} (if allowed) to authenticate to the server.
+ * <p>
+ * If the server accepted a session ticket sent in the client's handshake, this
+ * packet instead carries a server nonce, and all further packets in both
+ * directions are encrypted with the resumed session's key; see
+ * {@link PacketSessionTicket}. The client must then not send a
+ * {@link PacketStartEncrypt}.
+ * <p>
+ * Servers may also offer a {@link KeyShare} to clients supporting protocol
+ * version 2.7 or later. A client which verifies the share against the server's
+ * public key may then agree on a session key with ECDH, instead of encrypting
+ * one with the server's RSA key.
  *
  * @author Ben Thomas
  */
@@ -23,6 +40,9 @@ public class PacketServerHandshake extends Packet {
      */
     public final static int PACKET_ID = 2;
     
+    private int protocolVersionMajor;
+    private int protocolVersionMinor;
+    
     private int compressThreshold;
     
     private String serverName;
@@ -30,6 +50,9 @@ public class PacketServerHandshake extends Packet {
     
     private byte[] publicKey;
     
+    private byte[] serverNonce;
+    private KeyShare keyShare;
+    
     /**
      * Creates a new packet into which values can be read from an encoded
      * format.
@@ -39,7 +62,8 @@ public class PacketServerHandshake extends Packet {
     }
     
     /**
-     * Creates a new packet to be sent with the requested values.
+     * Creates a new packet to be sent with the requested values. The protocol
+     * version sent is always the version implemented by this server.
      * 
      * @param compressThreshold The compression threshold that the client should
      *            use when communicating with the server.
@@ -52,12 +76,81 @@ public class PacketServerHandshake extends Packet {
     public PacketServerHandshake(int compressThreshold, String serverName, boolean registerAllowed, byte[] publicKey) {
         super(PACKET_ID);
         
+        this.protocolVersionMajor = TTTWConnection.PROTOCOL_MAJOR_VERSION;
+        this.protocolVersionMinor = TTTWConnection.PROTOCOL_MINOR_VERSION;
+        
         this.compressThreshold = compressThreshold;
         this.serverName = serverName;
         this.registerAllowed = registerAllowed;
         this.publicKey = publicKey;
     }
     
+    /**
+     * Creates a new packet to be sent with the requested values, accepting
+     * the client's request to resume an encrypted session.
+     * 
+     * @param compressThreshold The compression threshold that the client should
+     *            use when communicating with the server.
+     * @param serverName The name of the server to which the client is
+     *            connecting.
+     * @param registerAllowed Whether the server allows users to self register
+     *            for an account.
+     * @param publicKey The server's public RSA key.
+     * @param serverNonce A random nonce of
+     *            {@link PacketSessionTicket#NONCE_LENGTH} bytes chosen by the
+     *            server, or {@code null} if no session is being resumed.
+     */
+    public PacketServerHandshake(int compressThreshold, String serverName, boolean registerAllowed, byte[] publicKey,
+            byte[] serverNonce) {
+        this(compressThreshold, serverName, registerAllowed, publicKey, serverNonce, null);
+    }
+    
+    /**
+     * Creates a new packet to be sent with the requested values.
+     * 
+     * @param compressThreshold The compression threshold that the client should
+     *            use when communicating with the server.
+     * @param serverName The name of the server to which the client is
+     *            connecting.
+     * @param registerAllowed Whether the server allows users to self register
+     *            for an account.
+     * @param publicKey The server's public RSA key.
+     * @param serverNonce A random nonce of
+     *            {@link PacketSessionTicket#NONCE_LENGTH} bytes chosen by the
+     *            server, or {@code null} if no session is being resumed.
+     * @param keyShare The server's signed ECDH key share, or {@code null} if
+     *            the client should use RSA to send a session key.
+     */
+    public PacketServerHandshake(int compressThreshold, String serverName, boolean registerAllowed, byte[] publicKey,
+            byte[] serverNonce, KeyShare keyShare) {
+        this(compressThreshold, serverName, registerAllowed, publicKey);
+        
+        this.serverNonce = serverNonce;
+        this.keyShare = keyShare;
+    }
+    
+    /**
+     * Gets the major version of the TTTW protocol being used by the server.
+     * Servers which predate the inclusion of the protocol version in this
+     * packet are reported as using version 2.0.
+     * 
+     * @return The major version of the protocol in use by the server.
+     */
+    public int getMajorProtocolVersion() {
+        return this.protocolVersionMajor;
+    }
+    
+    /**
+     * Gets the minor version of the TTTW protocol being used by the server.
+     * Optional protocol features should only be used if both the client and
+     * the server support them.
+     * 
+     * @return The minor version of the protocol in use by the server.
+     */
+    public int getMinorProtocolVersion() {
+        return this.protocolVersionMinor;
+    }
+    
     /**
      * Gets the size in bytes of a packet payload that should trigger
      * compression of the packet payload. This is merely a suggestion by the
@@ -105,10 +198,39 @@ public class PacketServerHandshake extends Packet {
         return this.publicKey;
     }
     
+    /**
+     * Gets the random nonce chosen by the server for deriving the key of a
+     * resumed session. If present, the server has accepted the client's
+     * session ticket.
+     * 
+     * @return The server's nonce, or {@code null} if the session is not being
+     *         resumed.
+     */
+    public byte[] getServerNonce() {
+        return this.serverNonce;
+    }
+    
+    /**
+     * Gets the signed key share offered by the server for agreeing on a
+     * session key with ECDH. The share <strong>must</strong> be verified with
+     * {@link KeyShare#verify(java.security.PublicKey)} before it is used.
+     * 
+     * @return The server's key share, or {@code null} if the client should use
+     *         RSA to send a session key.
+     */
+    public KeyShare getKeyShare() {
+        return this.keyShare;
+    }
+    
     @Override
     public JSONObject write() {
         JSONObject o = super.write();
+        JSONObject v = new JSONObject();
         
+        v.put("major", this.protocolVersionMajor);
+        v.put("minor", this.protocolVersionMinor);
+        
+        o.put("protocol_version", v);
         o.put("compress_threshold", this.compressThreshold);
         o.put("server_name", this.serverName);
         o.put("register_allowed", this.registerAllowed);
@@ -119,16 +241,178 @@ public class PacketServerHandshake extends Packet {
             o.put("public_key", Crypto.encodeToBase64(this.publicKey));
         }
         
+        if (this.serverNonce != null) {
+            o.put("server_nonce", Crypto.encodeToBase64(this.serverNonce));
+        }
+        
+        if (this.keyShare != null) {
+            JSONObject k = new JSONObject();
+            
+            k.put("public_key", Crypto.encodeToBase64(this.keyShare.getPublicKey()));
+            k.put("expiry", this.keyShare.getExpiry());
+            k.put("signature", Crypto.encodeToBase64(this.keyShare.getSignature()));
+            
+            o.put("key_share", k);
+        }
+        
         return o;
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("protocol_version")) {
+            in.beginObject();
+            
+            while (in.hasNext()) {
+                String version = in.nextName();
+                
+                if (version.equals("major")) {
+                    this.protocolVersionMajor = in.nextInt();
+                } else if (version.equals("minor")) {
+                    this.protocolVersionMinor = in.nextInt();
+                } else {
+                    in.skipValue();
+                }
+            }
+            
+            in.endObject();
+        } else if (name.equals("compress_threshold")) {
+            this.compressThreshold = in.nextInt();
+        } else if (name.equals("server_name")) {
+            this.serverName = in.nextString();
+        } else if (name.equals("register_allowed")) {
+            this.registerAllowed = in.nextBoolean();
+        } else if (name.equals("public_key")) {
+            this.publicKey = Crypto.decodeFromBase64(in.nextString());
+        } else if (name.equals("server_nonce")) {
+            this.serverNonce = Crypto.decodeFromBase64(in.nextString());
+        } else if (name.equals("key_share")) {
+            this.keyShare = PacketServerHandshake.readKeyShare(in);
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.serverName == null || this.publicKey == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeShort(this.protocolVersionMajor);
+        out.writeShort(this.protocolVersionMinor);
+        out.writeInt(this.compressThreshold);
+        out.writeUTF(this.serverName);
+        out.writeBoolean(this.registerAllowed);
+        
+        if (this.publicKey == null) {
+            out.writeShort(0);
+        } else {
+            out.writeShort(this.publicKey.length);
+            out.write(this.publicKey);
+        }
+        
+        if (this.protocolVersionMinor >= TTTWConnection.PROTOCOL_MINOR_ECDH) {
+            out.writeBoolean(this.serverNonce != null);
+            
+            if (this.serverNonce != null) {
+                out.write(this.serverNonce);
+            }
+            
+            out.writeBoolean(this.keyShare != null);
+            
+            if (this.keyShare != null) {
+                out.writeShort(this.keyShare.getPublicKey().length);
+                out.write(this.keyShare.getPublicKey());
+                out.writeLong(this.keyShare.getExpiry());
+                out.writeShort(this.keyShare.getSignature().length);
+                out.write(this.keyShare.getSignature());
+            }
+        } else if (this.serverNonce != null) {
+            // Only sent to clients which asked to resume a session
+            out.write(this.serverNonce);
+        }
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.protocolVersionMajor = in.readShort();
+        this.protocolVersionMinor = in.readShort();
+        this.compressThreshold = in.readInt();
+        this.serverName = in.readUTF();
+        this.registerAllowed = in.readBoolean();
+        
+        this.publicKey = new byte[in.readUnsignedShort()];
+        in.readFully(this.publicKey);
+        
+        if (this.protocolVersionMinor >= TTTWConnection.PROTOCOL_MINOR_ECDH) {
+            if (in.readBoolean()) {
+                this.serverNonce = new byte[PacketSessionTicket.NONCE_LENGTH];
+                in.readFully(this.serverNonce);
+            }
+            
+            if (in.readBoolean()) {
+                byte[] keySharePublic = new byte[in.readUnsignedShort()];
+                in.readFully(keySharePublic);
+                
+                long expiry = in.readLong();
+                
+                byte[] signature = new byte[in.readUnsignedShort()];
+                in.readFully(signature);
+                
+                this.keyShare = new KeyShare(keySharePublic, expiry, signature);
+            }
+            
+            return;
+        }
+        
+        // Older servers only add a nonce when resuming a session
+        byte[] serverNonce = new byte[PacketSessionTicket.NONCE_LENGTH];
+        
+        try {
+            in.readFully(serverNonce);
+            this.serverNonce = serverNonce;
+        } catch (EOFException e) {
+            // The session is not being resumed
+        }
+    }
+    
+    private static KeyShare readKeyShare(JsonReader in) throws IOException {
+        byte[] publicKey = null;
+        long expiry = 0;
+        byte[] signature = null;
+        
+        in.beginObject();
+        
+        while (in.hasNext()) {
+            String name = in.nextName();
+            
+            if (name.equals("public_key")) {
+                publicKey = Crypto.decodeFromBase64(in.nextString());
+            } else if (name.equals("expiry")) {
+                expiry = in.nextLong();
+            } else if (name.equals("signature")) {
+                signature = Crypto.decodeFromBase64(in.nextString());
+            } else {
+                in.skipValue();
+            }
+        }
+        
+        in.endObject();
+        
+        if (publicKey == null || signature == null) {
+            throw new IOException("Invalid packet");
+        }
         
-        this.compressThreshold = o.getInt("compress_threshold");
-        this.serverName = o.getString("server_name");
-        this.registerAllowed = o.getBoolean("register_allowed");
-        this.publicKey = Crypto.decodeFromBase64(o.getString("public_key"));
+        return new KeyShare(publicKey, expiry, signature);
     }
 }
@@ -0,0 +1,159 @@
+package me.benthomas.tttworld.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import me.benthomas.tttworld.Crypto;
+
+import org.json.JSONObject;
+
+/**
+ * A packet sent by the server after communications have been encrypted in GCM
+ * mode, allowing the client to resume its encrypted session on a later
+ * connection without another RSA key exchange. This packet is only valid when
+ * sent from a server to a client, and only to clients supporting protocol
+ * version 2.6 or later.
+ * <p>
+ * The ticket itself is opaque to the client. Along with it, the client should
+ * remember the resumption secret given by
+ * {@link #deriveResumptionSecret(byte[])} for the key of the current session.
+ * When reconnecting, the client may send the ticket and a random nonce in its
+ * {@link PacketClientHandshake}. If the server accepts the ticket, it replies
+ * with a nonce of its own in its {@link PacketServerHandshake}, after which all
+ * packets are encrypted in GCM mode with the key given by
+ * {@link #deriveResumedKey(byte[], byte[], byte[])}, and no
+ * {@link PacketStartEncrypt} is sent. Each ticket should only be used once,
+ * since the server sends a new one on every connection.
+ *
+ * @author Ben Thomas
+ */
+public class PacketSessionTicket extends Packet {
+    /**
+     * The unique packet identifier used to represent a session ticket packet.
+     */
+    public static final int PACKET_ID = 17;
+    
+    /**
+     * The length (in bytes) of the nonces exchanged when resuming a session.
+     */
+    public static final int NONCE_LENGTH = 16;
+    
+    private byte[] ticket;
+    private int lifetime;
+    
+    /**
+     * Creates a new packet into which values can be read from an encoded
+     * format.
+     */
+    public PacketSessionTicket() {
+        super(PACKET_ID);
+    }
+    
+    /**
+     * Creates a new packet to be sent with the requested values.
+     * 
+     * @param ticket The opaque ticket which the client may present to resume
+     *            its session.
+     * @param lifetime The time (in seconds) for which the ticket will be
+     *            accepted.
+     */
+    public PacketSessionTicket(byte[] ticket, int lifetime) {
+        super(PACKET_ID);
+        
+        this.ticket = ticket;
+        this.lifetime = lifetime;
+    }
+    
+    /**
+     * Derives the secret which should be remembered alongside a ticket from
+     * the key of the session during which it was issued.
+     * 
+     * @param sessionKey The AES-128 key of the current session.
+     * @return The resumption secret for the current session.
+     */
+    public static byte[] deriveResumptionSecret(byte[] sessionKey) {
+        return Crypto.deriveKey(sessionKey, "tttw resumption");
+    }
+    
+    /**
+     * Derives the key of a resumed session.
+     * 
+     * @param resumptionSecret The resumption secret remembered alongside the
+     *            ticket.
+     * @param clientNonce The nonce sent by the client in its handshake.
+     * @param serverNonce The nonce sent by the server in its handshake.
+     * @return The AES-128 key which should be used for the resumed session.
+     */
+    public static byte[] deriveResumedKey(byte[] resumptionSecret, byte[] clientNonce, byte[] serverNonce) {
+        return Crypto.deriveKey(resumptionSecret, "tttw resumed key", clientNonce, serverNonce);
+    }
+    
+    /**
+     * Gets the opaque ticket which the client may present to resume its
+     * session.
+     * 
+     * @return The session ticket.
+     */
+    public byte[] getTicket() {
+        return this.ticket;
+    }
+    
+    /**
+     * Gets the time (in seconds) for which the server will accept the ticket.
+     * After this time, the ticket should be discarded.
+     * 
+     * @return The lifetime of the ticket in seconds.
+     */
+    public int getLifetime() {
+        return this.lifetime;
+    }
+    
+    @Override
+    public JSONObject write() {
+        JSONObject o = super.write();
+        
+        o.put("ticket", Crypto.encodeToBase64(this.ticket));
+        o.put("lifetime", this.lifetime);
+        
+        return o;
+    }
+    
+    @Override
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("ticket")) {
+            this.ticket = Crypto.decodeFromBase64(in.nextString());
+        } else if (name.equals("lifetime")) {
+            this.lifetime = in.nextInt();
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.ticket == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        out.writeShort(this.ticket.length);
+        out.write(this.ticket);
+        out.writeInt(this.lifetime);
+    }
+    
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        this.ticket = new byte[in.readUnsignedShort()];
+        in.readFully(this.ticket);
+        this.lifetime = in.readInt();
+    }
+}
@@ -1,6 +1,12 @@
 package me.benthomas.tttworld.net;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+
 import me.benthomas.tttworld.Crypto;
+import me.benthomas.tttworld.KeyShare;
 
 import org.json.JSONObject;
 
@@ -14,9 +20,27 @@ import org.json.JSONObject;
  * packets between the client and the server should be encrypted using the
  * agreed-upon AES-128 key.
  * <p>
+ * A client which remembers the public key and protocol version of a server
+ * from an earlier connection may send this packet straight after its
+ * {@link PacketClientHandshake}, followed by its encrypted credentials, without
+ * waiting for the server's handshake. Servers handle the packets from each
+ * client strictly in order, so the credentials are only read once the key has
+ * been set up. The server's handshake is still sent unencrypted, and the
+ * client <strong>must</strong> check that the public key in it is the one it
+ * remembered.
+ * <p>
  * When received by a server, the server <strong>must</strong> decrypt the
  * contained AES-128 key and secure all further communications with the sender
- * using this key. The server does not need to send any reply to this packet.
+ * using this key, in the requested {@link CipherMode}. The server does not need
+ * to send any reply to this packet. Clients <strong>must not</strong> request
+ * {@link CipherMode#GCM} unless the server supports protocol version 2.5 or
+ * later.
+ * <p>
+ * Clients supporting protocol version 2.7 or later which were offered a
+ * {@link KeyShare} by the server may instead send a key share of their own, in
+ * which case no encrypted key is sent. The session key is then derived by both
+ * ends with {@link KeyShare#deriveSessionKey(byte[], byte[], byte[])}, and is
+ * always used in {@link CipherMode#GCM}.
  *
  * @author Ben Thomas
  */
@@ -28,6 +52,8 @@ public class PacketStartEncrypt extends Packet {
     public static final int PACKET_ID = 3;
     
     private byte[] cryptKey;
+    private CipherMode cipherMode = CipherMode.CBC;
+    private byte[] keyShare;
     
     /**
      * Creates a new packet into which values can be read from an encoded
@@ -44,9 +70,39 @@ public class PacketStartEncrypt extends Packet {
      *            secure further communication.
      */
     public PacketStartEncrypt(byte[] cryptKey) {
+        this(cryptKey, CipherMode.CBC);
+    }
+    
+    /**
+     * Creates a new packet to be sent with the requested values.
+     * 
+     * @param cryptKey The RSA-encrypted AES-128 key that should be used to
+     *            secure further communication.
+     * @param cipherMode The mode in which the key should be used.
+     */
+    public PacketStartEncrypt(byte[] cryptKey, CipherMode cipherMode) {
         super(PACKET_ID);
         
         this.cryptKey = cryptKey;
+        this.cipherMode = cipherMode;
+    }
+    
+    /**
+     * Creates a new packet to be sent with the requested values. Exactly one
+     * of an encrypted key and a key share should be given.
+     * 
+     * @param cryptKey The RSA-encrypted AES-128 key that should be used to
+     *            secure further communication, or {@code null} if a key share
+     *            is given.
+     * @param cipherMode The mode in which the key should be used. Must be
+     *            {@link CipherMode#GCM} if a key share is given.
+     * @param keyShare The encoded public key of the client's ephemeral key
+     *            share, or {@code null} if an encrypted key is given.
+     */
+    public PacketStartEncrypt(byte[] cryptKey, CipherMode cipherMode, byte[] keyShare) {
+        this(cryptKey, cipherMode);
+        
+        this.keyShare = keyShare;
     }
     
     /**
@@ -58,26 +114,176 @@ public class PacketStartEncrypt extends Packet {
      * decrypt further communication.
      * 
      * @return The RSA-encrypted AES-128 key that should be used to secure
-     *         packets.
+     *         packets, or {@code null} if the client sent a key share instead.
      */
     public byte[] getCryptKey() {
         return this.cryptKey;
     }
     
+    /**
+     * Gets the mode in which the key should be used to secure further
+     * communication. Clients which do not specify a mode use
+     * {@link CipherMode#CBC}.
+     * 
+     * @return The mode in which the encryption key should be used.
+     */
+    public CipherMode getCipherMode() {
+        return this.cipherMode;
+    }
+    
+    /**
+     * Gets the public key of the client's ephemeral key share, from which the
+     * session key should be agreed with ECDH.
+     * 
+     * @return The encoded public key of the client's key share, or
+     *         {@code null} if the client sent an encrypted key instead.
+     */
+    public byte[] getKeyShare() {
+        return this.keyShare;
+    }
+    
     @Override
     public JSONObject write() {
         JSONObject o = super.write();
         
-        o.put("crypt_key", Crypto.encodeToBase64(this.cryptKey));
+        if (this.cryptKey != null) {
+            o.put("crypt_key", Crypto.encodeToBase64(this.cryptKey));
+        }
+        
+        o.put("cipher_mode", this.cipherMode.identifier);
+        
+        if (this.keyShare != null) {
+            o.put("key_share", Crypto.encodeToBase64(this.keyShare));
+        }
         
         return o;
     }
     
     @Override
-    public void read(JSONObject o) {
-        super.read(o);
+    protected boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("crypt_key")) {
+            this.cryptKey = Crypto.decodeFromBase64(in.nextString());
+        } else if (name.equals("cipher_mode")) {
+            this.cipherMode = CipherMode.getByIdentifier(in.nextString());
+        } else if (name.equals("key_share")) {
+            this.keyShare = Crypto.decodeFromBase64(in.nextString());
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void validate() throws IOException {
+        if (this.cryptKey == null && this.keyShare == null) {
+            throw new IOException("Invalid packet");
+        }
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        
+        if (this.cryptKey == null) {
+            out.writeShort(0);
+        } else {
+            out.writeShort(this.cryptKey.length);
+            out.write(this.cryptKey);
+        }
         
-        this.cryptKey = Crypto.decodeFromBase64(o.getString("crypt_key"));
+        // Older servers do not expect the mode, and never get asked for
+        // anything other than CBC
+        if (this.cipherMode != CipherMode.CBC || this.keyShare != null) {
+            out.writeByte(this.cipherMode.ordinal());
+        }
+        
+        if (this.keyShare != null) {
+            out.writeShort(this.keyShare.length);
+            out.write(this.keyShare);
+        }
     }
     
+    @Override
+    public void read(DataInput in) throws IOException {
+        super.read(in);
+        
+        int cryptKeyLength = in.readUnsignedShort();
+        
+        if (cryptKeyLength > 0) {
+            this.cryptKey = new byte[cryptKeyLength];
+            in.readFully(this.cryptKey);
+        }
+        
+        try {
+            this.cipherMode = Packet.readEnum(in, CipherMode.values(), CipherMode.UNKNOWN);
+        } catch (EOFException e) {
+            this.cipherMode = CipherMode.CBC;
+            return;
+        }
+        
+        int keyShareLength;
+        
+        try {
+            keyShareLength = in.readUnsignedShort();
+        } catch (EOFException e) {
+            return;
+        }
+        
+        this.keyShare = new byte[keyShareLength];
+        in.readFully(this.keyShare);
+    }
+    
+    /**
+     * A value indicating the mode in which an AES-128 key is used to secure
+     * communication.
+     *
+     * @author Ben Thomas
+     */
+    public enum CipherMode {
+        /**
+         * Each packet is encrypted in CBC mode with a random IV sent alongside
+         * it. Supported by all servers.
+         */
+        CBC("cbc"),
+        /**
+         * Packets are encrypted and authenticated in GCM mode, with nonces
+         * taken from a counter kept by both ends. Requires protocol version
+         * 2.5 or later.
+         */
+        GCM("gcm"),
+        /**
+         * Indicates a mode which is not recognized.
+         */
+        UNKNOWN(null);
+        
+        /**
+         * A unique string that should be used when sending a packet to
+         * indicate this mode.
+         */
+        public final String identifier;
+        
+        private CipherMode(String identifier) {
+            this.identifier = identifier;
+        }
+        
+        /**
+         * Gets a mode based on the identifier found in a packet. If the given
+         * identifier was not found, {@link CipherMode#UNKNOWN} is returned.
+         * 
+         * @param identifier The identifier of the mode to be found.
+         * @return The mode based on the identifier given, or
+         *         {@link CipherMode#UNKNOWN} if no mode with the given
+         *         identifier exists.
+         */
+        public static CipherMode getByIdentifier(String identifier) {
+            for (CipherMode m : CipherMode.values()) {
+                if (m.identifier != null && m.identifier.equalsIgnoreCase(identifier)) {
+                    return m;
+                }
+            }
+            
+            return CipherMode.UNKNOWN;
+        }
+    }
 }
@@ -0,0 +1,202 @@
+package me.benthomas.tttworld.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream which writes into a growable array taken from a
+ * {@link BufferPool}. Unlike a {@link java.io.ByteArrayOutputStream}, the
+ * written bytes are used in place through {@link #array()} and
+ * {@link #size()} rather than being copied out, and the array can be written
+ * to directly by a {@link java.util.zip.Deflater} or an
+ * {@link java.util.zip.Inflater} using {@link #reserve(int)} and
+ * {@link #advance(int)}.
+ * <p>
+ * Once the written bytes are no longer needed, {@link #release()} gives the
+ * array back to the pool, after which the stream may be written to again.
+ *
+ * @author Ben Thomas
+ */
+public class PooledOutputStream extends OutputStream {
+    private final BufferPool pool;
+    private final int maxLength;
+    
+    private byte[] buf;
+    private int count;
+    
+    /**
+     * Creates a new stream with no limit on the number of bytes written.
+     * 
+     * @param pool The pool from which arrays should be taken.
+     */
+    public PooledOutputStream(BufferPool pool) {
+        this(pool, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Creates a new stream which refuses to hold more than the given number
+     * of bytes.
+     * 
+     * @param pool The pool from which arrays should be taken.
+     * @param maxLength The largest number of bytes which may be written.
+     */
+    public PooledOutputStream(BufferPool pool, int maxLength) {
+        this.pool = pool;
+        this.maxLength = maxLength;
+    }
+    
+    /**
+     * Gets the array into which bytes have been written. Only the first
+     * {@link #size()} bytes of it are meaningful.
+     * 
+     * @return The array backing this stream, or {@code null} if nothing has
+     *         been written since the stream was created or released.
+     */
+    public byte[] array() {
+        return this.buf;
+    }
+    
+    /**
+     * Gets the number of bytes which have been written.
+     * 
+     * @return The number of bytes written.
+     */
+    public int size() {
+        return this.count;
+    }
+    
+    /**
+     * Discards bytes from the end of what has been written.
+     * 
+     * @param size The number of bytes which should be kept.
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > this.count) {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        this.count = size;
+    }
+    
+    /**
+     * Makes room for at least one and up to the given number of bytes to be
+     * written directly into {@link #array()} after the last byte written.
+     * 
+     * @param length The number of bytes for which room is wanted.
+     * @return The number of bytes for which there is now room, which is at
+     *         least 1.
+     * @throws IOException No more bytes may be written to this stream.
+     */
+    public int reserve(int length) throws IOException {
+        if (this.buf == null || this.buf.length == this.count) {
+            this.grow(Math.min(length, this.maxLength - this.count));
+        }
+        
+        return this.buf.length - this.count;
+    }
+    
+    /**
+     * Counts bytes which have been written directly into {@link #array()}
+     * after room was made for them with {@link #reserve(int)}.
+     * 
+     * @param length The number of bytes which were written.
+     * @throws IOException Too many bytes have been written to this stream.
+     */
+    public void advance(int length) throws IOException {
+        if (this.count + length > this.buf.length) {
+            throw new IndexOutOfBoundsException();
+        } else if (this.count + length > this.maxLength) {
+            throw new IOException("Packet too large!");
+        }
+        
+        this.count += length;
+    }
+    
+    /**
+     * Writes a big-endian integer, as {@link java.io.DataOutput#writeInt(int)}
+     * would.
+     * 
+     * @param v The integer to be written.
+     * @throws IOException No more bytes may be written to this stream.
+     */
+    public void writeInt(int v) throws IOException {
+        this.ensureCapacity(4);
+        this.count += 4;
+        this.setInt(this.count - 4, v);
+    }
+    
+    /**
+     * Overwrites four bytes which have already been written with a big-endian
+     * integer.
+     * 
+     * @param position The index at which the integer should be written.
+     * @param v The integer to be written.
+     */
+    public void setInt(int position, int v) {
+        if (position < 0 || position + 4 > this.count) {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        this.buf[position] = (byte) (v >>> 24);
+        this.buf[position + 1] = (byte) (v >>> 16);
+        this.buf[position + 2] = (byte) (v >>> 8);
+        this.buf[position + 3] = (byte) v;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        this.ensureCapacity(1);
+        this.buf[this.count++] = (byte) b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        this.ensureCapacity(len);
+        System.arraycopy(b, off, this.buf, this.count, len);
+        this.count += len;
+    }
+    
+    /**
+     * Gives the array backing this stream back to its pool and discards
+     * everything which has been written. Any array previously returned by
+     * {@link #array()} <strong>must not</strong> be used afterwards.
+     */
+    public void release() {
+        this.pool.release(this.buf);
+        
+        this.buf = null;
+        this.count = 0;
+    }
+    
+    private void ensureCapacity(int length) throws IOException {
+        if (this.buf == null || this.buf.length - this.count < length) {
+            if (length > this.maxLength - this.count) {
+                throw new IOException("Packet too large!");
+            }
+            
+            this.grow(length);
+        }
+    }
+    
+    private void grow(int length) throws IOException {
+        if (length <= 0) {
+            throw new IOException("Packet too large!");
+        }
+        
+        int required = this.count + length;
+        int capacity = (this.buf == null) ? required : (int) Math.min(Math.max(required, 2L * this.buf.length),
+                Integer.MAX_VALUE - 8);
+        byte[] b = this.pool.acquire(Math.min(capacity, Math.max(required, this.maxLength)));
+        
+        if (this.buf != null) {
+            System.arraycopy(this.buf, 0, b, 0, this.count);
+            this.pool.release(this.buf);
+        }
+        
+        this.buf = b;
+    }
+}
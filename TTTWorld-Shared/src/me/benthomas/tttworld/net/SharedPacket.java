@@ -0,0 +1,130 @@
+package me.benthomas.tttworld.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * A packet which is being sent to many connections at once, such as a chat
+ * broadcast or a player list. However many connections it is sent to with
+ * {@link TTTWConnection#sendSharedPacket(SharedPacket)}, a shared packet is
+ * encoded at most once in each packet encoding and compressed at most once in
+ * each, leaving only encryption to be done separately for each connection.
+ * <p>
+ * A shared packet is compressed into a self-contained gzip frame, even for
+ * connections which support streaming deflate compression, since the deflate
+ * context of every connection is different. Once encoded, a shared packet's
+ * bytes are never modified, so it may be held by any number of connections
+ * until they are done with it.
+ *
+ * @author Ben Thomas
+ */
+public class SharedPacket {
+    private final Packet packet;
+    
+    private final Encoding binary = new Encoding(true);
+    private final Encoding json = new Encoding(false);
+    
+    /**
+     * Creates a new shared packet. The packet <strong>must not</strong> be
+     * modified once it has been sent.
+     * 
+     * @param packet The packet which is to be sent to many connections.
+     */
+    public SharedPacket(Packet packet) {
+        this.packet = packet;
+    }
+    
+    /**
+     * Gets the packet which is being shared.
+     * 
+     * @return The shared packet.
+     */
+    public Packet getPacket() {
+        return this.packet;
+    }
+    
+    Encoding getEncoding(boolean binary) {
+        return binary ? this.binary : this.json;
+    }
+    
+    /**
+     * A shared packet in one of the packet encodings, along with its
+     * compressed form once one has been needed.
+     *
+     * @author Ben Thomas
+     */
+    class Encoding {
+        private final boolean binary;
+        
+        private byte[] payload;
+        private byte[] compressed;
+        private boolean compressionDecided;
+        
+        private Encoding(boolean binary) {
+            this.binary = binary;
+        }
+        
+        /**
+         * Gets the encoded packet, encoding it if this is the first time it
+         * has been needed.
+         * 
+         * @return The encoded packet, starting with its encoding type.
+         * @throws IOException An error occurred while encoding the packet.
+         */
+        synchronized byte[] getPayload() throws IOException {
+            if (this.payload == null) {
+                PooledOutputStream out = new PooledOutputStream(BufferPool.getShared());
+                
+                try {
+                    TTTWConnection.writePacket(SharedPacket.this.packet, this.binary, out);
+                    this.payload = Arrays.copyOf(out.array(), out.size());
+                } finally {
+                    out.release();
+                }
+            }
+            
+            return this.payload;
+        }
+        
+        /**
+         * Gets the compressed frame body for the encoded packet, compressing
+         * it if this is the first time it has been needed. Whether to compress
+         * the packet is only decided once, by the first connection to ask.
+         * 
+         * @param policy The compression policy of the connection which is
+         *            asking, or {@code null} if it has none.
+         * @return The compressed frame body, or {@code null} if the packet
+         *         should be sent uncompressed.
+         * @throws IOException An error occurred while compressing the packet.
+         */
+        synchronized byte[] getCompressed(CompressionPolicy policy) throws IOException {
+            if (!this.compressionDecided) {
+                byte[] payload = this.getPayload();
+                int level = (policy != null) ? policy.getLevel(SharedPacket.this.packet.packetId, payload.length)
+                        : Deflater.DEFAULT_COMPRESSION;
+                
+                this.compressionDecided = true;
+                
+                if (level != CompressionPolicy.SKIP) {
+                    long time = System.nanoTime();
+                    PooledOutputStream out = new PooledOutputStream(BufferPool.getShared());
+                    
+                    try {
+                        TTTWConnection.compress(payload, 0, payload.length, level, out);
+                        this.compressed = Arrays.copyOf(out.array(), out.size());
+                    } finally {
+                        out.release();
+                    }
+                    
+                    if (policy != null) {
+                        policy.record(SharedPacket.this.packet.packetId, payload.length, this.compressed.length - 1,
+                                System.nanoTime() - time);
+                    }
+                }
+            }
+            
+            return this.compressed;
+        }
+    }
+}
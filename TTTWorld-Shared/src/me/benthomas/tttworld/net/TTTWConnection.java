@@ -1,23 +1,45 @@
 package me.benthomas.tttworld.net;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
+import me.benthomas.tttworld.CipherSession;
 import me.benthomas.tttworld.Crypto;
 import me.benthomas.tttworld.Crypto.CryptoException;
+import me.benthomas.tttworld.KeyShare;
 
 /**
  * Represents a connection to a TTTW-compliant endpoint. This connection
@@ -36,7 +58,67 @@ public class TTTWConnection {
     /**
      * The current TTTW protocol minor version.
      */
-    public static final int PROTOCOL_MINOR_VERSION = 1;
+    public static final int PROTOCOL_MINOR_VERSION = 10;
+    
+    /**
+     * The first TTTW protocol minor version which supports batched frames,
+     * which carry several packets in a single frame.
+     */
+    public static final int PROTOCOL_MINOR_BATCHING = 2;
+    
+    /**
+     * The first TTTW protocol minor version which supports the compact binary
+     * packet encoding in addition to JSON.
+     */
+    public static final int PROTOCOL_MINOR_BINARY = 3;
+    
+    /**
+     * The first TTTW protocol minor version which supports streaming deflate
+     * compression, where a single compression context is kept for the whole
+     * connection rather than compressing each frame separately.
+     */
+    public static final int PROTOCOL_MINOR_DEFLATE = 4;
+    
+    /**
+     * The first TTTW protocol minor version which supports encrypting packets
+     * in GCM mode using a {@link CipherSession}.
+     */
+    public static final int PROTOCOL_MINOR_GCM = 5;
+    
+    /**
+     * The first TTTW protocol minor version which supports resuming an
+     * encrypted session using a {@link PacketSessionTicket}.
+     */
+    public static final int PROTOCOL_MINOR_RESUMPTION = 6;
+    
+    /**
+     * The first TTTW protocol minor version which supports agreeing on a
+     * session key with ephemeral ECDH, using a {@link KeyShare} signed by the
+     * server, rather than sending a key encrypted with the server's RSA key.
+     */
+    public static final int PROTOCOL_MINOR_ECDH = 7;
+    
+    /**
+     * The first TTTW protocol minor version in which the server may send every
+     * client the same {@link PacketGlobalPlayerList}, including the client
+     * itself, so that the list only needs to be encoded once. The client
+     * leaves itself out when showing the list.
+     */
+    public static final int PROTOCOL_MINOR_SHARED_PLAYER_LIST = 8;
+    
+    /**
+     * The first TTTW protocol minor version which supports versioned
+     * {@link PacketPlayerListUpdate}s, which only carry the changes to the
+     * player list, in place of {@link PacketGlobalPlayerList}.
+     */
+    public static final int PROTOCOL_MINOR_PLAYER_LIST_UPDATES = 9;
+    
+    /**
+     * The first TTTW protocol minor version in which clients fetch the player
+     * list a page at a time with {@link PacketPlayerPageRequest}s, in place of
+     * being sent the whole list.
+     */
+    public static final int PROTOCOL_MINOR_PLAYER_DIRECTORY = 10;
     
     /**
      * The maximum time (in milliseconds) that a timestamp on a packet is
@@ -58,19 +140,91 @@ public class TTTWConnection {
      */
     public static final boolean DEBUG_NO_COMPRESSION = false;
     
+    /**
+     * The amount of packet data (in bytes) which may be held back for a
+     * batched frame before the batch is sent regardless of whether the current
+     * batch has ended.
+     */
+    public static final int BATCH_FLUSH_SIZE = 16 * 1024;
+    
+    /**
+     * The default size (in bytes) of the largest frame which a connection will
+     * accept, and of the largest packet which a compressed frame may inflate
+     * to. See {@link #setMaxFrameSize(int)}.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+    
+    private static ThreadLocal<BatchScope> batchScope = new ThreadLocal<BatchScope>();
+    
+    // Preset dictionary for streaming deflate, containing the strings most
+    // likely to appear in packets, with the most common ones at the end
+    private static final byte[] DEFLATE_DICTIONARY = ("{\"protocol_version\":{\"major\":2,\"minor\":"
+            + "{\"crypt_key\":\"{\"public_key\":\"{\"server_name\":\"\"register_allowed\":true,"
+            + "\"compress_threshold\":{\"password\":\"\"disconnect_reason\":\"{\"timeout\":"
+            + "{\"result\":\"ok\",{\"result\":\"won\",{\"result\":\"lost\",{\"result\":\"drawn\","
+            + "{\"response\":\"accept\",{\"response\":\"reject\",{\"sender\":{\"x\":1,\"y\":1,"
+            + "{\"chat_message\":\"{\"username\":\"\",\"admin\":false},{\"username\":\"\",\"admin\":true},"
+            + "{\"players\":[{\"username\":\"\"your_turn\":false,\"game_over\":false,\"board\":\""
+            + "\"your_turn\":true,\"game_over\":false,\"board\":\"\",\"id\":\"\",\"packet_id\":"
+            + "\",\"timestamp\":1").getBytes(StandardCharsets.UTF_8);
+    
+    // Every sync flush ends with this empty stored block, so it is left off of
+    // deflated frames and added back when they are received
+    private static final byte[] DEFLATE_SYNC_TRAILER = new byte[] { 0, 0, (byte) 0xFF, (byte) 0xFF };
+    
     private Socket socket;
+    private String address;
     private DataInputStream input;
     private DataOutputStream output;
     
+    private SocketChannel channel;
+    private ByteBuffer frameHeader;
+    private ByteBuffer frameBody;
+    private Queue<ByteBuffer> receivedFrames;
+    private AtomicInteger receivedBytes;
+    private int receiveQueueLimit = -1;
+    private AtomicBoolean readPaused;
+    private volatile boolean endOfStream;
+    private ReadResumeListener readListener;
+    private WritePendingListener writeListener;
+    
+    private Object writeLock = new Object();
+    private Executor writeExecutor;
+    private Deque<ByteBuffer> sendQueue;
+    private int sendQueueBytes;
+    private int sendQueueLimit = -1;
+    private boolean draining;
+    private Socket closeAfterDrain;
+    private volatile long lastWriteProgress;
+    private volatile boolean slowConsumer;
+    
+    private int remoteMinorVersion = 0;
+    private BufferPool bufferPool = BufferPool.getShared();
+    private int maxFrameSize = TTTWConnection.DEFAULT_MAX_FRAME_SIZE;
+    
+    private PooledOutputStream pendingBatch = new PooledOutputStream(this.bufferPool);
+    private int pendingBatchCount;
+    private int pendingBatchPacketId;
+    private SharedPacket.Encoding pendingBatchShared;
+    
     private int compressThreshold = -1;
+    private CompressionPolicy compressionPolicy;
+    private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+    
+    private Deflater deflater;
+    private Inflater inflater;
     
     private byte[] cryptKey;
+    private CipherSession cipherSession;
     private SecureRandom cryptRandom = new SecureRandom();
     
-    private HashMap<Class<? extends Packet>, FilteredHandler<?>> handlers = new HashMap<Class<? extends Packet>, FilteredHandler<?>>();
+    private volatile DispatchTable dispatchTable = DispatchTable.EMPTY;
     private List<DisconnectListener> disconnectListeners = new ArrayList<DisconnectListener>();
     
+    private Object readLock = new Object();
+    private Queue<Packet> decodedPackets = new ConcurrentLinkedQueue<Packet>();
     private byte[] packetBuffer;
+    private int packetBufferLength;
     private int packetBufferPos;
     
     private long lastPacket;
@@ -85,9 +239,44 @@ public class TTTWConnection {
      *             streams on the given socket.
      */
     public TTTWConnection(Socket socket) throws IOException {
+        this(socket, null);
+    }
+    
+    /**
+     * Creates a new TTTW-compliant connection on top of the given socket
+     * channel. The channel is switched into non-blocking mode, and data must be
+     * pulled off of it by calling {@link #readFrames(ByteBuffer)} whenever the
+     * channel is readable. Outgoing packets are queued and written out as the
+     * channel allows; see {@link #flushSendQueue()}.
+     * 
+     * @param channel The socket channel on which this connection should
+     *            operate.
+     * 
+     * @throws IOException There was an error switching the given channel into
+     *             non-blocking mode.
+     */
+    public TTTWConnection(SocketChannel channel) throws IOException {
+        this(channel.socket(), channel);
+    }
+    
+    private TTTWConnection(Socket socket, SocketChannel channel) throws IOException {
         this.socket = socket;
-        this.input = new DataInputStream(socket.getInputStream());
-        this.output = new DataOutputStream(socket.getOutputStream());
+        this.address = socket.getInetAddress() + ":" + socket.getPort();
+        
+        if (channel == null) {
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.output = new DataOutputStream(socket.getOutputStream());
+        } else {
+            this.channel = channel;
+            this.channel.configureBlocking(false);
+            
+            this.frameHeader = ByteBuffer.allocate(4);
+            this.receivedFrames = new ConcurrentLinkedQueue<ByteBuffer>();
+            this.receivedBytes = new AtomicInteger();
+            this.readPaused = new AtomicBoolean();
+        }
+        
+        this.sendQueue = new ArrayDeque<ByteBuffer>();
         
         this.setDefaultHandler(PacketDisconnect.class, new DisconnectHandler());
         
@@ -117,8 +306,8 @@ public class TTTWConnection {
     
     /**
      * Sets the default handler for the given type of packet. The default
-     * handler for a packet is used only when no filtered handler is capable of
-     * handling the packet.
+     * handler for a packet is used only when no keyed or filtered handler is
+     * capable of handling the packet.
      * 
      * @param <P> The type of packet being handled.
      * 
@@ -127,23 +316,57 @@ public class TTTWConnection {
      * @param handler The default handler which should be used for the given
      *            packet type.
      */
-    @SuppressWarnings("unchecked")
     public synchronized <P extends Packet> void setDefaultHandler(Class<P> packetType, PacketHandler<P> handler) {
-        if (!this.handlers.containsKey(packetType)) {
-            if (handler != null) {
-                FilteredHandler<P> internalHandler = new FilteredHandler<P>();
-                internalHandler.defaultHandler = handler;
-                
-                this.handlers.put(packetType, internalHandler);
-            }
-        } else {
-            FilteredHandler<P> internalHandler = ((FilteredHandler<P>) this.handlers.get(packetType));
-            internalHandler.defaultHandler = handler;
-            
-            if (internalHandler.handlers.isEmpty() && internalHandler.defaultHandler == null) {
-                this.handlers.remove(packetType);
-            }
-        }
+        int packetId = Packet.getPacketId(packetType);
+        Route<P> route = this.getRoute(packetId);
+        
+        this.dispatchTable = this.dispatchTable.withRoute(packetId, route.withDefaultHandler(handler));
+    }
+    
+    /**
+     * Adds a keyed handler for the given type of packet. A keyed handler
+     * receives only those packets whose {@link Packet#getRoutingKey() routing
+     * key} is equal to the given key, such as the packets for a single game or
+     * challenge. Keyed handlers are found through a hash lookup, and are
+     * preferred over both filtered handlers and the default handler. Adding a
+     * keyed handler replaces any other handler with the same key for the given
+     * type of packet.
+     * 
+     * @param <P> The type of packet being handled.
+     * 
+     * @param packetType The type of packet for which a keyed handler should be
+     *            added.
+     * @param key The routing key of the packets which should be passed to this
+     *            handler.
+     * @param handler The handler which should be executed for any packets with
+     *            the given routing key.
+     */
+    public synchronized <P extends Packet> void addKeyedHandler(Class<P> packetType, Object key,
+            PacketHandler<P> handler) {
+        int packetId = Packet.getPacketId(packetType);
+        Route<P> route = this.getRoute(packetId);
+        
+        this.dispatchTable = this.dispatchTable.withRoute(packetId, route.withKeyedHandler(key, handler));
+    }
+    
+    /**
+     * Removes a keyed handler for the given type of packet. If the handler
+     * provided is not the keyed handler for the given key and type of packet,
+     * no action is taken.
+     * 
+     * @param <P> The type of packet being handled.
+     * 
+     * @param packetType The type of packet for which a keyed handler should be
+     *            removed.
+     * @param key The routing key with which the handler was added.
+     * @param handler The keyed handler that should be removed.
+     */
+    public synchronized <P extends Packet> void removeKeyedHandler(Class<P> packetType, Object key,
+            PacketHandler<P> handler) {
+        int packetId = Packet.getPacketId(packetType);
+        Route<P> route = this.getRoute(packetId);
+        
+        this.dispatchTable = this.dispatchTable.withRoute(packetId, route.withoutKeyedHandler(key, handler));
     }
     
     /**
@@ -152,6 +375,11 @@ public class TTTWConnection {
      * the filtered handler is capable of handling the packet. If multiple
      * filtered handlers are capable of handling a packet, it is
      * <em>undefined</em> which handler is used.
+     * <p>
+     * Every filter for a type of packet is checked in turn until one accepts
+     * the packet, so handlers which only care about packets with a particular
+     * routing key should be added with
+     * {@link #addKeyedHandler(Class, Object, PacketHandler)} instead.
      * 
      * @param <P> The type of packet being handled.
      * 
@@ -162,17 +390,12 @@ public class TTTWConnection {
      * @param handler The handler which should be executed for any packets
      *            matching the given filter.
      */
-    @SuppressWarnings("unchecked")
     public synchronized <P extends Packet> void addFilteredHandler(Class<P> packetType, PacketFilter<? super P> filter,
             PacketHandler<P> handler) {
-        if (!this.handlers.containsKey(packetType)) {
-            FilteredHandler<P> internalHandler = new FilteredHandler<P>();
-            internalHandler.handlers.put(handler, filter);
-            
-            this.handlers.put(packetType, internalHandler);
-        } else {
-            ((FilteredHandler<P>) this.handlers.get(packetType)).handlers.put(handler, filter);
-        }
+        int packetId = Packet.getPacketId(packetType);
+        Route<P> route = this.getRoute(packetId);
+        
+        this.dispatchTable = this.dispatchTable.withRoute(packetId, route.withFilteredHandler(handler, filter));
     }
     
     /**
@@ -186,16 +409,17 @@ public class TTTWConnection {
      *            be removed.
      * @param handler The filtered handler that should be removed.
      */
-    @SuppressWarnings("unchecked")
     public synchronized <P extends Packet> void removeFilteredHandler(Class<P> packetType, PacketHandler<P> handler) {
-        if (this.handlers.containsKey(packetType)) {
-            FilteredHandler<P> internalHandler = (FilteredHandler<P>) this.handlers.get(packetType);
-            internalHandler.handlers.remove(handler);
-            
-            if (internalHandler.handlers.isEmpty() && internalHandler.defaultHandler == null) {
-                this.handlers.remove(packetType);
-            }
-        }
+        int packetId = Packet.getPacketId(packetType);
+        Route<P> route = this.getRoute(packetId);
+        
+        this.dispatchTable = this.dispatchTable.withRoute(packetId, route.withoutFilteredHandler(handler));
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <P extends Packet> Route<P> getRoute(int packetId) {
+        Route<P> route = (Route<P>) this.dispatchTable.getRoute(packetId);
+        return (route != null) ? route : new Route<P>();
     }
     
     /**
@@ -233,7 +457,7 @@ public class TTTWConnection {
      *         connection.
      */
     public String getAddress() {
-        return this.socket.getInetAddress() + ":" + this.socket.getPort();
+        return this.address;
     }
     
     /**
@@ -246,14 +470,15 @@ public class TTTWConnection {
      *         connection.
      */
     public boolean isEncrypted() {
-        return this.cryptKey != null;
+        return this.cryptKey != null || this.cipherSession != null;
     }
     
     /**
      * Gets the current encryption key being used to encrypt and decrypt packets
-     * by this connection.
+     * in CBC mode by this connection.
      * 
-     * @return The AES-128 encryption key currently in use by this connection.
+     * @return The AES-128 encryption key currently in use by this connection,
+     *         or {@code null} if packets are not encrypted in CBC mode.
      */
     public byte[] getEncryptionKey() {
         return this.cryptKey;
@@ -280,13 +505,48 @@ public class TTTWConnection {
      *            decryption, or {@code null} to disable packet
      *            encryption/decryption.
      */
-    public synchronized void setEncryptionKey(byte[] key) {
-        this.cryptKey = key;
+    public void setEncryptionKey(byte[] key) {
+        synchronized (this.writeLock) {
+            try {
+                // Anything held back for batching was sent before the key
+                // changed, so it must be sent using the old key
+                this.flushPendingBatch();
+            } catch (IOException e) {
+                this.close();
+            }
+            
+            this.cryptKey = key;
+            this.cipherSession = null;
+        }
+    }
+    
+    /**
+     * Sets the cipher session in use by this connection for encrypting and
+     * decrypting packets in GCM mode. This should only be used if both ends of
+     * this connection support it; see {@link #isGcmSupported()}.
+     * 
+     * @param session The cipher session to be used for packet encryption and
+     *            decryption, or {@code null} to disable packet
+     *            encryption/decryption.
+     */
+    public void setCipherSession(CipherSession session) {
+        synchronized (this.writeLock) {
+            try {
+                // Anything held back for batching was sent before the key
+                // changed, so it must be sent using the old key
+                this.flushPendingBatch();
+            } catch (IOException e) {
+                this.close();
+            }
+            
+            this.cryptKey = null;
+            this.cipherSession = session;
+        }
     }
     
     /**
-     * Gets the minimum size of a JSON payload (in bytes) that will be gzip
-     * compressed before being sent.
+     * Gets the minimum size of a payload (in bytes) that will be compressed
+     * before being sent.
      * 
      * @return The minimum packet size before packets are compressed.
      */
@@ -295,254 +555,1342 @@ public class TTTWConnection {
     }
     
     /**
-     * Sets the minimum size of a JSON payload (in bytes) that will be gzip
-     * compressed before being sent.
+     * Sets the minimum size of a payload (in bytes) that will be compressed
+     * before being sent.
      * 
      * @param compressThreshold The new compression threshold.
      */
-    public synchronized void setCompressionThreshold(int compressThreshold) {
-        this.compressThreshold = compressThreshold;
-    }
-    
-    private synchronized void sendPacketInternal(Packet p) throws IOException {
-        if (this.output == null) {
-            return; // Closed sockets tell no tales
-        }
-        
-        byte[] pb = this.writeJsonPacket(p);
-        
-        if (!TTTWConnection.DEBUG_NO_COMPRESSION && this.compressThreshold >= 0 && pb.length >= this.compressThreshold) {
-            pb = this.writeCompressedPacket(pb);
-        }
-        
-        if (!TTTWConnection.DEBUG_NO_ENCRYPTION && this.cryptKey != null) {
-            pb = this.writeEncryptedPacket(pb);
-        }
-        
-        this.output.writeInt(pb.length);
-        this.output.write(pb);
-        this.output.flush();
-        
-        if (p instanceof PacketKeepAlive) {
-            this.keepAliveSent = true;
+    public void setCompressionThreshold(int compressThreshold) {
+        synchronized (this.writeLock) {
+            this.compressThreshold = compressThreshold;
         }
     }
     
     /**
-     * Sends a packet to this connection. The packet may be gzip compressed
-     * and/or encrypted before being sent depending on the settings of this
-     * connection. If this connection is already closed, no action will be
-     * taken.
+     * Gets the policy used to decide how each type of packet is compressed.
      * 
-     * @param p The packet that should be sent to this connection.
-     * @throws IOException An error occured while sending the packet.
+     * @return The compression policy in use by this connection, or
+     *         {@code null} if every payload over the compression threshold is
+     *         compressed at the default level.
      */
-    public synchronized void sendPacket(Packet p) throws IOException {
-        this.sendPacketInternal(p);
-    }
-    
-    private byte[] writeEncryptedPacket(byte[] payload) throws IOException {
-        if (this.cryptKey == null) {
-            throw new IOException("Encrypted packet sent before encryption initialized!");
-        }
-        
-        try {
-            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream()) {
-                byteOut.write('e');
-                
-                byte[] iv = new byte[16];
-                this.cryptRandom.nextBytes(iv);
-                byteOut.write(iv);
-                
-                byteOut.write(Crypto.encryptSymmetric(payload, this.cryptKey, iv));
-                
-                return byteOut.toByteArray();
-            }
-        } catch (CryptoException e) {
-            throw new IOException("Bad encryption on packet!", e);
-        }
-    }
-    
-    private byte[] writeCompressedPacket(byte[] payload) throws IOException {
-        return TTTWConnection.compress(payload);
+    public CompressionPolicy getCompressionPolicy() {
+        return this.compressionPolicy;
     }
     
-    private byte[] writeJsonPacket(Packet p) throws IOException {
-        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream()) {
-            byteOut.write('j');
-            byteOut.write(p.write().toString().getBytes(StandardCharsets.UTF_8));
-            
-            return byteOut.toByteArray();
+    /**
+     * Sets the policy used to decide how each type of packet is compressed.
+     * Payloads under the compression threshold are never compressed,
+     * regardless of the policy.
+     * 
+     * @param compressionPolicy The compression policy which should be used by
+     *            this connection, or {@code null} to compress every payload
+     *            over the compression threshold at the default level.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        synchronized (this.writeLock) {
+            this.compressionPolicy = compressionPolicy;
         }
     }
     
     /**
-     * Checks whether a packet is waiting to be handled.
+     * Gets the size of the largest frame which this connection will accept.
      * 
-     * @return {@code true} if there is data waiting on the input stream;
-     *         {@code false} otherwise.
-     * @throws IOException An error occurred while polling the input stream for
-     *             new data.
+     * @return The maximum frame size in bytes.
      */
-    public synchronized boolean isPacketWaiting() throws IOException {
-        return this.input.available() > 0;
+    public int getMaxFrameSize() {
+        return this.maxFrameSize;
     }
     
-    private synchronized Packet receivePacket() throws IOException {
-        int l;
-        
-        if (this.packetBuffer == null) {
-            this.packetBuffer = new byte[this.input.readInt()];
-            this.packetBufferPos = 0;
-        }
-        
-        while (this.packetBufferPos < this.packetBuffer.length
-                && (l = this.input.read(this.packetBuffer, this.packetBufferPos, this.packetBuffer.length - this.packetBufferPos)) > 0) {
-            this.packetBufferPos += l;
+    /**
+     * Sets the size of the largest frame which this connection will accept.
+     * Receiving a longer frame, or a compressed frame which inflates to a
+     * longer packet, fails with an {@link IOException} without more than this
+     * much memory being set aside for it, so that a hostile remote end cannot
+     * exhaust the heap. This does not limit the frames which are sent.
+     * 
+     * @param maxFrameSize The maximum frame size in bytes.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Maximum frame size must be positive!");
         }
         
-        if (this.packetBufferPos == this.packetBuffer.length) {
-            byte[] b = this.packetBuffer;
-            this.packetBuffer = null;
-            
-            Packet p = this.readPacket(b, 0);
-            
-            if (Math.abs(System.currentTimeMillis() - p.getTimestamp()) > TTTWConnection.MAX_CLOCK_DEVIATION) {
-                throw new IOException("Bad timestamp on packet! Check your system clock!");
-            } else {
-                this.lastPacket = System.currentTimeMillis();
-                this.keepAliveSent = false;
-                
-                return p;
-            }
-        } else {
-            return null;
-        }
+        this.maxFrameSize = maxFrameSize;
     }
     
-    private Packet readPacket(byte[] p, int start) throws IOException {
-        if (p[start] == 'e') {
-            return this.readEncryptedPacket(p, start + 1);
-        } else if (p[start] == 'z') {
-            return this.readCompressedPacket(p, start + 1);
-        } else if (p[start] == 'j') {
-            return this.readJsonPacket(p, start + 1);
-        } else {
-            throw new IOException("Unrecognized packet type!");
-        }
+    /**
+     * Sets the listener which should be notified when packets have been queued
+     * on this connection that could not be written to its socket channel right
+     * away. Only connections created on top of a {@link SocketChannel} ever
+     * notify this listener.
+     * 
+     * @param l The listener to be notified of pending writes, or {@code null}
+     *            to remove the current listener.
+     */
+    public void setWritePendingListener(WritePendingListener l) {
+        this.writeListener = l;
     }
     
-    private Packet readEncryptedPacket(byte[] encrypted, int start) throws IOException {
-        if (this.cryptKey == null) {
-            throw new IOException("Encrypted packet sent before encryption initialized!");
-        }
-        
-        byte[] iv = Arrays.copyOfRange(encrypted, start, start + 16);
-        
-        try {
-            return this.readPacket(Crypto.decryptSymmetric(encrypted, start + 16, this.cryptKey, iv), 0);
-        } catch (CryptoException e) {
-            throw new IOException("Bad encryption on packet!", e);
-        }
+    /**
+     * Sets the listener which should be notified when reading from this
+     * connection's socket channel may resume, after being paused because too
+     * much received data was waiting to be handled. Only connections created
+     * on top of a {@link SocketChannel} ever notify this listener.
+     * 
+     * @param l The listener to be notified when reading may resume, or
+     *            {@code null} to remove the current listener.
+     */
+    public void setReadResumeListener(ReadResumeListener l) {
+        this.readListener = l;
     }
     
-    private Packet readCompressedPacket(byte[] compressed, int start) throws IOException {
-        return this.readPacket(TTTWConnection.decompress(compressed, start), 0);
+    /**
+     * Sets the maximum amount of received data (in bytes) which may be
+     * waiting to be handled on this connection before reading from its socket
+     * channel is paused. While paused, {@link #readFrames(ByteBuffer)} reads
+     * nothing more, so data backs up in the socket until the remote end is
+     * made to wait, and the {@link ReadResumeListener} is notified once enough
+     * has been handled. Connections which use blocking reads ignore this
+     * limit, since they never read ahead of the packets being handled.
+     * 
+     * @param receiveQueueLimit The maximum number of bytes which may be
+     *            waiting, or a negative number for no limit.
+     */
+    public void setReceiveQueueLimit(int receiveQueueLimit) {
+        this.receiveQueueLimit = receiveQueueLimit;
     }
     
-    private Packet readJsonPacket(byte[] p, int start) throws IOException {
-        return Packet.readPacket(new String(p, start, p.length - start, StandardCharsets.UTF_8));
+    /**
+     * Checks whether reading from this connection's socket channel has been
+     * paused because too much received data is waiting to be handled. Always
+     * {@code false} on connections which do not operate on top of a socket
+     * channel.
+     * 
+     * @return {@code true} if nothing more should be read until the
+     *         {@link ReadResumeListener} is notified.
+     */
+    public boolean isReadPaused() {
+        return this.readPaused != null && this.readPaused.get();
     }
     
     /**
-     * Handles the next packet on this connection's input stream. If the packet
-     * could not be fully read, the currently read buffer will be stored and
-     * another attempt to read the remaining data will be made on the next call.
+     * Checks whether this connection is operating on top of a non-blocking
+     * socket channel rather than a blocking socket.
      * 
-     * @throws IOException An error occurred while reading or handling the
-     *             packet.
+     * @return {@code true} if this connection was created from a
+     *         {@link SocketChannel}; {@code false} otherwise.
      */
-    public void handleNextPacket() throws IOException {
-        this.handlePacket(this.receivePacket());
+    public boolean isNonBlocking() {
+        return this.channel != null;
     }
     
-    private void handlePacket(Packet p) throws IOException {
-        if (p == null) {
-            return;
-        } else if (handlers.containsKey(p.getClass())) {
-            this.handlePacket(handlers.get(p.getClass()), p);
-        } else if (!(p instanceof PacketKeepAlive)) {
-            throw new IOException("Unexpected packet!");
-        }
+    /**
+     * Sets the executor used to write queued packets out to this connection's
+     * socket. Once set, sending a packet only queues it, and a task on the
+     * given executor writes queued packets out in order, so that senders never
+     * block on a slow remote end. Connections operating on top of a
+     * {@link SocketChannel} always queue packets and ignore this executor.
+     * <p>
+     * The executor may block while writing, so it should not be shared with
+     * time-sensitive work.
+     * 
+     * @param writeExecutor The executor used to write out queued packets, or
+     *            {@code null} to write packets out immediately on the thread
+     *            which sends them.
+     */
+    public void setWriteExecutor(Executor writeExecutor) {
+        this.writeExecutor = writeExecutor;
     }
     
-    @SuppressWarnings("unchecked")
-    private <P extends Packet> void handlePacket(FilteredHandler<P> handler, Packet p) throws IOException {
-        handler.handlePacket((P) p);
+    /**
+     * Sets the maximum amount of data (in bytes) which may be queued to be
+     * sent on this connection. If sending a packet would cause more data than
+     * this to be queued, the remote end is considered too slow to keep up, all
+     * queued data is discarded, and nothing more will be sent on this
+     * connection. See {@link #isSlowConsumer()}.
+     * 
+     * @param sendQueueLimit The maximum number of bytes which may be queued, or
+     *            a negative number for no limit.
+     */
+    public void setSendQueueLimit(int sendQueueLimit) {
+        this.sendQueueLimit = sendQueueLimit;
     }
     
-    private static byte[] compress(byte[] payload) throws IOException {
-        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream()) {
-            byteOut.write('z');
-            
-            GZIPOutputStream gzOut = new GZIPOutputStream(byteOut);
-            
-            gzOut.write(payload);
-            gzOut.finish();
-            
-            return byteOut.toByteArray();
+    /**
+     * Gets the amount of data (in bytes) which is currently queued to be sent
+     * on this connection.
+     * 
+     * @return The number of bytes which have been queued but not yet written.
+     */
+    public int getSendQueueSize() {
+        synchronized (this.sendQueue) {
+            return this.sendQueueBytes;
         }
     }
     
-    private static byte[] decompress(byte[] compressed, int start) throws IOException {
-        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream()) {
-            try (ByteArrayInputStream byteIn = new ByteArrayInputStream(compressed, start, compressed.length - start)) {
-                GZIPInputStream gzIn = new GZIPInputStream(byteIn);
-                
-                byte[] buf = new byte[4096];
-                int length;
-                
-                while ((length = gzIn.read(buf)) > 0) {
-                    byteOut.write(buf, 0, length);
-                }
+    /**
+     * Gets the amount of time (in milliseconds) since any queued data was last
+     * written to this connection. If no data is queued, this is always 0.
+     * 
+     * @return The amount of time that queued data has been waiting without any
+     *         of it being written.
+     */
+    public long getSendStallTime() {
+        synchronized (this.sendQueue) {
+            if (this.sendQueueBytes == 0) {
+                return 0;
             }
-            
-            return byteOut.toByteArray();
         }
+        
+        return System.currentTimeMillis() - this.lastWriteProgress;
     }
     
     /**
-     * Closes this connection, preventing any further data from being sent to
-     * it.
+     * Checks whether the remote end of this connection has been found to be
+     * too slow to keep up with the packets being sent to it. Once this
+     * connection has been marked as a slow consumer, all further packets sent
+     * on it are discarded and it should be disconnected.
+     * 
+     * @return {@code true} if the send queue limit of this connection has
+     *         been exceeded; {@code false} otherwise.
      */
-    public void close() {
-        try {
-            this.socket.close();
-        } catch (IOException e) {
-            // Exceptions while closing the connection should be ignored
-        }
-        
-        this.socket = null;
-        this.input = null;
-        this.output = null;
+    public boolean isSlowConsumer() {
+        return this.slowConsumer;
     }
     
     /**
-     * Disconnects this connection with the given disconnection message. Before
-     * the actual disconnection, any {@link DisconnectListener}s on this
-     * connections will be called.
+     * Gets the minor version of the TTTW protocol in use by the remote end of
+     * this connection, as learned during the handshake.
      * 
-     * @param message The message which should be sent when disconnecting.
+     * @return The remote minor protocol version, or 0 if it is not yet known.
      */
-    public void disconnect(String message) {
-        try {
-            for (DisconnectListener listener : new ArrayList<DisconnectListener>(TTTWConnection.this.disconnectListeners)) {
-                listener.onDisconnect(false, message);
-            }
-            
-            try {
-                this.sendPacketInternal(new PacketDisconnect(message));
-            } catch (IOException e) {
+    public int getRemoteMinorVersion() {
+        return this.remoteMinorVersion;
+    }
+    
+    /**
+     * Sets the minor version of the TTTW protocol in use by the remote end of
+     * this connection. This should be called during the handshake, and
+     * determines which optional protocol features are used when sending
+     * packets to the remote end.
+     * 
+     * @param remoteMinorVersion The minor protocol version that the remote end
+     *            has reported.
+     */
+    public void setRemoteMinorVersion(int remoteMinorVersion) {
+        this.remoteMinorVersion = remoteMinorVersion;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support batched frames.
+     * 
+     * @return {@code true} if packets sent on this connection may be batched;
+     *         {@code false} otherwise.
+     */
+    public boolean isBatchingSupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_BATCHING
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_BATCHING;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support the compact binary
+     * packet encoding. If not, packets are sent encoded as JSON.
+     * 
+     * @return {@code true} if packets sent on this connection may be binary
+     *         encoded; {@code false} otherwise.
+     */
+    public boolean isBinarySupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_BINARY
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_BINARY;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support streaming deflate
+     * compression. If not, packets which are large enough to be compressed
+     * are each gzip compressed on their own.
+     * 
+     * @return {@code true} if packets sent on this connection may be
+     *         compressed using a single deflate stream; {@code false}
+     *         otherwise.
+     */
+    public boolean isDeflateSupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_DEFLATE
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_DEFLATE;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support encrypting packets
+     * in GCM mode. If not, packets are encrypted in CBC mode.
+     * 
+     * @return {@code true} if a {@link CipherSession} may be used to encrypt
+     *         packets on this connection; {@code false} otherwise.
+     */
+    public boolean isGcmSupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_GCM
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_GCM;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support resuming encrypted
+     * sessions using session tickets.
+     * 
+     * @return {@code true} if a {@link PacketSessionTicket} may be sent on
+     *         this connection; {@code false} otherwise.
+     */
+    public boolean isResumptionSupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_RESUMPTION
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_RESUMPTION;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support agreeing on a
+     * session key with ephemeral ECDH. If not, the session key is encrypted
+     * with the server's RSA key.
+     * 
+     * @return {@code true} if a {@link KeyShare} may be used to set up
+     *         encryption on this connection; {@code false} otherwise.
+     */
+    public boolean isEcdhSupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_ECDH
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_ECDH;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support shared player
+     * lists. If not, each client must be sent a player list without itself in
+     * it.
+     * 
+     * @return {@code true} if the player lists sent on this connection may
+     *         include the client itself; {@code false} otherwise.
+     */
+    public boolean isSharedPlayerListSupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_SHARED_PLAYER_LIST
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_SHARED_PLAYER_LIST;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support versioned player
+     * list updates. If not, the whole player list is sent whenever it
+     * changes.
+     * 
+     * @return {@code true} if {@link PacketPlayerListUpdate}s may be sent on
+     *         this connection; {@code false} otherwise.
+     */
+    public boolean isPlayerListUpdateSupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_PLAYER_LIST_UPDATES
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_PLAYER_LIST_UPDATES;
+    }
+    
+    /**
+     * Checks whether both ends of this connection support fetching the player
+     * list a page at a time. If not, the player list is sent to the client
+     * whenever it changes.
+     * 
+     * @return {@code true} if {@link PacketPlayerPage}s should be sent on this
+     *         connection in place of whole player lists; {@code false}
+     *         otherwise.
+     */
+    public boolean isPlayerDirectorySupported() {
+        return this.remoteMinorVersion >= TTTWConnection.PROTOCOL_MINOR_PLAYER_DIRECTORY
+                && TTTWConnection.PROTOCOL_MINOR_VERSION >= TTTWConnection.PROTOCOL_MINOR_PLAYER_DIRECTORY;
+    }
+    
+    /**
+     * Begins a batch on the current thread. Until the matching call to
+     * {@link #endBatch()}, packets sent by this thread to any connection which
+     * supports batching are held back, and are then sent to each connection
+     * as a single frame. This allows a burst of packets to be compressed,
+     * encrypted and written as one unit. Batches may be nested, in which case
+     * packets are held back until the outermost batch ends.
+     * <p>
+     * A connection's held back packets are only sent early if they grow larger
+     * than {@link #BATCH_FLUSH_SIZE}. Nothing sends them on a timer, so a batch
+     * should only be held open around a short burst of work, since packets
+     * sent early in a long task wait until it ends. Every packet received by
+     * {@link #handleNextPacket()} is handled inside a batch.
+     */
+    public static void beginBatch() {
+        BatchScope scope = TTTWConnection.batchScope.get();
+        
+        if (scope == null) {
+            scope = new BatchScope();
+            TTTWConnection.batchScope.set(scope);
+        }
+        
+        scope.depth++;
+    }
+    
+    /**
+     * Ends a batch on the current thread which was started by
+     * {@link #beginBatch()}. If this ends the outermost batch, all packets
+     * held back by this thread are sent. Any connection which fails while its
+     * packets are being sent is disconnected.
+     */
+    public static void endBatch() {
+        BatchScope scope = TTTWConnection.batchScope.get();
+        
+        if (scope == null || --scope.depth > 0) {
+            return;
+        }
+        
+        TTTWConnection.batchScope.remove();
+        
+        for (TTTWConnection c : scope.connections) {
+            try {
+                c.flushBatch();
+            } catch (IOException e) {
+                c.disconnect("Error sending packet!");
+            }
+        }
+    }
+    
+    /**
+     * Sends any packets which are being held back for a batched frame on this
+     * connection right away.
+     * 
+     * @throws IOException An error occurred while sending the packets.
+     */
+    public void flushBatch() throws IOException {
+        synchronized (this.writeLock) {
+            this.flushPendingBatch();
+        }
+    }
+    
+    private void sendPacketInternal(Packet p, SharedPacket shared) throws IOException {
+        synchronized (this.writeLock) {
+            if (this.socket == null || this.slowConsumer) {
+                return; // Closed sockets tell no tales
+            }
+            
+            BatchScope scope = TTTWConnection.batchScope.get();
+            boolean hold = scope != null && !(p instanceof PacketDisconnect);
+            
+            // Once anything has been held back, later packets must join it to
+            // stay in order, even if they are to be sent right away
+            if (this.isBatchingSupported() && (hold || this.pendingBatchCount > 0)) {
+                PooledOutputStream batch = this.pendingBatch;
+                
+                if (this.pendingBatchCount == 0) {
+                    this.pendingBatchPacketId = p.packetId;
+                    this.pendingBatchShared = (shared != null) ? shared.getEncoding(this.isBinarySupported()) : null;
+                    
+                    // The count is filled in once the batch is sent
+                    batch.write('m');
+                    batch.writeInt(0);
+                }
+                
+                // Each packet is encoded straight into the batched frame, after
+                // room for its length
+                int start = batch.size();
+                
+                batch.writeInt(0);
+                
+                if (shared != null) {
+                    batch.write(shared.getEncoding(this.isBinarySupported()).getPayload());
+                } else {
+                    TTTWConnection.writePacket(p, this.isBinarySupported(), batch);
+                }
+                
+                batch.setInt(start, batch.size() - start - 4);
+                
+                this.pendingBatchCount++;
+                
+                if (hold && batch.size() < TTTWConnection.BATCH_FLUSH_SIZE) {
+                    scope.connections.add(this);
+                } else {
+                    this.flushPendingBatch();
+                }
+            } else if (shared != null) {
+                SharedPacket.Encoding encoding = shared.getEncoding(this.isBinarySupported());
+                byte[] payload = encoding.getPayload();
+                
+                this.writeFrame(payload, 0, payload.length, p.packetId, encoding);
+            } else {
+                PooledOutputStream out = new PooledOutputStream(this.bufferPool);
+                
+                try {
+                    TTTWConnection.writePacket(p, this.isBinarySupported(), out);
+                    this.writeFrame(out.array(), 0, out.size(), p.packetId, null);
+                } finally {
+                    out.release();
+                }
+            }
+        }
+        
+        if (p instanceof PacketKeepAlive) {
+            this.keepAliveSent = true;
+        }
+    }
+    
+    private void flushPendingBatch() throws IOException {
+        if (this.pendingBatchCount == 0) {
+            return;
+        }
+        
+        PooledOutputStream batch = this.pendingBatch;
+        
+        try {
+            if (this.socket == null || this.slowConsumer) {
+                return;
+            } else if (this.pendingBatchCount == 1) {
+                // A lone packet is sent as it is, without the batch header, so
+                // a lone shared packet can still use its shared compressed form
+                this.writeFrame(batch.array(), 9, batch.size() - 9, this.pendingBatchPacketId,
+                        this.pendingBatchShared);
+            } else {
+                batch.setInt(1, this.pendingBatchCount);
+                this.writeFrame(batch.array(), 0, batch.size(), CompressionPolicy.BATCHED_FRAME, null);
+            }
+        } finally {
+            batch.release();
+            this.pendingBatchCount = 0;
+            this.pendingBatchShared = null;
+        }
+    }
+    
+    private void writeFrame(byte[] pb, int start, int length, int packetId, SharedPacket.Encoding shared)
+            throws IOException {
+        Socket socket = this.socket;
+        DataOutputStream output = this.output;
+        
+        if (socket == null) {
+            return;
+        }
+        
+        PooledOutputStream compressed = null;
+        
+        try {
+            if (!TTTWConnection.DEBUG_NO_COMPRESSION && this.compressThreshold >= 0 && length >= this.compressThreshold) {
+                if (shared != null) {
+                    // Compressed once for every connection it is sent to
+                    byte[] sharedCompressed = shared.getCompressed(this.compressionPolicy);
+                    
+                    if (sharedCompressed != null) {
+                        pb = sharedCompressed;
+                        start = 0;
+                        length = sharedCompressed.length;
+                    }
+                } else if ((compressed = this.writeCompressedPacket(pb, start, length, packetId)) != null) {
+                    pb = compressed.array();
+                    start = 0;
+                    length = compressed.size();
+                }
+            }
+            
+            byte[] frame;
+            int frameLength;
+            
+            if (!TTTWConnection.DEBUG_NO_ENCRYPTION && this.cipherSession != null) {
+                frameLength = 5 + length + CipherSession.TAG_LENGTH;
+                frame = this.writeGcmFrame(pb, start, length, frameLength);
+            } else {
+                if (!TTTWConnection.DEBUG_NO_ENCRYPTION && this.cryptKey != null) {
+                    pb = this.writeEncryptedPacket(Arrays.copyOfRange(pb, start, start + length));
+                    start = 0;
+                    length = pb.length;
+                }
+                
+                frameLength = 4 + length;
+                frame = this.bufferPool.acquire(frameLength);
+                System.arraycopy(pb, start, frame, 4, length);
+            }
+            
+            ByteBuffer buffer = ByteBuffer.wrap(frame, 0, frameLength);
+            buffer.putInt(0, frameLength - 4);
+            
+            if (this.channel != null || this.writeExecutor != null) {
+                // Frames must be queued while still holding the write lock, or
+                // they could be queued out of order. The frame goes back to the
+                // pool once it has been written.
+                this.queueFrame(buffer, socket, output);
+            } else {
+                try {
+                    output.write(frame, 0, frameLength);
+                    output.flush();
+                } finally {
+                    this.bufferPool.release(frame);
+                }
+            }
+        } finally {
+            if (compressed != null) {
+                compressed.release();
+            }
+        }
+    }
+    
+    private byte[] writeGcmFrame(byte[] payload, int start, int length, int frameLength) throws IOException {
+        // Encrypted straight into the frame, leaving room for its length
+        byte[] frame = this.bufferPool.acquire(frameLength);
+        frame[4] = 'g';
+        
+        try {
+            this.cipherSession.encrypt(payload, start, length, frame, 5);
+        } catch (CryptoException e) {
+            this.bufferPool.release(frame);
+            throw new IOException("Bad encryption on packet!", e);
+        }
+        
+        return frame;
+    }
+    
+    private void queueFrame(ByteBuffer frame, Socket socket, DataOutputStream output) throws IOException {
+        boolean flushed = true;
+        boolean startDrain = false;
+        
+        synchronized (this.sendQueue) {
+            if (this.sendQueueLimit >= 0 && this.sendQueueBytes + frame.remaining() > this.sendQueueLimit) {
+                this.slowConsumer = true;
+                this.clearSendQueue();
+                this.bufferPool.release(frame.array());
+                
+                throw new IOException("Send queue limit exceeded!");
+            }
+            
+            if (this.sendQueueBytes == 0) {
+                this.lastWriteProgress = System.currentTimeMillis();
+            }
+            
+            this.sendQueue.addLast(frame);
+            this.sendQueueBytes += frame.remaining();
+            
+            if (this.channel != null) {
+                flushed = this.flushSendQueue();
+            } else if (!this.draining) {
+                this.draining = true;
+                startDrain = true;
+            }
+        }
+        
+        if (!flushed && this.writeListener != null) {
+            this.writeListener.onWritePending(this);
+        }
+        
+        if (startDrain) {
+            this.writeExecutor.execute(new SendQueueDrainer(socket, output));
+        }
+    }
+    
+    private void clearSendQueue() {
+        ByteBuffer frame;
+        
+        // Frames which are already being written are no longer in the queue,
+        // but are still counted until the writer is done with them
+        while ((frame = this.sendQueue.pollFirst()) != null) {
+            this.sendQueueBytes -= frame.remaining();
+            this.bufferPool.release(frame.array());
+        }
+    }
+    
+    /**
+     * Sends a packet to this connection. The packet may be compressed
+     * and/or encrypted before being sent depending on the settings of this
+     * connection. If this connection is already closed, no action will be
+     * taken.
+     * <p>
+     * Depending on how this connection was set up, the packet may only be
+     * queued to be sent once this method returns. See
+     * {@link #setWriteExecutor(Executor)}.
+     * 
+     * @param p The packet that should be sent to this connection.
+     * @throws IOException An error occured while sending the packet, or the
+     *             send queue limit of this connection has been exceeded.
+     */
+    public void sendPacket(Packet p) throws IOException {
+        this.sendPacketInternal(p, null);
+    }
+    
+    /**
+     * Sends a packet which is being sent to many connections at once. This
+     * behaves exactly like {@link #sendPacket(Packet)}, except that the packet
+     * is only encoded and compressed by the first connection to need it in
+     * each form, and later connections reuse those bytes; see
+     * {@link SharedPacket}.
+     * 
+     * @param p The shared packet to send.
+     * @throws IOException An error occurred while sending the packet, or the
+     *             send queue limit of this connection has been exceeded.
+     */
+    public void sendSharedPacket(SharedPacket p) throws IOException {
+        this.sendPacketInternal(p.getPacket(), p);
+    }
+    
+    private byte[] writeEncryptedPacket(byte[] payload) throws IOException {
+        if (this.cryptKey == null) {
+            throw new IOException("Encrypted packet sent before encryption initialized!");
+        }
+        
+        try {
+            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream()) {
+                byteOut.write('e');
+                
+                byte[] iv = new byte[16];
+                this.cryptRandom.nextBytes(iv);
+                byteOut.write(iv);
+                
+                byteOut.write(Crypto.encryptSymmetric(payload, this.cryptKey, iv));
+                
+                return byteOut.toByteArray();
+            }
+        } catch (CryptoException e) {
+            throw new IOException("Bad encryption on packet!", e);
+        }
+    }
+    
+    private PooledOutputStream writeCompressedPacket(byte[] payload, int start, int length, int packetId)
+            throws IOException {
+        CompressionPolicy policy = this.compressionPolicy;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        
+        if (policy != null && (level = policy.getLevel(packetId, length)) == CompressionPolicy.SKIP) {
+            return null;
+        }
+        
+        long time = System.nanoTime();
+        PooledOutputStream compressed = new PooledOutputStream(this.bufferPool);
+        
+        try {
+            if (this.isDeflateSupported()) {
+                this.writeDeflatedPacket(payload, start, length, level, compressed);
+            } else {
+                TTTWConnection.compress(payload, start, length, level, compressed);
+            }
+        } catch (IOException e) {
+            compressed.release();
+            throw e;
+        }
+        
+        if (policy != null) {
+            policy.record(packetId, length, compressed.size() - 1, System.nanoTime() - time);
+        }
+        
+        return compressed;
+    }
+    
+    private void writeDeflatedPacket(byte[] payload, int start, int length, int level, PooledOutputStream out)
+            throws IOException {
+        if (this.deflater == null) {
+            this.deflater = new Deflater(level, true);
+            this.deflater.setDictionary(TTTWConnection.DEFLATE_DICTIONARY);
+            this.deflateLevel = level;
+        }
+        
+        out.write('d');
+        
+        if (level != this.deflateLevel) {
+            // A new level is only applied by the next call to deflate, which
+            // does nothing else. If that call were given input, the input
+            // would be compressed without being flushed.
+            this.deflater.setLevel(level);
+            this.deflate(out, 256);
+            
+            this.deflateLevel = level;
+        }
+        
+        // A sync flush leaves the deflater ready for the next frame without
+        // resetting it, so later frames can refer back to earlier ones
+        this.deflater.setInput(payload, start, length);
+        this.deflate(out, Math.max(256, length / 2));
+        
+        out.truncate(out.size() - TTTWConnection.DEFLATE_SYNC_TRAILER.length);
+    }
+    
+    private void deflate(PooledOutputStream out, int expected) throws IOException {
+        int space;
+        int length;
+        
+        // Compressed straight into the end of the stream's array
+        do {
+            space = out.reserve(expected);
+            length = this.deflater.deflate(out.array(), out.size(), space, Deflater.SYNC_FLUSH);
+            out.advance(length);
+        } while (length == space || !this.deflater.needsInput());
+    }
+    
+    static void writePacket(Packet p, boolean binary, OutputStream out) throws IOException {
+        if (binary) {
+            out.write('b');
+            Packet.writePacket(p, new DataOutputStream(out));
+        } else {
+            out.write('j');
+            out.write(p.write().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * Checks whether a packet is waiting to be handled.
+     * 
+     * @return {@code true} if there is data waiting on the input stream;
+     *         {@code false} otherwise.
+     * @throws IOException An error occurred while polling the input stream for
+     *             new data.
+     */
+    public boolean isPacketWaiting() throws IOException {
+        if (!this.decodedPackets.isEmpty()) {
+            return true;
+        } else if (this.channel != null) {
+            return !this.receivedFrames.isEmpty() || this.endOfStream;
+        }
+        
+        synchronized (this.readLock) {
+            return this.input.available() > 0;
+        }
+    }
+    
+    /**
+     * Checks whether the remote end of this connection's socket channel has
+     * been closed. Always {@code false} on connections which do not operate on
+     * top of a socket channel.
+     * 
+     * @return {@code true} if no more data will be read from this connection.
+     */
+    public boolean isEndOfStream() {
+        return this.endOfStream;
+    }
+    
+    /**
+     * Writes as much of this connection's queued outgoing data to its socket
+     * channel as the channel will currently accept without blocking. This
+     * should be called whenever the channel becomes writable while packets
+     * are still pending. Does nothing on connections which do not operate on
+     * top of a socket channel.
+     * 
+     * @return {@code true} if all queued data has been written; {@code false}
+     *         if some data is still waiting to be written.
+     * @throws IOException An error occurred while writing to the channel.
+     */
+    public boolean flushSendQueue() throws IOException {
+        if (this.channel == null) {
+            return true;
+        }
+        
+        synchronized (this.sendQueue) {
+            while (!this.sendQueue.isEmpty()) {
+                ByteBuffer frame = this.sendQueue.peekFirst();
+                int written = this.channel.write(frame);
+                
+                if (written > 0) {
+                    this.sendQueueBytes -= written;
+                    this.lastWriteProgress = System.currentTimeMillis();
+                }
+                
+                if (frame.hasRemaining()) {
+                    return false;
+                }
+                
+                this.sendQueue.removeFirst();
+                this.bufferPool.release(frame.array());
+            }
+            
+            return true;
+        }
+    }
+    
+    /**
+     * Reads all data which is currently available on this connection's socket
+     * channel without blocking, splitting it into complete packet frames.
+     * Complete frames are queued to be decoded and handled by later calls to
+     * {@link #handleNextPacket()}; partial frames are kept until the rest of
+     * their data arrives. If the remote end has closed the connection, the
+     * frames already read are still handled first, after which
+     * {@link #handleNextPacket()} fails with an {@link EOFException}.
+     * <p>
+     * Once more data than the receive queue limit is waiting to be handled,
+     * this method stops reading and pauses the connection; see
+     * {@link #isReadPaused()}.
+     * <p>
+     * This method should only ever be called by a single thread at a time,
+     * normally the thread which is waiting on the channel's readiness.
+     * 
+     * @param buffer A scratch buffer into which data will be read. Its contents
+     *            are discarded when this method returns, so it may be shared
+     *            between connections.
+     * @return The number of complete frames that were queued by this call.
+     * @throws IOException An error occurred while reading from the channel.
+     */
+    public int readFrames(ByteBuffer buffer) throws IOException {
+        int frames = 0;
+        int read;
+        
+        if (this.isReadPaused()) {
+            return 0;
+        }
+        
+        do {
+            buffer.clear();
+            read = this.channel.read(buffer);
+            
+            if (read < 0) {
+                this.endOfStream = true;
+                return frames;
+            }
+            
+            buffer.flip();
+            
+            while (buffer.hasRemaining()) {
+                if (this.frameBody == null) {
+                    TTTWConnection.transfer(buffer, this.frameHeader);
+                    
+                    if (this.frameHeader.hasRemaining()) {
+                        break;
+                    }
+                    
+                    this.frameHeader.flip();
+                    int length = this.frameHeader.getInt();
+                    this.frameHeader.clear();
+                    
+                    if (length <= 0) {
+                        throw new IOException("Invalid packet length!");
+                    } else if (length > this.maxFrameSize) {
+                        throw new IOException("Packet too large!");
+                    }
+                    
+                    this.frameBody = ByteBuffer.wrap(this.bufferPool.acquire(length), 0, length);
+                }
+                
+                TTTWConnection.transfer(buffer, this.frameBody);
+                
+                if (!this.frameBody.hasRemaining()) {
+                    this.frameBody.flip();
+                    this.receivedBytes.addAndGet(this.frameBody.limit());
+                    this.receivedFrames.add(this.frameBody);
+                    this.frameBody = null;
+                    frames++;
+                }
+            }
+        } while (read == buffer.capacity() && !this.isReceiveQueueFull());
+        
+        if (this.isReceiveQueueFull()) {
+            this.readPaused.set(true);
+            
+            // The handler may have caught up before the pause was seen, in
+            // which case nobody else would resume reading
+            if (!this.isReceiveQueueFull()) {
+                this.readPaused.compareAndSet(true, false);
+            }
+        }
+        
+        return frames;
+    }
+    
+    private boolean isReceiveQueueFull() {
+        return this.receiveQueueLimit >= 0 && this.receivedBytes.get() >= this.receiveQueueLimit;
+    }
+    
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int limit = src.limit();
+        
+        src.limit(src.position() + Math.min(src.remaining(), dst.remaining()));
+        dst.put(src);
+        src.limit(limit);
+    }
+    
+    private Packet receivePacket() throws IOException {
+        Packet waiting = this.decodedPackets.poll();
+        
+        if (waiting != null) {
+            return waiting; // Left over from a batched frame
+        }
+        
+        byte[] b = null;
+        int length = 0;
+        
+        if (this.channel != null) {
+            ByteBuffer frame = this.receivedFrames.poll();
+            
+            if (frame != null) {
+                b = frame.array();
+                length = frame.limit();
+                
+                this.receivedBytes.addAndGet(-length);
+                
+                if (!this.isReceiveQueueFull() && this.readPaused.compareAndSet(true, false)) {
+                    ReadResumeListener l = this.readListener;
+                    
+                    if (l != null) {
+                        l.onReadResumed(this);
+                    }
+                }
+            } else if (this.endOfStream) {
+                throw new EOFException("Connection closed by remote host!");
+            }
+        } else {
+            // Blocking reads must not hold this connection's monitor, or
+            // nothing could be sent to it while waiting for a packet
+            synchronized (this.readLock) {
+                DataInputStream input = this.input;
+                int l;
+                
+                if (input == null) {
+                    throw new EOFException("Connection has been closed!");
+                }
+                
+                if (this.packetBuffer == null) {
+                    l = input.readInt();
+                    
+                    // Checked before anything is allocated, since the length
+                    // comes straight from the remote end
+                    if (l <= 0) {
+                        throw new IOException("Invalid packet length!");
+                    } else if (l > this.maxFrameSize) {
+                        throw new IOException("Packet too large!");
+                    }
+                    
+                    this.packetBuffer = this.bufferPool.acquire(l);
+                    this.packetBufferLength = l;
+                    this.packetBufferPos = 0;
+                }
+                
+                while (this.packetBufferPos < this.packetBufferLength
+                        && (l = input.read(this.packetBuffer, this.packetBufferPos, this.packetBufferLength
+                                - this.packetBufferPos)) != 0) {
+                    if (l < 0) {
+                        throw new EOFException("Connection closed by remote host!");
+                    }
+                    
+                    this.packetBufferPos += l;
+                }
+                
+                if (this.packetBufferPos == this.packetBufferLength) {
+                    b = this.packetBuffer;
+                    length = this.packetBufferLength;
+                    this.packetBuffer = null;
+                }
+            }
+        }
+        
+        if (b != null) {
+            List<Packet> packets = new ArrayList<Packet>(1);
+            
+            // Decoded packets never refer back to the frame, so it can be
+            // reused as soon as it has been read
+            try {
+                this.readPacket(b, 0, length, packets);
+            } finally {
+                this.bufferPool.release(b);
+            }
+            
+            for (Packet p : packets) {
+                if (Math.abs(System.currentTimeMillis() - p.getTimestamp()) > TTTWConnection.MAX_CLOCK_DEVIATION) {
+                    throw new IOException("Bad timestamp on packet! Check your system clock!");
+                }
+            }
+            
+            this.lastPacket = System.currentTimeMillis();
+            this.keepAliveSent = false;
+            
+            this.decodedPackets.addAll(packets.subList(1, packets.size()));
+            return packets.get(0);
+        } else {
+            return null;
+        }
+    }
+    
+    private void readPacket(byte[] p, int start, int end, List<Packet> packets) throws IOException {
+        if (start >= end) {
+            throw new IOException("Empty packet!");
+        } else if (p[start] == 'g') {
+            this.readGcmPacket(p, start + 1, end, packets);
+        } else if (p[start] == 'e') {
+            this.readEncryptedPacket(p, start + 1, end, packets);
+        } else if (p[start] == 'z') {
+            this.readCompressedPacket(p, start + 1, end, packets);
+        } else if (p[start] == 'd') {
+            this.readDeflatedPacket(p, start + 1, end, packets);
+        } else if (p[start] == 'm') {
+            this.readBatchPacket(p, start + 1, end, packets);
+        } else if (p[start] == 'b') {
+            this.readBinaryPacket(p, start + 1, end, packets);
+        } else if (p[start] == 'j') {
+            this.readJsonPacket(p, start + 1, end, packets);
+        } else {
+            throw new IOException("Unrecognized packet type!");
+        }
+    }
+    
+    private void readGcmPacket(byte[] encrypted, int start, int end, List<Packet> packets) throws IOException {
+        CipherSession session = this.cipherSession;
+        
+        if (session == null) {
+            throw new IOException("Encrypted packet sent before encryption initialized!");
+        } else if (end - start < CipherSession.TAG_LENGTH) {
+            throw new IOException("Bad encryption on packet!");
+        }
+        
+        try {
+            // Nothing else refers to the frame, so it is decrypted in place
+            int length = session.decrypt(encrypted, start, end - start, encrypted, start);
+            this.readPacket(encrypted, start, start + length, packets);
+        } catch (CryptoException e) {
+            throw new IOException("Bad encryption on packet!", e);
+        }
+    }
+    
+    private void readEncryptedPacket(byte[] encrypted, int start, int end, List<Packet> packets) throws IOException {
+        if (this.cryptKey == null) {
+            throw new IOException("Encrypted packet sent before encryption initialized!");
+        } else if (end - start < 16) {
+            throw new IOException("Bad encryption on packet!");
+        }
+        
+        byte[] iv = Arrays.copyOfRange(encrypted, start, start + 16);
+        
+        if (end != encrypted.length) {
+            encrypted = Arrays.copyOfRange(encrypted, 0, end);
+        }
+        
+        try {
+            byte[] decrypted = Crypto.decryptSymmetric(encrypted, start + 16, this.cryptKey, iv);
+            this.readPacket(decrypted, 0, decrypted.length, packets);
+        } catch (CryptoException e) {
+            throw new IOException("Bad encryption on packet!", e);
+        }
+    }
+    
+    private void readCompressedPacket(byte[] compressed, int start, int end, List<Packet> packets) throws IOException {
+        PooledOutputStream decompressed = new PooledOutputStream(this.bufferPool, this.maxFrameSize);
+        
+        try {
+            TTTWConnection.decompress(compressed, start, end, decompressed);
+            this.readPacket(decompressed.array(), 0, decompressed.size(), packets);
+        } finally {
+            decompressed.release();
+        }
+    }
+    
+    private void readDeflatedPacket(byte[] deflated, int start, int end, List<Packet> packets) throws IOException {
+        // Inflating stops at the frame size limit, so that a small frame
+        // cannot expand into an enormous packet
+        PooledOutputStream inflated = new PooledOutputStream(this.bufferPool, this.maxFrameSize);
+        
+        try {
+            // Deflated frames must be inflated in the order in which they were
+            // sent, which the single reader of this connection already ensures
+            synchronized (this.readLock) {
+                if (this.inflater == null) {
+                    this.inflater = new Inflater(true);
+                    this.inflater.setDictionary(TTTWConnection.DEFLATE_DICTIONARY);
+                }
+                
+                this.inflate(deflated, start, end, inflated);
+                this.inflate(TTTWConnection.DEFLATE_SYNC_TRAILER, 0, TTTWConnection.DEFLATE_SYNC_TRAILER.length,
+                        inflated);
+            }
+            
+            this.readPacket(inflated.array(), 0, inflated.size(), packets);
+        } finally {
+            inflated.release();
+        }
+    }
+    
+    private void inflate(byte[] b, int start, int end, PooledOutputStream out) throws IOException {
+        this.inflater.setInput(b, start, end - start);
+        
+        try {
+            int space;
+            int length;
+            
+            do {
+                space = out.reserve(Math.max(4096, 2 * (end - start)));
+                length = this.inflater.inflate(out.array(), out.size(), space);
+                out.advance(length);
+            } while (length > 0);
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compression on packet!", e);
+        }
+        
+        if (!this.inflater.needsInput()) {
+            throw new IOException("Bad compression on packet!");
+        }
+    }
+    
+    private void readBatchPacket(byte[] p, int start, int end, List<Packet> packets) throws IOException {
+        ByteBuffer batch = ByteBuffer.wrap(p, start, end - start);
+        
+        if (batch.remaining() < 4) {
+            throw new IOException("Invalid batched packet!");
+        }
+        
+        int count = batch.getInt();
+        
+        if (count <= 0) {
+            throw new IOException("Invalid batched packet!");
+        }
+        
+        for (int i = 0; i < count; i++) {
+            if (batch.remaining() < 4) {
+                throw new IOException("Invalid batched packet!");
+            }
+            
+            int length = batch.getInt();
+            
+            if (length <= 0 || length > batch.remaining() || p[batch.position()] == 'm') {
+                throw new IOException("Invalid batched packet!");
+            }
+            
+            this.readPacket(p, batch.position(), batch.position() + length, packets);
+            batch.position(batch.position() + length);
+        }
+        
+        if (batch.hasRemaining()) {
+            throw new IOException("Invalid batched packet!");
+        }
+    }
+    
+    private void readBinaryPacket(byte[] p, int start, int end, List<Packet> packets) throws IOException {
+        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(p, start, end - start)) {
+            packets.add(Packet.readPacket(new DataInputStream(byteIn)));
+            
+            if (byteIn.available() > 0) {
+                throw new IOException("Invalid packet");
+            }
+        }
+    }
+    
+    private void readJsonPacket(byte[] p, int start, int end, List<Packet> packets) throws IOException {
+        packets.add(Packet.readPacket(p, start, end));
+    }
+    
+    /**
+     * Handles the next packet on this connection's input stream. If the packet
+     * could not be fully read, the currently read buffer will be stored and
+     * another attempt to read the remaining data will be made on the next call.
+     * <p>
+     * The packet is handled inside a batch, so packets sent while handling it
+     * are sent once handling is done. See {@link #beginBatch()}.
+     * 
+     * @throws IOException An error occurred while reading or handling the
+     *             packet.
+     */
+    public void handleNextPacket() throws IOException {
+        TTTWConnection.beginBatch();
+        
+        try {
+            this.handlePacket(this.receivePacket());
+        } finally {
+            TTTWConnection.endBatch();
+        }
+    }
+    
+    private void handlePacket(Packet p) throws IOException {
+        if (p == null) {
+            return;
+        }
+        
+        // The table is never modified once published, so no lock is needed
+        Route<?> route = this.dispatchTable.getRoute(p.packetId);
+        
+        if (route != null) {
+            this.handlePacket(route, p);
+        } else if (!(p instanceof PacketKeepAlive)) {
+            throw new IOException("Unexpected packet!");
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <P extends Packet> void handlePacket(Route<P> route, Packet p) throws IOException {
+        route.handlePacket((P) p);
+    }
+    
+    static void compress(byte[] payload, int start, int length, final int level, PooledOutputStream out)
+            throws IOException {
+        out.write('z');
+        
+        // Closing the gzip stream only ends its deflater, since closing the
+        // pooled stream does nothing
+        try (GZIPOutputStream gzOut = new GZIPOutputStream(out) {
+            {
+                this.def.setLevel(level);
+            }
+        }) {
+            gzOut.write(payload, start, length);
+        }
+    }
+    
+    private static void decompress(byte[] compressed, int start, int end, PooledOutputStream out) throws IOException {
+        try (GZIPInputStream gzIn = new GZIPInputStream(new ByteArrayInputStream(compressed, start, end - start))) {
+            int space;
+            int length;
+            
+            // Room must be made before the array is fetched, since making room
+            // may replace it
+            do {
+                space = out.reserve(4096);
+                length = gzIn.read(out.array(), out.size(), space);
+                
+                if (length > 0) {
+                    out.advance(length);
+                }
+            } while (length > 0);
+        }
+    }
+    
+    /**
+     * Closes this connection, preventing any further data from being sent to
+     * it.
+     */
+    public void close() {
+        Socket socket = this.socket;
+        
+        this.socket = null;
+        this.input = null;
+        this.output = null;
+        
+        if (socket != null) {
+            // Frames which are still queued have already been compressed, so
+            // the deflater is no longer needed
+            synchronized (this.writeLock) {
+                if (this.deflater != null) {
+                    this.deflater.end();
+                    this.deflater = null;
+                }
+            }
+            
+            if (this.channel == null) {
+                synchronized (this.sendQueue) {
+                    if (this.draining && !this.slowConsumer) {
+                        // Let the writer finish sending what has already been
+                        // queued, such as a disconnect packet
+                        this.closeAfterDrain = socket;
+                        return;
+                    }
+                }
+            }
+            
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Exceptions while closing the connection should be ignored
+            }
+            
+            // Any blocked read has failed now that the socket is closed, so
+            // this will not wait for long. If the socket is closed later by the
+            // writer instead, the inflater is simply left to be collected.
+            synchronized (this.readLock) {
+                if (this.inflater != null) {
+                    this.inflater.end();
+                    this.inflater = null;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Disconnects this connection with the given disconnection message. Before
+     * the actual disconnection, any {@link DisconnectListener}s on this
+     * connections will be called. If this connection has been marked as a
+     * slow consumer, no disconnection message is sent.
+     * 
+     * @param message The message which should be sent when disconnecting.
+     */
+    public void disconnect(String message) {
+        try {
+            for (DisconnectListener listener : new ArrayList<DisconnectListener>(TTTWConnection.this.disconnectListeners)) {
+                listener.onDisconnect(false, message);
+            }
+            
+            try {
+                this.sendPacketInternal(new PacketDisconnect(message), null);
+            } catch (IOException e) {
                 // Ignore problems sending the disconnect packet
             }
         } finally {
@@ -599,6 +1947,46 @@ public class TTTWConnection {
         public boolean isFiltered(P packet);
     }
     
+    /**
+     * Represents a listener that is notified when a connection operating on a
+     * non-blocking socket channel has data queued which could not be written
+     * immediately. The listener is expected to arrange for
+     * {@link TTTWConnection#flushSendQueue()} to be called once the channel is
+     * writable again.
+     *
+     * @author Ben Thomas
+     */
+    public interface WritePendingListener {
+        /**
+         * Notifies this listener that the given connection has outgoing data
+         * which is waiting for its channel to become writable. This may be
+         * called from any thread.
+         * 
+         * @param connection The connection with pending outgoing data.
+         */
+        public void onWritePending(TTTWConnection connection);
+    }
+    
+    /**
+     * Represents a listener that is notified when a connection operating on
+     * top of a {@link SocketChannel} may read from its channel again, after
+     * reading was paused because too much received data was waiting to be
+     * handled. The listener is expected to arrange for
+     * {@link TTTWConnection#readFrames(ByteBuffer)} to be called once the
+     * channel is readable again.
+     *
+     * @author Ben Thomas
+     */
+    public interface ReadResumeListener {
+        /**
+         * Notifies this listener that the given connection may read from its
+         * channel again. This may be called from any thread.
+         * 
+         * @param connection The connection which may resume reading.
+         */
+        public void onReadResumed(TTTWConnection connection);
+    }
+    
     /**
      * Represents a listener that listens for a specific connection to either
      * send a {@link PacketDisconnect} or be disconnected by the
@@ -622,25 +2010,202 @@ public class TTTWConnection {
         public void onDisconnect(boolean fromRemote, String reason);
     }
     
-    private class FilteredHandler<P extends Packet> {
-        private HashMap<PacketHandler<P>, PacketFilter<? super P>> handlers = new HashMap<PacketHandler<P>, PacketFilter<? super P>>();
-        private PacketHandler<P> defaultHandler;
+    /**
+     * An immutable table of the routes used to dispatch each type of packet,
+     * indexed by packet identifier. Changes are made by building a new table
+     * and publishing it in place of the old one.
+     *
+     * @author Ben Thomas
+     */
+    private static class DispatchTable {
+        private static final DispatchTable EMPTY = new DispatchTable(new Route<?>[0]);
+        
+        // Packet identifiers start at -1, so each route is stored one place
+        // further along than its identifier
+        private final Route<?>[] routes;
+        
+        private DispatchTable(Route<?>[] routes) {
+            this.routes = routes;
+        }
+        
+        private Route<?> getRoute(int packetId) {
+            int index = packetId + 1;
+            return (index >= 0 && index < this.routes.length) ? this.routes[index] : null;
+        }
+        
+        private DispatchTable withRoute(int packetId, Route<?> route) {
+            Route<?>[] routes = Arrays.copyOf(this.routes, Math.max(this.routes.length, packetId + 2));
+            routes[packetId + 1] = (route.isEmpty()) ? null : route;
+            
+            return new DispatchTable(routes);
+        }
+    }
+    
+    /**
+     * The immutable set of handlers for a single type of packet.
+     *
+     * @author Ben Thomas
+     */
+    private static class Route<P extends Packet> {
+        private final Map<Object, PacketHandler<P>> keyedHandlers;
+        private final Map<PacketHandler<P>, PacketFilter<? super P>> filteredHandlers;
+        private final PacketHandler<P> defaultHandler;
+        
+        private Route() {
+            this(Collections.<Object, PacketHandler<P>> emptyMap(),
+                    Collections.<PacketHandler<P>, PacketFilter<? super P>> emptyMap(), null);
+        }
+        
+        private Route(Map<Object, PacketHandler<P>> keyedHandlers,
+                Map<PacketHandler<P>, PacketFilter<? super P>> filteredHandlers, PacketHandler<P> defaultHandler) {
+            this.keyedHandlers = keyedHandlers;
+            this.filteredHandlers = filteredHandlers;
+            this.defaultHandler = defaultHandler;
+        }
+        
+        private boolean isEmpty() {
+            return this.keyedHandlers.isEmpty() && this.filteredHandlers.isEmpty() && this.defaultHandler == null;
+        }
+        
+        private Route<P> withDefaultHandler(PacketHandler<P> handler) {
+            return new Route<P>(this.keyedHandlers, this.filteredHandlers, handler);
+        }
+        
+        private Route<P> withKeyedHandler(Object key, PacketHandler<P> handler) {
+            Map<Object, PacketHandler<P>> keyedHandlers = new HashMap<Object, PacketHandler<P>>(this.keyedHandlers);
+            keyedHandlers.put(key, handler);
+            
+            return new Route<P>(keyedHandlers, this.filteredHandlers, this.defaultHandler);
+        }
+        
+        private Route<P> withoutKeyedHandler(Object key, PacketHandler<P> handler) {
+            if (this.keyedHandlers.get(key) != handler) {
+                return this;
+            }
+            
+            Map<Object, PacketHandler<P>> keyedHandlers = new HashMap<Object, PacketHandler<P>>(this.keyedHandlers);
+            keyedHandlers.remove(key);
+            
+            return new Route<P>(keyedHandlers, this.filteredHandlers, this.defaultHandler);
+        }
+        
+        private Route<P> withFilteredHandler(PacketHandler<P> handler, PacketFilter<? super P> filter) {
+            Map<PacketHandler<P>, PacketFilter<? super P>> filteredHandlers = new LinkedHashMap<PacketHandler<P>, PacketFilter<? super P>>(
+                    this.filteredHandlers);
+            filteredHandlers.put(handler, filter);
+            
+            return new Route<P>(this.keyedHandlers, filteredHandlers, this.defaultHandler);
+        }
+        
+        private Route<P> withoutFilteredHandler(PacketHandler<P> handler) {
+            if (!this.filteredHandlers.containsKey(handler)) {
+                return this;
+            }
+            
+            Map<PacketHandler<P>, PacketFilter<? super P>> filteredHandlers = new LinkedHashMap<PacketHandler<P>, PacketFilter<? super P>>(
+                    this.filteredHandlers);
+            filteredHandlers.remove(handler);
+            
+            return new Route<P>(this.keyedHandlers, filteredHandlers, this.defaultHandler);
+        }
         
-        public void handlePacket(P packet) throws IOException {
-            for (Entry<PacketHandler<P>, PacketFilter<? super P>> handler : this.handlers.entrySet()) {
+        private void handlePacket(P packet) throws IOException {
+            if (!this.keyedHandlers.isEmpty()) {
+                Object key = packet.getRoutingKey();
+                PacketHandler<P> handler = (key != null) ? this.keyedHandlers.get(key) : null;
+                
+                if (handler != null) {
+                    handler.handlePacket(packet);
+                    return;
+                }
+            }
+            
+            for (Entry<PacketHandler<P>, PacketFilter<? super P>> handler : this.filteredHandlers.entrySet()) {
                 if (!handler.getValue().isFiltered(packet)) {
                     handler.getKey().handlePacket(packet);
                     return;
                 }
             }
             
-            if (defaultHandler != null) {
-                defaultHandler.handlePacket(packet);
+            if (this.defaultHandler != null) {
+                this.defaultHandler.handlePacket(packet);
             } else {
                 throw new IOException("Unexpected packet!");
             }
         }
+    }
+    
+    private static class BatchScope {
+        private int depth;
+        private Set<TTTWConnection> connections = new LinkedHashSet<TTTWConnection>();
+    }
+    
+    private class SendQueueDrainer implements Runnable {
+        private Socket socket;
+        private DataOutputStream output;
+        
+        private SendQueueDrainer(Socket socket, DataOutputStream output) {
+            this.socket = socket;
+            this.output = output;
+        }
+        
+        @Override
+        public void run() {
+            Deque<ByteBuffer> sendQueue = TTTWConnection.this.sendQueue;
+            
+            while (true) {
+                ByteBuffer frame;
+                
+                synchronized (sendQueue) {
+                    frame = sendQueue.pollFirst();
+                    
+                    if (frame == null) {
+                        TTTWConnection.this.draining = false;
+                        
+                        if (TTTWConnection.this.closeAfterDrain != null) {
+                            this.closeSocket();
+                        }
+                        
+                        return;
+                    }
+                }
+                
+                try {
+                    this.output.write(frame.array(), frame.position(), frame.remaining());
+                    this.output.flush();
+                } catch (IOException e) {
+                    TTTWConnection.this.bufferPool.release(frame.array());
+                    
+                    synchronized (sendQueue) {
+                        TTTWConnection.this.clearSendQueue();
+                        TTTWConnection.this.sendQueueBytes = 0;
+                        TTTWConnection.this.draining = false;
+                    }
+                    
+                    // Whoever is reading from this connection will notice that
+                    // the socket has been closed and clean up after it
+                    this.closeSocket();
+                    return;
+                }
+                
+                synchronized (sendQueue) {
+                    TTTWConnection.this.sendQueueBytes -= frame.remaining();
+                    TTTWConnection.this.lastWriteProgress = System.currentTimeMillis();
+                }
+                
+                TTTWConnection.this.bufferPool.release(frame.array());
+            }
+        }
         
+        private void closeSocket() {
+            TTTWConnection.this.closeAfterDrain = null;
+            
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Exceptions while closing the connection should be ignored
+            }
+        }
     }
     
     private class DisconnectHandler implements PacketHandler<PacketDisconnect> {